@@ -0,0 +1,42 @@
+package org.ucb.c5.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of this package with the usual JMH command line options,
+ * for example "StageBenchmarks -p length=1000" to run only some of them.
+ *
+ * Unless the command line says otherwise, allocation is recorded by the GC
+ * profiler (gc.alloc.rate.norm is the number of bytes allocated per operation)
+ * and the results are written as JSON to RESULT, so that runs on different
+ * releases can be compared by a script.
+ *
+ * @author Manraj Gill
+ */
+public class BenchmarkMain {
+
+    public static final String RESULT = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            options.include(BenchmarkMain.class.getPackage().getName() + "\\..*");
+        }
+        if (commandLine.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if (!commandLine.getResultFormat().isPresent()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().isPresent()) {
+            options.result(RESULT);
+        }
+        new Runner(options.build()).run();
+    }
+}
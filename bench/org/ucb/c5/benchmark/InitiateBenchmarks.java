@@ -0,0 +1,77 @@
+package org.ucb.c5.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ucb.c5.composition.DownstreamGenomicLocus;
+import org.ucb.c5.composition.InvestigatePromoter;
+import org.ucb.c5.composition.OffTargetSearch;
+import org.ucb.c5.composition.RepairConstructStrategy;
+import org.ucb.c5.composition.TFmotifs;
+import org.ucb.c5.composition.UpstreamGenomicLocus;
+
+/**
+ * Benchmarks initiating each component, and the whole pipeline, from the files
+ * on disk. Every measurement is a single cold call in a fresh instance, which is
+ * what a user waits for at startup; the first call of each fork also pays for
+ * class loading and the operating system's file cache, so it is kept as warmup.
+ * The off-target index is opened as it is by the first search, so it should be
+ * built beforehand by running OffTargetSearch.
+ *
+ * @author Manraj Gill
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(3)
+public class InitiateBenchmarks {
+
+    @Benchmark
+    public TFmotifs tfmotifs() throws Exception {
+        TFmotifs tfms = new TFmotifs();
+        tfms.initiate();
+        return tfms;
+    }
+
+    @Benchmark
+    public UpstreamGenomicLocus upstreamGenomicLocus() throws Exception {
+        UpstreamGenomicLocus ugl = new UpstreamGenomicLocus();
+        ugl.initiate();
+        return ugl;
+    }
+
+    @Benchmark
+    public DownstreamGenomicLocus downstreamGenomicLocus() throws Exception {
+        DownstreamGenomicLocus dgl = new DownstreamGenomicLocus();
+        dgl.initiate();
+        return dgl;
+    }
+
+    @Benchmark
+    public RepairConstructStrategy repairConstructStrategy() throws Exception {
+        RepairConstructStrategy rcs = new RepairConstructStrategy();
+        rcs.initiate();
+        return rcs;
+    }
+
+    @Benchmark
+    public OffTargetSearch offTargetSearch() throws Exception {
+        OffTargetSearch ots = new OffTargetSearch();
+        ots.initiate();
+        ots.loadIndex();
+        return ots;
+    }
+
+    @Benchmark
+    public InvestigatePromoter investigatePromoter() throws Exception {
+        InvestigatePromoter ip = new InvestigatePromoter();
+        ip.initiate();
+        return ip;
+    }
+}
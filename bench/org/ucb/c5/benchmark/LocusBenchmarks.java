@@ -0,0 +1,56 @@
+package org.ucb.c5.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ucb.c5.composition.DownstreamGenomicLocus;
+import org.ucb.c5.composition.UpstreamGenomicLocus;
+
+/**
+ * Benchmarks looking up the loci of a gene in the bundled exports once they are
+ * loaded. Pass -p gene=NAME to benchmark other genes.
+ *
+ * @author Manraj Gill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class LocusBenchmarks {
+
+    @Param({"TERT"})
+    public String gene;
+
+    private UpstreamGenomicLocus ugl;
+    private DownstreamGenomicLocus dgl;
+
+    @Setup
+    public void setUp() throws Exception {
+        ugl = new UpstreamGenomicLocus();
+        ugl.initiate();
+        dgl = new DownstreamGenomicLocus();
+        dgl.initiate();
+    }
+
+    @Benchmark
+    public ArrayList<String> upstreamGenomicLocus() throws Exception {
+        return ugl.run(gene);
+    }
+
+    @Benchmark
+    public String downstreamGenomicLocus() throws Exception {
+        return dgl.run(gene);
+    }
+}
@@ -0,0 +1,68 @@
+package org.ucb.c5.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ucb.c5.composition.InvestigatePromoter;
+import org.ucb.c5.composition.TFmotifs;
+
+/**
+ * Benchmarks InvestigatePromoter.run end to end for one gene, from looking up its
+ * loci to writing its report, with the pipeline initiated once per fork. The
+ * reports are written to a temporary directory that is deleted afterwards. Pass
+ * -p gene=NAME to benchmark other genes.
+ *
+ * @author Manraj Gill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(2)
+public class PipelineBenchmark {
+
+    @Param({"TERT"})
+    public String gene;
+
+    @Param({"CONSENSUS", "PWM"})
+    public TFmotifs.ScanMode scanMode;
+
+    private InvestigatePromoter ip;
+    private File directory;
+
+    @Setup
+    public void setUp() throws Exception {
+        ip = new InvestigatePromoter();
+        ip.initiate(scanMode);
+        directory = Files.createTempDirectory("InvestigatePromoter").toFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] reports = directory.listFiles();
+        if (reports != null) {
+            for (File report : reports) {
+                report.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void investigatePromoter() throws Exception {
+        ip.run(gene, directory.getPath());
+    }
+}
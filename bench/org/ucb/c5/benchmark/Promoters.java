@@ -0,0 +1,85 @@
+package org.ucb.c5.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.ucb.c5.composition.TFmotifs;
+import org.ucb.c5.utils.MotifLibrary;
+import org.ucb.c5.utils.RevComp;
+
+/**
+ * Synthetic promoters for the stage benchmarks. A promoter is a random sequence
+ * of the requested length into which the consensus sequences of the specific
+ * motifs of the motif library are planted, on either strand, until they cover
+ * the requested fraction of its bases. Wildcard positions of a consensus
+ * sequence keep their random base. The random generator is seeded, so every
+ * fork of a benchmark scans the same sequence.
+ *
+ * @author Manraj Gill
+ */
+class Promoters {
+
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+    private static final long SEED = 20140911L;
+
+    /**
+     * @param length the number of bases
+     * @param motifDensity the fraction of the bases covered by planted motifs, between 0 and 1
+     */
+    static String generate(int length, double motifDensity) throws Exception {
+        Random random = new Random(SEED);
+        char[] promoter = random(length, random);
+        if (motifDensity <= 0) {
+            return new String(promoter);
+        }
+
+        MotifLibrary library = MotifLibrary.openResourceLibrary(TFmotifs.LIBRARY);
+        if (library == null) {
+            throw new IllegalStateException("Build " + TFmotifs.LIBRARY + " by running TFmotifs before benchmarking with motifs.");
+        }
+        ArrayList<String> consensusSequences = new ArrayList<>();
+        for (int motif = 0; motif < library.getMotifCount(); motif++) {
+            if (library.isSpecific(motif)) {
+                consensusSequences.add(library.getConsensusSequence(motif));
+            }
+        }
+
+        // Plant until enough bases are covered, overlapping sites count once per site
+        RevComp rc = new RevComp();
+        rc.initiate();
+        long target = Math.round(length * motifDensity);
+        long planted = 0;
+        while (planted < target) {
+            String consensusSequence = consensusSequences.get(random.nextInt(consensusSequences.size()));
+            if (consensusSequence.length() > length) {
+                continue;
+            }
+            if (random.nextBoolean()) {
+                consensusSequence = rc.run(consensusSequence.replace('.', 'N')).replace('N', '.');
+            }
+            int start = random.nextInt(length - consensusSequence.length() + 1);
+            for (int i = 0; i < consensusSequence.length(); i++) {
+                char base = consensusSequence.charAt(i);
+                if (base != '.') {
+                    promoter[start + i] = base;
+                }
+            }
+            planted += consensusSequence.length();
+        }
+        return new String(promoter);
+    }
+
+    /**
+     * @return a random sequence of the given length, the same for every call with the same seed
+     */
+    static String random(int length, long seed) {
+        return new String(random(length, new Random(seed)));
+    }
+
+    private static char[] random(int length, Random random) {
+        char[] sequence = new char[length];
+        for (int i = 0; i < length; i++) {
+            sequence[i] = BASES[random.nextInt(4)];
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,123 @@
+package org.ucb.c5.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ucb.c5.composition.AlterationConstructOligos;
+import org.ucb.c5.composition.Cas9ConstructOligos;
+import org.ucb.c5.composition.MotifHits;
+import org.ucb.c5.composition.RepairConstructStrategy;
+import org.ucb.c5.composition.TFmotifs;
+import org.ucb.c5.utils.RevComp;
+
+/**
+ * Benchmarks each stage of the pipeline on its own, over synthetic promoters of
+ * different lengths and motif densities (see Promoters). The promoter is about
+ * 1000 bases for most genes, so the other lengths show how each stage scales.
+ * The oligo designers are given the sites TFmotifs finds in the promoter, so
+ * their cost grows with the motif density as it does in the pipeline.
+ *
+ * @author Manraj Gill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class StageBenchmarks {
+
+    @Param({"1000", "2500", "10000"})
+    public int length;
+
+    // Fraction of the promoter covered by planted motif sites
+    @Param({"0.0", "0.05", "0.25"})
+    public double motifDensity;
+
+    private String promoter;
+    private char[] promoterChars;
+    private String leftHomologyArm;
+    private String rightHomologyArm;
+    private TFmotifs tfms;
+    private MotifHits motifHits;
+    private Cas9ConstructOligos c9co;
+    private AlterationConstructOligos aco;
+    private RepairConstructStrategy rcs;
+    private RevComp rc;
+
+    @Setup
+    public void setUp() throws Exception {
+        promoter = Promoters.generate(length, motifDensity);
+        promoterChars = promoter.toCharArray();
+        leftHomologyArm = Promoters.random(500, 1);
+        rightHomologyArm = Promoters.random(500, 2);
+        tfms = new TFmotifs();
+        tfms.initiate();
+        motifHits = tfms.run(promoter, TFmotifs.ScanMode.CONSENSUS);
+        c9co = new Cas9ConstructOligos();
+        c9co.initiate();
+        aco = new AlterationConstructOligos();
+        aco.initiate();
+        rcs = new RepairConstructStrategy();
+        rcs.initiate();
+        rc = new RevComp();
+        rc.initiate();
+    }
+
+    @Benchmark
+    public MotifHits tfmotifsConsensus() throws Exception {
+        return tfms.run(promoter, TFmotifs.ScanMode.CONSENSUS);
+    }
+
+    @Benchmark
+    public MotifHits tfmotifsOneMismatch() throws Exception {
+        return tfms.run(promoter, TFmotifs.ScanMode.CONSENSUS, 1);
+    }
+
+    @Benchmark
+    public MotifHits tfmotifsTwoMismatches() throws Exception {
+        return tfms.run(promoter, TFmotifs.ScanMode.CONSENSUS, 2);
+    }
+
+    @Benchmark
+    public MotifHits tfmotifsPwm() throws Exception {
+        return tfms.run(promoter, TFmotifs.ScanMode.PWM);
+    }
+
+    @Benchmark
+    public Object cas9ConstructOligos() throws Exception {
+        return c9co.run(motifHits, promoter);
+    }
+
+    @Benchmark
+    public Object alterationConstructOligos() throws Exception {
+        return aco.run(motifHits, promoter);
+    }
+
+    @Benchmark
+    public Object repairConstructStrategy() throws Exception {
+        return rcs.runVectors(leftHomologyArm, promoter, rightHomologyArm);
+    }
+
+    @Benchmark
+    public String revComp() {
+        return rc.run(promoter);
+    }
+
+    // Twice in place, so the array is back as it was for the next call
+    @Benchmark
+    public char[] revCompInPlace() {
+        RevComp.run(promoterChars, 0, promoterChars.length);
+        RevComp.run(promoterChars, 0, promoterChars.length);
+        return promoterChars;
+    }
+}
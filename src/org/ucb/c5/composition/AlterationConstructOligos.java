@@ -1,6 +1,6 @@
 package org.ucb.c5.composition;
 
-import javafx.util.Pair;
+import org.ucb.c5.utils.PrimerQC;
 import org.ucb.c5.utils.RevComp;
 
 import java.util.ArrayList;
@@ -10,55 +10,93 @@ import java.util.ArrayList;
  * motif location in the promoter and the UTR of the specified gene relies on
  * an overlap-extension PCR approach that removes an entire motif.
  *
+ * Each primer joins an arm upstream of the motif to an arm downstream of it.
+ * The arms are extended or trimmed, within the sequence, to melt as close to
+ * TARGET_ARM_TM as they can, and both primers are checked with PrimerQC: the
+ * forward primer over its downstream arm and the reverse primer over the
+ * complement of the upstream arm, the arm each one primes from.
+ *
  * @author Manraj Gill
  */
 public class AlterationConstructOligos {
 
+    public static final double TARGET_ARM_TM = 55.0;
+    public static final int MIN_ARM = 12;
+    public static final int MAX_ARM = 30;
+
     private RevComp rc;
+    private PrimerQC qc;
 
     public void initiate() throws Exception {
         rc = new RevComp();
         rc.initiate();
+        qc = new PrimerQC();
+        qc.initiate();
     }
 
-    public ArrayList<Pair<String, ArrayList<String>>> run(ArrayList<Pair<String, ArrayList<Integer>>> TFmotifs, String promoterAndFivePrimeUTR) throws Exception {
-        ArrayList<Pair<String, ArrayList<String>>> alterationConstructOligos = new ArrayList<>();
+    /**
+     * The overlap-extension primers that delete one TF motif site
+     */
+    public static class Design {
+        // Number of the site in the MotifHits it was designed for
+        public final int hit;
+        // Index of the first base of the site on the forward strand
+        public final int start;
+        public final boolean minusStrand;
+        public final String forwardOligo;
+        public final String reverseOligo;
+        public final PrimerQC.Result forwardQC;
+        public final PrimerQC.Result reverseQC;
 
-        for (Pair<String, ArrayList<Integer>> TFmotif : TFmotifs) {
-            String Motif_ID = TFmotif.getKey();
-            ArrayList<Integer> motifLocation = TFmotif.getValue();
-            int motifLength = motifLocation.get(0);
-            for (int i = 1; i < motifLocation.size(); i++) {
-                int locationStartIndex = motifLocation.get(i);
-                // Can only construct primers for sites that are at least 15 basepairs from the edges
-                if (locationStartIndex < 15 | locationStartIndex > (promoterAndFivePrimeUTR.length() - motifLength - 16)) {
-                    continue;
-                }
+        Design(int hit, int start, boolean minusStrand, String forwardOligo, String reverseOligo,
+               PrimerQC.Result forwardQC, PrimerQC.Result reverseQC) {
+            this.hit = hit;
+            this.start = start;
+            this.minusStrand = minusStrand;
+            this.forwardOligo = forwardOligo;
+            this.reverseOligo = reverseOligo;
+            this.forwardQC = forwardQC;
+            this.reverseQC = reverseQC;
+        }
+    }
 
-                // Construct the oligo with left and right components that exclude the motif
-                int startingIndexOfOligoLeft = locationStartIndex - 15;
-                int endingIndexOfOligoLeft = locationStartIndex;
-                int startingIndexOfOligoRight = locationStartIndex + motifLength;
-                int endingIndexOfOligoRight = startingIndexOfOligoRight + 15;
-                String oligoLeft = promoterAndFivePrimeUTR.substring(startingIndexOfOligoLeft, endingIndexOfOligoLeft);
-                String oligoRight = promoterAndFivePrimeUTR.substring(startingIndexOfOligoRight, endingIndexOfOligoRight);
-                String forwardOligo = oligoLeft.concat(oligoRight);
+    /**
+     * Designs the overlap-extension primers that delete each TF motif site. The
+     * deletion is the same whichever strand the motif was found on. For each site
+     * the design holds the forward primer, the reverse primer and the PrimerQC
+     * verdicts on both.
+     *
+     * @return the design of every site far enough from the edges, in order of hit
+     */
+    public ArrayList<Design> run(MotifHits motifHits, String promoterAndFivePrimeUTR) throws Exception {
+        ArrayList<Design> alterationConstructOligos = new ArrayList<>();
+        for (int hit = 0; hit < motifHits.size(); hit++) {
+            int motifLength = motifHits.getLength(hit);
+            int locationStartIndex = motifHits.getStart(hit);
+            // Can only construct primers for sites that are at least 15 basepairs from the edges
+            if (locationStartIndex < 15 | locationStartIndex > (promoterAndFivePrimeUTR.length() - motifLength - 16)) {
+                continue;
+            }
 
-                // Derive the reverse complement of the oligo that will serve as a reverse primer
-                String reverseOligo = rc.run(forwardOligo);
+            // Construct the oligo with left and right components that exclude the motif
+            int endingIndexOfOligoLeft = locationStartIndex;
+            int startingIndexOfOligoLeft = endingIndexOfOligoLeft - qc.optimizeArm(promoterAndFivePrimeUTR, endingIndexOfOligoLeft, true, MIN_ARM, MAX_ARM, TARGET_ARM_TM);
+            int startingIndexOfOligoRight = locationStartIndex + motifLength;
+            int endingIndexOfOligoRight = startingIndexOfOligoRight + qc.optimizeArm(promoterAndFivePrimeUTR, startingIndexOfOligoRight, false, MIN_ARM, MAX_ARM, TARGET_ARM_TM);
+            String oligoLeft = promoterAndFivePrimeUTR.substring(startingIndexOfOligoLeft, endingIndexOfOligoLeft);
+            String oligoRight = promoterAndFivePrimeUTR.substring(startingIndexOfOligoRight, endingIndexOfOligoRight);
+            String forwardOligo = oligoLeft.concat(oligoRight);
 
-                // Add to the arraylist named 'alterationConstructOligos' the forward and reverse oligos
-                // for a key corresponding to Motif_ID and the site on the sequence
-                String appendedMotif_ID = Motif_ID.concat("_");
-                appendedMotif_ID = appendedMotif_ID.concat(Integer.toString(locationStartIndex));
-                ArrayList<String> oligos = new ArrayList<>();
-                oligos.add(0, forwardOligo);
-                oligos.add(1, reverseOligo);
-                Pair<String, ArrayList<String>> alterationOligos = new Pair<>(appendedMotif_ID, oligos);
-                alterationConstructOligos.add(alterationOligos);
-            }
-        }
+            // Derive the reverse complement of the oligo that will serve as a reverse primer
+            String reverseOligo = rc.run(forwardOligo);
 
+            // The forward oligo primes from its right arm and the reverse oligo from the complement of the left arm
+            PrimerQC.Result forwardQC = qc.run(forwardOligo, oligoLeft.length(), null, TARGET_ARM_TM);
+            PrimerQC.Result reverseQC = qc.run(reverseOligo, oligoRight.length(), null, TARGET_ARM_TM);
+
+            alterationConstructOligos.add(new Design(hit, locationStartIndex, motifHits.isMinusStrand(hit),
+                    forwardOligo, reverseOligo, forwardQC, reverseQC));
+        }
         return alterationConstructOligos;
     }
 }
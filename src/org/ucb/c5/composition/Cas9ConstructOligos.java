@@ -1,6 +1,6 @@
 package org.ucb.c5.composition;
 
-import javafx.util.Pair;
+import org.ucb.c5.utils.PAMIndex;
 import org.ucb.c5.utils.RevComp;
 import java.util.ArrayList;
 
@@ -21,6 +21,10 @@ import java.util.ArrayList;
  *
  * URL: https://www.addgene.org/crispr/zhang/#spcas9
  *
+ * The PAMs of each sequence are indexed once on both strands with PAMIndex, and
+ * every TF motif site gets the guide whose cut site is closest to it, whichever
+ * strand that guide is on.
+ *
  * @author Manraj Gill
  */
 public class Cas9ConstructOligos {
@@ -32,52 +36,71 @@ public class Cas9ConstructOligos {
         rc.initiate();
     }
 
-    public ArrayList<Pair<String, ArrayList<String>>> run(ArrayList<Pair<String, ArrayList<Integer>>> TFmotifs, String promoterAndFivePrimeUTR) throws Exception {
-        ArrayList<Pair<String, ArrayList<String>>> sgRNAs = new ArrayList<>();
-
-        for (Pair<String, ArrayList<Integer>> TFmotif : TFmotifs) {
-            String Motif_ID = TFmotif.getKey();
-            ArrayList<Integer> motifLocation = TFmotif.getValue();
-            for (int i = 1; i < motifLocation.size(); i++) {
-                int locationStartIndex = motifLocation.get(i);
-                if (locationStartIndex <= 22) {
-                    continue;
-                }
-                int indexOfFirstDownstreamPAM = promoterAndFivePrimeUTR.indexOf("GG", locationStartIndex);
-                if (indexOfFirstDownstreamPAM == -1) {
-                    continue;
-                }
-                int startingIndexOfsgRNA = indexOfFirstDownstreamPAM - 21;
-                int endingIndexOfsgRNA = indexOfFirstDownstreamPAM - 2;
-                String sgRNA = promoterAndFivePrimeUTR.substring(startingIndexOfsgRNA, endingIndexOfsgRNA + 1);
-
-                // Construct oligoUp by appending BbsI cut site
-                String oligoUp = "";
-                oligoUp = oligoUp.concat("CACCG");
-                oligoUp = oligoUp.concat(sgRNA);
+    /**
+     * The sgRNA oligos designed for one TF motif site
+     */
+    public static class Design {
+        // Number of the site in the MotifHits it was designed for
+        public final int hit;
+        // Index of the first base of the site on the forward strand
+        public final int start;
+        public final boolean minusStrand;
+        public final String oligoUp;
+        public final String oligoDown;
 
-                // Construct oligoUp by appending BbsI cut site to the reverse complement of the sgRNA
-                String sgRNArc = rc.run(sgRNA);
-                String oligoDown = "";
-                oligoDown = oligoDown.concat("AAAC");
-                oligoDown = oligoDown.concat(sgRNArc);
-                oligoDown = oligoDown.concat("C");
+        Design(int hit, int start, boolean minusStrand, String oligoUp, String oligoDown) {
+            this.hit = hit;
+            this.start = start;
+            this.minusStrand = minusStrand;
+            this.oligoUp = oligoUp;
+            this.oligoDown = oligoDown;
+        }
+    }
 
-                // Add to the arraylist named 'sgRNAs' oligos up and down as values
-                // for a key corresponding to Motif_ID and the site on the sequence
-                String appendedMotif_ID = Motif_ID.concat("_");
-                appendedMotif_ID = appendedMotif_ID.concat(Integer.toString(locationStartIndex));
-                ArrayList<String> oligos = new ArrayList<>();
-                oligos.add(0, oligoUp);
-                oligos.add(1, oligoDown);
-                Pair<String, ArrayList<String>> MotifOligos = new Pair<>(appendedMotif_ID, oligos);
-                sgRNAs.add(MotifOligos);
+    /**
+     * Designs one sgRNA per TF motif site, using the guide on either strand whose
+     * cut site is nearest to the site as ranked by PAMIndex
+     *
+     * @param motifHits the sites, as returned by TFmotifs
+     * @param promoterAndFivePrimeUTR the scanned sequence
+     * @return the oligoUp and oligoDown of every site that has a guide, in order of hit
+     */
+    public ArrayList<Design> run(MotifHits motifHits, String promoterAndFivePrimeUTR) throws Exception {
+        ArrayList<Design> sgRNAs = new ArrayList<>();
+        PAMIndex pamIndex = new PAMIndex();
+        pamIndex.initiate(promoterAndFivePrimeUTR);
+        for (int hit = 0; hit < motifHits.size(); hit++) {
+            int locationStartIndex = motifHits.getStart(hit);
+            int locationEndIndex = locationStartIndex + motifHits.getLength(hit) - 1;
+            boolean minusStrand = motifHits.isMinusStrand(hit);
+            PAMIndex.Guide guide = pamIndex.run(locationStartIndex, locationEndIndex, minusStrand);
+            if (guide == null) {
+                continue;
             }
+            // A minus-strand protospacer is read as the reverse complement of the plus strand
+            String protospacer = promoterAndFivePrimeUTR.substring(guide.protospacerStart, guide.protospacerStart + PAMIndex.PROTOSPACER_LENGTH);
+            String sgRNA = guide.minusStrand ? rc.run(protospacer) : protospacer;
+            sgRNAs.add(constructOligos(hit, locationStartIndex, minusStrand, sgRNA));
         }
-
         return sgRNAs;
     }
 
+    private Design constructOligos(int hit, int start, boolean minusStrand, String sgRNA) {
+        // Construct oligoUp by appending BbsI cut site
+        String oligoUp = "";
+        oligoUp = oligoUp.concat("CACCG");
+        oligoUp = oligoUp.concat(sgRNA);
+
+        // Construct oligoUp by appending BbsI cut site to the reverse complement of the sgRNA
+        String sgRNArc = rc.run(sgRNA);
+        String oligoDown = "";
+        oligoDown = oligoDown.concat("AAAC");
+        oligoDown = oligoDown.concat(sgRNArc);
+        oligoDown = oligoDown.concat("C");
+
+        return new Design(hit, start, minusStrand, oligoUp, oligoDown);
+    }
+
     public static void main(String[] args) throws Exception {
     }
 }
@@ -0,0 +1,295 @@
+package org.ucb.c5.composition;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads a file written by ColumnarResultSink.
+ *
+ * Initiation maps every block of records and decodes the string, motif and gene
+ * tables, which are small. The records themselves are never parsed: each getter
+ * reads its one field straight from the mapped block, at an offset computed from
+ * the row, so scanning a column touches only the pages of that column and holds
+ * nothing on the heap. Oligos are unpacked when they are asked for.
+ *
+ * Rows are numbered from 0 across the whole file in the order they were written.
+ *
+ * @author Manraj Gill
+ */
+public class ColumnarResultReader {
+
+    // Columns in the order they are stored in a block, each rowCount ints long
+    private static final int GENE = 0;
+    private static final int COUNT = 1;
+    private static final int MOTIF = 2;
+    private static final int LOCATION = 3;
+    private static final int SCORE = 4;
+    private static final int OFF_TARGETS = 5;
+    private static final int OVERLAP_PRIMER_QC = 6;
+    private static final int SGRNA_UP = 0;
+    private static final int SGRNA_DOWN = 1;
+    private static final int FORWARD_PRIMER = 2;
+    private static final int REVERSE_PRIMER = 3;
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+    private String[] strings;
+    // Motif_ID, TF name, TF family and consensus sequence of each motif, as string indices
+    private int[][] motifs;
+    // Name and then repair strategy of each gene, as string indices
+    private int[][] genes;
+    private MappedByteBuffer[] blocks;
+    // Row number of the first record of each block
+    private int[] firstRows;
+    private int rowCount;
+
+    public void initiate(String path) throws Exception {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - 12, 12);
+            if (header.getInt(0) != ColumnarResultSink.MAGIC || trailer.getInt(8) != ColumnarResultSink.MAGIC) {
+                throw new IllegalArgumentException(path + " is not a columnar result file");
+            }
+            if (header.getInt(4) != ColumnarResultSink.VERSION) {
+                throw new IllegalArgumentException(path + " is version " + header.getInt(4) + " of the columnar result format, not " + ColumnarResultSink.VERSION);
+            }
+            long tablesOffset = trailer.getLong(0);
+            ByteBuffer tables = channel.map(FileChannel.MapMode.READ_ONLY, tablesOffset, size - 12 - tablesOffset);
+
+            strings = new String[tables.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = tables.getInt();
+                if (length < 0) {
+                    continue;
+                }
+                byte[] bytes = new byte[length];
+                tables.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            motifs = new int[tables.getInt()][4];
+            for (int[] motif : motifs) {
+                for (int field = 0; field < 4; field++) {
+                    motif[field] = tables.getInt();
+                }
+            }
+            genes = new int[tables.getInt()][];
+            for (int i = 0; i < genes.length; i++) {
+                int name = tables.getInt();
+                int[] gene = new int[1 + tables.getInt()];
+                gene[0] = name;
+                for (int field = 1; field < gene.length; field++) {
+                    gene[field] = tables.getInt();
+                }
+                genes[i] = gene;
+            }
+            blocks = new MappedByteBuffer[tables.getInt()];
+            firstRows = new int[blocks.length];
+            for (int b = 0; b < blocks.length; b++) {
+                long offset = tables.getLong();
+                int length = tables.getInt();
+                firstRows[b] = rowCount;
+                rowCount += tables.getInt();
+                blocks[b] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getGeneCount() {
+        return genes.length;
+    }
+
+    public String getGeneName(int row) {
+        return strings[genes[intField(row, GENE)][0]];
+    }
+
+    /**
+     * @return the genes in the order they were written, including those without records
+     */
+    public ArrayList<String> getGeneNames() {
+        ArrayList<String> geneNames = new ArrayList<>(genes.length);
+        for (int[] gene : genes) {
+            geneNames.add(strings[gene[0]]);
+        }
+        return geneNames;
+    }
+
+    /**
+     * @return the repair strategy of the gene of a row, as returned by RepairConstructStrategy.run
+     */
+    public ArrayList<String> getRepairStrategy(int row) {
+        int[] gene = genes[intField(row, GENE)];
+        ArrayList<String> repairStrategy = new ArrayList<>(gene.length - 1);
+        for (int field = 1; field < gene.length; field++) {
+            repairStrategy.add(strings[gene[field]]);
+        }
+        return repairStrategy;
+    }
+
+    /**
+     * @return the number of the row among the records of its gene
+     */
+    public int getCount(int row) {
+        return intField(row, COUNT);
+    }
+
+    public String getMotifID(int row) {
+        return strings[motifs[intField(row, MOTIF)][0]];
+    }
+
+    public String getTFName(int row) {
+        return strings[motifs[intField(row, MOTIF)][1]];
+    }
+
+    public String getTFFamily(int row) {
+        return strings[motifs[intField(row, MOTIF)][2]];
+    }
+
+    public String getConsensusSequence(int row) {
+        return strings[motifs[intField(row, MOTIF)][3]];
+    }
+
+    /**
+     * @return the location of the site relative to the Transcriptional Start Site
+     */
+    public int getLocation(int row) {
+        return intField(row, LOCATION);
+    }
+
+    public float getScore(int row) {
+        int block = block(row);
+        return blocks[block].getFloat(columnStart(block, SCORE) + 4 * (row - firstRows[block]));
+    }
+
+    public char getStrand(int row) {
+        int block = block(row);
+        int blockRows = blocks[block].getInt(0);
+        return (char) blocks[block].get(4 + 4 * 7 * blockRows + (row - firstRows[block]));
+    }
+
+    /**
+     * @return the number of bases of the site that differ from the consensus sequence
+     */
+    public int getMismatches(int row) {
+        int block = block(row);
+        int blockRows = blocks[block].getInt(0);
+        return blocks[block].get(4 + 4 * 7 * blockRows + blockRows + (row - firstRows[block]));
+    }
+
+    public String getOffTargets(int row) {
+        return strings[intField(row, OFF_TARGETS)];
+    }
+
+    public String getOverlapPrimerQC(int row) {
+        return strings[intField(row, OVERLAP_PRIMER_QC)];
+    }
+
+    public String getSgRNAUp(int row) {
+        return oligo(row, SGRNA_UP);
+    }
+
+    public String getSgRNADown(int row) {
+        return oligo(row, SGRNA_DOWN);
+    }
+
+    public String getForwardOverlapPrimer(int row) {
+        return oligo(row, FORWARD_PRIMER);
+    }
+
+    public String getReverseOverlapPrimer(int row) {
+        return oligo(row, REVERSE_PRIMER);
+    }
+
+    private int block(int row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+        }
+        int block = Arrays.binarySearch(firstRows, row);
+        // Blocks are never empty, so a row that does not start a block lies in the one before the insertion point
+        return block >= 0 ? block : -block - 2;
+    }
+
+    private int columnStart(int block, int column) {
+        return 4 + 4 * column * blocks[block].getInt(0);
+    }
+
+    private int intField(int row, int column) {
+        int block = block(row);
+        return blocks[block].getInt(columnStart(block, column) + 4 * (row - firstRows[block]));
+    }
+
+    private String oligo(int row, int column) {
+        int block = block(row);
+        ByteBuffer buffer = blocks[block];
+        int blockRows = buffer.getInt(0);
+        int oligoColumns = 4 + 4 * 7 * blockRows + ((2 * blockRows + 3) & ~3);
+        int heapStart = oligoColumns + 4 * 4 * blockRows + 4;
+        int offset = heapStart + buffer.getInt(oligoColumns + 4 * (column * blockRows + row - firstRows[block]));
+        int header = buffer.getShort(offset) & 0xFFFF;
+        int length = header & ColumnarResultSink.MAX_OLIGO_LENGTH;
+        char[] oligo = new char[length];
+        if ((header & ColumnarResultSink.ASCII_FLAG) != 0) {
+            for (int i = 0; i < length; i++) {
+                oligo[i] = (char) (buffer.get(offset + 2 + i) & 0xFF);
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                oligo[i] = BASES[(buffer.get(offset + 2 + (i >> 2)) >>> (6 - 2 * (i & 3))) & 3];
+            }
+        }
+        return new String(oligo);
+    }
+
+    /**
+     * Writes the records of a columnar result file to stdout as the tab separated
+     * table of TsvResultSink
+     *
+     * @param args the path of the file
+     */
+    public static void main(String[] args) throws Exception {
+        ColumnarResultReader reader = new ColumnarResultReader();
+        reader.initiate(args[0]);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), TsvResultSink.BUFFER_SIZE);
+        StringBuilder record = new StringBuilder(512);
+        out.write(TsvResultSink.HEADER + System.lineSeparator());
+        for (int row = 0; row < reader.getRowCount(); row++) {
+            ArrayList<String> repairStrategy = reader.getRepairStrategy(row);
+            record.setLength(0);
+            record.append(reader.getGeneName(row)).append('\t')
+                    .append(reader.getCount(row)).append('\t')
+                    .append(reader.getMotifID(row)).append('\t')
+                    .append(reader.getSgRNAUp(row)).append('\t')
+                    .append(reader.getSgRNADown(row)).append('\t')
+                    .append(reader.getOffTargets(row)).append('\t')
+                    .append(reader.getForwardOverlapPrimer(row)).append('\t')
+                    .append(reader.getReverseOverlapPrimer(row)).append('\t')
+                    .append(reader.getOverlapPrimerQC(row)).append('\t')
+                    .append(reader.getLocation(row)).append('\t')
+                    .append(reader.getStrand(row)).append('\t')
+                    .append(reader.getConsensusSequence(row)).append('\t')
+                    .append(reader.getTFName(row)).append('\t')
+                    .append(reader.getTFFamily(row)).append('\t')
+                    .append(GeneResult.formatScore(reader.getScore(row))).append('\t')
+                    .append(reader.getMismatches(row)).append('\t')
+                    .append(repairStrategy.get(2)).append('\t')
+                    .append(repairStrategy.get(3)).append('\t')
+                    .append(repairStrategy.get(4)).append('\t')
+                    .append(repairStrategy.get(0)).append('\t')
+                    .append(repairStrategy.get(1)).append(System.lineSeparator());
+            out.write(record.toString());
+        }
+        out.flush();
+    }
+}
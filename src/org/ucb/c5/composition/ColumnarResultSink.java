@@ -0,0 +1,269 @@
+package org.ucb.c5.composition;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes every gene to one binary file of columns, read back by
+ * ColumnarResultReader. The file holds the same records as TsvResultSink at a
+ * fraction of the size, and a reader can fetch any field of any record straight
+ * from the mapped file without parsing the records before it.
+ *
+ * Records are gathered into blocks of up to BLOCK_ROWS. Within a block each
+ * column is stored contiguously:
+ *
+ *     int rowCount
+ *     int gene[rowCount], count[rowCount], motif[rowCount], location[rowCount]
+ *     float score[rowCount]
+ *     int offTargets[rowCount], overlapPrimerQC[rowCount]
+ *     byte strand[rowCount], mismatches[rowCount], zero padded to a multiple of 4 bytes
+ *     int sgRNAUp[rowCount], sgRNADown[rowCount], forwardPrimer[rowCount], reversePrimer[rowCount]
+ *     int heapLength, byte heap[heapLength]
+ *
+ * The text columns are dictionary encoded: gene is an index into the gene table,
+ * motif an index into the motif table, which holds the Motif_ID, TF name, TF
+ * family and consensus sequence once per motif, and offTargets and
+ * overlapPrimerQC are indices into the string table. The four oligo columns are
+ * offsets into the heap of the block, where each oligo is a short holding its
+ * length, with the top bit set if the oligo is stored as ASCII, followed by its
+ * bases packed four to a byte as A=0, C=1, G=2, T=3 with the first base in the
+ * high bits, or by its ASCII characters if it has bases other than A, C, G and T.
+ *
+ * The tables follow the blocks:
+ *
+ *     int stringCount, then per string: int byteLength, byte utf8[byteLength], with -1 for null
+ *     int motifCount, then per motif: int Motif_ID, TF name, TF family, consensus (string indices)
+ *     int geneCount, then per gene: int name, int strategyLength, int strategy[strategyLength] (string indices)
+ *     int blockCount, then per block: long offset, int length, int rowCount
+ *
+ * and the file ends with the long offset of the tables and MAGIC. All numbers
+ * are big-endian.
+ *
+ * @author Manraj Gill
+ */
+public class ColumnarResultSink implements ResultSink {
+
+    public static final int MAGIC = 0x43354452;
+    public static final int VERSION = 2;
+    public static final int BLOCK_ROWS = 1 << 16;
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    // The top bit of the length of an oligo stored as ASCII
+    static final int ASCII_FLAG = 0x8000;
+    static final int MAX_OLIGO_LENGTH = 0x7FFF;
+
+    private final DataOutputStream out;
+    private long position;
+
+    private final ArrayList<String> strings = new ArrayList<>();
+    // Motifs may have no TF name or family, so null is a string like any other
+    private final HashMap<String, Integer> stringIndices = new HashMap<>();
+    private final ArrayList<int[]> motifs = new ArrayList<>();
+    private final HashMap<String, Integer> motifIndices = new HashMap<>();
+    private final ArrayList<int[]> genes = new ArrayList<>();
+    private final ArrayList<long[]> blocks = new ArrayList<>();
+
+    // The columns of the block being gathered
+    private int rows;
+    private final int[] gene = new int[BLOCK_ROWS];
+    private final int[] count = new int[BLOCK_ROWS];
+    private final int[] motif = new int[BLOCK_ROWS];
+    private final int[] location = new int[BLOCK_ROWS];
+    private final float[] score = new float[BLOCK_ROWS];
+    private final int[] offTargets = new int[BLOCK_ROWS];
+    private final int[] overlapPrimerQC = new int[BLOCK_ROWS];
+    private final byte[] strand = new byte[BLOCK_ROWS];
+    private final byte[] mismatches = new byte[BLOCK_ROWS];
+    private final int[][] oligos = new int[4][BLOCK_ROWS];
+    private byte[] heap = new byte[1 << 16];
+    private int heapLength;
+
+    public ColumnarResultSink(String path) throws Exception {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        position = 8;
+    }
+
+    @Override
+    public void write(GeneResult result) throws Exception {
+        int geneIndex = genes.size();
+        int[] geneEntry = new int[2 + result.repairStrategy.size()];
+        geneEntry[0] = string(result.geneName);
+        geneEntry[1] = result.repairStrategy.size();
+        for (int i = 0; i < result.repairStrategy.size(); i++) {
+            geneEntry[2 + i] = string(result.repairStrategy.get(i));
+        }
+        genes.add(geneEntry);
+
+        MotifHits motifHits = result.motifHits;
+        for (int row = 0; row < result.getRowCount(); row++) {
+            AlterationConstructOligos.Design alteration = result.alterations.get(row);
+            Cas9ConstructOligos.Design sgRNA = result.sgRNAs.get(row);
+            gene[rows] = geneIndex;
+            count[rows] = row;
+            motif[rows] = motif(motifHits, result.getMotif(row));
+            location[rows] = result.getLocation(row);
+            score[rows] = motifHits.getScore(alteration.hit);
+            offTargets[rows] = string(result.offTargets.get(row));
+            overlapPrimerQC[rows] = string(alteration.forwardQC + "/" + alteration.reverseQC);
+            strand[rows] = (byte) (alteration.minusStrand ? '-' : '+');
+            mismatches[rows] = (byte) motifHits.getMismatches(alteration.hit);
+            oligos[0][rows] = oligo(sgRNA.oligoUp);
+            oligos[1][rows] = oligo(sgRNA.oligoDown);
+            oligos[2][rows] = oligo(alteration.forwardOligo);
+            oligos[3][rows] = oligo(alteration.reverseOligo);
+            rows++;
+            if (rows == BLOCK_ROWS) {
+                writeBlock();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws Exception {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (rows > 0) {
+            writeBlock();
+        }
+        long tables = position;
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            if (string == null) {
+                out.writeInt(-1);
+                continue;
+            }
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.writeInt(motifs.size());
+        for (int[] entry : motifs) {
+            for (int field : entry) {
+                out.writeInt(field);
+            }
+        }
+        out.writeInt(genes.size());
+        for (int[] entry : genes) {
+            for (int field : entry) {
+                out.writeInt(field);
+            }
+        }
+        out.writeInt(blocks.size());
+        for (long[] block : blocks) {
+            out.writeLong(block[0]);
+            out.writeInt((int) block[1]);
+            out.writeInt((int) block[2]);
+        }
+        out.writeLong(tables);
+        out.writeInt(MAGIC);
+        out.close();
+    }
+
+    private void writeBlock() throws Exception {
+        long start = position;
+        out.writeInt(rows);
+        writeInts(gene);
+        writeInts(count);
+        writeInts(motif);
+        writeInts(location);
+        for (int i = 0; i < rows; i++) {
+            out.writeFloat(score[i]);
+        }
+        writeInts(offTargets);
+        writeInts(overlapPrimerQC);
+        int padded = (2 * rows + 3) & ~3;
+        out.write(strand, 0, rows);
+        out.write(mismatches, 0, rows);
+        out.write(new byte[padded - 2 * rows]);
+        for (int[] column : oligos) {
+            writeInts(column);
+        }
+        out.writeInt(heapLength);
+        out.write(heap, 0, heapLength);
+        int length = 4 + rows * 4 * 11 + padded + 4 + heapLength;
+        blocks.add(new long[]{start, length, rows});
+        position += length;
+        rows = 0;
+        heapLength = 0;
+    }
+
+    private void writeInts(int[] column) throws Exception {
+        for (int i = 0; i < rows; i++) {
+            out.writeInt(column[i]);
+        }
+    }
+
+    private int string(String string) {
+        Integer index = stringIndices.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string);
+            stringIndices.put(string, index);
+        }
+        return index;
+    }
+
+    private int motif(MotifHits motifHits, int ordinal) {
+        String Motif_ID = motifHits.getMotifID(ordinal);
+        Integer index = motifIndices.get(Motif_ID);
+        if (index == null) {
+            index = motifs.size();
+            motifs.add(new int[]{string(Motif_ID), string(motifHits.getTFName(ordinal)),
+                    string(motifHits.getTFFamilyName(ordinal)), string(motifHits.getConsensusSequence(ordinal))});
+            motifIndices.put(Motif_ID, index);
+        }
+        return index;
+    }
+
+    // Appends an oligo to the heap and returns its offset
+    private int oligo(String oligo) {
+        int length = oligo.length();
+        if (length > MAX_OLIGO_LENGTH) {
+            throw new IllegalArgumentException("Oligo of " + length + " bases is too long to store");
+        }
+        boolean packable = true;
+        for (int i = 0; i < length && packable; i++) {
+            packable = code(oligo.charAt(i)) >= 0;
+        }
+        int bytes = packable ? (length + 3) / 4 : length;
+        if (heapLength + 2 + bytes > heap.length) {
+            heap = Arrays.copyOf(heap, Math.max(heap.length * 2, heapLength + 2 + bytes));
+        }
+        int offset = heapLength;
+        int header = packable ? length : length | ASCII_FLAG;
+        heap[heapLength++] = (byte) (header >>> 8);
+        heap[heapLength++] = (byte) header;
+        if (packable) {
+            Arrays.fill(heap, heapLength, heapLength + bytes, (byte) 0);
+            for (int i = 0; i < length; i++) {
+                heap[heapLength + (i >> 2)] |= code(oligo.charAt(i)) << (6 - 2 * (i & 3));
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                heap[heapLength + i] = (byte) oligo.charAt(i);
+            }
+        }
+        heapLength += bytes;
+        return offset;
+    }
+
+    private static int code(char base) {
+        switch (base) {
+            case 'A': return 0;
+            case 'C': return 1;
+            case 'G': return 2;
+            case 'T': return 3;
+            default: return -1;
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package org.ucb.c5.composition;
 
-import javafx.util.Pair;
-
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import org.ucb.c5.utils.FastaIndex;
+import org.ucb.c5.utils.FastaReader;
 import org.ucb.c5.utils.FileUtils;
+import org.ucb.c5.utils.PackedSequenceStore;
 
 /**
  * Data of genomic sequence from:
@@ -20,52 +23,140 @@ import org.ucb.c5.utils.FileUtils;
  * Running of org.ucb.c5.composition.DownstreamGenomicLocus outputs the RHA as a string for the
  * input gene.
  *
+ * Running main builds "Exons + Introns.psq", a 2-bit packed store of the parsed RHAs
+ * next to the export. When that store is present and up to date, initiation maps it
+ * instead of parsing the export and the RHAs are decoded from it on request. Otherwise
+ * initiation opens "Exons + Introns.txt.idx", an index of where each gene's record is
+ * in the export (building it on first use or when the export changes), and each record
+ * is read from the export when its gene is requested.
+ *
  * @author Manraj Gill
  */
 public class DownstreamGenomicLocus {
 
+    public static final String EXPORT = "Exons + Introns.txt";
+    public static final String STORE = "Exons + Introns.psq";
+
     private HashMap<String, String> RHAs;
+    private PackedSequenceStore store;
+    private FastaIndex index;
 
     public void initiate() throws Exception {
-        String ExonAndIntronInformation = FileUtils.readResourceFile("Exons + Introns.txt");
-        String[] allGenes = ExonAndIntronInformation.split(">");
+        store = PackedSequenceStore.openResourceStore(STORE, EXPORT);
+        if (store != null) {
+            return;
+        }
+        // Records can only be read on demand from an export on the file system,
+        // otherwise the whole export is parsed up front
+        File export = FileUtils.getResourceFile(EXPORT);
+        if (export != null) {
+            index = new FastaIndex();
+            index.initiate(export, new File(export.getPath() + ".idx"), DownstreamGenomicLocus::locusGeneName);
+            return;
+        }
+        parseExport();
+    }
+
+    /**
+     * Serves the RHAs from a packed store built by main rather than from the export
+     *
+     * @param storePath the path of the store file
+     */
+    public void initiate(String storePath) throws Exception {
+        store = new PackedSequenceStore();
+        store.initiate(storePath);
+    }
+
+    private void parseExport() throws Exception {
         RHAs = new HashMap<>();
-        for (int i = 1; i < allGenes.length; i++) {
-            String gene = allGenes[i];
-            String[] lines = gene.split("\\r|\\r?\\n");
-            if (lines.length < 3) {
-                continue;
-            }
-            String geneInformation = lines[0];
-            String geneName = geneInformation.substring(16);
-            String complete = "";
-            for (int j = 1; j < lines.length; j++) {
-                complete += lines[j];
-            }
-            // Need at least 500 basepairs of homology in the right homology arm (RHA)
-            if (complete.length() < 500) {
-                continue;
+        FastaReader reader = new FastaReader();
+        reader.run(EXPORT, (geneInformation, complete, lineCount) -> {
+            String geneName = locusGeneName(geneInformation, complete, lineCount);
+            if (geneName == null || RHAs.containsKey(geneName)) {
+                return;
             }
-            if (RHAs.containsKey(geneName)) {
-                continue;
-            }
-            int lengthOfFivePrimeUTR = complete.length() - 1000;
-            String RHA = complete.substring(lengthOfFivePrimeUTR, lengthOfFivePrimeUTR + 500);
-            RHAs.put(geneName, RHA);
+            RHAs.put(geneName, extractRHA(complete));
+        });
+    }
+
+    // Returns the gene name of a record of the export that provides an RHA, or null for records that are skipped
+    private static String locusGeneName(String geneInformation, CharSequence complete, int lineCount) {
+        if (lineCount < 2) {
+            return null;
         }
+        String geneName = geneInformation.substring(16);
+        // Need at least 500 basepairs of homology in the right homology arm (RHA)
+        if (complete.length() < 500) {
+            return null;
+        }
+        return geneName;
+    }
+
+    private static String extractRHA(CharSequence complete) {
+        int lengthOfFivePrimeUTR = complete.length() - 1000;
+        return complete.subSequence(lengthOfFivePrimeUTR, lengthOfFivePrimeUTR + 500).toString();
     }
 
     public String run(String geneName) throws Exception {
         String toReturn = null;
-        if (RHAs.containsKey(geneName)) {
+        if (store != null) {
+            toReturn = store.run(geneName);
+            if (toReturn == null) {
+                throw new UnknownGeneException(geneName);
+            }
+        }
+        else if (index != null) {
+            String complete = index.run(geneName);
+            if (complete == null) {
+                throw new UnknownGeneException(geneName);
+            }
+            toReturn = extractRHA(complete);
+        }
+        else if (RHAs.containsKey(geneName)) {
             toReturn = RHAs.get(geneName);
         }
         else {
-            throw new IllegalArgumentException("The input gene name is not valid.");
+            throw new UnknownGeneException(geneName);
         }
         return toReturn;
     }
 
+    /**
+     * @return the names of every gene with an RHA, in alphabetical order
+     */
+    public ArrayList<String> getGeneNames() {
+        ArrayList<String> geneNames = new ArrayList<>();
+        Iterable<String> names = store != null ? store.getNames() : index != null ? index.getNames() : RHAs.keySet();
+        for (String geneName : names) {
+            geneNames.add(geneName);
+        }
+        Collections.sort(geneNames);
+        return geneNames;
+    }
+
+    /**
+     * Writes the parsed RHAs to a packed store
+     *
+     * @param storePath the path of the store file to create
+     */
+    public void writeStore(String storePath) throws Exception {
+        PackedSequenceStore.Writer writer = new PackedSequenceStore.Writer();
+        for (String geneName : RHAs.keySet()) {
+            writer.add(geneName, RHAs.get(geneName));
+        }
+        writer.write(storePath, FileUtils.getResourceFingerprint(EXPORT));
+    }
+
+    /**
+     * Builds the packed store of the export, by default next to the export
+     *
+     * @param args optionally, the path of the store file to create
+     */
     public static void main(String[] args) throws Exception {
+        DownstreamGenomicLocus dgl = new DownstreamGenomicLocus();
+        dgl.parseExport();
+        String storePath = args.length > 0 ? args[0] : FileUtils.getResourceLocation(STORE).getPath();
+        dgl.writeStore(storePath);
+        System.out.println("Wrote " + dgl.RHAs.size() + " RHAs to " + storePath);
     }
 }
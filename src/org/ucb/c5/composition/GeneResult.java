@@ -0,0 +1,88 @@
+package org.ucb.c5.composition;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Everything InvestigatePromoter designs for one gene: the repair strategy of
+ * its locus and one row per TF motif site that has both alteration oligos and an
+ * sgRNA, in the order of the report. Row i is described by alterations.get(i),
+ * sgRNAs.get(i) and offTargets.get(i), and by the hit of motifHits both designs
+ * were made for.
+ *
+ * @author Manraj Gill
+ */
+public class GeneResult {
+
+    public final String geneName;
+    // As returned by RepairConstructStrategy.run
+    public final ArrayList<String> repairStrategy;
+    public final MotifHits motifHits;
+    public final ArrayList<AlterationConstructOligos.Design> alterations;
+    public final ArrayList<Cas9ConstructOligos.Design> sgRNAs;
+    // The sgRNA_Off_Targets summary of each row, from OffTargetSearch.summarize
+    public final ArrayList<String> offTargets;
+
+    GeneResult(String geneName, ArrayList<String> repairStrategy, MotifHits motifHits) {
+        this.geneName = geneName;
+        this.repairStrategy = repairStrategy;
+        this.motifHits = motifHits;
+        this.alterations = new ArrayList<>();
+        this.sgRNAs = new ArrayList<>();
+        this.offTargets = new ArrayList<>();
+    }
+
+    void add(AlterationConstructOligos.Design alteration, Cas9ConstructOligos.Design sgRNA, String offTargets) {
+        this.alterations.add(alteration);
+        this.sgRNAs.add(sgRNA);
+        this.offTargets.add(offTargets);
+    }
+
+    public int getRowCount() {
+        return alterations.size();
+    }
+
+    public int getMotif(int row) {
+        return motifHits.getMotif(alterations.get(row).hit);
+    }
+
+    /**
+     * @return the location of the site of a row relative to the Transcriptional Start Site
+     */
+    public int getLocation(int row) {
+        return alterations.get(row).start - 1000;
+    }
+
+    /**
+     * Appends the Count to Mismatches columns of a row, each followed by a tab, as they
+     * appear in the report and the stream records
+     */
+    public void appendRow(int row, StringBuilder sb) {
+        AlterationConstructOligos.Design alteration = alterations.get(row);
+        Cas9ConstructOligos.Design sgRNA = sgRNAs.get(row);
+        int motif = getMotif(row);
+        sb.append(row).append('\t');
+        sb.append(motifHits.getMotifID(motif)).append('\t');
+        sb.append(sgRNA.oligoUp).append('\t');
+        sb.append(sgRNA.oligoDown).append('\t');
+        sb.append(offTargets.get(row)).append('\t');
+        sb.append(alteration.forwardOligo).append('\t');
+        sb.append(alteration.reverseOligo).append('\t');
+        sb.append(alteration.forwardQC).append('/').append(alteration.reverseQC).append('\t');
+        sb.append(getLocation(row)).append('\t');
+        sb.append(alteration.minusStrand ? '-' : '+').append('\t');
+        sb.append(motifHits.getConsensusSequence(motif)).append('\t');
+        sb.append(motifHits.getTFName(motif)).append('\t');
+        sb.append(motifHits.getTFFamilyName(motif)).append('\t');
+        sb.append(formatScore(motifHits.getScore(alteration.hit))).append('\t');
+        sb.append(motifHits.getMismatches(alteration.hit)).append('\t');
+    }
+
+    /**
+     * @return a score to two decimal places, or null for a site without one, such as a
+     * consensus match over an N that the matrix cannot score
+     */
+    public static String formatScore(float score) {
+        return Float.isFinite(score) ? String.format(Locale.ROOT, "%.2f", score) : "null";
+    }
+}
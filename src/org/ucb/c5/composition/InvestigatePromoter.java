@@ -1,14 +1,84 @@
 package org.ucb.c5.composition;
 
-import javafx.util.Pair;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import org.ucb.c5.utils.LatencyHistogram;
+import org.ucb.c5.utils.MetricsRegistry;
+import org.ucb.c5.utils.PWMScanner;
+import org.ucb.c5.utils.PrimerQC;
 
 /**
+ * Initiation loads the downstream loci, the upstream loci and the TF motif library
+ * at the same time on threads of their own, so startup takes as long as the
+ * slowest of them rather than their sum. initiateAsync returns a future that
+ * completes once every component is ready; run waits for it, so genes can be
+ * requested while the data is still loading. The off-target index of the loci is
+ * not part of startup: it is opened, or built, by the first off-target search.
+ *
+ * Consensus sequences can be matched with a few mismatches, as described in
+ * TFmotifs, and every site is reported with its number of mismatches.
+ *
+ * Every sgRNA is reported with its number of sites in the loci with 0, 1, 2 and 3
+ * mismatches in the protospacer, as found by OffTargetSearch. The designed site is
+ * one of the sites with no mismatches.
+ *
+ * The designs of a gene are gathered into a GeneResult and written by a
+ * ResultSink: TextReportSink writes a report file per gene, TsvResultSink one
+ * table of every gene and ColumnarResultSink one compact binary file of columns.
+ *
+ * runBatch sweeps a list of genes, or every gene with a locus. With the TEXT format
+ * it runs on a fork-join pool and each gene is written to its own file; with the
+ * TSV and COLUMNAR formats the genes are written to a single file in list order.
+ * All workers share the components, which are read-only once initiated, so the
+ * output does not depend on scheduling. A summary of every gene in list order is
+ * written alongside.
+ *
+ * runStream reads gene names line by line and writes the motif table of each gene
+ * as tab separated records, prefixed with the gene name and followed by its repair
+ * strategy, or hands the genes to another sink. Each gene is investigated as its
+ * own task on a virtual thread while the next names are read, and a single writer
+ * emits the records in input order. At most a fixed window of genes is in flight,
+ * so a slow reader of the output holds back the input rather than letting results
+ * pile up.
+ *
+ * initiateCache keeps the result of every gene in a ResultCache, in memory and
+ * optionally on disk, keyed by a fingerprint of the data files and design
+ * parameters, so a gene asked for again costs a lookup rather than a run of the
+ * pipeline, and a change to any input discards every cached result.
+ *
+ * Every gene is timed stage by stage, from the locus lookup to writing the report,
+ * into the latency histograms of a MetricsRegistry, which also counts the genes,
+ * the bases scanned for motifs, the motif hits and the designs and records made.
+ * Updating them takes a few atomic additions per stage, so they are always on.
+ * runBatch writes a snapshot of them next to its summary, and main registers them
+ * as a JMX MBean and can write snapshots to a file periodically.
+ *
  * @author Manraj Gill
  */
 public class InvestigatePromoter {
@@ -19,135 +89,617 @@ public class InvestigatePromoter {
     private Cas9ConstructOligos c9co;
     private RepairConstructStrategy rcs;
     private AlterationConstructOligos aco;
+    private OffTargetSearch ots;
+    private TFmotifs.ScanMode scanMode;
+    private int motifMismatches;
+    private CompletableFuture<Void> ready;
+    // Replaced whenever the motifs are reloaded, and null while a new one is made
+    private volatile ResultCache cache;
+    private File cacheDirectory;
+    private int cacheMemoryEntries;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final LatencyHistogram geneLatency = metrics.histogram("gene");
+    private final LatencyHistogram locusLatency = metrics.histogram("stage.locus");
+    private final LatencyHistogram motifLatency = metrics.histogram("stage.motifs");
+    private final LatencyHistogram sgRNALatency = metrics.histogram("stage.sgRNAs");
+    private final LatencyHistogram repairLatency = metrics.histogram("stage.repair");
+    private final LatencyHistogram alterationLatency = metrics.histogram("stage.alterations");
+    private final LatencyHistogram offTargetLatency = metrics.histogram("stage.offTargets");
+    private final LatencyHistogram reportLatency = metrics.histogram("stage.report");
+    private final LongAdder genesInvestigated = metrics.counter("genes");
+    private final LongAdder genesFailed = metrics.counter("genes.failed");
+    private final LongAdder basesScanned = metrics.counter("bases.scanned");
+    private final LongAdder motifHitCount = metrics.counter("motif.hits");
+    private final LongAdder sgRNACount = metrics.counter("sgRNAs");
+    private final LongAdder alterationCount = metrics.counter("alterations");
+    private final LongAdder recordCount = metrics.counter("records");
+    private final LongAdder motifReloads = metrics.counter("motif.reloads");
+
+    public static final String BATCH_SUMMARY = "batch_summary.tsv";
+    public static final String BATCH_METRICS = "batch_metrics.tsv";
+    public static final String MBEAN_NAME = "org.ucb.c5:type=InvestigatePromoter";
+    public static final long SNAPSHOT_PERIOD_SECONDS = 10;
+    public static final int DEFAULT_STREAM_WINDOW = 64;
+    public static final String STREAM_HEADER = TsvResultSink.HEADER;
+    public static final String BATCH_TSV = "batch_designs.tsv";
+    public static final String BATCH_COLUMNAR = "batch_designs.col";
+
+    private static final String USAGE = "Usage: InvestigatePromoter [pwm] [mismatches count] [metrics metricsFile] [cache cacheDirectory] [watch]"
+            + " [batch outputDirectory (geneListFile | all) [text | tsv | columnar] | stream [window]]";
+
+    public enum OutputFormat {
+        TEXT,
+        TSV,
+        COLUMNAR
+    }
+
+    // Every input the results are computed from. The off-target index is left
+    // out as it is derived from the loci.
+    private static final String[] CACHE_INPUTS = {
+        UpstreamGenomicLocus.EXPORT, UpstreamGenomicLocus.STORE,
+        DownstreamGenomicLocus.EXPORT, DownstreamGenomicLocus.STORE,
+        TFmotifs.LIBRARY, TFmotifs.TF_INFORMATION, TFmotifs.TF_INFORMATION_FALLBACK, TFmotifs.PWM_DIRECTORY,
+        RepairConstructStrategy.CATALOG
+    };
+
+    // Marks the end of the genes queued for the writer
+    private static final CompletableFuture<Outcome> END_OF_STREAM = CompletableFuture.completedFuture(null);
+
+    private interface Loader {
+        void load() throws Exception;
+    }
 
     public void initiate() throws Exception {
+        initiate(TFmotifs.ScanMode.CONSENSUS);
+    }
+
+    public void initiate(TFmotifs.ScanMode scanMode) throws Exception {
+        initiateAsync(scanMode);
+        awaitReady();
+    }
+
+    /**
+     * Starts loading every component of the pipeline concurrently
+     *
+     * @param scanMode whether TF binding sites are found by consensus sequence or by PWM score
+     * @return a future that completes when the pipeline is ready to run, or
+     * completes exceptionally with the first failure of a component
+     */
+    public CompletableFuture<Void> initiateAsync(TFmotifs.ScanMode scanMode) {
+        return initiateAsync(scanMode, 0);
+    }
+
+    /**
+     * Starts loading every component of the pipeline concurrently, as initiateAsync does
+     *
+     * @param motifMismatches the number of specific positions of a consensus sequence
+     * that may differ from a site, which must be 0 when scanning with PWMs
+     */
+    public CompletableFuture<Void> initiateAsync(TFmotifs.ScanMode scanMode, int motifMismatches) {
+        if (motifMismatches < 0 || (motifMismatches > 0 && scanMode != TFmotifs.ScanMode.CONSENSUS)) {
+            throw new IllegalArgumentException("Mismatches can only be allowed when matching consensus sequences.");
+        }
+        this.scanMode = scanMode;
+        this.motifMismatches = motifMismatches;
         dgl = new DownstreamGenomicLocus();
         ugl = new UpstreamGenomicLocus();
         tfms = new TFmotifs();
         c9co = new Cas9ConstructOligos();
         rcs = new RepairConstructStrategy();
         aco = new AlterationConstructOligos();
-        dgl.initiate();
-        ugl.initiate();
-        tfms.initiate();
-        c9co.initiate();
-        rcs.initiate();
-        aco.initiate();
+        ots = new OffTargetSearch();
+
+        // The three data sets are independent and mostly wait on reading files,
+        // so each gets a thread rather than a share of the fork-join pool that
+        // TFmotifs parses its matrices on
+        ExecutorService loaders = Executors.newFixedThreadPool(3);
+        CompletableFuture<Void> downstream = load(dgl::initiate, loaders);
+        CompletableFuture<Void> upstream = load(ugl::initiate, loaders);
+        CompletableFuture<Void> motifs = load(tfms::initiate, loaders);
+        loaders.shutdown();
+        ready = CompletableFuture.allOf(downstream, upstream, motifs).thenRun(() -> {
+            try {
+                ots.initiate(ugl, dgl, OffTargetSearch.DEFAULT_MAX_MISMATCHES);
+                c9co.initiate();
+                rcs.initiate();
+                aco.initiate();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+        return ready;
+    }
+
+    /**
+     * Keeps the results of genes in a ResultCache, so that genes asked for again
+     * are not investigated again. The cache is keyed by a fingerprint of the data
+     * files and the design parameters, which is computed here while the data
+     * loads, so this is best called straight after initiateAsync and must be
+     * called before any gene is requested.
+     *
+     * @param directory the directory of the persistent tier, or null to cache in memory only
+     * @param memoryEntries the number of results kept in memory
+     */
+    public void initiateCache(File directory, int memoryEntries) throws Exception {
+        if (scanMode == null) {
+            throw new IllegalStateException("InvestigatePromoter has not been initiated.");
+        }
+        String parameters = "scanMode=" + scanMode
+                + " motifMismatches=" + motifMismatches
+                + " background=" + Arrays.toString(PWMScanner.UNIFORM_BACKGROUND)
+                + " threshold=" + PWMScanner.DEFAULT_THRESHOLD
+                + " sodium=" + PrimerQC.DEFAULT_SODIUM
+                + " primerConcentration=" + PrimerQC.DEFAULT_PRIMER_CONCENTRATION
+                + " maxMismatches=" + OffTargetSearch.DEFAULT_MAX_MISMATCHES
+                + " vector=" + RepairConstructStrategy.DEFAULT_VECTOR;
+        ResultCache resultCache = new ResultCache();
+        resultCache.initiate(directory, memoryEntries, parameters, CACHE_INPUTS, tfms.getVersion(), metrics);
+        cacheDirectory = directory;
+        cacheMemoryEntries = memoryEntries;
+        cache = resultCache;
+    }
+
+    /**
+     * Picks up edits to the CIS-BP motif files while running, as described in
+     * TFmotifs.startWatching. Each reload starts a new result cache, as the
+     * fingerprint of the inputs has changed.
+     *
+     * @return a future that completes once the motifs are loaded and watched
+     */
+    public CompletableFuture<Void> watchMotifLibrary() {
+        if (ready == null) {
+            throw new IllegalStateException("InvestigatePromoter has not been initiated.");
+        }
+        return ready.thenRun(() -> {
+            try {
+                tfms.startWatching(this::motifsReloaded);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private void motifsReloaded() {
+        motifReloads.increment();
+        if (cache == null) {
+            return;
+        }
+        // Nothing is cached while the inputs are hashed again
+        cache = null;
+        try {
+            initiateCache(cacheDirectory, cacheMemoryEntries);
+        } catch (Exception e) {
+            System.err.println("Could not start a new result cache, caching is off: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the future returned by the last call to initiateAsync
+     */
+    public CompletableFuture<Void> getReady() {
+        return ready;
+    }
+
+    private static CompletableFuture<Void> load(Loader loader, ExecutorService executor) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                loader.load();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    // Blocks until initiation has finished, rethrowing the exception of a component that failed
+    private void awaitReady() throws Exception {
+        if (ready == null) {
+            throw new IllegalStateException("InvestigatePromoter has not been initiated.");
+        }
+        try {
+            ready.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
     }
 
     public void run(String geneName, String directory) throws Exception {
+        GeneResult result = investigate(geneName);
+        long start = System.nanoTime();
+        new TextReportSink(directory).write(result);
+        reportLatency.recordSince(start);
+    }
+
+    /**
+     * Designs everything for one gene without writing it anywhere. With a cache,
+     * the result may be shared with other callers and must not be modified.
+     */
+    public GeneResult investigate(String geneName) throws Exception {
+        awaitReady();
+        long start = System.nanoTime();
+        try {
+            // A result is only cached if the motifs and the cache were the same throughout, and a
+            // cache is only read while its motifs are current, as a reload replaces it after the fact
+            ResultCache resultCache = cache;
+            long motifVersion = tfms.getVersion();
+            if (resultCache != null && resultCache.getInputVersion() != motifVersion) {
+                resultCache = null;
+            }
+            GeneResult result = resultCache == null ? null : resultCache.get(geneName);
+            if (result == null) {
+                result = investigate(geneName, start);
+                if (resultCache != null && resultCache == cache && motifVersion == tfms.getVersion()) {
+                    resultCache.put(result);
+                }
+            }
+            genesInvestigated.increment();
+            return result;
+        } catch (Exception e) {
+            genesFailed.increment();
+            throw e;
+        } finally {
+            geneLatency.recordSince(start);
+        }
+    }
 
-        // Run the overarching algorithm
+    private GeneResult investigate(String geneName, long start) throws Exception {
+        // Run the overarching algorithm, timing each stage from the end of the last
         ArrayList<String> upstream = ugl.run(geneName);
         String RightHomologyArm = dgl.run(geneName);
         String LeftHomologyArm = upstream.get(0);
         String PromoterAndFivePrimeUTR = upstream.get(1);
-        ArrayList<ArrayList> TFmotifsInSequence = tfms.run(PromoterAndFivePrimeUTR);
-        ArrayList<Pair<String, ArrayList<Integer>>> TranscriptionFactors = TFmotifsInSequence.get(0);
-        ArrayList<HashMap> TFinformation = TFmotifsInSequence.get(1);
-        ArrayList<Pair<String, ArrayList<String>>> sgRNAs = c9co.run(TranscriptionFactors, PromoterAndFivePrimeUTR);
-        HashMap<String, ArrayList<String>> hashMapOfsgRNAs = new HashMap<>();
-        for (Pair<String, ArrayList<String>> sgRNA : sgRNAs) {
-            String appendedMotif_ID = sgRNA.getKey();
-            ArrayList<String> sgRNAoligos = sgRNA.getValue();
-            hashMapOfsgRNAs.put(appendedMotif_ID, sgRNAoligos);
+        long time = locusLatency.recordSince(start);
+        MotifHits motifHits = tfms.run(PromoterAndFivePrimeUTR, scanMode, motifMismatches);
+        basesScanned.add(PromoterAndFivePrimeUTR.length());
+        motifHitCount.add(motifHits.size());
+        time = motifLatency.recordSince(time);
+        ArrayList<Cas9ConstructOligos.Design> sgRNAs = c9co.run(motifHits, PromoterAndFivePrimeUTR);
+        // The sgRNA designed for each site, joined to the alteration oligos by hit
+        Cas9ConstructOligos.Design[] sgRNAsByHit = new Cas9ConstructOligos.Design[motifHits.size()];
+        for (Cas9ConstructOligos.Design sgRNA : sgRNAs) {
+            sgRNAsByHit[sgRNA.hit] = sgRNA;
         }
+        sgRNACount.add(sgRNAs.size());
+        time = sgRNALatency.recordSince(time);
         ArrayList<String> repairStrategy = rcs.run(LeftHomologyArm, PromoterAndFivePrimeUTR, RightHomologyArm);
-        ArrayList<Pair<String, ArrayList<String>>> alterationOligos = aco.run(TranscriptionFactors, PromoterAndFivePrimeUTR);
-        HashMap<String, String> tfNames = TFinformation.get(0);
-        HashMap<String, String> tfFamilyNames = TFinformation.get(1);
-        HashMap<String, String> consensusSequences = TFinformation.get(2);
-
-        // Parse information from the constructed data structures into a tab separated file
-        File file = new File(directory + "/" + geneName);
-        FileWriter fw = new FileWriter(file);
-        PrintWriter pw = new PrintWriter(fw);
-        pw.println("------------------------------");
-        pw.println();
-        pw.println("EXPERIMENTAL OVERVIEW:");
-        pw.println();
-        pw.println("In order to investigate transcription factors in the promoter and 5' UTR of " + geneName + ", ");
-        pw.println("use the following two primers to amplify the genomic locus: ");
-        pw.println();
-        pw.println("Forward_Repair_Primer: " + repairStrategy.get(2));
-        pw.println("Reverse_Repair_Primer: " + repairStrategy.get(3));
-        pw.println("The expected size of the amplicon is: " + repairStrategy.get(4));
-        pw.println();
-        pw.println("Digest the pCR2.1-TOPO backbone and the amplicon with: ");
-        pw.println(repairStrategy.get(0) + " and " + repairStrategy.get(1));
-        pw.println();
-        pw.println("Ligate and transform to obtain the repair construct template.");
-        pw.println();
-        pw.println("For each of the TF motifs identified below, use the repair construct template and the Forward_Overlap_Primer and Reverse_Overlap_Primer in an overlap-extension strategy (see outline in README) to devise unique constructs that remove the TF motif.");
-        pw.println();
-        pw.println("Similarly for each TF motif identified below, use the sgRNA_UP and sgRNA_DOWN in the cloning protocol of px330 constructs.");
-        pw.println("The cloning protocol of px330 constructs is adapted from Zhang Lab protocols for CRISPR/Cas9 systems in mammalian cells.");
-        pw.println("Detailed protocol available in this package as a PDF titled Cas9ConstructProtocol.pdf");
-        pw.println();
-        pw.println("------------------------------");
-        pw.println();
-        pw.println("IDENTIFIED TRANSCRIPTION FACTOR BINDING MOTIFS:");
-        pw.println();
-        pw.println("Count\tMotif_ID\tsgRNA_UP\tsgRNA_DOWN\tForward_Overlap_Primer\tReverse_Overlap_Primer\tLocation\tConsensus_Sequence\tTF_Name\tTF_Family");
-        int i = 0;
-        for (Pair<String, ArrayList<String>> alteration : alterationOligos) {
-            String appendedMotif_ID = alteration.getKey();
-            ArrayList<String> oligos = alteration.getValue();
-
-            // Obtain the sgRNA oligos
-            ArrayList<String> sgRNAoligos = hashMapOfsgRNAs.get(appendedMotif_ID);
-            if (sgRNAoligos == null) {
+        time = repairLatency.recordSince(time);
+        ArrayList<AlterationConstructOligos.Design> alterationOligos = aco.run(motifHits, PromoterAndFivePrimeUTR);
+        alterationCount.add(alterationOligos.size());
+        time = alterationLatency.recordSince(time);
+
+        // Keep the sites that have both designs, with the off-target summary of their sgRNA
+        GeneResult result = new GeneResult(geneName, repairStrategy, motifHits);
+        for (AlterationConstructOligos.Design alteration : alterationOligos) {
+            Cas9ConstructOligos.Design sgRNA = sgRNAsByHit[alteration.hit];
+            if (sgRNA == null) {
                 continue;
             }
+            result.add(alteration, sgRNA, ots.summarize(sgRNA.oligoUp.substring(5)));
+        }
+        recordCount.add(result.getRowCount());
+        offTargetLatency.recordSince(time);
+        return result;
+    }
+
+    /**
+     * Investigates the genes named one per line in input as they arrive and writes
+     * their records to output in the same order, after a STREAM_HEADER line. Genes
+     * that cannot be investigated are reported on System.err.
+     *
+     * @param input gene names, one per line; blank lines and lines starting with # are skipped
+     * @param output receives the records
+     * @param window the largest number of genes investigated or waiting to be written at once
+     */
+    public void runStream(Reader input, Writer output, int window) throws Exception {
+        TsvResultSink sink = new TsvResultSink(output);
+        sink.flush();
+        runStream(input, sink, window);
+        sink.flush();
+    }
 
-            pw.print(i + "\t");
+    /**
+     * Investigates the genes named one per line in input as they arrive and hands
+     * them to sink in the same order, flushing it whenever it has caught up. The
+     * sink is left open. Genes that cannot be investigated are reported on
+     * System.err.
+     */
+    public void runStream(Reader input, ResultSink sink, int window) throws Exception {
+        awaitReady();
+        Iterator<String> geneNames = new BufferedReader(input).lines()
+                .map(String::trim)
+                .filter(geneName -> !geneName.isEmpty() && !geneName.startsWith("#"))
+                .iterator();
+        ExecutorService workers = newTaskExecutor();
+        try {
+            runInOrder(geneNames, sink, window, workers, (i, outcome) -> {
+                if (outcome.failure != null) {
+                    System.err.println("Could not investigate " + outcome.geneName + ": " + outcome.failure.getMessage());
+                }
+            });
+        } finally {
+            workers.shutdown();
+        }
+    }
 
-            // Obtain and print the Motif_ID
-            String Motif_ID = appendedMotif_ID.substring(0, 10);
-            pw.print(Motif_ID + "\t");
+    // A gene and what became of it
+    private static class Outcome {
+        final String geneName;
+        final GeneResult result;
+        final Exception failure;
 
-            // Print the up sgRNA oligos
-            String sgRNA_UP = sgRNAoligos.get(0);
-            pw.print(sgRNA_UP + "\t");
-            String sgRNA_DOWN = sgRNAoligos.get(1);
-            pw.print(sgRNA_DOWN + "\t");
+        Outcome(String geneName, GeneResult result, Exception failure) {
+            this.geneName = geneName;
+            this.result = result;
+            this.failure = failure;
+        }
+    }
 
-            // Obtain and print the forward and reverse overlap extension primers
-            String Forward_Overlap_Primer = oligos.get(0);
-            pw.print(Forward_Overlap_Primer + "\t");
-            String Reverse_Overlap_Primer = oligos.get(1);
-            pw.print(Reverse_Overlap_Primer + "\t");
+    private interface OutcomeListener {
+        void accept(int index, Outcome outcome);
+    }
 
-            // Obtain and print the Location relative to the Transcriptional Start Site
-            String Location = appendedMotif_ID.substring(11);
-            int LocationRelativeToTSS = Integer.parseInt(Location) - 1000;
-            String LocationToTSS = Integer.toString(LocationRelativeToTSS);
-            pw.print(LocationToTSS + "\t");
+    /**
+     * Investigates the genes on workers while a single writer hands the results to
+     * sink in the order of the genes, with at most window genes investigated or
+     * waiting to be written at once. The listener hears of every gene, in order,
+     * once it has been written or has failed. The first failure of the sink or
+     * the listener stops both and is thrown here once every gene submitted has
+     * been taken off the queue.
+     */
+    private void runInOrder(Iterator<String> geneNames, ResultSink sink, int window, ExecutorService workers,
+                            OutcomeListener listener) throws Exception {
+        Semaphore inFlight = new Semaphore(window);
+        BlockingQueue<CompletableFuture<Outcome>> pending = new LinkedBlockingQueue<>();
+        Throwable[] failure = new Throwable[1];
 
-            // Obtain and print the Consensus Sequence
-            String Consensus_Sequence = consensusSequences.get(Motif_ID);
-            pw.print(Consensus_Sequence + "\t");
+        // The writer flushes whenever it has caught up with the workers; after a
+        // failure of the sink or the listener it keeps taking results, releasing
+        // their permits, so the workers and the submitting thread are not held back
+        Thread writer = new Thread(() -> {
+            try {
+                int index = 0;
+                for (CompletableFuture<Outcome> next = pending.take(); next != END_OF_STREAM; next = pending.take()) {
+                    try {
+                        if (failure[0] == null) {
+                            Outcome outcome = next.join();
+                            if (outcome.result != null) {
+                                long start = System.nanoTime();
+                                sink.write(outcome.result);
+                                if (pending.isEmpty()) {
+                                    sink.flush();
+                                }
+                                reportLatency.recordSince(start);
+                            }
+                            listener.accept(index++, outcome);
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "InvestigatePromoter-writer");
+        writer.start();
 
-            // Obtain and print the TF Name
-            String TF_Name = tfNames.get(Motif_ID);
-            pw.print(TF_Name + "\t");
+        try {
+            while (geneNames.hasNext()) {
+                String geneName = geneNames.next();
+                inFlight.acquire();
+                pending.put(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return new Outcome(geneName, investigate(geneName), null);
+                    } catch (Exception e) {
+                        return new Outcome(geneName, null, e);
+                    }
+                }, workers));
+            }
+        } finally {
+            pending.put(END_OF_STREAM);
+            writer.join();
+        }
+        if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        }
+        if (failure[0] != null) {
+            throw (Exception) failure[0];
+        }
+    }
 
-            // Obtain and print the TF Family Name
-            String TF_Family = tfFamilyNames.get(Motif_ID);
-            pw.print(TF_Family + "\t");
+    // One virtual thread per task where the runtime has them (Java 21), otherwise
+    // platform threads that are reused between tasks
+    private static ExecutorService newTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
 
-            // Go to the next line for the next motif
-            pw.println();
-            i++;
+    public int runBatch(List<String> geneNames, String directory, int parallelism) throws Exception {
+        return runBatch(geneNames, directory, parallelism, OutputFormat.TEXT);
+    }
+
+    /**
+     * Runs the pipeline for many genes in parallel and writes a summary of the
+     * outcome of every gene to BATCH_SUMMARY. TEXT writes the output file of each
+     * gene as run does; TSV and COLUMNAR write every gene, in list order, to the
+     * single file BATCH_TSV or BATCH_COLUMNAR.
+     *
+     * @param geneNames the genes to investigate
+     * @param directory the directory for output files
+     * @param parallelism the number of worker threads
+     * @param format how the designs are written
+     * @return the number of genes whose output was written
+     */
+    public int runBatch(List<String> geneNames, String directory, int parallelism, OutputFormat format) throws Exception {
+        awaitReady();
+        String[] outcomes = new String[geneNames.size()];
+        long start = System.nanoTime();
+        if (format == OutputFormat.TEXT) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                // A parallel stream started from a task of the pool runs on that pool
+                pool.submit(() -> IntStream.range(0, geneNames.size()).parallel().forEach(i -> {
+                    try {
+                        run(geneNames.get(i), directory);
+                        outcomes[i] = "OK\t";
+                    } catch (Exception e) {
+                        outcomes[i] = "FAILED\t" + e.getMessage();
+                    }
+                })).get();
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            // Keep a few genes queued per worker so the workers do not wait on the writer
+            ResultSink sink = format == OutputFormat.TSV
+                    ? new TsvResultSink(new OutputStreamWriter(new FileOutputStream(new File(directory, BATCH_TSV)), StandardCharsets.UTF_8))
+                    : new ColumnarResultSink(new File(directory, BATCH_COLUMNAR).getPath());
+            ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+            try {
+                runInOrder(geneNames.iterator(), sink, parallelism * 4, workers, (i, outcome) ->
+                        outcomes[i] = outcome.failure == null ? "OK\t" : "FAILED\t" + outcome.failure.getMessage());
+            } finally {
+                workers.shutdown();
+                sink.close();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int succeeded = 0;
+        try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, BATCH_SUMMARY)), StandardCharsets.UTF_8))) {
+            pw.println("Gene\tStatus\tDetail");
+            for (int i = 0; i < outcomes.length; i++) {
+                pw.println(geneNames.get(i) + "\t" + outcomes[i]);
+                if (outcomes[i].startsWith("OK")) {
+                    succeeded++;
+                }
+            }
         }
-        pw.close();
-        fw.close();
+        metrics.writeSnapshot(new File(directory, BATCH_METRICS));
+        System.out.println(String.format("Investigated %d genes in %.1f s (%.1f genes/second), %d failed, see %s and %s",
+                geneNames.size(), seconds, geneNames.size() / seconds, geneNames.size() - succeeded, BATCH_SUMMARY, BATCH_METRICS));
+        return succeeded;
+    }
+
+    /**
+     * @return the counters and stage latencies of every gene investigated so far
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
     }
 
+    /**
+     * @return the names of every gene with a promoter and 5' UTR, in alphabetical order
+     */
+    public ArrayList<String> getGeneNames() throws Exception {
+        awaitReady();
+        return ugl.getGeneNames();
+    }
+
+    /**
+     * Usage: InvestigatePromoter [pwm] [mismatches count] [metrics metricsFile] [cache cacheDirectory] [watch] [batch outputDirectory (geneListFile | all) [text | tsv | columnar] | stream [window]]
+     *
+     * Passing "pwm" scans with the full position weight matrices, and passing
+     * "mismatches" matches consensus sequences with up to count mismatches. Passing "metrics"
+     * writes a snapshot of the metrics to metricsFile every SNAPSHOT_PERIOD_SECONDS
+     * and when the batch or stream is done. Passing "cache" keeps the results of
+     * genes in cacheDirectory, and the most recent in memory, for later requests
+     * and later runs. Passing "watch" reloads the motifs whenever the CIS-BP files
+     * change. Passing "batch"
+     * investigates the genes listed one per line in geneListFile, or every gene,
+     * instead of reading gene names interactively, as a report per gene (the default),
+     * one tab separated table or one columnar file. Passing "stream" reads gene names
+     * from stdin and writes records to stdout, with at most window genes in flight.
+     * Options may come in any order; an option that is unknown or lacks its value
+     * prints this usage and nothing is run.
+     */
     public static void main(String[] args) throws Exception {
-        Scanner scanner = new Scanner(System.in);
+        TFmotifs.ScanMode scanMode = TFmotifs.ScanMode.CONSENSUS;
+        int motifMismatches = 0;
+        File metricsFile = null;
+        File cacheDirectory = null;
+        boolean watch = false;
+        String batchDirectory = null;
+        String geneList = null;
+        OutputFormat format = OutputFormat.TEXT;
+        boolean stream = false;
+        int window = DEFAULT_STREAM_WINDOW;
+        boolean modeChosen = false;
+        for (int arg = 0; arg < args.length; arg++) {
+            String option = args[arg].toLowerCase();
+            if (option.equals("pwm")) {
+                scanMode = TFmotifs.ScanMode.PWM;
+            } else if (option.equals("mismatches") && arg + 1 < args.length && isCount(args[arg + 1])) {
+                motifMismatches = Integer.parseInt(args[++arg]);
+            } else if (option.equals("metrics") && arg + 1 < args.length) {
+                metricsFile = new File(args[++arg]);
+            } else if (option.equals("cache") && arg + 1 < args.length) {
+                cacheDirectory = new File(args[++arg]);
+            } else if (option.equals("watch")) {
+                watch = true;
+            } else if (option.equals("batch") && !modeChosen && arg + 2 < args.length) {
+                modeChosen = true;
+                batchDirectory = args[++arg];
+                geneList = args[++arg];
+                if (arg + 1 < args.length && outputFormat(args[arg + 1]) != null) {
+                    format = outputFormat(args[++arg]);
+                }
+            } else if (option.equals("stream") && !modeChosen) {
+                modeChosen = true;
+                stream = true;
+                if (arg + 1 < args.length && isCount(args[arg + 1])) {
+                    window = Integer.parseInt(args[++arg]);
+                }
+            } else {
+                System.err.println("Unknown or incomplete option: " + args[arg]);
+                System.err.println(USAGE);
+                return;
+            }
+        }
+
         InvestigatePromoter ip = new InvestigatePromoter();
-        ip.initiate();
+        ip.getMetrics().registerMBean(MBEAN_NAME);
+        if (metricsFile != null) {
+            ip.getMetrics().startSnapshots(metricsFile, SNAPSHOT_PERIOD_SECONDS, TimeUnit.SECONDS);
+        }
+        // The data keeps loading while the output directory and first gene are entered
+        ip.initiateAsync(scanMode, motifMismatches);
+        if (cacheDirectory != null) {
+            ip.initiateCache(cacheDirectory, ResultCache.DEFAULT_MEMORY_ENTRIES);
+        }
+        if (watch) {
+            watchMotifFiles(ip);
+        }
+
+        if (batchDirectory != null) {
+            List<String> geneNames;
+            if (geneList.equalsIgnoreCase("all")) {
+                geneNames = ip.getGeneNames();
+            } else {
+                geneNames = new ArrayList<>();
+                for (String line : Files.readAllLines(Paths.get(geneList))) {
+                    String geneName = line.trim();
+                    if (!geneName.isEmpty() && !geneName.startsWith("#")) {
+                        geneNames.add(geneName);
+                    }
+                }
+            }
+            ip.runBatch(geneNames, batchDirectory, Runtime.getRuntime().availableProcessors(), format);
+            writeMetrics(ip, metricsFile);
+            return;
+        }
+
+        if (stream) {
+            ip.runStream(new InputStreamReader(System.in, StandardCharsets.UTF_8), new OutputStreamWriter(System.out, StandardCharsets.UTF_8), window);
+            writeMetrics(ip, metricsFile);
+            return;
+        }
+
+        Scanner scanner = new Scanner(System.in);
         System.out.println("Enter the path of the desired directory for output files: ");
         String directory = scanner.next();
         for (int i = 0; i < 20000; i++) {
@@ -157,4 +709,33 @@ public class InvestigatePromoter {
             System.out.println("Output file for " + geneName + " created successfully.");
         }
     }
+
+    private static boolean isCount(String arg) {
+        return arg.matches("\\d{1,9}");
+    }
+
+    // Returns null if arg names no output format
+    private static OutputFormat outputFormat(String arg) {
+        for (OutputFormat format : OutputFormat.values()) {
+            if (format.name().equalsIgnoreCase(arg)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    static void watchMotifFiles(InvestigatePromoter ip) {
+        ip.watchMotifLibrary().exceptionally(e -> {
+            System.err.println("Could not watch the motif files: " + e.getCause().getMessage());
+            return null;
+        });
+    }
+
+    // The last snapshot, so the file covers every gene
+    private static void writeMetrics(InvestigatePromoter ip, File metricsFile) throws Exception {
+        if (metricsFile != null) {
+            ip.getMetrics().stopSnapshots();
+            ip.getMetrics().writeSnapshot(metricsFile);
+        }
+    }
 }
@@ -0,0 +1,138 @@
+package org.ucb.c5.composition;
+
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Writes every gene as one JSON object per line: the gene name, its repair
+ * strategy and an array with an object per TF motif site holding the fields of
+ * the TsvResultSink columns. A TF name or family that the library lacks is
+ * null, as is the score of a site over a base the matrix cannot score. Like
+ * TsvResultSink, each gene is built in memory and goes out through a buffer.
+ *
+ * @author Manraj Gill
+ */
+public class JsonResultSink implements ResultSink {
+
+    public static final int BUFFER_SIZE = TsvResultSink.BUFFER_SIZE;
+
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final Writer output;
+    private final StringBuilder json = new StringBuilder(1 << 16);
+
+    public JsonResultSink(Writer output) {
+        this(output, BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the number of characters buffered before output is written
+     */
+    public JsonResultSink(Writer output, int bufferSize) {
+        this.output = new BufferedWriter(output, bufferSize);
+    }
+
+    @Override
+    public void write(GeneResult result) throws Exception {
+        json.setLength(0);
+        ArrayList<String> repairStrategy = result.repairStrategy;
+        MotifHits motifHits = result.motifHits;
+        json.append("{\"gene\":");
+        string(result.geneName);
+        json.append(",\"repairStrategy\":{\"forwardRepairPrimer\":");
+        string(repairStrategy.get(2));
+        json.append(",\"forwardRepairPrimerQC\":");
+        string(repairStrategy.get(5));
+        json.append(",\"reverseRepairPrimer\":");
+        string(repairStrategy.get(3));
+        json.append(",\"reverseRepairPrimerQC\":");
+        string(repairStrategy.get(6));
+        json.append(",\"ampliconSize\":");
+        string(repairStrategy.get(4));
+        json.append(",\"repairEnzyme1\":");
+        string(repairStrategy.get(0));
+        json.append(",\"repairEnzyme2\":");
+        string(repairStrategy.get(1));
+        json.append("},\"sites\":[");
+        for (int row = 0; row < result.getRowCount(); row++) {
+            AlterationConstructOligos.Design alteration = result.alterations.get(row);
+            Cas9ConstructOligos.Design sgRNA = result.sgRNAs.get(row);
+            int motif = result.getMotif(row);
+            json.append(row == 0 ? "{" : ",{");
+            json.append("\"count\":").append(row);
+            json.append(",\"motifID\":");
+            string(motifHits.getMotifID(motif));
+            json.append(",\"sgRNAUp\":");
+            string(sgRNA.oligoUp);
+            json.append(",\"sgRNADown\":");
+            string(sgRNA.oligoDown);
+            json.append(",\"sgRNAOffTargets\":");
+            string(result.offTargets.get(row));
+            json.append(",\"forwardOverlapPrimer\":");
+            string(alteration.forwardOligo);
+            json.append(",\"reverseOverlapPrimer\":");
+            string(alteration.reverseOligo);
+            json.append(",\"overlapPrimerQC\":");
+            string(alteration.forwardQC + "/" + alteration.reverseQC);
+            json.append(",\"location\":").append(result.getLocation(row));
+            json.append(",\"strand\":\"").append(alteration.minusStrand ? '-' : '+').append('"');
+            json.append(",\"consensusSequence\":");
+            string(motifHits.getConsensusSequence(motif));
+            json.append(",\"tfName\":");
+            string(motifHits.getTFName(motif));
+            json.append(",\"tfFamily\":");
+            string(motifHits.getTFFamilyName(motif));
+            float score = motifHits.getScore(alteration.hit);
+            // JSON has no infinity, so a site the matrix cannot score has a null score
+            json.append(",\"score\":").append(Float.isFinite(score) ? String.format(Locale.ROOT, "%.2f", score) : "null");
+            json.append(",\"mismatches\":").append(motifHits.getMismatches(alteration.hit));
+            json.append('}');
+        }
+        json.append("]}").append(NEWLINE);
+        output.append(json);
+    }
+
+    @Override
+    public void flush() throws Exception {
+        output.flush();
+    }
+
+    @Override
+    public void close() throws Exception {
+        output.close();
+    }
+
+    /**
+     * Appends text as a JSON string literal, or null
+     */
+    static void appendString(StringBuilder json, String text) {
+        if (text == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    private void string(String text) {
+        appendString(json, text);
+    }
+}
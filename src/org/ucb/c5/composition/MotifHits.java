@@ -0,0 +1,139 @@
+package org.ucb.c5.composition;
+
+import java.util.Arrays;
+
+/**
+ * The TF binding sites found by TFmotifs in one sequence, held as parallel
+ * primitive arrays: for every hit the ordinal of its motif, the index of its
+ * first base on the forward strand, its length, its strand, its PWM log-odds
+ * score and the number of its bases that differ from the consensus sequence.
+ * Hits are numbered from 0 in the order they were added, and the oligo
+ * designers refer to a site by that number.
+ *
+ * The Motif_ID, TF name, TF family and consensus sequence of each motif are
+ * looked up by ordinal in arrays shared with TFmotifs, so a table of hits holds
+ * no strings of its own.
+ *
+ * @author Manraj Gill
+ */
+public class MotifHits {
+
+    public static final int PLUS_STRAND = 0;
+    public static final int MINUS_STRAND = 1;
+
+    private final String[] motifIDs;
+    private final String[] tfNames;
+    private final String[] tfFamilyNames;
+    private final String[] consensusSequences;
+
+    private int size;
+    private int[] motifs;
+    private int[] starts;
+    private int[] lengths;
+    private int[] strands;
+    private float[] scores;
+    private int[] mismatches;
+
+    /**
+     * @param motifIDs the Motif_ID of each motif ordinal, and likewise its TF name,
+     * TF family and consensus sequence
+     */
+    public MotifHits(String[] motifIDs, String[] tfNames, String[] tfFamilyNames, String[] consensusSequences) {
+        this.motifIDs = motifIDs;
+        this.tfNames = tfNames;
+        this.tfFamilyNames = tfFamilyNames;
+        this.consensusSequences = consensusSequences;
+        motifs = new int[16];
+        starts = new int[16];
+        lengths = new int[16];
+        strands = new int[16];
+        scores = new float[16];
+        mismatches = new int[16];
+    }
+
+    /**
+     * Appends a hit that matches its consensus sequence exactly
+     *
+     * @return the number of the hit
+     */
+    public int add(int motif, int start, int length, int strand, float score) {
+        return add(motif, start, length, strand, score, 0);
+    }
+
+    /**
+     * Appends a hit
+     *
+     * @param mismatches the number of specific positions of the consensus sequence the site differs at
+     * @return the number of the hit
+     */
+    public int add(int motif, int start, int length, int strand, float score, int mismatches) {
+        if (size == motifs.length) {
+            int capacity = size * 2;
+            motifs = Arrays.copyOf(motifs, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            strands = Arrays.copyOf(strands, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+            this.mismatches = Arrays.copyOf(this.mismatches, capacity);
+        }
+        motifs[size] = motif;
+        starts[size] = start;
+        lengths[size] = length;
+        strands[size] = strand;
+        scores[size] = score;
+        this.mismatches[size] = mismatches;
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getMotif(int hit) {
+        return motifs[hit];
+    }
+
+    public int getStart(int hit) {
+        return starts[hit];
+    }
+
+    public int getLength(int hit) {
+        return lengths[hit];
+    }
+
+    public int getStrand(int hit) {
+        return strands[hit];
+    }
+
+    public boolean isMinusStrand(int hit) {
+        return strands[hit] == MINUS_STRAND;
+    }
+
+    public float getScore(int hit) {
+        return scores[hit];
+    }
+
+    public int getMismatches(int hit) {
+        return mismatches[hit];
+    }
+
+    public int getMotifCount() {
+        return motifIDs.length;
+    }
+
+    public String getMotifID(int motif) {
+        return motifIDs[motif];
+    }
+
+    public String getTFName(int motif) {
+        return tfNames[motif];
+    }
+
+    public String getTFFamilyName(int motif) {
+        return tfFamilyNames[motif];
+    }
+
+    public String getConsensusSequence(int motif) {
+        return consensusSequences[motif];
+    }
+}
@@ -0,0 +1,493 @@
+package org.ucb.c5.composition;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import org.ucb.c5.utils.FileUtils;
+import org.ucb.c5.utils.PostingList;
+
+/**
+ * An inverted index of where every TF motif occurs in the promoter and 5' UTR of
+ * every gene, answering which genes have a motif, a TF or a TF family without
+ * scanning any sequence.
+ *
+ * Initiation opens "Motif occurrences.moi", kept next to the exports. The file
+ * records a fingerprint of the content of the upstream export, of the motifs and
+ * of the scan mode, and is built again whenever that no longer matches. An index
+ * initiated with a TFmotifs also follows it: the first query after the motifs are
+ * reloaded, for example by TFmotifs.startWatching, builds the index again.
+ *
+ * The index is built in one pass over the loci of UpstreamGenomicLocus: genes are
+ * scanned by TFmotifs in rounds of BUILD_ROUND on the common fork-join pool and
+ * their sites appended, in order of gene, to a PostingList of each motif, holding
+ * the gene, the start of the site in the promoter and 5' UTR and its strand,
+ * delta encoded.
+ *
+ * Only the lists of the motifs are stored, with the Motif_ID, TF name and TF
+ * family of each. The list of a TF or a TF family is the union of the lists of
+ * its motifs, decoded when it is asked for; a list is a few bytes per site, so a
+ * query reads and merges a few megabytes at most and takes milliseconds.
+ *
+ * Running main builds the index, or answers a query from it.
+ *
+ * @author Manraj Gill
+ */
+public class MotifIndex {
+
+    public static final String INDEX = "Motif occurrences.moi";
+    public static final int BUILD_ROUND = 1024;
+
+    private static final int MAGIC = 0x4D4F4958;
+    private static final int VERSION = 2;
+
+    // What the index is built from when it follows the motifs, or null for an index opened from a path
+    private UpstreamGenomicLocus ugl;
+    private TFmotifs tfms;
+    private TFmotifs.ScanMode scanMode;
+    // The version of tfms the contents were built for
+    private volatile long motifVersion;
+    private volatile Contents contents;
+
+    /**
+     * Everything read from an index file. A rebuild replaces it in one step, so a
+     * query always reads a single index.
+     */
+    private static class Contents {
+        final byte[] fingerprint;
+        final TFmotifs.ScanMode scanMode;
+        final String[] geneNames;
+        final String[] motifIDs;
+        final String[] tfNames;
+        final String[] tfFamilyNames;
+        // Number of sites and of genes of each motif, and where its encoded list starts in postings
+        final int[] siteCounts;
+        final int[] geneCounts;
+        final int[] offsets;
+        final MappedByteBuffer postings;
+        // Motif ordinals by Motif_ID, by TF name and by TF family
+        final HashMap<String, int[]> motifsByID = new HashMap<>();
+        final HashMap<String, int[]> motifsByTF = new HashMap<>();
+        final HashMap<String, int[]> motifsByTFFamily = new HashMap<>();
+
+        Contents(String path) throws Exception {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Motif indexes are limited to 2 GB: " + path);
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IllegalArgumentException("Not a motif index: " + path);
+            }
+            fingerprint = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(fingerprint);
+            scanMode = TFmotifs.ScanMode.valueOf(readString(buffer));
+            geneNames = new String[buffer.getInt()];
+            for (int i = 0; i < geneNames.length; i++) {
+                geneNames[i] = readString(buffer);
+            }
+            int motifCount = buffer.getInt();
+            motifIDs = new String[motifCount];
+            tfNames = new String[motifCount];
+            tfFamilyNames = new String[motifCount];
+            siteCounts = new int[motifCount];
+            geneCounts = new int[motifCount];
+            offsets = new int[motifCount];
+            for (int m = 0; m < motifCount; m++) {
+                motifIDs[m] = readString(buffer);
+                tfNames[m] = readString(buffer);
+                tfFamilyNames[m] = readString(buffer);
+                siteCounts[m] = buffer.getInt();
+                geneCounts[m] = buffer.getInt();
+                offsets[m] = buffer.getInt();
+                addMotif(motifsByID, motifIDs[m], m);
+                addMotif(motifsByTF, tfNames[m], m);
+                addMotif(motifsByTFFamily, tfFamilyNames[m], m);
+            }
+            int postingsLength = buffer.getInt();
+            buffer.limit(buffer.position() + postingsLength);
+            postings = buffer.slice();
+        }
+    }
+
+    /**
+     * Opens the index of the bundled loci and consensus sequences, building it
+     * first if it is missing or out of date
+     */
+    public void initiate() throws Exception {
+        UpstreamGenomicLocus ugl = new UpstreamGenomicLocus();
+        ugl.initiate();
+        TFmotifs tfms = new TFmotifs();
+        tfms.initiate();
+        initiate(ugl, tfms, TFmotifs.ScanMode.CONSENSUS);
+    }
+
+    /**
+     * Opens the index of the loci and motifs, building it first if it is missing
+     * or out of date, and builds it again whenever the motifs are reloaded
+     *
+     * @param ugl the initiated upstream loci, scanned if the index has to be built
+     * @param tfms the initiated motifs, scanned for if the index has to be built
+     * @param scanMode whether sites are consensus sequence matches or PWM hits
+     */
+    public void initiate(UpstreamGenomicLocus ugl, TFmotifs tfms, TFmotifs.ScanMode scanMode) throws Exception {
+        this.ugl = ugl;
+        this.tfms = tfms;
+        this.scanMode = scanMode;
+        motifVersion = tfms.getVersion();
+        contents = openResourceIndex();
+    }
+
+    /**
+     * Opens an index written by write, which is never built again
+     *
+     * @param path the path of the index file
+     */
+    public void initiate(String path) throws Exception {
+        ugl = null;
+        tfms = null;
+        contents = new Contents(path);
+        scanMode = contents.scanMode;
+    }
+
+    // Opens the index of the resources if it was built from the current inputs, otherwise builds it
+    private Contents openResourceIndex() throws Exception {
+        while (true) {
+            long version = tfms.getVersion();
+            byte[] fingerprint = fingerprint(tfms, scanMode);
+            File indexFile = FileUtils.getResourceFile(INDEX);
+            if (indexFile != null) {
+                try {
+                    Contents existing = new Contents(indexFile.getPath());
+                    if (Arrays.equals(existing.fingerprint, fingerprint)) {
+                        return existing;
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Not an index of this format version, so it is built again
+                }
+            }
+            // Written aside and moved into place, so that an index still mapped by queries is never overwritten
+            File location = FileUtils.getResourceLocation(INDEX);
+            File temporary = location != null ? File.createTempFile("motif-occurrences", ".tmp", location.getParentFile())
+                    : File.createTempFile("motif-occurrences", ".moi");
+            try {
+                if (!write(ugl, tfms, scanMode, temporary.getPath())) {
+                    // The motifs were reloaded during the scan
+                    continue;
+                }
+                if (location == null) {
+                    return new Contents(temporary.getPath());
+                }
+                Files.move(temporary.toPath(), location.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (tfms.getVersion() == version) {
+                    return new Contents(location.getPath());
+                }
+            } finally {
+                temporary.delete();
+            }
+        }
+    }
+
+    // The contents, built again first if the motifs were reloaded since they were built
+    private Contents current() throws Exception {
+        if (tfms != null && tfms.getVersion() != motifVersion) {
+            synchronized (this) {
+                long version = tfms.getVersion();
+                if (version != motifVersion) {
+                    contents = openResourceIndex();
+                    motifVersion = version;
+                }
+            }
+        }
+        return contents;
+    }
+
+    // A hash of the content of the upstream export, of the motifs and of the scan mode
+    private static byte[] fingerprint(TFmotifs tfms, TFmotifs.ScanMode scanMode) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] loci = FileUtils.getResourceFingerprint(UpstreamGenomicLocus.EXPORT);
+        digest.update(loci == null ? new byte[0] : loci);
+        digest.update(tfms.getFingerprint());
+        digest.update(scanMode.name().getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    /**
+     * Scans every locus for every motif and writes the index of the sites
+     *
+     * @param ugl the initiated upstream loci
+     * @param tfms the initiated motifs
+     * @param scanMode whether sites are consensus sequence matches or PWM hits
+     * @param path the path of the index file to create
+     * @return false, with nothing written, if the motifs were reloaded during the scan
+     */
+    public static boolean write(UpstreamGenomicLocus ugl, TFmotifs tfms, TFmotifs.ScanMode scanMode, String path) throws Exception {
+        long version = tfms.getVersion();
+        byte[] fingerprint = fingerprint(tfms, scanMode);
+        ArrayList<String> genes = ugl.getGeneNames();
+        // An empty scan carries the table of motifs
+        MotifHits motifs = tfms.run("", scanMode);
+        PostingList.Encoder[] encoders = new PostingList.Encoder[motifs.getMotifCount()];
+        for (int m = 0; m < encoders.length; m++) {
+            encoders[m] = new PostingList.Encoder();
+        }
+        for (int first = 0; first < genes.size(); first += BUILD_ROUND) {
+            ArrayList<Callable<MotifHits>> scans = new ArrayList<>();
+            for (int g = first; g < Math.min(first + BUILD_ROUND, genes.size()); g++) {
+                String geneName = genes.get(g);
+                scans.add(() -> tfms.run(ugl.run(geneName).get(1), scanMode));
+            }
+            int gene = first;
+            for (Future<MotifHits> future : ForkJoinPool.commonPool().invokeAll(scans)) {
+                MotifHits motifHits;
+                try {
+                    motifHits = future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                if (tfms.getVersion() != version) {
+                    return false;
+                }
+                addSites(gene++, motifHits, encoders);
+            }
+        }
+
+        long postingsLength = 0;
+        for (PostingList.Encoder encoder : encoders) {
+            postingsLength += encoder.getByteLength();
+        }
+        if (postingsLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Motif indexes are limited to 2 GB of sites");
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeShort(fingerprint.length);
+            out.write(fingerprint);
+            writeString(out, scanMode.name());
+            out.writeInt(genes.size());
+            for (String geneName : genes) {
+                writeString(out, geneName);
+            }
+            out.writeInt(encoders.length);
+            int offset = 0;
+            for (int m = 0; m < encoders.length; m++) {
+                writeString(out, motifs.getMotifID(m));
+                writeString(out, motifs.getTFName(m));
+                writeString(out, motifs.getTFFamilyName(m));
+                out.writeInt(encoders[m].size());
+                out.writeInt(encoders[m].getRecordCount());
+                out.writeInt(offset);
+                offset += encoders[m].getByteLength();
+            }
+            out.writeInt(offset);
+            for (PostingList.Encoder encoder : encoders) {
+                out.write(encoder.toByteArray());
+            }
+        }
+        return true;
+    }
+
+    // Appends the sites of a gene to the lists of their motifs, in order of position
+    private static void addSites(int gene, MotifHits motifHits, PostingList.Encoder[] encoders) {
+        long[] sites = new long[motifHits.size()];
+        for (int hit = 0; hit < sites.length; hit++) {
+            sites[hit] = ((long) motifHits.getMotif(hit) << 32) | ((long) motifHits.getStart(hit) << 1) | motifHits.getStrand(hit);
+        }
+        Arrays.sort(sites);
+        for (long site : sites) {
+            encoders[(int) (site >>> 32)].add(gene, (int) ((site & 0xFFFFFFFFL) >>> 1), (site & 1) == MotifHits.MINUS_STRAND);
+        }
+    }
+
+    private static void addMotif(HashMap<String, int[]> motifs, String key, int motif) {
+        if (key == null) {
+            return;
+        }
+        int[] existing = motifs.get(key);
+        if (existing == null) {
+            motifs.put(key, new int[]{motif});
+        } else {
+            int[] grown = Arrays.copyOf(existing, existing.length + 1);
+            grown[existing.length] = motif;
+            motifs.put(key, grown);
+        }
+    }
+
+    /**
+     * @return every site of the motif, by gene ordinal, start in the promoter and 5' UTR and strand
+     */
+    public PostingList getMotif(String motifID) throws Exception {
+        Contents contents = current();
+        return postings(contents, contents.motifsByID, motifID, "Motif_ID");
+    }
+
+    /**
+     * @return every site of any motif of the TF, once per position and strand
+     */
+    public PostingList getTF(String tfName) throws Exception {
+        Contents contents = current();
+        return postings(contents, contents.motifsByTF, tfName, "TF name");
+    }
+
+    /**
+     * @return every site of any motif of the TF family, once per position and strand
+     */
+    public PostingList getTFFamily(String tfFamilyName) throws Exception {
+        Contents contents = current();
+        return postings(contents, contents.motifsByTFFamily, tfFamilyName, "TF family");
+    }
+
+    private static PostingList postings(Contents contents, HashMap<String, int[]> motifs, String key, String kind) {
+        int[] ordinals = motifs.get(key);
+        if (ordinals == null) {
+            throw new IllegalArgumentException("The " + kind + " " + key + " is not in the motif index.");
+        }
+        List<PostingList> lists = new ArrayList<>(ordinals.length);
+        for (int m : ordinals) {
+            lists.add(PostingList.decode(contents.postings, contents.offsets[m], contents.siteCounts[m]));
+        }
+        return PostingList.union(lists);
+    }
+
+    /**
+     * @return the genes with at least one site of the TF, in alphabetical order
+     */
+    public ArrayList<String> getGenesWithTF(String tfName) throws Exception {
+        return getGeneNames(getTF(tfName).getRecords());
+    }
+
+    /**
+     * @return the genes with sites of both TFs, in alphabetical order
+     */
+    public ArrayList<String> getGenesWithTFs(String tfNameA, String tfNameB) throws Exception {
+        return getGeneNames(PostingList.intersect(getTF(tfNameA).getRecords(), getTF(tfNameB).getRecords()));
+    }
+
+    /**
+     * @param maxDistance the largest distance in bases between the starts of the two sites
+     * @return the genes with a site of one TF within maxDistance of a site of the other, in alphabetical order
+     */
+    public ArrayList<String> getGenesWithTFsNear(String tfNameA, String tfNameB, int maxDistance) throws Exception {
+        return getGeneNames(PostingList.near(getTF(tfNameA), getTF(tfNameB), maxDistance));
+    }
+
+    /**
+     * @param genes gene ordinals, as held by the lists of this index; they do not
+     * change when the index is built again for new motifs
+     */
+    public ArrayList<String> getGeneNames(int[] genes) {
+        String[] geneNames = contents.geneNames;
+        ArrayList<String> names = new ArrayList<>(genes.length);
+        for (int gene : genes) {
+            names.add(geneNames[gene]);
+        }
+        return names;
+    }
+
+    public String getGeneName(int gene) {
+        return contents.geneNames[gene];
+    }
+
+    public int getGeneCount() {
+        return contents.geneNames.length;
+    }
+
+    public int getMotifCount() throws Exception {
+        return current().motifIDs.length;
+    }
+
+    /**
+     * @return the number of sites of every motif in every gene
+     */
+    public long getSiteCount() throws Exception {
+        long total = 0;
+        for (int count : current().siteCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    public TFmotifs.ScanMode getScanMode() {
+        return scanMode;
+    }
+
+    // Strings are an int byte length, -1 for null, followed by UTF-8
+    private static void writeString(DataOutputStream out, String string) throws Exception {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Usage: MotifIndex [motif Motif_ID | tf tfName | family tfFamily | both tfNameA tfNameB | near tfNameA tfNameB maxDistance]
+     *
+     * Builds the index of the bundled loci next to the exports if it is missing or
+     * out of date. Given a query, prints the genes with sites of the motif, TF or
+     * TF family, with sites of both TFs, or with sites of the two TFs within
+     * maxDistance bases of each other.
+     */
+    public static void main(String[] args) throws Exception {
+        MotifIndex index = new MotifIndex();
+        index.initiate();
+        if (args.length == 0) {
+            System.out.println("Indexed " + index.getSiteCount() + " sites of " + index.getMotifCount() + " motifs in "
+                    + index.getGeneCount() + " genes in " + FileUtils.getResourceLocation(INDEX));
+            return;
+        }
+        long start = System.nanoTime();
+        ArrayList<String> genes;
+        String query = args[0].toLowerCase();
+        if (query.equals("motif") && args.length == 2) {
+            genes = index.getGeneNames(index.getMotif(args[1]).getRecords());
+        } else if (query.equals("tf") && args.length == 2) {
+            genes = index.getGenesWithTF(args[1]);
+        } else if (query.equals("family") && args.length == 2) {
+            genes = index.getGeneNames(index.getTFFamily(args[1]).getRecords());
+        } else if (query.equals("both") && args.length == 3) {
+            genes = index.getGenesWithTFs(args[1], args[2]);
+        } else if (query.equals("near") && args.length == 4) {
+            genes = index.getGenesWithTFsNear(args[1], args[2], Integer.parseInt(args[3]));
+        } else {
+            System.err.println("Usage: MotifIndex [motif Motif_ID | tf tfName | family tfFamily | both tfNameA tfNameB | near tfNameA tfNameB maxDistance]");
+            return;
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        for (String gene : genes) {
+            System.out.println(gene);
+        }
+        System.err.println(genes.size() + " genes in " + micros / 1000.0 + " ms");
+    }
+}
@@ -0,0 +1,243 @@
+package org.ucb.c5.composition;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import org.ucb.c5.utils.FMIndex;
+import org.ucb.c5.utils.FileUtils;
+import org.ucb.c5.utils.RevComp;
+
+/**
+ * Searches the bundled loci for off-target sites of SpCas9 guides, offline.
+ *
+ * Sites are found in "Off-target loci.fmi", an FM-index of every upstream locus
+ * (LHA + promoter + 5' UTR) and every RHA, built on first use or when either
+ * export changes and kept next to the exports. Initiation only takes note of
+ * the loci: the index is opened, or built, by the first search or by
+ * loadIndex, so that components which never search do not wait for it, and
+ * is read in place from the mapped file. A site is a 20 bp protospacer
+ * followed by an NGG PAM on either strand; mismatches are allowed in the
+ * protospacer only. The search starts at the PAM, so the PAM-proximal seed of
+ * the guide, where mismatches are least tolerated, narrows the candidates first.
+ *
+ * Running the search for a guide counts its sites by number of mismatches. The
+ * site the guide was designed for is among them, so a guide with no off-target
+ * sites has a count of 1 with no mismatches. Results are kept per guide, as
+ * neighbouring motifs often share a guide.
+ *
+ * Running main builds the index.
+ *
+ * @author Manraj Gill
+ */
+public class OffTargetSearch {
+
+    public static final String INDEX = "Off-target loci.fmi";
+    public static final int DEFAULT_MAX_MISMATCHES = 3;
+
+    private static final String PAM = "NGG";
+
+    private UpstreamGenomicLocus ugl;
+    private DownstreamGenomicLocus dgl;
+    private volatile FMIndex index;
+    private RevComp rc;
+    private int maxMismatches;
+    private boolean[] mismatchable;
+    private ConcurrentHashMap<String, int[]> counts;
+
+    /**
+     * A site matching a guide
+     */
+    public static class Site {
+        // The gene name of the locus followed by ":upstream" or ":downstream"
+        public final String locus;
+        // Index in the locus of the first base of the protospacer on the plus strand
+        public final int position;
+        public final boolean minusStrand;
+        public final int mismatches;
+
+        Site(String locus, int position, boolean minusStrand, int mismatches) {
+            this.locus = locus;
+            this.position = position;
+            this.minusStrand = minusStrand;
+            this.mismatches = mismatches;
+        }
+    }
+
+    public void initiate() throws Exception {
+        UpstreamGenomicLocus ugl = new UpstreamGenomicLocus();
+        ugl.initiate();
+        DownstreamGenomicLocus dgl = new DownstreamGenomicLocus();
+        dgl.initiate();
+        initiate(ugl, dgl, DEFAULT_MAX_MISMATCHES);
+    }
+
+    /**
+     * @param ugl the initiated upstream loci, read if the index has to be built
+     * @param dgl the initiated downstream loci, read if the index has to be built
+     * @param maxMismatches the largest number of mismatches of a reported site
+     */
+    public void initiate(UpstreamGenomicLocus ugl, DownstreamGenomicLocus dgl, int maxMismatches) throws Exception {
+        rc = new RevComp();
+        rc.initiate();
+        this.ugl = ugl;
+        this.dgl = dgl;
+        this.maxMismatches = maxMismatches;
+        mismatchable = new boolean[20 + PAM.length()];
+        for (int i = 0; i < 20; i++) {
+            mismatchable[i] = true;
+        }
+        counts = new ConcurrentHashMap<>();
+        index = null;
+    }
+
+    /**
+     * Opens the index now rather than on the first search, building it first if
+     * it is missing or out of date
+     */
+    public void loadIndex() throws Exception {
+        index();
+    }
+
+    private FMIndex index() throws Exception {
+        FMIndex opened = index;
+        if (opened == null) {
+            synchronized (this) {
+                opened = index;
+                if (opened == null) {
+                    opened = openResourceIndex(ugl, dgl);
+                    index = opened;
+                }
+            }
+        }
+        return opened;
+    }
+
+    // Opens the index of the resources if it was built from the current exports, otherwise builds it
+    private static FMIndex openResourceIndex(UpstreamGenomicLocus ugl, DownstreamGenomicLocus dgl) throws Exception {
+        byte[] sourceFingerprint = sourceFingerprint();
+        File indexFile = FileUtils.getResourceFile(INDEX);
+        if (indexFile != null) {
+            FMIndex existing = new FMIndex();
+            try {
+                existing.initiate(indexFile.getPath());
+                if (sourceFingerprint == null || Arrays.equals(existing.getSourceFingerprint(), sourceFingerprint)) {
+                    return existing;
+                }
+            } catch (IllegalArgumentException e) {
+                // Not an index of this format version, so it is built again
+            }
+        }
+        FMIndex built = buildIndex(ugl, dgl, sourceFingerprint);
+        File location = FileUtils.getResourceLocation(INDEX);
+        if (location != null) {
+            built.write(location.getPath());
+        }
+        return built;
+    }
+
+    private static FMIndex buildIndex(UpstreamGenomicLocus ugl, DownstreamGenomicLocus dgl, byte[] sourceFingerprint) throws Exception {
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<String> sequences = new ArrayList<>();
+        for (String geneName : ugl.getGeneNames()) {
+            ArrayList<String> upstream = ugl.run(geneName);
+            names.add(geneName + ":upstream");
+            sequences.add(upstream.get(0) + upstream.get(1));
+        }
+        for (String geneName : dgl.getGeneNames()) {
+            names.add(geneName + ":downstream");
+            sequences.add(dgl.run(geneName));
+        }
+        return FMIndex.build(names, sequences, sourceFingerprint);
+    }
+
+    // A hash of the fingerprints of both exports, or null if they are not on the file system
+    private static byte[] sourceFingerprint() throws Exception {
+        byte[] upstream = FileUtils.getResourceFingerprint(UpstreamGenomicLocus.EXPORT);
+        byte[] downstream = FileUtils.getResourceFingerprint(DownstreamGenomicLocus.EXPORT);
+        if (upstream == null || downstream == null) {
+            return null;
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(upstream);
+        digest.update(downstream);
+        return digest.digest();
+    }
+
+    /**
+     * @param sgRNA the 20 bp protospacer of a guide
+     * @return the number of sites of the guide with 0, 1, ... maxMismatches mismatches
+     */
+    public int[] run(String sgRNA) throws Exception {
+        int[] known = counts.get(sgRNA);
+        if (known != null) {
+            return known;
+        }
+        int[] byMismatches = new int[maxMismatches + 1];
+        for (Site site : sites(sgRNA)) {
+            byMismatches[site.mismatches]++;
+        }
+        counts.putIfAbsent(sgRNA, byMismatches);
+        return byMismatches;
+    }
+
+    /**
+     * @param sgRNA the 20 bp protospacer of a guide
+     * @return every site of the guide with at most maxMismatches mismatches, in no particular order
+     */
+    public ArrayList<Site> sites(String sgRNA) throws Exception {
+        if (sgRNA.length() != 20) {
+            throw new IllegalArgumentException("An sgRNA has a 20 bp protospacer: " + sgRNA);
+        }
+        FMIndex index = index();
+        ArrayList<Site> sites = new ArrayList<>();
+        String guide = sgRNA.toUpperCase();
+        for (FMIndex.Hit hit : index.run(maskAmbiguousBases(guide) + PAM, mismatchable, maxMismatches)) {
+            sites.add(new Site(index.getRecordName(hit.record), hit.position, false, hit.mismatches));
+        }
+        // On the plus strand a minus-strand site reads CCN followed by the reverse complement
+        String reverse = rc.run(PAM) + maskAmbiguousBases(rc.run(guide));
+        boolean[] reverseMismatchable = new boolean[mismatchable.length];
+        for (int i = 0; i < mismatchable.length; i++) {
+            reverseMismatchable[i] = mismatchable[mismatchable.length - 1 - i];
+        }
+        for (FMIndex.Hit hit : index.run(reverse, reverseMismatchable, maxMismatches)) {
+            sites.add(new Site(index.getRecordName(hit.record), hit.position + PAM.length(), true, hit.mismatches));
+        }
+        return sites;
+    }
+
+    // An ambiguous base of a guide is mismatched against every base of the loci
+    private static String maskAmbiguousBases(String guide) {
+        return guide.replaceAll("[^ACGT]", "-");
+    }
+
+    /**
+     * @return the counts of run joined by commas, fewest mismatches first
+     */
+    public String summarize(String sgRNA) throws Exception {
+        StringBuilder summary = new StringBuilder();
+        for (int count : run(sgRNA)) {
+            if (summary.length() > 0) {
+                summary.append(',');
+            }
+            summary.append(count);
+        }
+        return summary.toString();
+    }
+
+    public int getMaxMismatches() {
+        return maxMismatches;
+    }
+
+    /**
+     * Builds the index of the bundled loci next to the exports
+     */
+    public static void main(String[] args) throws Exception {
+        OffTargetSearch ots = new OffTargetSearch();
+        ots.initiate();
+        ots.loadIndex();
+        System.out.println("Indexed " + ots.index.getRecordCount() + " loci in " + FileUtils.getResourceLocation(INDEX));
+    }
+}
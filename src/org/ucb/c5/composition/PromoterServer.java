@@ -0,0 +1,346 @@
+package org.ucb.c5.composition;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.ucb.c5.utils.LatencyHistogram;
+import org.ucb.c5.utils.MetricsRegistry;
+
+/**
+ * Serves gene designs over HTTP on localhost from one InvestigatePromoter that
+ * stays loaded, so a request costs the pipeline run of its gene, or a cache
+ * lookup, rather than the startup of a JVM and the loading of every data set.
+ *
+ *     GET /design/{gene}[?format=json|tsv]   the designs of a gene, as one
+ *                                            JsonResultSink object (the default)
+ *                                            or a TsvResultSink table
+ *     GET /health                            200 once the data is loaded, 503
+ *                                            while it loads or if it failed
+ *     GET /metrics                           the pipeline metrics as Metric and
+ *                                            Value columns
+ *
+ * The server listens as soon as it starts and the data loads in the background;
+ * until it is ready designs are answered with 503. Designs are computed on a
+ * fixed pool of workers with a bounded queue: a request that finds the queue
+ * full is answered with 503 straight away, and one that is not done within the
+ * timeout with 504. A design that times out still runs to completion, so with a
+ * result cache a retry finds it. The InvestigatePromoter is only read once initiated,
+ * so the workers share it without locking.
+ *
+ * A gene that is not in the loci is answered with 404 and any other failure of
+ * its design, including an invalid argument met on the way, with 500, both
+ * with a JSON error object.
+ *
+ * @author Manraj Gill
+ */
+public class PromoterServer {
+
+    public static final int DEFAULT_PORT = 8085;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final String TSV = "text/tab-separated-values; charset=utf-8";
+    // Small responses are built in memory, so the sinks need no large buffer
+    private static final int RESPONSE_BUFFER_SIZE = 8192;
+
+    private InvestigatePromoter ip;
+    private long timeoutMillis;
+    private HttpServer server;
+    private ExecutorService handlers;
+    private ThreadPoolExecutor workers;
+
+    private LatencyHistogram requestLatency;
+    private LongAdder requests;
+    private LongAdder rejected;
+    private LongAdder timeouts;
+    private LongAdder errors;
+
+    /**
+     * Binds the server to the loopback interface; nothing is served until start
+     *
+     * @param ip a pipeline on which initiateAsync has been called
+     * @param port the port to listen on, or 0 for any free port
+     * @param workers the number of designs computed at once
+     * @param queueCapacity the number of design requests that may wait for a worker
+     * @param timeoutMillis how long a request waits for its design
+     */
+    public void initiate(InvestigatePromoter ip, int port, int workers, int queueCapacity, long timeoutMillis) throws Exception {
+        this.ip = ip;
+        this.timeoutMillis = timeoutMillis;
+        MetricsRegistry metrics = ip.getMetrics();
+        requestLatency = metrics.histogram("http.request");
+        requests = metrics.counter("http.requests");
+        rejected = metrics.counter("http.rejected");
+        timeouts = metrics.counter("http.timeouts");
+        errors = metrics.counter("http.errors");
+
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), daemonThreads("PromoterServer-worker"));
+        // Every request that can be running or queued has a handler thread to wait on it
+        handlers = Executors.newFixedThreadPool(workers + queueCapacity, daemonThreads("PromoterServer-handler"));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(handlers);
+        server.createContext("/design/", this::design);
+        server.createContext("/health", this::health);
+        server.createContext("/metrics", this::metrics);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, gives those being answered up to delaySeconds to
+     * finish and shuts the worker pools down
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        handlers.shutdown();
+        workers.shutdown();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void design(HttpExchange exchange) {
+        long start = System.nanoTime();
+        requests.increment();
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                error(exchange, 405, "Only GET is supported");
+                return;
+            }
+            String geneName = URLDecoder.decode(exchange.getRequestURI().getRawPath().substring("/design/".length()), StandardCharsets.UTF_8);
+            String format = query(exchange, "format", "json");
+            if (geneName.isEmpty()) {
+                error(exchange, 404, "No gene name given");
+                return;
+            }
+            if (!format.equals("json") && !format.equals("tsv")) {
+                error(exchange, 400, "Unknown format " + format + ", expected json or tsv");
+                return;
+            }
+            CompletableFuture<Void> ready = ip.getReady();
+            if (!ready.isDone() || ready.isCompletedExceptionally()) {
+                error(exchange, 503, ready.isDone() ? "The data failed to load" : "The data is still loading");
+                return;
+            }
+
+            Future<GeneResult> design;
+            try {
+                design = workers.submit(() -> ip.investigate(geneName));
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                error(exchange, 503, "Too many requests are waiting");
+                return;
+            }
+            GeneResult result;
+            try {
+                result = design.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                timeouts.increment();
+                error(exchange, 504, "The design of " + geneName + " took longer than " + timeoutMillis + " ms");
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UnknownGeneException) {
+                    error(exchange, 404, "Unknown gene " + geneName);
+                } else {
+                    errors.increment();
+                    error(exchange, 500, String.valueOf(cause));
+                }
+                return;
+            }
+
+            StringWriter body = new StringWriter(4096 + result.getRowCount() * 512);
+            ResultSink sink = format.equals("tsv") ? new TsvResultSink(body, RESPONSE_BUFFER_SIZE) : new JsonResultSink(body, RESPONSE_BUFFER_SIZE);
+            sink.write(result);
+            sink.close();
+            respond(exchange, 200, format.equals("tsv") ? TSV : JSON, body.toString());
+        } catch (Exception e) {
+            errors.increment();
+            try {
+                error(exchange, 500, String.valueOf(e));
+            } catch (Exception ignored) {
+                // The client has gone
+            }
+        } finally {
+            exchange.close();
+            requestLatency.recordSince(start);
+        }
+    }
+
+    private void health(HttpExchange exchange) {
+        try {
+            CompletableFuture<Void> ready = ip.getReady();
+            String status;
+            int code;
+            if (!ready.isDone()) {
+                status = "loading";
+                code = 503;
+            } else if (ready.isCompletedExceptionally()) {
+                status = "failed";
+                code = 503;
+            } else {
+                status = "ready";
+                code = 200;
+            }
+            StringBuilder json = new StringBuilder(256);
+            json.append("{\"status\":\"").append(status).append('"');
+            json.append(",\"workers\":").append(workers.getMaximumPoolSize());
+            json.append(",\"active\":").append(workers.getActiveCount());
+            json.append(",\"queued\":").append(workers.getQueue().size());
+            json.append(",\"requests\":").append(requests.sum());
+            json.append('}');
+            respond(exchange, code, JSON, json.toString());
+        } catch (Exception e) {
+            // The client has gone
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void metrics(HttpExchange exchange) {
+        try {
+            StringBuilder tsv = new StringBuilder(4096);
+            tsv.append("Metric\tValue\n");
+            for (Map.Entry<String, Number> entry : ip.getMetrics().snapshot().entrySet()) {
+                Number value = entry.getValue();
+                tsv.append(entry.getKey()).append('\t')
+                        .append(value instanceof Double ? String.format(Locale.ROOT, "%.3f", value) : value).append('\n');
+            }
+            respond(exchange, 200, TSV, tsv.toString());
+        } catch (Exception e) {
+            // The client has gone
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String query(HttpExchange exchange, String name, String otherwise) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return otherwise;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && parameter.substring(0, equals).equals(name)) {
+                return URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return otherwise;
+    }
+
+    private static void error(HttpExchange exchange, int code, String message) throws Exception {
+        StringBuilder json = new StringBuilder(128);
+        json.append("{\"status\":").append(code).append(",\"error\":");
+        JsonResultSink.appendString(json, message);
+        json.append('}');
+        respond(exchange, code, JSON, json.toString());
+    }
+
+    private static void respond(HttpExchange exchange, int code, String contentType, String body) throws Exception {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger created = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Usage: PromoterServer [pwm] [mismatches count] [port port] [workers count] [timeout milliseconds] [cache cacheDirectory] [watch]
+     *
+     * Serves on localhost until the process is stopped. The most recent designs
+     * are cached in memory, so genes asked for again are answered without running
+     * the pipeline; passing "cache" also keeps every design in cacheDirectory
+     * across restarts. Passing "watch" reloads the motifs whenever the CIS-BP
+     * files change, without interrupting the requests being answered. Passing
+     * "mismatches" matches consensus sequences with up to count mismatches.
+     */
+    public static void main(String[] args) throws Exception {
+        TFmotifs.ScanMode scanMode = TFmotifs.ScanMode.CONSENSUS;
+        int port = DEFAULT_PORT;
+        int workers = Runtime.getRuntime().availableProcessors();
+        long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        int motifMismatches = 0;
+        File cacheDirectory = null;
+        boolean watch = false;
+        for (int arg = 0; arg < args.length; arg++) {
+            String option = args[arg].toLowerCase();
+            if (option.equals("pwm")) {
+                scanMode = TFmotifs.ScanMode.PWM;
+            } else if (option.equals("mismatches") && arg + 1 < args.length) {
+                motifMismatches = Integer.parseInt(args[++arg]);
+            } else if (option.equals("port") && arg + 1 < args.length) {
+                port = Integer.parseInt(args[++arg]);
+            } else if (option.equals("workers") && arg + 1 < args.length) {
+                workers = Integer.parseInt(args[++arg]);
+            } else if (option.equals("timeout") && arg + 1 < args.length) {
+                timeoutMillis = Long.parseLong(args[++arg]);
+            } else if (option.equals("cache") && arg + 1 < args.length) {
+                cacheDirectory = new File(args[++arg]);
+            } else if (option.equals("watch")) {
+                watch = true;
+            } else {
+                System.err.println("Usage: PromoterServer [pwm] [mismatches count] [port port] [workers count] [timeout milliseconds] [cache cacheDirectory] [watch]");
+                return;
+            }
+        }
+
+        InvestigatePromoter ip = new InvestigatePromoter();
+        ip.getMetrics().registerMBean(InvestigatePromoter.MBEAN_NAME);
+        ip.initiateAsync(scanMode, motifMismatches);
+        ip.initiateCache(cacheDirectory, ResultCache.DEFAULT_MEMORY_ENTRIES);
+        if (watch) {
+            InvestigatePromoter.watchMotifFiles(ip);
+        }
+        PromoterServer server = new PromoterServer();
+        server.initiate(ip, port, workers, DEFAULT_QUEUE_CAPACITY, timeoutMillis);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+        System.out.println("Serving on http://localhost:" + server.getPort() + "/ with " + workers + " workers");
+        try {
+            ip.getReady().join();
+        } catch (Exception e) {
+            System.err.println("Could not load the data: " + e.getCause());
+            System.exit(1);
+        }
+        System.out.println("Ready");
+    }
+}
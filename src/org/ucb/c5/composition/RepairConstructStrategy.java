@@ -1,8 +1,16 @@
 package org.ucb.c5.composition;
 
+import org.ucb.c5.utils.FileUtils;
+import org.ucb.c5.utils.MotifAutomaton;
+import org.ucb.c5.utils.PrimerQC;
 import org.ucb.c5.utils.RevComp;
+import org.ucb.c5.utils.TSVParser;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * The vector backbone into which the repair construct will be synthesized for
@@ -15,99 +23,223 @@ import java.util.HashMap;
  * URL: https://www.addgene.org/vector-database/2285/
  *
  *
- * Initiating RepairConstructStrategy constructs a library of the restriction
- * endonuclease sites present in the Multiple Cloning Site (MCS) of the pCR2.1-
- * TOPO plasmid that are sticky-end and unique 6+ or 8+ cutters.
+ * Initiating RepairConstructStrategy reads "Restriction Enzymes.txt", a catalog
+ * of the restriction endonucleases in the Multiple Cloning Site (MCS) of each
+ * vector backbone that are sticky-end and unique 6+ or 8+ cutters, listed in MCS
+ * order with their recognition site (N for any base) and the position of the cut
+ * on the top strand. Every distinct site, and its reverse complement when it is
+ * not palindromic, is compiled into one MotifAutomaton.
  *
- * Running RepairConstructStrategy determines which restriction endonucleases
- * can be used for cloning the entire locus into the vector backbone. And it
- * then constructs primers with using these sites.
+ * Running RepairConstructStrategy scans the entire locus once for the sites of
+ * every vector in the catalog and determines which restriction endonucleases
+ * can be used for cloning the entire locus into the vector backbone: the first
+ * enzyme in MCS order that does not cut the locus, and the next one after it
+ * that does not cut the locus and leaves an end that cannot ligate to the first.
+ * And it then constructs primers with using these sites, each annealing arm
+ * extended or trimmed to melt as close to TARGET_TM as it can, and checks the
+ * primers with PrimerQC.
  *
  * @author Manraj Gill
  */
 public class RepairConstructStrategy {
 
+    public static final String CATALOG = "Restriction Enzymes.txt";
+    public static final String DEFAULT_VECTOR = "pCR2.1-TOPO";
+    public static final double TARGET_TM = 60.0;
+    public static final int MIN_ARM = 15;
+    public static final int MAX_ARM = 35;
+
     private RevComp rc;
+    private PrimerQC qc;
+    private MotifAutomaton automaton;
+    // Index into RestrictionEndonucleaseSites of the site each pattern of the automaton recognizes
+    private int[] patternSites;
     private ArrayList<String> RestrictionEndonucleaseSites;
-    private HashMap<String, String> RestrictionEndonucleases;
+    private LinkedHashMap<String, ArrayList<RestrictionEndonuclease>> vectors;
+
+    private static class RestrictionEndonuclease {
+        private final String name;
+        private final String site;
+        private final int siteIndex;
+        // The single stranded end left by the cut, with its polarity
+        private final String overhang;
+
+        RestrictionEndonuclease(String name, String site, int siteIndex, int cut) {
+            this.name = name;
+            this.site = site;
+            this.siteIndex = siteIndex;
+            int bottomCut = site.length() - cut;
+            if (cut < bottomCut) {
+                overhang = "5'" + site.substring(cut, bottomCut);
+            } else if (cut > bottomCut) {
+                overhang = "3'" + site.substring(bottomCut, cut);
+            } else {
+                overhang = "";
+            }
+        }
+    }
 
     public void initiate() throws Exception {
+        initiate(FileUtils.readResourceFile(CATALOG));
+    }
+
+    /**
+     * @param catalog tab separated rows of Vector, Enzyme, Site and Cut, with the
+     * enzymes of each vector in MCS order
+     */
+    public void initiate(String catalog) throws Exception {
         rc = new RevComp();
         rc.initiate();
+        qc = new PrimerQC();
+        qc.initiate();
 
         RestrictionEndonucleaseSites = new ArrayList<>();
-        RestrictionEndonucleases = new HashMap<>();
-
-        RestrictionEndonucleaseSites.add("AAGCTT");
-        RestrictionEndonucleases.put("AAGCTT", "HindIII");
-        RestrictionEndonucleaseSites.add("GGATCC");
-        RestrictionEndonucleases.put("GGATCC", "BamHI");
-        RestrictionEndonucleaseSites.add("GGTACC");
-        RestrictionEndonucleases.put("GGTACC", "KpnI");
-        RestrictionEndonucleaseSites.add("GAGCTC");
-        RestrictionEndonucleases.put("GAGCTC", "SacI");
-        RestrictionEndonucleaseSites.add("ACTAGT");
-        RestrictionEndonucleases.put("ACTAGT", "SpeI");
-        RestrictionEndonucleaseSites.add("CTTAAG");
-        RestrictionEndonucleases.put("CTTAAG", "AflII");
-        RestrictionEndonucleaseSites.add("GCGGCCGC");
-        RestrictionEndonucleases.put("GCGGCCGC", "NotI");
-        RestrictionEndonucleaseSites.add("CTCGAG");
-        RestrictionEndonucleases.put("CTCGAG", "XhoI");
-        RestrictionEndonucleaseSites.add("CTCGAG");
-        RestrictionEndonucleases.put("CTCGAG", "NsiI");
-        RestrictionEndonucleaseSites.add("TCTAGA");
-        RestrictionEndonucleases.put("TCTAGA", "XbaI");
-        RestrictionEndonucleaseSites.add("GGGCCC");
-        RestrictionEndonucleases.put("GGGCCC", "ApaI");
+        vectors = new LinkedHashMap<>();
+        HashMap<String, Integer> siteIndices = new HashMap<>();
+        TSVParser parser = new TSVParser();
+        for (Map<String, String> row : parser.run(catalog.trim())) {
+            String site = row.get("Site").trim().toUpperCase();
+            if (!site.matches("[ACGTN]+")) {
+                throw new IllegalArgumentException("Unsupported restriction endonuclease site: " + site);
+            }
+            Integer siteIndex = siteIndices.get(site);
+            if (siteIndex == null) {
+                siteIndex = RestrictionEndonucleaseSites.size();
+                RestrictionEndonucleaseSites.add(site);
+                siteIndices.put(site, siteIndex);
+            }
+            String vector = row.get("Vector").trim();
+            int cut = Integer.parseInt(row.get("Cut").trim());
+            vectors.computeIfAbsent(vector, name -> new ArrayList<>())
+                    .add(new RestrictionEndonuclease(row.get("Enzyme").trim(), site, siteIndex, cut));
+        }
+
+        // One pattern per site and strand, so a single pass finds sites on either strand
+        ArrayList<String> patterns = new ArrayList<>();
+        ArrayList<Integer> sites = new ArrayList<>();
+        for (int i = 0; i < RestrictionEndonucleaseSites.size(); i++) {
+            String site = RestrictionEndonucleaseSites.get(i);
+            String siteReverseComplement = rc.run(site);
+            patterns.add(site.replace('N', '.'));
+            sites.add(i);
+            if (!siteReverseComplement.equals(site)) {
+                patterns.add(siteReverseComplement.replace('N', '.'));
+                sites.add(i);
+            }
+        }
+        automaton = new MotifAutomaton();
+        automaton.initiate(patterns.toArray(new String[0]));
+        patternSites = new int[sites.size()];
+        for (int i = 0; i < patternSites.length; i++) {
+            patternSites[i] = sites.get(i);
+        }
     }
 
     public ArrayList<String> run(String LeftHomologyArm, String PromoterAndFivePrimeUTR, String RightHomologyArm) throws Exception {
-        // Construct a string that combines the three elements of the locus
-        String entireLocus = LeftHomologyArm.concat(PromoterAndFivePrimeUTR);
-        entireLocus = entireLocus.concat(RightHomologyArm);
-        String entireLocusReverseComplement = rc.run(entireLocus);
-
-        // Obtain the sites of the restriction endonucleases that are not present in the given gene locus
-        String restrictionEndonucleaseSite1 = null;
-        String restrictionEndonucleaseSite2 = null;
-        int count = 0;
-        for (String restrictionEndonucleaseSite : RestrictionEndonucleaseSites) {
-            if (count == 2) {
-                break;
+        return run(LeftHomologyArm, PromoterAndFivePrimeUTR, RightHomologyArm, DEFAULT_VECTOR);
+    }
+
+    /**
+     * @param vector the vector backbone, as named in the catalog
+     */
+    public ArrayList<String> run(String LeftHomologyArm, String PromoterAndFivePrimeUTR, String RightHomologyArm, String vector) throws Exception {
+        if (!vectors.containsKey(vector)) {
+            throw new IllegalArgumentException("The restriction enzyme catalog has no vector named " + vector);
+        }
+        String entireLocus = LeftHomologyArm.concat(PromoterAndFivePrimeUTR).concat(RightHomologyArm);
+        ArrayList<String> repairConstructStrategy = run(entireLocus, findSites(entireLocus), vector);
+        if (repairConstructStrategy == null) {
+            throw new Exception("Could not devise a cloning strategy for this gene locus because " + vector + " MCS does not contain unique sites for this locus!");
+        }
+        return repairConstructStrategy;
+    }
+
+    /**
+     * Devises the repair construct strategy of the locus for every vector in the
+     * catalog, scanning the locus only once
+     *
+     * @return the strategy of each vector that has one, in catalog order
+     */
+    public LinkedHashMap<String, ArrayList<String>> runVectors(String LeftHomologyArm, String PromoterAndFivePrimeUTR, String RightHomologyArm) {
+        String entireLocus = LeftHomologyArm.concat(PromoterAndFivePrimeUTR).concat(RightHomologyArm);
+        BitSet cuttingSites = findSites(entireLocus);
+        LinkedHashMap<String, ArrayList<String>> repairConstructStrategies = new LinkedHashMap<>();
+        for (String vector : vectors.keySet()) {
+            ArrayList<String> repairConstructStrategy = run(entireLocus, cuttingSites, vector);
+            if (repairConstructStrategy != null) {
+                repairConstructStrategies.put(vector, repairConstructStrategy);
+            }
+        }
+        return repairConstructStrategies;
+    }
+
+    /**
+     * @return the indices of the catalog sites found on either strand of the locus
+     */
+    public BitSet findSites(String entireLocus) {
+        BitSet cuttingSites = new BitSet(RestrictionEndonucleaseSites.size());
+        BitSet patterns = automaton.find(entireLocus);
+        for (int p = patterns.nextSetBit(0); p >= 0; p = patterns.nextSetBit(p + 1)) {
+            cuttingSites.set(patternSites[p]);
+        }
+        return cuttingSites;
+    }
+
+    public Set<String> getVectors() {
+        return vectors.keySet();
+    }
+
+    // Returns null if the vector has no compatible pair of enzymes that do not cut the locus
+    private ArrayList<String> run(String entireLocus, BitSet cuttingSites, String vector) {
+        // Obtain the restriction endonucleases of the MCS whose sites are not present in the given gene locus
+        RestrictionEndonuclease restrictionEndonuclease1 = null;
+        RestrictionEndonuclease restrictionEndonuclease2 = null;
+        for (RestrictionEndonuclease restrictionEndonuclease : vectors.get(vector)) {
+            if (cuttingSites.get(restrictionEndonuclease.siteIndex)) {
+                continue;
             }
-            if (!entireLocus.contains(restrictionEndonucleaseSite)) {
-                if (count == 0) {
-                    restrictionEndonucleaseSite1 = restrictionEndonucleaseSite;
-                } else {
-                    restrictionEndonucleaseSite2 = restrictionEndonucleaseSite;
-                }
-                count += 1;
+            if (restrictionEndonuclease1 == null) {
+                restrictionEndonuclease1 = restrictionEndonuclease;
+            } else if (compatible(restrictionEndonuclease1, restrictionEndonuclease)) {
+                restrictionEndonuclease2 = restrictionEndonuclease;
+                break;
             }
         }
-        if (restrictionEndonucleaseSite1 == null || restrictionEndonucleaseSite2 == null) {
-            throw new Exception("Could not devise a cloning strategy for this gene locus because pCR2.1-TOPO MCS does not contain unique sites for this locus!");
+        if (restrictionEndonuclease2 == null) {
+            return null;
         }
-        // Obtain the names of the restriction endonculeases corresponding to these sites that are not present in the given gene locus
-        String restrictionEndonuclease1 = RestrictionEndonucleases.get(restrictionEndonucleaseSite1);
-        String restrictionEndonuclease2 = RestrictionEndonucleases.get(restrictionEndonucleaseSite2);
 
-        // Construct primers by appending initially a 5' buffer and 18bp of the edge sequences to the restriction endonuclease sites
+        // Construct primers by appending initially a 5' buffer and the edge sequences to the restriction endonuclease sites,
+        // taking as much of each edge as brings it closest to the target melting temperature
+        int forwardArm = qc.optimizeArm(entireLocus, 0, false, MIN_ARM, MAX_ARM, TARGET_TM);
+        int reverseArm = qc.optimizeArm(entireLocus, entireLocus.length(), true, MIN_ARM, MAX_ARM, TARGET_TM);
         String forwardPrimer = "ATAT";
-        forwardPrimer = forwardPrimer.concat(restrictionEndonucleaseSite1);
-        forwardPrimer = forwardPrimer.concat(entireLocus.substring(0, 18));
+        forwardPrimer = forwardPrimer.concat(restrictionEndonuclease1.site);
+        forwardPrimer = forwardPrimer.concat(entireLocus.substring(0, forwardArm));
         String reversePrimer = "ATAT";
-        reversePrimer = reversePrimer.concat(restrictionEndonucleaseSite2);
-        reversePrimer = reversePrimer.concat(entireLocusReverseComplement.substring(0, 18));
+        reversePrimer = reversePrimer.concat(restrictionEndonuclease2.site);
+        reversePrimer = reversePrimer.concat(rc.run(entireLocus.substring(entireLocus.length() - reverseArm)));
+        PrimerQC.Result forwardQC = qc.run(forwardPrimer, forwardPrimer.length() - forwardArm, reversePrimer, TARGET_TM);
+        PrimerQC.Result reverseQC = qc.run(reversePrimer, reversePrimer.length() - reverseArm, forwardPrimer, TARGET_TM);
 
         // Add the elements to return to an arraylist named repairConstructStrategy
         ArrayList<String> repairConstructStrategy = new ArrayList<>();
-        repairConstructStrategy.add(0, restrictionEndonuclease1);
-        repairConstructStrategy.add(1, restrictionEndonuclease2);
+        repairConstructStrategy.add(0, restrictionEndonuclease1.name);
+        repairConstructStrategy.add(1, restrictionEndonuclease2.name);
         repairConstructStrategy.add(2, forwardPrimer);
         repairConstructStrategy.add(3, reversePrimer);
         repairConstructStrategy.add(4, Integer.toString(entireLocus.length()) + "bp");
+        repairConstructStrategy.add(5, forwardQC.toString());
+        repairConstructStrategy.add(6, reverseQC.toString());
 
         return repairConstructStrategy;
     }
+
+    // Two enzymes clone directionally when their sites differ and their ends cannot ligate to each other
+    private static boolean compatible(RestrictionEndonuclease first, RestrictionEndonuclease second) {
+        if (first.site.equals(second.site)) {
+            return false;
+        }
+        return first.overhang.isEmpty() || !first.overhang.equals(second.overhang);
+    }
 }
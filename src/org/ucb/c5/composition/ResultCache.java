@@ -0,0 +1,399 @@
+package org.ucb.c5.composition;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.ucb.c5.C5;
+import org.ucb.c5.utils.FileUtils;
+import org.ucb.c5.utils.MetricsRegistry;
+import org.ucb.c5.utils.PrimerQC;
+
+/**
+ * Keeps the GeneResult of genes already investigated, so that a gene asked for
+ * again is answered without rerunning the pipeline.
+ *
+ * Results are kept in two tiers: the most recently used ones in memory, in a
+ * least-recently-used map of a fixed number of entries, and every one in a file
+ * of its own in a cache directory, where they outlive the process. A result
+ * found on disk is moved back into memory.
+ *
+ * Every entry belongs to a fingerprint: a SHA-256 hash of the
+ * FileUtils.getFingerprint of every data file the results are computed from and
+ * of the design parameters, made by fingerprint. The files of a fingerprint live in a subdirectory named after it,
+ * alongside a PARAMETERS file, and initiate deletes the subdirectories of every
+ * other fingerprint made with the same parameters, so a change to any input
+ * invalidates the whole cache without a check per entry while the results of
+ * other parameters, such as the other scan mode, are kept.
+ * VERSION is part of every fingerprint and is raised whenever the designs or
+ * the entry format change. Inputs that are reloaded while running are also
+ * given an input version, taken before they are hashed; a caller that finds
+ * its inputs at another version must neither read nor add results.
+ *
+ * Cached results are shared between callers and must not be modified. Hits in
+ * memory and on disk, misses and evictions from memory are counted in the
+ * MetricsRegistry given to initiate.
+ *
+ * @author Manraj Gill
+ */
+public class ResultCache {
+
+    public static final int VERSION = 2;
+    public static final int DEFAULT_MEMORY_ENTRIES = 256;
+
+    private static final int MAGIC = 0x43355243;
+    private static final String SUFFIX = ".result";
+    private static final String PARAMETERS = "parameters.txt";
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+
+    private String fingerprint;
+    private long inputVersion;
+    private File entries;
+    private Map<String, GeneResult> memory;
+    private LongAdder hits;
+    private LongAdder diskHits;
+    private LongAdder misses;
+    private LongAdder evictions;
+
+    /**
+     * @param directory the directory of the disk tier, created if need be, or
+     * null to keep results in memory only
+     * @param memoryEntries the number of results kept in memory
+     * @param parameters every setting that changes the results, as text
+     * @param resources the paths of the input files relative to org.ucb.c5
+     * @param inputVersion the version of the inputs in memory, such as TFmotifs.getVersion, before they are hashed
+     * @param metrics receives the cache.* counters
+     */
+    public void initiate(File directory, int memoryEntries, String parameters, String[] resources, long inputVersion,
+            MetricsRegistry metrics) throws Exception {
+        initiate(directory, memoryEntries, parameters, null, resources, inputVersion, metrics);
+    }
+
+    /**
+     * @param resourceDirectory the directory the resources are relative to, or
+     * null for org.ucb.c5
+     */
+    public void initiate(File directory, int memoryEntries, String parameters, File resourceDirectory, String[] resources,
+            long inputVersion, MetricsRegistry metrics) throws Exception {
+        this.inputVersion = inputVersion;
+        fingerprint = fingerprint(parameters, resourceDirectory, resources);
+        hits = metrics.counter("cache.hits");
+        diskHits = metrics.counter("cache.disk_hits");
+        misses = metrics.counter("cache.misses");
+        evictions = metrics.counter("cache.evictions");
+        memory = new LinkedHashMap<String, GeneResult>(memoryEntries * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, GeneResult> eldest) {
+                if (size() > memoryEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (directory == null) {
+            entries = null;
+            return;
+        }
+        entries = new File(directory, fingerprint);
+        if (!entries.isDirectory() && !entries.mkdirs()) {
+            throw new IllegalArgumentException("Could not create the cache directory " + entries);
+        }
+        Files.write(new File(entries, PARAMETERS).toPath(), parameters.getBytes(StandardCharsets.UTF_8));
+        // Entries of another fingerprint with the same parameters were computed from other inputs
+        File[] subdirectories = directory.listFiles(File::isDirectory);
+        for (File subdirectory : subdirectories) {
+            File otherParameters = new File(subdirectory, PARAMETERS);
+            if (!subdirectory.getName().equals(fingerprint) && subdirectory.getName().matches("[0-9a-f]{64}")
+                    && (!otherParameters.isFile() || parameters.equals(new String(Files.readAllBytes(otherParameters.toPath()), StandardCharsets.UTF_8)))) {
+                delete(subdirectory);
+            }
+        }
+    }
+
+    /**
+     * @return the result of the gene, or null if it is not cached
+     */
+    public GeneResult get(String geneName) {
+        GeneResult result;
+        synchronized (this) {
+            result = memory.get(geneName);
+        }
+        if (result != null) {
+            hits.increment();
+            return result;
+        }
+        if (entries != null) {
+            File entry = entryFile(geneName);
+            if (entry.isFile()) {
+                result = read(entry, geneName);
+            }
+        }
+        if (result == null) {
+            misses.increment();
+            return null;
+        }
+        diskHits.increment();
+        synchronized (this) {
+            memory.put(geneName, result);
+        }
+        return result;
+    }
+
+    /**
+     * Caches a result in memory and, if there is a disk tier, on disk. A result
+     * that cannot be saved stays in memory only.
+     */
+    public void put(GeneResult result) {
+        synchronized (this) {
+            memory.put(result.geneName, result);
+        }
+        if (entries == null) {
+            return;
+        }
+        // Written aside and moved into place, so that readers never see an entry half written
+        File entry = entryFile(result.geneName);
+        File temporary = null;
+        try {
+            temporary = File.createTempFile("entry", ".tmp", entries);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                write(result, out);
+            }
+            Files.move(temporary.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            if (temporary != null) {
+                temporary.delete();
+            }
+            System.err.println("Could not save the result of " + result.geneName + " to " + entry + ": " + e.getMessage());
+        }
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the version of the inputs the cached results were computed from
+     */
+    public long getInputVersion() {
+        return inputVersion;
+    }
+
+    /**
+     * Hashes the design parameters and the content of the given resources. A
+     * resource that is a directory is hashed as each of its files in name order,
+     * and one that does not exist is hashed as absent, so adding a resource
+     * changes the fingerprint as well.
+     *
+     * @param parameters every setting that changes the results, as text
+     * @param resources the paths of the input files relative to org.ucb.c5
+     * @return the fingerprint in hexadecimal
+     */
+    public static String fingerprint(String parameters, String... resources) throws Exception {
+        return fingerprint(parameters, null, resources);
+    }
+
+    /**
+     * @param resourceDirectory the directory the resources are relative to, or
+     * null for org.ucb.c5
+     */
+    public static String fingerprint(String parameters, File resourceDirectory, String... resources) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        update(digest, "version " + VERSION);
+        update(digest, parameters);
+        for (String resource : resources) {
+            update(digest, resource);
+            File location = resourceDirectory != null ? new File(resourceDirectory, resource) : FileUtils.getResourceLocation(resource);
+            File file = resourceDirectory != null ? (location.isFile() ? location : null) : FileUtils.getResourceFile(resource);
+            if (file != null) {
+                digest.update(FileUtils.getFingerprint(file));
+            } else if (location != null && location.isDirectory()) {
+                File[] files = location.listFiles(File::isFile);
+                Arrays.sort(files);
+                for (File member : files) {
+                    update(digest, member.getName());
+                    digest.update(FileUtils.getFingerprint(member));
+                }
+            } else if (resourceDirectory != null) {
+                update(digest, "absent");
+            } else {
+                try (InputStream in = C5.class.getResourceAsStream(resource)) {
+                    if (in == null) {
+                        update(digest, "absent");
+                        continue;
+                    }
+                    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    // Strings are length prefixed so that adjacent ones cannot run together
+    private static void update(MessageDigest digest, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(4).putInt(0, bytes.length));
+        digest.update(bytes);
+    }
+
+    private File entryFile(String geneName) {
+        return new File(entries, URLEncoder.encode(geneName, StandardCharsets.UTF_8) + SUFFIX);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Only the motifs the hits refer to are stored, renumbered in order of first use
+    private static void write(GeneResult result, DataOutputStream out) throws Exception {
+        out.writeInt(MAGIC);
+        writeString(out, result.geneName);
+        out.writeInt(result.repairStrategy.size());
+        for (String field : result.repairStrategy) {
+            writeString(out, field);
+        }
+
+        MotifHits motifHits = result.motifHits;
+        HashMap<Integer, Integer> ordinals = new HashMap<>();
+        ArrayList<Integer> motifs = new ArrayList<>();
+        for (int hit = 0; hit < motifHits.size(); hit++) {
+            if (ordinals.putIfAbsent(motifHits.getMotif(hit), motifs.size()) == null) {
+                motifs.add(motifHits.getMotif(hit));
+            }
+        }
+        out.writeInt(motifs.size());
+        for (int motif : motifs) {
+            writeString(out, motifHits.getMotifID(motif));
+            writeString(out, motifHits.getTFName(motif));
+            writeString(out, motifHits.getTFFamilyName(motif));
+            writeString(out, motifHits.getConsensusSequence(motif));
+        }
+        out.writeInt(motifHits.size());
+        for (int hit = 0; hit < motifHits.size(); hit++) {
+            out.writeInt(ordinals.get(motifHits.getMotif(hit)));
+            out.writeInt(motifHits.getStart(hit));
+            out.writeInt(motifHits.getLength(hit));
+            out.writeInt(motifHits.getStrand(hit));
+            out.writeFloat(motifHits.getScore(hit));
+            out.writeInt(motifHits.getMismatches(hit));
+        }
+
+        out.writeInt(result.getRowCount());
+        for (int row = 0; row < result.getRowCount(); row++) {
+            AlterationConstructOligos.Design alteration = result.alterations.get(row);
+            out.writeInt(alteration.hit);
+            out.writeInt(alteration.start);
+            out.writeBoolean(alteration.minusStrand);
+            writeString(out, alteration.forwardOligo);
+            writeString(out, alteration.reverseOligo);
+            writeQC(out, alteration.forwardQC);
+            writeQC(out, alteration.reverseQC);
+            Cas9ConstructOligos.Design sgRNA = result.sgRNAs.get(row);
+            out.writeInt(sgRNA.hit);
+            out.writeInt(sgRNA.start);
+            out.writeBoolean(sgRNA.minusStrand);
+            writeString(out, sgRNA.oligoUp);
+            writeString(out, sgRNA.oligoDown);
+            writeString(out, result.offTargets.get(row));
+        }
+    }
+
+    // Returns null, and deletes the entry, if it cannot be read or is for another gene
+    private static GeneResult read(File entry, String geneName) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a cache entry");
+            }
+            String name = readString(in);
+            if (!geneName.equals(name)) {
+                // A file system that ignores case can map two genes to one entry
+                return null;
+            }
+            ArrayList<String> repairStrategy = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                repairStrategy.add(readString(in));
+            }
+
+            int motifCount = in.readInt();
+            String[][] motifs = new String[4][motifCount];
+            for (int motif = 0; motif < motifCount; motif++) {
+                for (int field = 0; field < 4; field++) {
+                    motifs[field][motif] = readString(in);
+                }
+            }
+            MotifHits motifHits = new MotifHits(motifs[0], motifs[1], motifs[2], motifs[3]);
+            for (int hit = in.readInt(); hit > 0; hit--) {
+                motifHits.add(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readFloat(), in.readInt());
+            }
+
+            GeneResult result = new GeneResult(name, repairStrategy, motifHits);
+            for (int row = in.readInt(); row > 0; row--) {
+                AlterationConstructOligos.Design alteration = new AlterationConstructOligos.Design(in.readInt(), in.readInt(),
+                        in.readBoolean(), readString(in), readString(in), readQC(in), readQC(in));
+                Cas9ConstructOligos.Design sgRNA = new Cas9ConstructOligos.Design(in.readInt(), in.readInt(),
+                        in.readBoolean(), readString(in), readString(in));
+                result.add(alteration, sgRNA, readString(in));
+            }
+            return result;
+        } catch (Exception e) {
+            System.err.println("Discarding the unreadable cache entry " + entry + ": " + e.getMessage());
+            entry.delete();
+            return null;
+        }
+    }
+
+    private static void writeQC(DataOutputStream out, PrimerQC.Result qc) throws Exception {
+        out.writeDouble(qc.meltingTemperature);
+        out.writeDouble(qc.gcContent);
+        out.writeInt(qc.homopolymer);
+        out.writeInt(qc.hairpinStem);
+        out.writeInt(qc.threePrimeDimer);
+        writeString(out, qc.flags);
+    }
+
+    private static PrimerQC.Result readQC(DataInputStream in) throws Exception {
+        return new PrimerQC.Result(in.readDouble(), in.readDouble(), in.readInt(), in.readInt(), in.readInt(), readString(in));
+    }
+
+    // Motifs may have no TF name or family, so strings are preceded by whether they are null
+    private static void writeString(DataOutputStream out, String string) throws Exception {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws Exception {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
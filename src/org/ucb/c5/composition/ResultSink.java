@@ -0,0 +1,23 @@
+package org.ucb.c5.composition;
+
+/**
+ * Receives the results of InvestigatePromoter one gene at a time. The pipeline
+ * hands a sink its genes from a single thread, in the order they were
+ * requested, so sinks need not be thread safe unless they say otherwise.
+ *
+ * @author Manraj Gill
+ */
+public interface ResultSink {
+
+    void write(GeneResult result) throws Exception;
+
+    /**
+     * Makes everything written so far visible to readers of the output
+     */
+    void flush() throws Exception;
+
+    /**
+     * Finishes the output; nothing can be written afterwards
+     */
+    void close() throws Exception;
+}
@@ -1,13 +1,36 @@
 package org.ucb.c5.composition;
 
-import javafx.util.Pair;
-import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import org.ucb.c5.C5;
 import org.ucb.c5.utils.FileUtils;
-import java.util.regex.*;
+import org.ucb.c5.utils.MismatchScanner;
+import org.ucb.c5.utils.MotifAutomaton;
+import org.ucb.c5.utils.MotifLibrary;
+import org.ucb.c5.utils.PWMScanner;
+import org.ucb.c5.utils.RevComp;
 
 
 /**
@@ -45,136 +68,724 @@ import java.util.regex.*;
  *
  * Initiation of org.ucb.c5.composition.TFmotifs parses the data from CIS-BP database
  * Running of org.ucb.c5.composition.TFmotifs identifies TF binding sites in the input
- * promoter and 5' UTR sequence
+ * promoter and 5' UTR sequence and returns them as a MotifHits table
+ *
+ * Two scanning modes are available. CONSENSUS finds exact matches of the consensus
+ * sequences derived as described above. PWM scores every window of the sequence
+ * against the full position weight matrix of every motif, including the motifs
+ * that the consensus derivation drops, and reports the windows that reach the
+ * relative score threshold given at initiation.
+ *
+ * Both strands are searched in the same pass over the sequence: the reverse
+ * complement of every consensus sequence and matrix is scanned alongside the
+ * original, so a minus-strand site is reported at the forward-strand index of its
+ * first base without reverse complementing the sequence itself. Motifs that are
+ * their own reverse complement are only reported on the plus strand.
+ *
+ * Many motifs reduce to the same consensus sequence, or to the reverse complement
+ * of another motif's, so CONSENSUS matches each distinct pattern once and shares
+ * its sites among every motif and strand it stands for. Each site is still scored
+ * with the matrix of its own motif. Running main reports how far the library
+ * shrinks.
+ *
+ * CONSENSUS can also tolerate a few mismatches at the specific positions of each
+ * consensus sequence, so that a site one base away from the consensus is not lost.
+ * The patterns are then matched by MismatchScanner, which packs them into machine
+ * words and advances all of them together one base at a time, and every hit
+ * records its number of mismatches.
+ *
+ * Initiation loads MotifLibrary.bin, a single binary file holding every populated
+ * matrix with its consensus sequence, TF name and TF family, which running main
+ * builds from the CIS-BP files. Without that file the CIS-BP files are parsed
+ * instead. Either way the position weight matrix files are read and parsed
+ * concurrently on the common fork-join pool, whose work stealing keeps every core
+ * busy even though the files differ in size, and are collected in order of name so
+ * the results do not depend on the number of threads.
+ *
+ * Everything a scan reads is held in one immutable snapshot, which run reads once
+ * per scan. startWatching watches the CIS-BP files with a WatchService and, when
+ * curators edit them, parses only the changed matrices into a new snapshot and
+ * publishes it in a single step, so running scans finish on the old motifs, later
+ * scans see the new ones and a long-running process never has to restart.
  *
  * @author Manraj Gill
  */
 
 public class TFmotifs {
 
-    private HashMap<String, String> tfNames;
-    private HashMap<String, String> tfFamilyNames;
-    private HashMap<String, String> consensusSequences;
+    private volatile Snapshot snapshot;
+    private double[] background;
+    private double scoreThreshold;
+
+    // What the library was built from, kept by file name while the sources are watched
+    private HashMap<String, String> sourceTFNames;
+    private HashMap<String, String> sourceTFFamilyNames;
+    private TreeMap<String, ParsedMatrix> sourceMatrices;
+    private WatchService watchService;
+    private Thread watcher;
+    private final AtomicLong version = new AtomicLong();
+
+    public static final String LIBRARY = "Homo Sapiens TF Motifs from CIS-BP Database/MotifLibrary.bin";
+    public static final long RELOAD_DELAY_MILLIS = 250;
+
+    static final String TF_INFORMATION = "Homo Sapiens TF Motifs from CIS-BP Database/TF_Information_all_motifs_plus.txt";
+    static final String TF_INFORMATION_FALLBACK = "Homo Sapiens TF Motifs from CIS-BP Database/TF_Information_all_motifs.txt";
+    static final String PWM_DIRECTORY = "Homo Sapiens TF Motifs from CIS-BP Database/PositionWeightMatrices";
+
+    public enum ScanMode {
+        CONSENSUS,
+        PWM
+    }
+
+    // Everything a scan reads, built in full before it is published and never changed after
+    private static class Snapshot {
+        // The CONSENSUS mode motifs, by ordinal
+        final String[] motifIDs;
+        final String[] tfNames;
+        final String[] tfFamilyNames;
+        final String[] consensusSequences;
+        // Ordinal in the PWM mode of each motif, whose matrix scores its sites
+        final int[] pwmOrdinals;
+        // Index in the automaton of the consensus sequence of each motif, and of its
+        // reverse complement or -1 for palindromes. Motifs share the index of equal patterns.
+        final int[] plusPatterns;
+        final int[] minusPatterns;
+        // Number of consensus sequences and reverse complements, before and after removing duplicates
+        final int patternCount;
+        final int uniquePatternCount;
+        final MotifAutomaton motifAutomaton;
+        // The same patterns, for matches with mismatches
+        final MismatchScanner mismatchScanner;
+        // The PWM mode motifs, by ordinal
+        final String[] pwmMotifIDs;
+        final String[] pwmTFNames;
+        final String[] pwmTFFamilyNames;
+        final String[] pwmConsensusSequences;
+        // Index in the scanner of the reverse complement of each matrix, -1 for palindromes
+        final int[] pwmMinusModels;
+        final PWMScanner pwmScanner;
+        // A hash of every motif and of the scoring settings, which together decide the hits of a scan
+        final byte[] fingerprint;
+
+        Snapshot(MotifLibrary library, double[] background, double scoreThreshold) throws Exception {
+            // Every matrix is scored in the PWM mode, in library order. Only the consensus
+            // sequences of specific motifs are matched in the CONSENSUS mode, keyed by Motif_ID.
+            int motifCount = library.getMotifCount();
+            pwmMotifIDs = new String[motifCount];
+            pwmTFNames = new String[motifCount];
+            pwmTFFamilyNames = new String[motifCount];
+            pwmConsensusSequences = new String[motifCount];
+            HashMap<String, Integer> specificMotifs = new HashMap<>();
+            ArrayList<float[]> matrices = new ArrayList<>();
+            for (int motif = 0; motif < motifCount; motif++) {
+                pwmMotifIDs[motif] = library.getMotifID(motif);
+                pwmTFNames[motif] = library.getTFName(motif);
+                pwmTFFamilyNames[motif] = library.getTFFamilyName(motif);
+                pwmConsensusSequences[motif] = library.getConsensusSequence(motif);
+                matrices.add(library.getFrequencies(motif));
+                if (library.isSpecific(motif)) {
+                    specificMotifs.put(pwmMotifIDs[motif], motif);
+                }
+            }
+
+            // Compile every distinct consensus sequence and reverse complement into a single
+            // automaton so that a promoter is scanned for all motifs on both strands at once.
+            // Many motifs reduce to the same consensus sequence, or to the reverse complement
+            // of another's, so each distinct pattern is matched once and its matches are
+            // shared by every motif it stands for: the 5261 patterns of the 2717 specific motifs
+            // of the bundled library reduce to 3961. The ordinals follow the iteration order of
+            // specificMotifs, which is also the order of the results.
+            motifIDs = new String[specificMotifs.size()];
+            tfNames = new String[specificMotifs.size()];
+            tfFamilyNames = new String[specificMotifs.size()];
+            consensusSequences = new String[specificMotifs.size()];
+            pwmOrdinals = new int[specificMotifs.size()];
+            plusPatterns = new int[specificMotifs.size()];
+            minusPatterns = new int[specificMotifs.size()];
+            HashMap<String, Integer> patterns = new HashMap<>();
+            RevComp revComp = new RevComp();
+            revComp.initiate();
+            int patternCount = 0;
+            int ordinal = 0;
+            for (HashMap.Entry<String, Integer> entry : specificMotifs.entrySet()) {
+                int pwmOrdinal = entry.getValue();
+                motifIDs[ordinal] = entry.getKey();
+                tfNames[ordinal] = pwmTFNames[pwmOrdinal];
+                tfFamilyNames[ordinal] = pwmTFFamilyNames[pwmOrdinal];
+                consensusSequences[ordinal] = pwmConsensusSequences[pwmOrdinal];
+                pwmOrdinals[ordinal] = pwmOrdinal;
+                String consensusSequence = consensusSequences[ordinal];
+                plusPatterns[ordinal] = patterns.computeIfAbsent(consensusSequence, pattern -> patterns.size());
+                patternCount++;
+                String reverseComplement = reverseComplementConsensus(revComp, consensusSequence);
+                if (reverseComplement.equals(consensusSequence)) {
+                    minusPatterns[ordinal] = -1;
+                } else {
+                    minusPatterns[ordinal] = patterns.computeIfAbsent(reverseComplement, pattern -> patterns.size());
+                    patternCount++;
+                }
+                ordinal++;
+            }
+            String[] uniquePatterns = new String[patterns.size()];
+            for (HashMap.Entry<String, Integer> entry : patterns.entrySet()) {
+                uniquePatterns[entry.getValue()] = entry.getKey();
+            }
+            this.patternCount = patternCount;
+            uniquePatternCount = uniquePatterns.length;
+            motifAutomaton = new MotifAutomaton();
+            motifAutomaton.initiate(uniquePatterns);
+            mismatchScanner = new MismatchScanner();
+            mismatchScanner.initiate(uniquePatterns);
+
+            // Keep the log-odds tables of every matrix and of its reverse complement for the PWM mode
+            pwmMinusModels = new int[motifCount];
+            ArrayList<float[]> models = new ArrayList<>(matrices);
+            for (int i = 0; i < motifCount; i++) {
+                float[] reverseComplement = reverseComplementMatrix(matrices.get(i));
+                if (Arrays.equals(reverseComplement, matrices.get(i))) {
+                    pwmMinusModels[i] = -1;
+                } else {
+                    pwmMinusModels[i] = models.size();
+                    models.add(reverseComplement);
+                }
+            }
+            pwmScanner = new PWMScanner();
+            pwmScanner.initiate(models, background, scoreThreshold);
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer numbers = ByteBuffer.allocate(8);
+            for (int motif = 0; motif < motifCount; motif++) {
+                updateDigest(digest, pwmMotifIDs[motif]);
+                updateDigest(digest, pwmTFNames[motif]);
+                updateDigest(digest, pwmTFFamilyNames[motif]);
+                updateDigest(digest, pwmConsensusSequences[motif]);
+                digest.update(numbers.putInt(0, library.isSpecific(motif) ? 1 : 0).array(), 0, 4);
+                for (float frequency : matrices.get(motif)) {
+                    digest.update(numbers.putFloat(0, frequency).array(), 0, 4);
+                }
+            }
+            for (double frequency : background) {
+                digest.update(numbers.putDouble(0, frequency).array());
+            }
+            digest.update(numbers.putDouble(0, scoreThreshold).array());
+            fingerprint = digest.digest();
+        }
+
+        // Strings are length prefixed, with -1 for null, so that adjacent ones cannot run together
+        private static void updateDigest(MessageDigest digest, String text) {
+            byte[] bytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(4).putInt(0, text == null ? -1 : bytes.length).array());
+            digest.update(bytes);
+        }
+    }
 
     public void initiate() throws Exception {
-        // Read the TF_Information_all_motifs.txt file
+        initiate(PWMScanner.UNIFORM_BACKGROUND, PWMScanner.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param background frequencies of A, C, G and T used for PWM log-odds scores
+     * @param scoreThreshold relative PWM score threshold between 0 and 1
+     */
+    public void initiate(double[] background, double scoreThreshold) throws Exception {
+        this.background = background;
+        this.scoreThreshold = scoreThreshold;
+        MotifLibrary library = MotifLibrary.openResourceLibrary(LIBRARY);
+        if (library == null) {
+            // Without a built library, parse the CIS-BP files as main does
+            parseSources();
+            library = new MotifLibrary();
+            library.initiate(ByteBuffer.wrap(writeLibrary().toByteArray()));
+        }
+        snapshot = new Snapshot(library, background, scoreThreshold);
+    }
+
+    public MotifHits run(String promoterAndFivePrimeUTR) throws Exception {
+        return run(promoterAndFivePrimeUTR, ScanMode.CONSENSUS);
+    }
+
+    /**
+     * Identifies TF binding sites on both strands of the input sequence
+     *
+     * @param promoterAndFivePrimeUTR the sequence to scan
+     * @param scanMode whether to match consensus sequences or score full PWMs
+     * @return every plus-strand site, by motif ordinal and then start index, followed
+     * by every minus-strand site in the same order, with the PWM log-odds score of each
+     * site and start indices on the forward strand
+     */
+    public MotifHits run(String promoterAndFivePrimeUTR, ScanMode scanMode) throws Exception {
+        return run(promoterAndFivePrimeUTR, scanMode, 0);
+    }
+
+    /**
+     * Identifies TF binding sites on both strands of the input sequence, as run does
+     *
+     * @param maxMismatches the number of specific positions of a consensus sequence
+     * that may differ from a site, which must be 0 in the PWM mode
+     */
+    public MotifHits run(String promoterAndFivePrimeUTR, ScanMode scanMode, int maxMismatches) throws Exception {
+        if (maxMismatches < 0 || (maxMismatches > 0 && scanMode != ScanMode.CONSENSUS)) {
+            throw new IllegalArgumentException("Mismatches can only be allowed when matching consensus sequences.");
+        }
+        // The whole scan uses the snapshot current when it starts
+        Snapshot snapshot = this.snapshot;
+        PWMScanner pwmScanner = snapshot.pwmScanner;
+        if (scanMode == ScanMode.PWM) {
+            MotifHits motifHits = new MotifHits(snapshot.pwmMotifIDs, snapshot.pwmTFNames, snapshot.pwmTFFamilyNames, snapshot.pwmConsensusSequences);
+            PWMScanner.Hits hits = pwmScanner.run(promoterAndFivePrimeUTR);
+            for (int ordinal = 0; ordinal < snapshot.pwmMotifIDs.length; ordinal++) {
+                addSites(ordinal, pwmScanner.getMotifLength(ordinal), MotifHits.PLUS_STRAND, hits.starts[ordinal], hits.scores[ordinal], motifHits);
+            }
+            for (int ordinal = 0; ordinal < snapshot.pwmMotifIDs.length; ordinal++) {
+                int minusModel = snapshot.pwmMinusModels[ordinal];
+                if (minusModel >= 0) {
+                    addSites(ordinal, pwmScanner.getMotifLength(ordinal), MotifHits.MINUS_STRAND, hits.starts[minusModel], hits.scores[minusModel], motifHits);
+                }
+            }
+            return motifHits;
+        }
+
+        String[] consensusSequences = snapshot.consensusSequences;
+        MotifHits motifHits = new MotifHits(snapshot.motifIDs, snapshot.tfNames, snapshot.tfFamilyNames, consensusSequences);
+        int[][] matches;
+        int[][] mismatches = null;
+        if (maxMismatches == 0) {
+            matches = snapshot.motifAutomaton.run(promoterAndFivePrimeUTR);
+        } else {
+            MismatchScanner.Matches found = snapshot.mismatchScanner.run(promoterAndFivePrimeUTR, maxMismatches);
+            matches = found.starts;
+            mismatches = found.mismatches;
+        }
+        for (int ordinal = 0; ordinal < consensusSequences.length; ordinal++) {
+            int plusPattern = snapshot.plusPatterns[ordinal];
+            int[] plusMatches = matches[plusPattern];
+            addSites(ordinal, consensusSequences[ordinal].length(), MotifHits.PLUS_STRAND, plusMatches,
+                     scoreSites(pwmScanner, snapshot.pwmOrdinals[ordinal], promoterAndFivePrimeUTR, plusMatches),
+                     mismatches == null ? null : mismatches[plusPattern], motifHits);
+        }
+        for (int ordinal = 0; ordinal < consensusSequences.length; ordinal++) {
+            if (snapshot.minusPatterns[ordinal] >= 0) {
+                // A palindromic matrix scores both strands alike
+                int pwmOrdinal = snapshot.pwmOrdinals[ordinal];
+                int minusModel = snapshot.pwmMinusModels[pwmOrdinal] >= 0 ? snapshot.pwmMinusModels[pwmOrdinal] : pwmOrdinal;
+                int minusPattern = snapshot.minusPatterns[ordinal];
+                int[] minusMatches = matches[minusPattern];
+                addSites(ordinal, consensusSequences[ordinal].length(), MotifHits.MINUS_STRAND, minusMatches,
+                         scoreSites(pwmScanner, minusModel, promoterAndFivePrimeUTR, minusMatches),
+                         mismatches == null ? null : mismatches[minusPattern], motifHits);
+            }
+        }
+        return motifHits;
+    }
+
+    /**
+     * @return the number of consensus sequences and reverse complements of the
+     * CONSENSUS mode motifs, counting each motif and strand separately
+     */
+    public int getPatternCount() {
+        return snapshot.patternCount;
+    }
+
+    /**
+     * @return the number of distinct patterns the CONSENSUS mode actually matches,
+     * after motifs with equal or reverse complementary consensus sequences are merged
+     */
+    public int getUniquePatternCount() {
+        return snapshot.uniquePatternCount;
+    }
+
+    /**
+     * @return a SHA-256 hash of the current motifs and scoring settings, which
+     * changes whenever a reload changes what a scan can find
+     */
+    public byte[] getFingerprint() {
+        return snapshot.fingerprint.clone();
+    }
+
+    /**
+     * @return the number of times the motifs have been reloaded since initiation
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Watches the TF information and position weight matrix files for changes on a
+     * daemon thread. Changes are gathered until none have arrived for
+     * RELOAD_DELAY_MILLIS, then only the matrices whose files changed are parsed
+     * again, a new snapshot of the motifs is built alongside the current one and it
+     * replaces the current one in a single step. Scans already running finish on the
+     * snapshot they started with. If a changed file cannot be parsed, for example
+     * because it is still being written, the current snapshot is kept until the next
+     * change.
+     *
+     * Matrices that were loaded from MotifLibrary.bin are taken from it rather than
+     * parsed again; MotifLibrary.bin itself is only read at initiation.
+     *
+     * @param onReload run on the watching thread after every new snapshot is in place
+     */
+    public synchronized void startWatching(Runnable onReload) throws Exception {
+        if (snapshot == null) {
+            throw new IllegalStateException("TFmotifs has not been initiated.");
+        }
+        if (watcher != null) {
+            throw new IllegalStateException("TFmotifs is already watching its sources.");
+        }
+        File pwmsDirectory = FileUtils.getResourceLocation(PWM_DIRECTORY);
+        if (pwmsDirectory == null || !pwmsDirectory.isDirectory()) {
+            throw new IllegalStateException("The position weight matrices were not found, so they cannot be watched.");
+        }
+        if (sourceMatrices == null) {
+            seedSources(pwmsDirectory);
+        }
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        Path pwms = pwmsDirectory.toPath();
+        Path information = pwms.getParent();
+        WatchEvent.Kind<?>[] kinds = {StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE};
+        WatchKey pwmsKey = pwms.register(watchService, kinds);
+        information.register(watchService, kinds);
+        String informationName = new File(TF_INFORMATION).getName();
+        String informationFallbackName = new File(TF_INFORMATION_FALLBACK).getName();
+
+        this.watchService = watchService;
+        watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    TreeSet<String> changedMatrices = new TreeSet<>();
+                    boolean changedInformation = false;
+                    boolean overflow = false;
+                    // Block for the first change, then gather the rest of the burst
+                    for (WatchKey key = watchService.take(); key != null; key = watchService.poll(RELOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS)) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                overflow = true;
+                                continue;
+                            }
+                            String name = event.context().toString();
+                            if (key == pwmsKey) {
+                                changedMatrices.add(name);
+                            } else if (name.equals(informationName) || name.equals(informationFallbackName)) {
+                                changedInformation = true;
+                            }
+                        }
+                        key.reset();
+                    }
+                    if (overflow) {
+                        // Some changes were lost, so every file is looked at again
+                        changedInformation = true;
+                        changedMatrices.addAll(sourceMatrices.keySet());
+                        for (File pwm : pwmsDirectory.listFiles(File::isFile)) {
+                            changedMatrices.add(pwm.getName());
+                        }
+                    }
+                    if (changedMatrices.isEmpty() && !changedInformation) {
+                        continue;
+                    }
+                    try {
+                        reload(pwmsDirectory, changedMatrices, changedInformation);
+                        onReload.run();
+                    } catch (Exception e) {
+                        System.err.println("Could not reload the TF motifs, keeping the current ones: " + e);
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Stopped
+            }
+        }, "TFmotifs-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Stops watching the sources; the current snapshot stays in use
+     */
+    public synchronized void stopWatching() throws Exception {
+        if (watcher == null) {
+            return;
+        }
+        watchService.close();
+        watcher.interrupt();
+        watcher.join();
+        watcher = null;
+        watchService = null;
+    }
+
+    // Parses the changed sources only, then builds and publishes a new snapshot
+    private void reload(File pwmsDirectory, Set<String> changedMatrices, boolean changedInformation) throws Exception {
+        HashMap<String, String> tfNames = sourceTFNames;
+        HashMap<String, String> tfFamilyNames = sourceTFFamilyNames;
+        if (changedInformation) {
+            tfNames = new HashMap<>();
+            tfFamilyNames = new HashMap<>();
+            parseInformation(tfNames, tfFamilyNames);
+        }
+        ArrayList<File> parse = new ArrayList<>();
+        TreeMap<String, ParsedMatrix> matrices = new TreeMap<>(sourceMatrices);
+        for (String name : changedMatrices) {
+            File pwm = new File(pwmsDirectory, name);
+            if (pwm.isFile()) {
+                parse.add(pwm);
+            } else {
+                matrices.remove(name);
+            }
+        }
+        List<ParsedMatrix> parsed = parseMatrices(parse);
+        for (int i = 0; i < parse.size(); i++) {
+            matrices.put(parse.get(i).getName(), parsed.get(i));
+        }
+
+        // Nothing is replaced until the new snapshot is complete
+        HashMap<String, String> previousTFNames = sourceTFNames;
+        HashMap<String, String> previousTFFamilyNames = sourceTFFamilyNames;
+        TreeMap<String, ParsedMatrix> previousMatrices = sourceMatrices;
+        sourceTFNames = tfNames;
+        sourceTFFamilyNames = tfFamilyNames;
+        sourceMatrices = matrices;
+        try {
+            MotifLibrary library = new MotifLibrary();
+            library.initiate(ByteBuffer.wrap(writeLibrary().toByteArray()));
+            snapshot = new Snapshot(library, background, scoreThreshold);
+        } catch (Exception e) {
+            sourceTFNames = previousTFNames;
+            sourceTFFamilyNames = previousTFFamilyNames;
+            sourceMatrices = previousMatrices;
+            throw e;
+        }
+        version.incrementAndGet();
+    }
+
+    // Takes the matrices of a library loaded from MotifLibrary.bin as the parsed matrices
+    // of the files they came from, and files missing from the library as unpopulated
+    private void seedSources(File pwmsDirectory) throws Exception {
+        MotifLibrary library = MotifLibrary.openResourceLibrary(LIBRARY);
+        HashMap<String, Integer> motifs = new HashMap<>();
+        for (int motif = 0; motif < library.getMotifCount(); motif++) {
+            motifs.put(library.getMotifID(motif), motif);
+        }
+        HashMap<String, String> tfNames = new HashMap<>();
+        HashMap<String, String> tfFamilyNames = new HashMap<>();
+        parseInformation(tfNames, tfFamilyNames);
+        TreeMap<String, ParsedMatrix> matrices = new TreeMap<>();
+        for (File pwm : pwmsDirectory.listFiles(File::isFile)) {
+            String Motif_ID = pwm.getName().length() >= 10 ? pwm.getName().substring(0, 10) : pwm.getName();
+            Integer motif = motifs.get(Motif_ID);
+            ParsedMatrix parsed = null;
+            if (motif != null) {
+                parsed = new ParsedMatrix();
+                parsed.Motif_ID = Motif_ID;
+                parsed.frequencies = library.getFrequencies(motif);
+                parsed.consensusSequence = library.getConsensusSequence(motif);
+                parsed.specific = library.isSpecific(motif);
+            }
+            matrices.put(pwm.getName(), parsed);
+        }
+        sourceTFNames = tfNames;
+        sourceTFFamilyNames = tfFamilyNames;
+        sourceMatrices = matrices;
+    }
+
+    // A position weight matrix file read into A, C, G and T frequencies and its consensus sequence
+    private static class ParsedMatrix {
+        String Motif_ID;
+        float[] frequencies;
+        String consensusSequence;
+        // Whether enough positions have a base above 0.5 for the consensus sequence to be used
+        boolean specific;
+    }
+
+    // Returns null when the position weight matrix of the file is not populated
+    private static ParsedMatrix parseMatrix(File pwm) throws Exception {
+        // Obtain the path of the file with the Position Weight Matrix
+        // and save it locally along with its Motif_ID (w/o .txt)
+        String path = PWM_DIRECTORY + "/" + pwm.getName();
+        String Motif_ID = pwm.getName().substring(0, 10);
+        // Read the file's contents and create the consensusSequence string
+        // based on the frequencies of the nucleotides. If no base is found
+        // at a frequency greater than 0.5, add a wildcard to the consensus sequence.
+        String motif = FileUtils.readResourceFile(path);
+        String[] positions = motif.split("\\r|\\r?\\n");
+        if (positions.length == 1) {
+            return null;
+        }
+        int countSpecific = 0;
+        StringBuilder consensusSequence = new StringBuilder(positions.length - 1);
+        // Every populated matrix is also kept as A, C, G and T frequencies for the PWM mode
+        float[] frequencies = new float[(positions.length - 1) * 4];
+        for (int i = 1; i < positions.length; i++) {
+            String position = positions[i];
+            String[] bases = position.split("\t");
+            for (int b = 0; b < 4; b++) {
+                frequencies[(i - 1) * 4 + b] = Float.parseFloat(bases[b + 1]);
+            }
+            char baseAtThisPosition = '.';
+            double Afrequency = Double.parseDouble(bases[1]);
+            if (Afrequency > 0.5) {
+                baseAtThisPosition = 'A';
+                countSpecific += 1;
+            }
+            double Cfrequency = Double.parseDouble(bases[2]);
+            if (Cfrequency > 0.5) {
+                baseAtThisPosition = 'C';
+                countSpecific += 1;
+            }
+            double Gfrequency = Double.parseDouble(bases[3]);
+            if (Gfrequency > 0.5) {
+                baseAtThisPosition = 'G';
+                countSpecific += 1;
+            }
+            double Tfrequency = Double.parseDouble(bases[4]);
+            if (Tfrequency > 0.5) {
+                baseAtThisPosition = 'T';
+                countSpecific += 1;
+            }
+            consensusSequence.append(baseAtThisPosition);
+        }
+        ParsedMatrix parsed = new ParsedMatrix();
+        parsed.Motif_ID = Motif_ID;
+        parsed.frequencies = frequencies;
+        parsed.consensusSequence = consensusSequence.toString();
+        parsed.specific = (countSpecific * 100 / positions.length) >= 50;
+        return parsed;
+    }
+
+    /**
+     * Parses the CIS-BP TF information and every position weight matrix
+     */
+    private void parseSources() throws Exception {
+        HashMap<String, String> tfNames = new HashMap<>();
+        HashMap<String, String> tfFamilyNames = new HashMap<>();
+        parseInformation(tfNames, tfFamilyNames);
+
+        // Read the PositionWeightMatrices (PWMs) files, each file is named by its Motif_ID.
+        // The parsing of the position weight matrices is based on the frequencies of the
+        // nucleotide bases found at each position. The files are kept in order of name so
+        // that the library does not depend on the file system.
+        File pwmsDirectory = FileUtils.getResourceLocation(PWM_DIRECTORY);
+        if (pwmsDirectory == null || !pwmsDirectory.isDirectory()) {
+            throw new IllegalStateException("The position weight matrices were not found, " + LIBRARY + " must be built on a checkout of the repository.");
+        }
+        ArrayList<File> pwms = new ArrayList<>(Arrays.asList(pwmsDirectory.listFiles(File::isFile)));
+        List<ParsedMatrix> parsed = parseMatrices(pwms);
+        TreeMap<String, ParsedMatrix> matrices = new TreeMap<>();
+        for (int i = 0; i < pwms.size(); i++) {
+            matrices.put(pwms.get(i).getName(), parsed.get(i));
+        }
+        sourceTFNames = tfNames;
+        sourceTFFamilyNames = tfFamilyNames;
+        sourceMatrices = matrices;
+    }
+
+    private static void parseInformation(HashMap<String, String> tfNames, HashMap<String, String> tfFamilyNames) throws Exception {
+        // Read the TF_Information_all_motifs_plus.txt file, or TF_Information_all_motifs.txt
+        // when it is absent
         //    [0] TF_ID: internal CIS-BP ID for the TF
         //    [3] Motif_ID: internal CIS-BP ID for associated motif
-        //    [9] TF_Name: name of TF family
-        //    [13] DBID: motif ID from associated study
-        // Store these options as a key-value (K,V) paired HashMaps named tfIDs, tfNames and dbIDs
+        //    [6] TF_Name: name of the TF
+        //    [9] Family_Name: name of TF family
+        // Store the names as key-value (K,V) paired HashMaps named tfNames and tfFamilyNames
         //    K: Unique Motif_ID
-        //    V: Corresponding TF_ID, TF_Name and DBID
-        String TF_information = FileUtils.readResourceFile("Homo Sapiens TF Motifs from CIS-BP Database/TF_Information_all_motifs_plus.txt");
+        //    V: Corresponding TF_Name and Family_Name
+        String informationPath = C5.class.getResource(TF_INFORMATION) != null ? TF_INFORMATION : TF_INFORMATION_FALLBACK;
+        String TF_information = FileUtils.readResourceFile(informationPath);
         String[] rows = TF_information.split("\\r|\\r?\\n");
-        tfNames = new HashMap<>();
-        tfFamilyNames = new HashMap<>();
         for (int i = 0; i < rows.length; i++) {
             String row = rows[i];
             String[] columns = row.split("\t");
             tfNames.put(columns[3], columns[6]);
             tfFamilyNames.put(columns[3], columns[9]);
         }
+    }
 
-        // Read the PositionWeightMatrices (PWMs) files, each file is named by its Motif_ID.
-        // For each file, create a HashMap with the name of the file (the Motif_ID) as the key
-        // and the parsed position weight matrix as a string. The parsing of the position weight
-        // matrices is based on the frequencies of the nucleotide bases found at each position.
-        consensusSequences = new HashMap<>();
-        String pwmsPath = "/Users/Manraj/Documents/GitHub/PromoterInvestigations/src/org/ucb/c5/Homo Sapiens TF Motifs from CIS-BP Database/PositionWeightMatrices";
-        File pwmsDirectory = new File(pwmsPath);
-        File[] pwms = pwmsDirectory.listFiles();
+    // Parses the files concurrently on the common fork-join pool, returning the
+    // matrices in the order of the files, with null for unpopulated ones
+    private static List<ParsedMatrix> parseMatrices(List<File> pwms) throws Exception {
+        ArrayList<Callable<ParsedMatrix>> parsers = new ArrayList<>();
         for (File pwm : pwms) {
-            if (pwm.isFile()) {
-                // Obtain the path of the file with the Position Weight Matrix
-                // and save it locally along with its Motif_ID (w/o .txt)
-                String path = "Homo Sapiens TF Motifs from CIS-BP Database/PositionWeightMatrices/" + pwm.getName();
-                String Motif_ID = pwm.getName().substring(0, 10);
-                // Create a local string called consensusSequence that corresponds
-                // to the consensus sequence for the associated Motif_ID
-                String consensusSequence = "";
-                // Read the file's contents and create the consensusSequence string
-                // based on the frequencies of the nucleotides. If no base is found
-                // at a frequency greater than 0.5, add 'n' to the consensus sequence.
-                // If the position weight matrix is not populated for this file, then
-                // ignore and move on without adding it to the HashMap.
-                String motif = FileUtils.readResourceFile(path);
-                String[] positions = motif.split("\\r|\\r?\\n");
-                if (positions.length == 1) {
-                    continue;
-                }
-                int countSpecific = 0;
-                for (int i = 1; i < positions.length; i++) {
-                    String position = positions[i];
-                    String[] bases = position.split("\t");
-                    String baseAtThisPosition = null;
-                    double Afrequency = Double.parseDouble(bases[1]);
-                    if (Afrequency > 0.5) {
-                        baseAtThisPosition = "A";
-                        countSpecific += 1;
-                    }
-                    double Cfrequency = Double.parseDouble(bases[2]);
-                    if (Cfrequency > 0.5) {
-                        baseAtThisPosition = "C";
-                        countSpecific += 1;
-                    }
-                    double Gfrequency = Double.parseDouble(bases[3]);
-                    if (Gfrequency > 0.5) {
-                        baseAtThisPosition = "G";
-                        countSpecific += 1;
-                    }
-                    double Tfrequency = Double.parseDouble(bases[4]);
-                    if (Tfrequency > 0.5) {
-                        baseAtThisPosition = "T";
-                        countSpecific += 1;
-                    }
-                    if (baseAtThisPosition == null) {
-                        baseAtThisPosition = ".";
-                    }
-                    consensusSequence += baseAtThisPosition;
-                }
-                if ((countSpecific * 100 / positions.length) < 50) {
-                    continue;
-                }
-                consensusSequences.put(Motif_ID, consensusSequence);
+            parsers.add(() -> parseMatrix(pwm));
+        }
+        ArrayList<ParsedMatrix> parsedMatrices = new ArrayList<>(pwms.size());
+        for (Future<ParsedMatrix> future : ForkJoinPool.commonPool().invokeAll(parsers)) {
+            try {
+                parsedMatrices.add(future.get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
             }
         }
+        return parsedMatrices;
     }
 
-    public ArrayList<ArrayList> run(String promoterAndFivePrimeUTR) throws Exception {
-        ArrayList<Pair<String, ArrayList<Integer>>> TFmotifsInSequence = new ArrayList<>();
-        for (HashMap.Entry<String, String> entry : consensusSequences.entrySet()) {
-            String Motif_ID = entry.getKey();
-            String consensusSequence = entry.getValue();
-            Pattern pattern = Pattern.compile(consensusSequence);
-            Matcher matcher = pattern.matcher(promoterAndFivePrimeUTR);
-            ArrayList<Integer> matchStartIndices = new ArrayList<>();
-            // The number at the first index of matchStartIndices corresponds to the length of the consensusSequence
-            matchStartIndices.add(consensusSequence.length());
-            while (matcher.find()) {
-                int indexOfMatch = matcher.start();
-                matchStartIndices.add(indexOfMatch);
-            }
-            // For motifs that matched and added indices to matchStartIndices, add to TFmotifsInSequence
-            if (matchStartIndices.size() > 1) {
-                Pair<String, ArrayList<Integer>> matches = new Pair<>(Motif_ID, matchStartIndices);
-                TFmotifsInSequence.add(matches);
+    /**
+     * Gathers the parsed sources into a motif library, in order of file name
+     */
+    private MotifLibrary.Writer writeLibrary() throws Exception {
+        MotifLibrary.Writer writer = new MotifLibrary.Writer();
+        for (ParsedMatrix parsed : sourceMatrices.values()) {
+            // If the position weight matrix is not populated for this file, then
+            // ignore and move on without adding it to the library.
+            if (parsed == null) {
+                continue;
             }
+            writer.add(parsed.Motif_ID, sourceTFNames.get(parsed.Motif_ID), sourceTFFamilyNames.get(parsed.Motif_ID),
+                       parsed.consensusSequence, parsed.specific, parsed.frequencies);
         }
+        return writer;
+    }
+
+    private static float[] scoreSites(PWMScanner pwmScanner, int pwmModel, String sequence, int[] starts) {
+        float[] scores = new float[starts.length];
+        for (int i = 0; i < starts.length; i++) {
+            scores[i] = pwmScanner.score(pwmModel, sequence, starts[i]);
+        }
+        return scores;
+    }
 
-        // Create an array list of HashMaps that can be returned and thereby passed on to the main algorithm
-        ArrayList<HashMap> hashMaps = new ArrayList<>();
-        hashMaps.add(tfNames);
-        hashMaps.add(tfFamilyNames);
-        hashMaps.add(consensusSequences);
+    private static void addSites(int motif, int motifLength, int strand, int[] starts, float[] scores, MotifHits motifHits) {
+        addSites(motif, motifLength, strand, starts, scores, null, motifHits);
+    }
+
+    // Sites without mismatch counts match exactly
+    private static void addSites(int motif, int motifLength, int strand, int[] starts, float[] scores, int[] mismatches, MotifHits motifHits) {
+        for (int i = 0; i < starts.length; i++) {
+            motifHits.add(motif, starts[i], motifLength, strand, scores[i], mismatches == null ? 0 : mismatches[i]);
+        }
+    }
 
-        ArrayList<ArrayList> toReturn = new ArrayList<>(2);
-        toReturn.add(0, TFmotifsInSequence);
-        toReturn.add(1, hashMaps);
+    // Reverse complement of a consensus sequence, wildcard positions stay wildcards.
+    // Consensus sequences hold no N, so wildcards pass through RevComp as N.
+    private static String reverseComplementConsensus(RevComp revComp, String consensusSequence) {
+        return revComp.run(consensusSequence.replace('.', 'N')).replace('N', '.');
+    }
 
-        return toReturn;
+    // Reverse complement of a matrix laid out as position * 4 + base with bases ordered A, C, G, T
+    private static float[] reverseComplementMatrix(float[] frequencies) {
+        int length = frequencies.length / 4;
+        float[] reverseComplement = new float[frequencies.length];
+        for (int j = 0; j < length; j++) {
+            for (int b = 0; b < 4; b++) {
+                reverseComplement[(length - 1 - j) * 4 + (3 - b)] = frequencies[j * 4 + b];
+            }
+        }
+        return reverseComplement;
     }
 
+    /**
+     * Builds the motif library from the CIS-BP files, by default next to them
+     *
+     * @param args optionally, the path of the library file to create
+     */
     public static void main(String[] args) throws Exception {
+        TFmotifs tfms = new TFmotifs();
+        tfms.parseSources();
+        MotifLibrary.Writer writer = tfms.writeLibrary();
+        String libraryPath = args.length > 0 ? args[0] : FileUtils.getResourceLocation(LIBRARY).getPath();
+        writer.write(libraryPath);
+        System.out.println("Wrote the motif library to " + libraryPath);
+
+        MotifLibrary library = new MotifLibrary();
+        library.initiate(ByteBuffer.wrap(writer.toByteArray()));
+        tfms.snapshot = new Snapshot(library, PWMScanner.UNIFORM_BACKGROUND, PWMScanner.DEFAULT_THRESHOLD);
+        System.out.println(String.format("The consensus sequences of %d motifs on both strands reduce to %d distinct patterns of %d (%.2fx fewer)",
+                tfms.snapshot.motifIDs.length, tfms.getUniquePatternCount(), tfms.getPatternCount(),
+                (double) tfms.getPatternCount() / tfms.getUniquePatternCount()));
     }
 }
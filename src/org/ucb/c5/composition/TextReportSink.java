@@ -0,0 +1,91 @@
+package org.ucb.c5.composition;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Writes the report of every gene to a file of its own, named after the gene, in
+ * an output directory: an experimental overview of the repair strategy followed
+ * by a tab separated table of the designs for each TF motif site.
+ *
+ * Each report is built in memory and written with a single call, so a gene costs
+ * one file creation and one write however many sites it has. Genes are written
+ * to separate files, so unlike other sinks this one can be used from many
+ * threads at once.
+ *
+ * @author Manraj Gill
+ */
+public class TextReportSink implements ResultSink {
+
+    public static final String HEADER = "Count\tMotif_ID\tsgRNA_UP\tsgRNA_DOWN\tsgRNA_Off_Targets\tForward_Overlap_Primer\tReverse_Overlap_Primer\tOverlap_Primer_QC\tLocation\tStrand\tConsensus_Sequence\tTF_Name\tTF_Family\tScore\tMismatches";
+
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final String directory;
+
+    /**
+     * @param directory the existing directory the reports are written to
+     */
+    public TextReportSink(String directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(GeneResult result) throws Exception {
+        StringBuilder report = new StringBuilder(4096 + result.getRowCount() * 256);
+        appendOverview(result.geneName, result.repairStrategy, report);
+        for (int row = 0; row < result.getRowCount(); row++) {
+            result.appendRow(row, report);
+            report.append(NEWLINE);
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, result.geneName)), StandardCharsets.UTF_8)) {
+            writer.write(report.toString());
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static void appendOverview(String geneName, ArrayList<String> repairStrategy, StringBuilder report) {
+        line(report, "------------------------------");
+        line(report, "");
+        line(report, "EXPERIMENTAL OVERVIEW:");
+        line(report, "");
+        line(report, "In order to investigate transcription factors in the promoter and 5' UTR of " + geneName + ", ");
+        line(report, "use the following two primers to amplify the genomic locus: ");
+        line(report, "");
+        line(report, "Forward_Repair_Primer: " + repairStrategy.get(2) + " (" + repairStrategy.get(5) + ")");
+        line(report, "Reverse_Repair_Primer: " + repairStrategy.get(3) + " (" + repairStrategy.get(6) + ")");
+        line(report, "The expected size of the amplicon is: " + repairStrategy.get(4));
+        line(report, "");
+        line(report, "Digest the pCR2.1-TOPO backbone and the amplicon with: ");
+        line(report, repairStrategy.get(0) + " and " + repairStrategy.get(1));
+        line(report, "");
+        line(report, "Ligate and transform to obtain the repair construct template.");
+        line(report, "");
+        line(report, "For each of the TF motifs identified below, use the repair construct template and the Forward_Overlap_Primer and Reverse_Overlap_Primer in an overlap-extension strategy (see outline in README) to devise unique constructs that remove the TF motif.");
+        line(report, "");
+        line(report, "Similarly for each TF motif identified below, use the sgRNA_UP and sgRNA_DOWN in the cloning protocol of px330 constructs.");
+        line(report, "The cloning protocol of px330 constructs is adapted from Zhang Lab protocols for CRISPR/Cas9 systems in mammalian cells.");
+        line(report, "Detailed protocol available in this package as a PDF titled Cas9ConstructProtocol.pdf");
+        line(report, "");
+        line(report, "------------------------------");
+        line(report, "");
+        line(report, "IDENTIFIED TRANSCRIPTION FACTOR BINDING MOTIFS:");
+        line(report, "");
+        line(report, HEADER);
+    }
+
+    private static void line(StringBuilder report, String line) {
+        report.append(line).append(NEWLINE);
+    }
+}
@@ -0,0 +1,66 @@
+package org.ucb.c5.composition;
+
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Writes every gene to one tab separated table with a HEADER line: a record per
+ * TF motif site, prefixed with the gene name and followed by the repair strategy
+ * of the gene. The records of a gene are built in memory and go out through a
+ * BUFFER_SIZE buffer, so the output sees a few large writes rather than one per
+ * field.
+ *
+ * @author Manraj Gill
+ */
+public class TsvResultSink implements ResultSink {
+
+    public static final String HEADER = "Gene\t" + TextReportSink.HEADER + "\tForward_Repair_Primer\tReverse_Repair_Primer\tAmplicon_Size\tRepair_Enzyme_1\tRepair_Enzyme_2";
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final Writer output;
+    private final StringBuilder records = new StringBuilder(1 << 16);
+
+    /**
+     * Writes the header line straight away
+     */
+    public TsvResultSink(Writer output) throws Exception {
+        this(output, BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the number of characters buffered before output is written
+     */
+    public TsvResultSink(Writer output, int bufferSize) throws Exception {
+        this.output = new BufferedWriter(output, bufferSize);
+        this.output.write(HEADER + NEWLINE);
+    }
+
+    @Override
+    public void write(GeneResult result) throws Exception {
+        records.setLength(0);
+        ArrayList<String> repairStrategy = result.repairStrategy;
+        for (int row = 0; row < result.getRowCount(); row++) {
+            records.append(result.geneName).append('\t');
+            result.appendRow(row, records);
+            records.append(repairStrategy.get(2)).append('\t')
+                    .append(repairStrategy.get(3)).append('\t')
+                    .append(repairStrategy.get(4)).append('\t')
+                    .append(repairStrategy.get(0)).append('\t')
+                    .append(repairStrategy.get(1)).append(NEWLINE);
+        }
+        output.append(records);
+    }
+
+    @Override
+    public void flush() throws Exception {
+        output.flush();
+    }
+
+    @Override
+    public void close() throws Exception {
+        output.close();
+    }
+}
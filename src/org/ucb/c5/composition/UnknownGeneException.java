@@ -0,0 +1,24 @@
+package org.ucb.c5.composition;
+
+/**
+ * Thrown by the genomic loci for a gene name they have no locus for. It is an
+ * IllegalArgumentException, as before, so that callers can tell an unknown gene
+ * apart from other invalid arguments without catching it separately.
+ *
+ * @author Manraj Gill
+ */
+public class UnknownGeneException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String geneName;
+
+    public UnknownGeneException(String geneName) {
+        super("The input gene name is not valid.");
+        this.geneName = geneName;
+    }
+
+    public String getGeneName() {
+        return geneName;
+    }
+}
@@ -1,8 +1,13 @@
 package org.ucb.c5.composition;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import org.ucb.c5.utils.FastaIndex;
+import org.ucb.c5.utils.FastaReader;
 import org.ucb.c5.utils.FileUtils;
+import org.ucb.c5.utils.PackedSequenceStore;
 
 /**
  * Data of genomic sequence from:
@@ -18,61 +23,153 @@ import org.ucb.c5.utils.FileUtils;
  * Running of org.ucb.c5.composition.UpstreamGenomicLocus outputs the LHA [0th index of returned
  * ArrayList and the promoter + 5' UTR sequence [1st index of the ArrayList] for the input gene.
  *
+ * Running main builds "Promoter + 5' UTR.psq", a 2-bit packed store of the parsed loci
+ * next to the export. When that store is present and up to date, initiation maps it
+ * instead of parsing the export and the loci are decoded from it on request. Otherwise
+ * initiation opens "Promoter + 5' UTR.txt.idx", an index of where each gene's record
+ * is in the export (building it on first use or when the export changes), and each
+ * record is read from the export when its gene is requested.
+ *
  * @author Manraj Gill
  */
 public class UpstreamGenomicLocus {
 
+    public static final String EXPORT = "Promoter + 5' UTR.txt";
+    public static final String STORE = "Promoter + 5' UTR.psq";
+
     private HashMap<String, String> LHAs;
     private HashMap<String, String> promotersAndFivePrimeUTRs;
+    private PackedSequenceStore store;
+    private FastaIndex index;
 
     public void initiate() throws Exception {
-        String PromoterAndUTRinformation = FileUtils.readResourceFile("Promoter + 5' UTR.txt");
-        String[] genes = PromoterAndUTRinformation.split(">");
+        store = PackedSequenceStore.openResourceStore(STORE, EXPORT);
+        if (store != null) {
+            return;
+        }
+        // Records can only be read on demand from an export on the file system,
+        // otherwise the whole export is parsed up front
+        File export = FileUtils.getResourceFile(EXPORT);
+        if (export != null) {
+            index = new FastaIndex();
+            index.initiate(export, new File(export.getPath() + ".idx"), UpstreamGenomicLocus::locusGeneName);
+            return;
+        }
+        parseExport();
+    }
+
+    /**
+     * Serves the loci from a packed store built by main rather than from the export
+     *
+     * @param storePath the path of the store file
+     */
+    public void initiate(String storePath) throws Exception {
+        store = new PackedSequenceStore();
+        store.initiate(storePath);
+    }
+
+    private void parseExport() throws Exception {
         LHAs = new HashMap<>();
         promotersAndFivePrimeUTRs = new HashMap<>();
-        for (int i = 1; i < genes.length; i++) {
-            String gene = genes[i];
-            String[] lines = gene.split("\\r|\\r?\\n");
-            // For the cases: 'Sequence unavailable', skip without
-            // including the information in the HashMaps.
-            if (lines.length < 3) {
-                continue;
-            }
-            String geneInformation = lines[0];
-            // Removes the Gene stable ID from geneInformation
-            String geneName = geneInformation.substring(16);
-            // Removes the Transcript stable ID from geneInformation
-            int endOfName = geneName.length() - 16;
-            geneName = geneName.substring(0, endOfName);
-            String complete = "";
-            for (int j = 1; j < lines.length; j++) {
-                complete += lines[j];
+        FastaReader reader = new FastaReader();
+        reader.run(EXPORT, (geneInformation, complete, lineCount) -> {
+            String geneName = locusGeneName(geneInformation, complete, lineCount);
+            if (geneName == null || LHAs.containsKey(geneName)) {
+                return;
             }
-            if (complete.length() < 1500) {
-                continue;
-            }
-            if (LHAs.containsKey(geneName)) {
-                continue;
-            }
-            String LHA = complete.substring(0, 500);
+            String LHA = complete.subSequence(0, 500).toString();
             LHAs.put(geneName, LHA);
-            String PromoterAndFivePrimeUTR = complete.substring(500);
+            String PromoterAndFivePrimeUTR = complete.subSequence(500, complete.length()).toString();
             promotersAndFivePrimeUTRs.put(geneName, PromoterAndFivePrimeUTR);
+        });
+    }
+
+    // Returns the gene name of a record of the export that provides a locus, or null for records that are skipped
+    private static String locusGeneName(String geneInformation, CharSequence complete, int lineCount) {
+        // For the cases: 'Sequence unavailable', skip without
+        // including the information in the HashMaps.
+        if (lineCount < 2) {
+            return null;
+        }
+        // Removes the Gene stable ID from geneInformation
+        String geneName = geneInformation.substring(16);
+        // Removes the Transcript stable ID from geneInformation
+        int endOfName = geneName.length() - 16;
+        geneName = geneName.substring(0, endOfName);
+        if (complete.length() < 1500) {
+            return null;
         }
+        return geneName;
     }
 
     public ArrayList<String> run(String geneName) throws Exception {
         ArrayList<String> toReturn = new ArrayList<>(2);
+        if (store != null) {
+            // Each record of the store is the LHA followed by the promoter + 5' UTR
+            int length = store.getLength(geneName);
+            if (length < 0) {
+                throw new UnknownGeneException(geneName);
+            }
+            toReturn.add(0, store.run(geneName, 0, 500));
+            toReturn.add(1, store.run(geneName, 500, length));
+            return toReturn;
+        }
+        if (index != null) {
+            String complete = index.run(geneName);
+            if (complete == null) {
+                throw new UnknownGeneException(geneName);
+            }
+            toReturn.add(0, complete.substring(0, 500));
+            toReturn.add(1, complete.substring(500));
+            return toReturn;
+        }
         if (LHAs.containsKey(geneName) && promotersAndFivePrimeUTRs.containsKey(geneName)) {
             toReturn.add(0, LHAs.get(geneName));
             toReturn.add(1, promotersAndFivePrimeUTRs.get(geneName));
         }
         else {
-            throw new IllegalArgumentException("The input gene name is not valid.");
+            throw new UnknownGeneException(geneName);
         }
         return toReturn;
     }
 
+    /**
+     * @return the names of every gene with a locus, in alphabetical order
+     */
+    public ArrayList<String> getGeneNames() {
+        ArrayList<String> geneNames = new ArrayList<>();
+        Iterable<String> names = store != null ? store.getNames() : index != null ? index.getNames() : LHAs.keySet();
+        for (String geneName : names) {
+            geneNames.add(geneName);
+        }
+        Collections.sort(geneNames);
+        return geneNames;
+    }
+
+    /**
+     * Writes the parsed loci to a packed store, each record holding the LHA
+     * followed by the promoter + 5' UTR
+     *
+     * @param storePath the path of the store file to create
+     */
+    public void writeStore(String storePath) throws Exception {
+        PackedSequenceStore.Writer writer = new PackedSequenceStore.Writer();
+        for (String geneName : LHAs.keySet()) {
+            writer.add(geneName, LHAs.get(geneName) + promotersAndFivePrimeUTRs.get(geneName));
+        }
+        writer.write(storePath, FileUtils.getResourceFingerprint(EXPORT));
+    }
+
+    /**
+     * Builds the packed store of the export, by default next to the export
+     *
+     * @param args optionally, the path of the store file to create
+     */
     public static void main(String[] args) throws Exception {
+        UpstreamGenomicLocus ugl = new UpstreamGenomicLocus();
+        ugl.parseExport();
+        String storePath = args.length > 0 ? args[0] : FileUtils.getResourceLocation(STORE).getPath();
+        ugl.writeStore(storePath);
+        System.out.println("Wrote " + ugl.LHAs.size() + " loci to " + storePath);
     }
 }
@@ -0,0 +1,600 @@
+package org.ucb.c5.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * An FM-index over a collection of named DNA records, answering which places in
+ * the records match a pattern with up to a given number of mismatches.
+ *
+ * The records are joined into one text with a separator between them. The
+ * suffix arrays of the text and of the text read backwards are built with SA-IS
+ * (Nong, Zhang and Chan, 2009), and of each only the Burrows-Wheeler transform
+ * is kept, with symbol counts every 32 rows and the suffix array sampled at every
+ * 32nd text position. Bases other than A, C, G and T are stored as separators,
+ * so no match spans them or a record boundary.
+ *
+ * A search extends a match one base at a time, trying every base at positions
+ * where a mismatch is still affordable. Early bases branch the most, so the
+ * pattern is split in two halves: if it matches with k mismatches, one half has
+ * at most k / 2 of them. The right half is matched first, backwards through the
+ * index of the text, and the left half is matched first, forwards through the
+ * index of the text read backwards, each allowing k / 2 mismatches until that
+ * half is done. A branch is also dropped as soon as the rest of the pattern is
+ * known to need more mismatches than are left, from the substrings of the
+ * pattern that do not occur in the text (as in BWA, Li and Durbin, 2009).
+ *
+ * Indexes are built with FMIndex.build and can be written to and read back from
+ * a file. An index read from a file is searched in place in the mapped file,
+ * so that opening it costs no more than reading the record names.
+ *
+ * @author Manraj Gill
+ */
+public class FMIndex {
+
+    private static final int MAGIC = 0x464D4958;
+    private static final int VERSION = 2;
+
+    // Symbols: the end of the text, separators, then A, C, G and T
+    private static final int SYMBOLS = 6;
+    private static final byte END = 0;
+    private static final byte SEPARATOR = 1;
+    private static final byte[] CODES = new byte[128];
+    static {
+        Arrays.fill(CODES, SEPARATOR);
+        CODES['A'] = 2;
+        CODES['C'] = 3;
+        CODES['G'] = 4;
+        CODES['T'] = 5;
+        CODES['a'] = 2;
+        CODES['c'] = 3;
+        CODES['g'] = 4;
+        CODES['t'] = 5;
+    }
+    // Stands for N in a pattern
+    private static final byte ANY = -1;
+
+    private static final int OCC_INTERVAL = 32;
+    private static final int SAMPLE_INTERVAL = 32;
+
+    private byte[] sourceFingerprint;
+    private Transform forward;
+    private Transform backward;
+    private String[] recordNames;
+    private int[] recordStarts;
+
+    /**
+     * A place in a record matching a pattern
+     */
+    public static class Hit {
+        public final int record;
+        public final int position;
+        public final int mismatches;
+
+        Hit(int record, int position, int mismatches) {
+            this.record = record;
+            this.position = position;
+            this.mismatches = mismatches;
+        }
+    }
+
+    /**
+     * Opens an index written by write
+     *
+     * @param path the path of the index file
+     */
+    public void initiate(String path) throws Exception {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IllegalArgumentException("Not an FM-index: " + path);
+        }
+        sourceFingerprint = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(sourceFingerprint);
+        forward = Transform.read(buffer);
+        backward = Transform.read(buffer);
+        int recordCount = buffer.getInt();
+        recordStarts = readInts(buffer, recordCount);
+        recordNames = new String[recordCount];
+        for (int i = 0; i < recordCount; i++) {
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            recordNames[i] = new String(name, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Builds the index of a collection of records
+     *
+     * @param names the name of each record
+     * @param sequences the sequence of each record
+     * @param sourceFingerprint a hash of the data the records were read from, kept to detect
+     * stale indexes, or null if it is not known
+     */
+    public static FMIndex build(List<String> names, List<? extends CharSequence> sequences, byte[] sourceFingerprint) {
+        long total = 1;
+        for (CharSequence sequence : sequences) {
+            total += sequence.length() + 1;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("FM-indexes are limited to 2 GB of sequence");
+        }
+        int length = (int) total;
+        int[] text = new int[length];
+        FMIndex index = new FMIndex();
+        index.sourceFingerprint = sourceFingerprint == null ? new byte[0] : sourceFingerprint.clone();
+        index.recordNames = names.toArray(new String[0]);
+        index.recordStarts = new int[sequences.size()];
+        int position = 0;
+        for (int r = 0; r < sequences.size(); r++) {
+            CharSequence sequence = sequences.get(r);
+            index.recordStarts[r] = position;
+            for (int i = 0; i < sequence.length(); i++) {
+                char achar = sequence.charAt(i);
+                text[position++] = achar < 128 ? CODES[achar] : SEPARATOR;
+            }
+            text[position++] = SEPARATOR;
+        }
+        text[position] = END;
+        index.forward = Transform.build(text);
+
+        // The text read backwards, still ending with END
+        for (int i = 0, j = length - 2; i < j; i++, j--) {
+            int swap = text[i];
+            text[i] = text[j];
+            text[j] = swap;
+        }
+        index.backward = Transform.build(text);
+        return index;
+    }
+
+    /**
+     * @param path the path of the index file to create
+     */
+    public void write(String path) throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeShort(sourceFingerprint.length);
+            out.write(sourceFingerprint);
+            forward.write(out);
+            backward.write(out);
+            out.writeInt(recordNames.length);
+            writeInts(out, recordStarts);
+            for (String name : recordNames) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Finds every place in the records matching a pattern
+     *
+     * @param pattern bases to match, where N matches any base and characters other
+     * than A, C, G and T match none
+     * @param mismatchable whether each position of the pattern may be mismatched
+     * @param maxMismatches the largest number of mismatched positions
+     * @return the matches in no particular order
+     */
+    public ArrayList<Hit> run(String pattern, boolean[] mismatchable, int maxMismatches) {
+        int length = pattern.length();
+        int half = length / 2;
+        int halfMismatches = maxMismatches / 2;
+        byte[] codes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char achar = Character.toUpperCase(pattern.charAt(i));
+            codes[i] = achar == 'N' ? ANY : achar < 128 ? CODES[achar] : SEPARATOR;
+        }
+
+        // Right half first: the mismatches allowed once each position of the pattern is matched
+        int[] limits = new int[length];
+        for (int i = 0; i < length; i++) {
+            limits[i] = i >= half ? halfMismatches : maxMismatches;
+        }
+        ArrayList<int[]> ranges = new ArrayList<>();
+        forward.search(codes, mismatchable, limits, forward.lowerBounds(codes), length - 1, 0, 0, forward.size(), ranges);
+        ArrayList<Hit> hits = new ArrayList<>();
+        HashSet<Integer> found = new HashSet<>();
+        for (int[] range : ranges) {
+            for (int row = range[0]; row < range[1]; row++) {
+                int position = forward.locate(row);
+                found.add(position);
+                hits.add(hit(position, range[2]));
+            }
+        }
+        if (maxMismatches == 0) {
+            return hits;
+        }
+
+        // Left half first, reading the pattern backwards through the backward index,
+        // skipping the matches that were found with the right half first
+        byte[] reversedCodes = new byte[length];
+        boolean[] reversedMismatchable = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            reversedCodes[i] = codes[length - 1 - i];
+            reversedMismatchable[i] = mismatchable[length - 1 - i];
+            limits[i] = i >= length - half ? halfMismatches : maxMismatches;
+        }
+        ranges.clear();
+        backward.search(reversedCodes, reversedMismatchable, limits, backward.lowerBounds(reversedCodes), length - 1, 0,
+                0, backward.size(), ranges);
+        for (int[] range : ranges) {
+            for (int row = range[0]; row < range[1]; row++) {
+                // A match at p in the backward text ends at size - 2 - p in the text
+                int position = backward.size() - 1 - length - backward.locate(row);
+                if (found.add(position)) {
+                    hits.add(hit(position, range[2]));
+                }
+            }
+        }
+        return hits;
+    }
+
+    public String getRecordName(int record) {
+        return recordNames[record];
+    }
+
+    public int getRecordCount() {
+        return recordNames.length;
+    }
+
+    /**
+     * @return the hash of the data the index was built from, or an empty array if it was not known
+     */
+    public byte[] getSourceFingerprint() {
+        return sourceFingerprint.clone();
+    }
+
+    private Hit hit(int position, int mismatches) {
+        int record = Arrays.binarySearch(recordStarts, position);
+        if (record < 0) {
+            record = -record - 2;
+        }
+        return new Hit(record, position - recordStarts[record], mismatches);
+    }
+
+    /**
+     * The Burrows-Wheeler transform of one text with its rank and locate samples
+     */
+    private static class Transform {
+        private ByteBuffer bwt;
+        private int[] counts;
+        private IntBuffer occurrences;
+        private LongBuffer sampledRows;
+        private IntBuffer sampledRanks;
+        private IntBuffer samples;
+
+        static Transform build(int[] text) {
+            int length = text.length;
+            int[] suffixArray = suffixArray(text, SYMBOLS - 1);
+            byte[] bwt = new byte[length];
+            int[] counts = new int[SYMBOLS + 1];
+            int[] occurrences = new int[(length / OCC_INTERVAL + 1) * SYMBOLS];
+            long[] sampledRows = new long[length / 64 + 1];
+            int[] sampledRanks = new int[sampledRows.length];
+            int[] samples = new int[(length - 1) / SAMPLE_INTERVAL + 1];
+            int[] running = new int[SYMBOLS];
+            int sampleCount = 0;
+            for (int row = 0; row < length; row++) {
+                if (row % OCC_INTERVAL == 0) {
+                    System.arraycopy(running, 0, occurrences, (row / OCC_INTERVAL) * SYMBOLS, SYMBOLS);
+                }
+                int suffix = suffixArray[row];
+                byte symbol = (byte) text[suffix == 0 ? length - 1 : suffix - 1];
+                bwt[row] = symbol;
+                running[symbol]++;
+                if (suffix % SAMPLE_INTERVAL == 0) {
+                    sampledRows[row >> 6] |= 1L << (row & 63);
+                    samples[sampleCount++] = suffix;
+                }
+            }
+            if (length % OCC_INTERVAL == 0) {
+                System.arraycopy(running, 0, occurrences, (length / OCC_INTERVAL) * SYMBOLS, SYMBOLS);
+            }
+            for (int c = 0; c < SYMBOLS; c++) {
+                counts[c + 1] = counts[c] + running[c];
+            }
+            int rank = 0;
+            for (int block = 0; block < sampledRows.length; block++) {
+                sampledRanks[block] = rank;
+                rank += Long.bitCount(sampledRows[block]);
+            }
+            Transform transform = new Transform();
+            transform.bwt = ByteBuffer.wrap(bwt);
+            transform.counts = counts;
+            transform.occurrences = IntBuffer.wrap(occurrences);
+            transform.sampledRows = LongBuffer.wrap(sampledRows);
+            transform.sampledRanks = IntBuffer.wrap(sampledRanks);
+            transform.samples = IntBuffer.wrap(samples);
+            return transform;
+        }
+
+        // The tables are views of the buffer rather than copies of it
+        static Transform read(ByteBuffer buffer) {
+            Transform transform = new Transform();
+            transform.bwt = slice(buffer, buffer.getInt());
+            transform.counts = readInts(buffer, SYMBOLS + 1);
+            transform.occurrences = slice(buffer, buffer.getInt() * 4).asIntBuffer();
+            int sampledRowCount = buffer.getInt();
+            transform.sampledRows = slice(buffer, sampledRowCount * 8).asLongBuffer();
+            transform.sampledRanks = slice(buffer, sampledRowCount * 4).asIntBuffer();
+            transform.samples = slice(buffer, buffer.getInt() * 4).asIntBuffer();
+            return transform;
+        }
+
+        // The next bytes of the buffer, which is moved past them
+        private static ByteBuffer slice(ByteBuffer buffer, int length) {
+            ByteBuffer slice = buffer.slice(buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            return slice;
+        }
+
+        void write(DataOutputStream out) throws Exception {
+            out.writeInt(bwt.limit());
+            for (int i = 0; i < bwt.limit(); i++) {
+                out.writeByte(bwt.get(i));
+            }
+            writeInts(out, counts);
+            out.writeInt(occurrences.limit());
+            writeInts(out, occurrences);
+            out.writeInt(sampledRows.limit());
+            for (int i = 0; i < sampledRows.limit(); i++) {
+                out.writeLong(sampledRows.get(i));
+            }
+            writeInts(out, sampledRanks);
+            out.writeInt(samples.limit());
+            writeInts(out, samples);
+        }
+
+        int size() {
+            return bwt.limit();
+        }
+
+        // Extends the match of codes[i + 1..] held by rows lo to hi backwards by codes[i],
+        // with mismatches made so far, keeping to limits[i] mismatches once codes[i] is matched
+        void search(byte[] codes, boolean[] mismatchable, int[] limits, int[] lowerBounds, int i, int mismatches,
+                    int lo, int hi, ArrayList<int[]> ranges) {
+            if (i < 0) {
+                ranges.add(new int[]{lo, hi, mismatches});
+                return;
+            }
+            if (mismatches + lowerBounds[i] > limits[0]) {
+                return;
+            }
+            byte code = codes[i];
+            // The rows of every extension by a base are worked out together
+            int[] extendedLo = new int[SYMBOLS];
+            int[] extendedHi = new int[SYMBOLS];
+            baseOccurrences(lo, extendedLo);
+            baseOccurrences(hi, extendedHi);
+            for (byte base = 2; base < SYMBOLS; base++) {
+                int cost = code == ANY || code == base ? 0 : 1;
+                if (cost > 0 && (!mismatchable[i] || mismatches + cost > limits[i])) {
+                    continue;
+                }
+                int nextLo = counts[base] + extendedLo[base];
+                int nextHi = counts[base] + extendedHi[base];
+                if (nextLo < nextHi) {
+                    search(codes, mismatchable, limits, lowerBounds, i - 1, mismatches + cost, nextLo, nextHi, ranges);
+                }
+            }
+        }
+
+        // The least number of mismatches with which codes[0..i] could occur, counted as the
+        // number of back to back stretches that do not occur in the text; N ends a stretch
+        int[] lowerBounds(byte[] codes) {
+            int[] lowerBounds = new int[codes.length];
+            int mismatches = 0;
+            int stretchStart = 0;
+            for (int i = 0; i < codes.length; i++) {
+                if (codes[i] == ANY) {
+                    stretchStart = i + 1;
+                } else if (!occurs(codes, stretchStart, i)) {
+                    mismatches++;
+                    stretchStart = i + 1;
+                }
+                lowerBounds[i] = mismatches;
+            }
+            return lowerBounds;
+        }
+
+        private boolean occurs(byte[] codes, int from, int to) {
+            int lo = 0;
+            int hi = bwt.limit();
+            for (int i = to; i >= from && lo < hi; i--) {
+                byte code = codes[i];
+                if (code < 2) {
+                    return false;
+                }
+                lo = counts[code] + occurrences(code, lo);
+                hi = counts[code] + occurrences(code, hi);
+            }
+            return lo < hi;
+        }
+
+        // The number of times symbol occurs in the BWT before row
+        private int occurrences(byte symbol, int row) {
+            int block = row / OCC_INTERVAL;
+            int count = occurrences.get(block * SYMBOLS + symbol);
+            for (int i = block * OCC_INTERVAL; i < row; i++) {
+                if (bwt.get(i) == symbol) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        // The number of times each symbol occurs in the BWT before row
+        private void baseOccurrences(int row, int[] occurrencesBySymbol) {
+            int block = row / OCC_INTERVAL;
+            occurrences.get(block * SYMBOLS, occurrencesBySymbol, 0, SYMBOLS);
+            for (int i = block * OCC_INTERVAL; i < row; i++) {
+                occurrencesBySymbol[bwt.get(i)]++;
+            }
+        }
+
+        // The text position of the suffix at row, found by stepping back to a sampled position
+        int locate(int row) {
+            int steps = 0;
+            while ((sampledRows.get(row >> 6) & (1L << (row & 63))) == 0) {
+                byte symbol = bwt.get(row);
+                row = counts[symbol] + occurrences(symbol, row);
+                steps++;
+            }
+            int rank = sampledRanks.get(row >> 6) + Long.bitCount(sampledRows.get(row >> 6) & ((1L << (row & 63)) - 1));
+            return samples.get(rank) + steps;
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws Exception {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, IntBuffer values) throws Exception {
+        for (int i = 0; i < values.limit(); i++) {
+            out.writeInt(values.get(i));
+        }
+    }
+
+    // SA-IS: sorts the suffixes of text, whose values lie between 0 and upper
+    private static int[] suffixArray(int[] text, int upper) {
+        int n = text.length;
+        if (n == 0) {
+            return new int[0];
+        }
+        if (n == 1) {
+            return new int[]{0};
+        }
+        int[] sa = new int[n];
+        // Whether each suffix is smaller than the one after it (S-type)
+        boolean[] sType = new boolean[n];
+        for (int i = n - 2; i >= 0; i--) {
+            sType[i] = text[i] == text[i + 1] ? sType[i + 1] : text[i] < text[i + 1];
+        }
+        int[] sumL = new int[upper + 1];
+        int[] sumS = new int[upper + 1];
+        for (int i = 0; i < n; i++) {
+            if (!sType[i]) {
+                sumS[text[i]]++;
+            } else {
+                sumL[text[i] + 1]++;
+            }
+        }
+        for (int i = 0; i <= upper; i++) {
+            sumS[i] += sumL[i];
+            if (i < upper) {
+                sumL[i + 1] += sumS[i];
+            }
+        }
+
+        int[] lmsMap = new int[n + 1];
+        Arrays.fill(lmsMap, -1);
+        int m = 0;
+        for (int i = 1; i < n; i++) {
+            if (!sType[i - 1] && sType[i]) {
+                lmsMap[i] = m++;
+            }
+        }
+        int[] lms = new int[m];
+        m = 0;
+        for (int i = 1; i < n; i++) {
+            if (!sType[i - 1] && sType[i]) {
+                lms[m++] = i;
+            }
+        }
+        induce(text, sa, sType, sumL, sumS, lms);
+
+        if (m > 0) {
+            int[] sortedLms = new int[m];
+            int k = 0;
+            for (int v : sa) {
+                if (lmsMap[v] != -1) {
+                    sortedLms[k++] = v;
+                }
+            }
+            int[] reduced = new int[m];
+            int reducedUpper = 0;
+            reduced[lmsMap[sortedLms[0]]] = 0;
+            for (int i = 1; i < m; i++) {
+                int l = sortedLms[i - 1];
+                int r = sortedLms[i];
+                int endL = lmsMap[l] + 1 < m ? lms[lmsMap[l] + 1] : n;
+                int endR = lmsMap[r] + 1 < m ? lms[lmsMap[r] + 1] : n;
+                boolean same = true;
+                if (endL - l != endR - r) {
+                    same = false;
+                } else {
+                    while (l < endL && text[l] == text[r]) {
+                        l++;
+                        r++;
+                    }
+                    if (l == n || text[l] != text[r]) {
+                        same = false;
+                    }
+                }
+                if (!same) {
+                    reducedUpper++;
+                }
+                reduced[lmsMap[sortedLms[i]]] = reducedUpper;
+            }
+            int[] reducedSa = suffixArray(reduced, reducedUpper);
+            for (int i = 0; i < m; i++) {
+                sortedLms[i] = lms[reducedSa[i]];
+            }
+            induce(text, sa, sType, sumL, sumS, sortedLms);
+        }
+        return sa;
+    }
+
+    private static void induce(int[] text, int[] sa, boolean[] sType, int[] sumL, int[] sumS, int[] lms) {
+        int n = text.length;
+        Arrays.fill(sa, -1);
+        int[] buckets = Arrays.copyOf(sumS, sumS.length);
+        for (int d : lms) {
+            if (d != n) {
+                sa[buckets[text[d]]++] = d;
+            }
+        }
+        buckets = Arrays.copyOf(sumL, sumL.length);
+        sa[buckets[text[n - 1]]++] = n - 1;
+        for (int i = 0; i < n; i++) {
+            int v = sa[i];
+            if (v >= 1 && !sType[v - 1]) {
+                sa[buckets[text[v - 1]]++] = v - 1;
+            }
+        }
+        buckets = Arrays.copyOf(sumL, sumL.length);
+        for (int i = n - 1; i >= 0; i--) {
+            int v = sa[i];
+            if (v >= 1 && sType[v - 1]) {
+                sa[--buckets[text[v - 1] + 1]] = v - 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.ucb.c5.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A persistent index from record names to the byte range of each record in a
+ * FASTA export, so that single records can be read on demand instead of
+ * parsing the whole export.
+ *
+ * The index is built in one streaming pass over the export, keeping the first
+ * record accepted for each name, and is saved to a sidecar file. The sidecar
+ * stores the size of the export and its FileUtils.getFingerprint, and is
+ * rebuilt whenever either no longer matches or it cannot be read. Decoded
+ * records are kept in a small least-recently-used cache.
+ *
+ * @author Manraj Gill
+ */
+public class FastaIndex {
+
+    public static final int DEFAULT_CACHE_SIZE = 64;
+
+    private static final int MAGIC = 0x46494458;
+    private static final int VERSION = 2;
+
+    private FileChannel channel;
+    private HashMap<String, Integer> directory;
+    private long[] offsets;
+    private int[] lengths;
+    private Map<String, String> cache;
+
+    public interface RecordFilter {
+        /**
+         * @return the name to index the record under, or null if the record
+         * should not be indexed
+         */
+        String accept(String header, CharSequence sequence, int lineCount) throws Exception;
+    }
+
+    /**
+     * Opens the index of an export, building and saving it first if the saved
+     * index is missing or out of date
+     *
+     * @param export the FASTA export
+     * @param indexFile the sidecar file holding the index
+     * @param filter decides which records are indexed and under which name
+     */
+    public void initiate(File export, File indexFile, RecordFilter filter) throws Exception {
+        initiate(export, indexFile, filter, DEFAULT_CACHE_SIZE);
+    }
+
+    public void initiate(File export, File indexFile, RecordFilter filter, int cacheSize) throws Exception {
+        channel = FileChannel.open(export.toPath(), StandardOpenOption.READ);
+        cache = Collections.synchronizedMap(new LinkedHashMap<String, String>(cacheSize * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        });
+
+        long size = channel.size();
+        byte[] fingerprint = FileUtils.getFingerprint(export);
+        if (indexFile.isFile() && load(indexFile, size, fingerprint)) {
+            return;
+        }
+        build(filter);
+        try {
+            save(indexFile, size, fingerprint);
+        } catch (Exception e) {
+            System.err.println("Could not save the index of " + export.getName() + " to " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the sequence of the record indexed under name, or null if there
+     * is no such record
+     */
+    public String run(String name) throws Exception {
+        String sequence = cache.get(name);
+        if (sequence != null) {
+            return sequence;
+        }
+        Integer record = directory.get(name);
+        if (record == null) {
+            return null;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(lengths[record]);
+        long position = offsets[record];
+        while (bytes.hasRemaining()) {
+            int read = channel.read(bytes, position + bytes.position());
+            if (read < 0) {
+                throw new IllegalStateException("The export ended before the record of " + name);
+            }
+        }
+        String[] decoded = new String[1];
+        FastaReader reader = new FastaReader();
+        reader.run(Channels.newChannel(new ByteArrayInputStream(bytes.array())), (header, recordSequence, lineCount) -> {
+            decoded[0] = recordSequence.toString();
+        });
+        cache.put(name, decoded[0]);
+        return decoded[0];
+    }
+
+    public boolean contains(String name) {
+        return directory.containsKey(name);
+    }
+
+    public Iterable<String> getNames() {
+        return directory.keySet();
+    }
+
+    private void build(RecordFilter filter) throws Exception {
+        HashMap<String, Integer> names = new HashMap<>();
+        long[][] ranges = {new long[1024]};
+        int[] count = {0};
+        FastaReader reader = new FastaReader();
+        channel.position(0);
+        reader.run(channel, (header, sequence, lineCount) -> {
+            String name = filter.accept(header, sequence, lineCount);
+            if (name == null || names.containsKey(name)) {
+                return;
+            }
+            if (count[0] * 2 == ranges[0].length) {
+                ranges[0] = Arrays.copyOf(ranges[0], ranges[0].length * 2);
+            }
+            names.put(name, count[0]);
+            ranges[0][count[0] * 2] = reader.getRecordStart();
+            ranges[0][count[0] * 2 + 1] = reader.getRecordEnd() - reader.getRecordStart();
+            count[0]++;
+        });
+        directory = names;
+        offsets = new long[count[0]];
+        lengths = new int[count[0]];
+        for (int i = 0; i < count[0]; i++) {
+            offsets[i] = ranges[0][i * 2];
+            lengths[i] = (int) ranges[0][i * 2 + 1];
+        }
+    }
+
+    // Returns false if the saved index is for another export or cannot be read, such as one cut short
+    private boolean load(File indexFile, long size, byte[] fingerprint) throws Exception {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != size) {
+                return false;
+            }
+            byte[] savedFingerprint = new byte[fingerprint.length];
+            in.readFully(savedFingerprint);
+            if (!Arrays.equals(savedFingerprint, fingerprint)) {
+                return false;
+            }
+            int count = in.readInt();
+            directory = new HashMap<>(count * 2);
+            offsets = new long[count];
+            lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                directory.put(in.readUTF(), i);
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+            }
+        } catch (IOException e) {
+            directory = null;
+            return false;
+        }
+        return true;
+    }
+
+    private void save(File indexFile, long size, byte[] fingerprint) throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.write(fingerprint);
+            out.writeInt(directory.size());
+            for (HashMap.Entry<String, Integer> entry : directory.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(offsets[entry.getValue()]);
+                out.writeInt(lengths[entry.getValue()]);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.ucb.c5.utils;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import org.ucb.c5.C5;
+
+/**
+ * Streams the records of a FASTA file to a handler in a single pass.
+ *
+ * The input is read through a channel into a fixed buffer and the sequence
+ * lines of each record are appended to one growable buffer that is reused from
+ * record to record, so memory use is set by the largest record rather than by
+ * the file. Every '>' starts a new record and lines may end in \n, \r or \r\n,
+ * matching how the exports were previously split apart after reading them whole
+ * with FileUtils.readResourceFile.
+ *
+ * While a record is being handled, getRecordStart and getRecordEnd give the
+ * byte range it occupies in the input, from its '>' up to the next '>' or the
+ * end of the input.
+ *
+ * @author Manraj Gill
+ */
+public class FastaReader {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private long recordStart;
+    private long recordEnd;
+
+    public interface RecordHandler {
+        /**
+         * @param header the text following '>' up to the end of its line
+         * @param sequence the sequence lines of the record joined together, only
+         * valid until this call returns
+         * @param lineCount the number of lines following the header, not
+         * counting empty lines at the end of the record
+         */
+        void accept(String header, CharSequence sequence, int lineCount) throws Exception;
+    }
+
+    /**
+     * @param relPath the path of the FASTA resource relative to org.ucb.c5
+     * @param handler receives every record in file order
+     */
+    public void run(String relPath, RecordHandler handler) throws Exception {
+        File file = FileUtils.getResourceFile(relPath);
+        if (file != null) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                run(channel, handler);
+            }
+            return;
+        }
+        URL url = C5.class.getResource(relPath);
+        if (url == null) {
+            throw new IllegalArgumentException("Resource not found: " + relPath);
+        }
+        try (ReadableByteChannel channel = Channels.newChannel(url.openStream())) {
+            run(channel, handler);
+        }
+    }
+
+    public void run(ReadableByteChannel channel, RecordHandler handler) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        StringBuilder header = new StringBuilder();
+        StringBuilder sequence = new StringBuilder();
+        boolean started = false;
+        boolean inHeader = false;
+        boolean afterCarriageReturn = false;
+        int lineCount = 0;
+        int lastNonEmptyLine = 0;
+        int lineLength = 0;
+        long consumed = 0;
+        long start = 0;
+
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                char achar = (char) (buffer.get() & 0xFF);
+                if (achar == '>') {
+                    long position = consumed + buffer.position() - 1;
+                    if (started) {
+                        emit(handler, header, sequence, inHeader, lineCount, lastNonEmptyLine, lineLength, start, position);
+                    }
+                    start = position;
+                    started = true;
+                    inHeader = true;
+                    afterCarriageReturn = false;
+                    header.setLength(0);
+                    sequence.setLength(0);
+                    lineCount = 0;
+                    lastNonEmptyLine = 0;
+                    lineLength = 0;
+                    continue;
+                }
+                if (!started) {
+                    continue;
+                }
+                if (achar == '\n' && afterCarriageReturn) {
+                    afterCarriageReturn = false;
+                    continue;
+                }
+                if (achar == '\r' || achar == '\n') {
+                    afterCarriageReturn = achar == '\r';
+                    if (inHeader) {
+                        inHeader = false;
+                    } else {
+                        lineCount++;
+                        if (lineLength > 0) {
+                            lastNonEmptyLine = lineCount;
+                        }
+                    }
+                    lineLength = 0;
+                    continue;
+                }
+                afterCarriageReturn = false;
+                if (inHeader) {
+                    header.append(achar);
+                } else {
+                    sequence.append(achar);
+                    lineLength++;
+                }
+            }
+            consumed += buffer.limit();
+            buffer.clear();
+        }
+        if (started) {
+            emit(handler, header, sequence, inHeader, lineCount, lastNonEmptyLine, lineLength, start, consumed);
+        }
+    }
+
+    /**
+     * @return the byte offset of the '>' of the record being handled
+     */
+    public long getRecordStart() {
+        return recordStart;
+    }
+
+    /**
+     * @return the byte offset just past the end of the record being handled
+     */
+    public long getRecordEnd() {
+        return recordEnd;
+    }
+
+    private void emit(RecordHandler handler, StringBuilder header, StringBuilder sequence, boolean inHeader,
+                      int lineCount, int lastNonEmptyLine, int lineLength, long start, long end) throws Exception {
+        // A line cut short by the next '>' still counts as a line of this record
+        if (!inHeader && lineLength > 0) {
+            lastNonEmptyLine = lineCount + 1;
+        }
+        recordStart = start;
+        recordEnd = end;
+        handler.accept(header.toString(), sequence, lastNonEmptyLine);
+    }
+}
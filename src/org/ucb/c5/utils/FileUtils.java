@@ -6,7 +6,11 @@
 
 package org.ucb.c5.utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -21,6 +25,13 @@ import java.io.PrintStream;
 import java.io.Writer;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
 import org.ucb.c5.C5;
 
 
@@ -28,6 +39,30 @@ import org.ucb.c5.C5;
  * @author sixpi
  */
 public class FileUtils {
+
+    // Fingerprints of files of at least FINGERPRINT_SIDECAR_MIN_SIZE bytes are saved next
+    // to them in a file with FINGERPRINT_SUFFIX appended to their name
+    public static final String FINGERPRINT_SUFFIX = ".sha256";
+    public static final long FINGERPRINT_SIDECAR_MIN_SIZE = 1 << 24;
+    private static final int FINGERPRINT_MAGIC = 0x53484132;
+
+    // The fingerprints taken by this process, by path, and a lock per path so that
+    // a file is hashed once however many callers ask for it at the same time
+    private static final ConcurrentHashMap<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Object> fingerprintLocks = new ConcurrentHashMap<>();
+
+    private static class Fingerprint {
+        final long size;
+        final long modified;
+        final byte[] hash;
+
+        Fingerprint(long size, long modified, byte[] hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
     /**
      * dump an InputStream, returning a newly created byte[] array
      * @author Kelvin Li
@@ -157,6 +192,138 @@ public class FileUtils {
         return sb.toString();
     }
 
+    /**
+     * Locates a resource on the file system
+     *
+     * @param relPath the path of the resource relative to org.ucb.c5
+     * @return the file of the resource, or null if the resource does not exist
+     * or is not a plain file (for example when it is packaged in a jar)
+     */
+    public static File getResourceFile(String relPath) throws Exception {
+        URL url = C5.class.getResource(relPath);
+        if (url == null || !url.getProtocol().equals("file")) {
+            return null;
+        }
+        File file = new File(url.toURI());
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Determines where a resource would be on the file system, whether or not
+     * it exists yet
+     *
+     * @param relPath the path of the resource relative to org.ucb.c5
+     * @return the file for the resource, or null if org.ucb.c5 is not a
+     * directory on the file system
+     */
+    public static File getResourceLocation(String relPath) throws Exception {
+        URL url = C5.class.getResource("");
+        if (url == null || !url.getProtocol().equals("file")) {
+            return null;
+        }
+        return new File(new File(url.toURI()), relPath);
+    }
+
+    /**
+     * Fingerprints a resource with getFingerprint
+     *
+     * @param relPath the path of the resource relative to org.ucb.c5
+     * @return the SHA-256 hash of the resource, or null if getResourceFile does
+     * not find it
+     */
+    public static byte[] getResourceFingerprint(String relPath) throws Exception {
+        File file = getResourceFile(relPath);
+        return file == null ? null : getFingerprint(file);
+    }
+
+    /**
+     * Fingerprints a file as the SHA-256 hash of its whole content, so that
+     * files derived from it can tell when it has changed even if its size has
+     * not. This is the one definition of staleness for every file derived from
+     * another.
+     *
+     * A hash is remembered with the size and modification time of the file it
+     * was taken at, and the file is only read again when either has changed:
+     * for the rest of the process, and for large files such as the exports in a
+     * FINGERPRINT_SUFFIX sidecar, so that opening what was built from them
+     * costs no more than a look at their attributes.
+     *
+     * @return the SHA-256 hash of the content of the file
+     */
+    public static byte[] getFingerprint(File file) throws Exception {
+        String path = file.getCanonicalPath();
+        synchronized (fingerprintLocks.computeIfAbsent(path, key -> new Object())) {
+            // Taken before hashing, so that a change made while hashing is seen next time
+            long size = file.length();
+            long modified = file.lastModified();
+            Fingerprint known = fingerprints.get(path);
+            if (known != null && known.size == size && known.modified == modified) {
+                return known.hash.clone();
+            }
+            File sidecar = new File(path + FINGERPRINT_SUFFIX);
+            byte[] hash = size >= FINGERPRINT_SIDECAR_MIN_SIZE ? readFingerprint(sidecar, size, modified) : null;
+            if (hash == null) {
+                hash = hash(file);
+                if (size >= FINGERPRINT_SIDECAR_MIN_SIZE) {
+                    writeFingerprint(sidecar, size, modified, hash);
+                }
+            }
+            fingerprints.put(path, new Fingerprint(size, modified, hash));
+            return hash.clone();
+        }
+    }
+
+    private static byte[] hash(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+            while (channel.read(bytes) >= 0) {
+                bytes.flip();
+                digest.update(bytes);
+                bytes.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    // Returns null if there is no sidecar or it was written for another size or modification time
+    private static byte[] readFingerprint(File sidecar, long size, long modified) {
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != FINGERPRINT_MAGIC || in.readLong() != size || in.readLong() != modified) {
+                return null;
+            }
+            byte[] hash = new byte[in.readShort() & 0xFFFF];
+            in.readFully(hash);
+            return hash;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Written aside and moved into place; a sidecar that cannot be written only costs a hash next time
+    private static void writeFingerprint(File sidecar, long size, long modified, byte[] hash) {
+        File temporary = null;
+        try {
+            temporary = File.createTempFile("fingerprint", ".tmp", sidecar.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                out.writeInt(FINGERPRINT_MAGIC);
+                out.writeLong(size);
+                out.writeLong(modified);
+                out.writeShort(hash.length);
+                out.write(hash);
+            }
+            Files.move(temporary.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (temporary != null) {
+                temporary.delete();
+            }
+            System.err.println("Could not save the fingerprint " + sidecar + ": " + e.getMessage());
+        }
+    }
+
     public static void writeResourceFile(String datafile, String relPath) throws Exception {
         OutputStream os = new FileOutputStream(relPath);
         final PrintStream printStream = new PrintStream(os);
@@ -0,0 +1,204 @@
+package org.ucb.c5.utils;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Named counters and latency histograms, read out together as a snapshot.
+ *
+ * Counters are LongAdders and histograms are LatencyHistograms, so the threads
+ * that update them never contend on a lock; callers keep the instances they are
+ * given and update them directly, and only registration and snapshots go
+ * through the registry. Metrics are reported in the order they were registered.
+ *
+ * A snapshot flattens every metric into named numbers: for a counter its count
+ * and its rate per second since the registry was created, and for a histogram
+ * its count, total, mean, 50th, 90th and 99th percentiles and maximum in
+ * milliseconds. Snapshots can be written to a tab separated file, once or
+ * periodically on a daemon thread, and read over JMX, where each number is an
+ * attribute of one MBean.
+ *
+ * @author Manraj Gill
+ */
+public class MetricsRegistry {
+
+    private final long created = System.nanoTime();
+    private final LinkedHashMap<String, LongAdder> counters = new LinkedHashMap<>();
+    private final LinkedHashMap<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+    private ScheduledExecutorService snapshots;
+
+    /**
+     * @return the counter with the given name, created the first time it is asked for
+     */
+    public synchronized LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * @return the histogram with the given name, created the first time it is asked for
+     */
+    public synchronized LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * @return the current value of every metric, by name
+     */
+    public LinkedHashMap<String, Number> snapshot() {
+        ArrayList<Map.Entry<String, LongAdder>> counterEntries;
+        ArrayList<Map.Entry<String, LatencyHistogram>> histogramEntries;
+        synchronized (this) {
+            counterEntries = new ArrayList<>(counters.entrySet());
+            histogramEntries = new ArrayList<>(histograms.entrySet());
+        }
+        double seconds = (System.nanoTime() - created) / 1e9;
+        LinkedHashMap<String, Number> snapshot = new LinkedHashMap<>();
+        snapshot.put("uptime_s", seconds);
+        for (Map.Entry<String, LongAdder> entry : counterEntries) {
+            long count = entry.getValue().sum();
+            snapshot.put(entry.getKey() + ".count", count);
+            snapshot.put(entry.getKey() + ".per_s", seconds > 0 ? count / seconds : 0.0);
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histogramEntries) {
+            String name = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            long count = histogram.getCount();
+            snapshot.put(name + ".count", count);
+            snapshot.put(name + ".total_ms", histogram.getTotalNanos() / 1e6);
+            snapshot.put(name + ".mean_ms", count > 0 ? histogram.getTotalNanos() / 1e6 / count : 0.0);
+            snapshot.put(name + ".p50_ms", histogram.getPercentileNanos(0.50) / 1e6);
+            snapshot.put(name + ".p90_ms", histogram.getPercentileNanos(0.90) / 1e6);
+            snapshot.put(name + ".p99_ms", histogram.getPercentileNanos(0.99) / 1e6);
+            snapshot.put(name + ".max_ms", histogram.getMaxNanos() / 1e6);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes a snapshot as Metric and Value columns, replacing the file in one
+     * step so that readers never see it half written
+     */
+    public void writeSnapshot(File file) throws Exception {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+        try (PrintWriter pw = new PrintWriter(temporary)) {
+            pw.println("Metric\tValue");
+            for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+                Number value = entry.getValue();
+                pw.println(entry.getKey() + "\t" + (value instanceof Double ? String.format(Locale.ROOT, "%.3f", value) : value));
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes a snapshot to file every period until stopSnapshots is called
+     */
+    public synchronized void startSnapshots(File file, long period, TimeUnit unit) {
+        stopSnapshots();
+        snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MetricsRegistry-snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleAtFixedRate(() -> {
+            try {
+                writeSnapshot(file);
+            } catch (Exception e) {
+                System.err.println("Could not write the metrics to " + file + ": " + e.getMessage());
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized void stopSnapshots() {
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+            snapshots = null;
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, replacing any MBean
+     * already registered under the name
+     *
+     * @param objectName e.g. "org.ucb.c5:type=InvestigatePromoter"
+     */
+    public void registerMBean(String objectName) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(objectName);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(new SnapshotMBean(), name);
+    }
+
+    // Every number of a snapshot as a read-only attribute, taken afresh on every read
+    private class SnapshotMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            LinkedHashMap<String, Number> snapshot = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (snapshot.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, snapshot.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Pipeline metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
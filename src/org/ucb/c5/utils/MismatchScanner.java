@@ -0,0 +1,362 @@
+package org.ucb.c5.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Finds every occurrence of a library of fixed-length consensus motifs in a
+ * DNA sequence allowing up to a given number of mismatches, in a single
+ * left-to-right pass.
+ *
+ * Motifs are the strings matched by MotifAutomaton, over A, C, G and T with
+ * '.' as a wildcard position. A mismatch is a specific position whose base
+ * differs from the sequence; wildcards match anything and never count.
+ *
+ * The search is the bit-parallel Shift-And algorithm extended to mismatches
+ * (Wu and Manber). Motifs are packed back to back into 64-bit words, so one
+ * word holds several motifs and the whole library fits in a few hundred words.
+ * For each allowed number of mismatches j, a state word holds one bit per motif
+ * position, set when the motif prefix ending at that position matches the
+ * sequence ending at the current base with at most j mismatches. Each base of
+ * the sequence updates the state words with a shift, a mask lookup and a few
+ * logical operations, whatever the number of motifs in the word. Because every
+ * step sets the first bit of every motif, a bit shifted out of the last
+ * position of one motif into the first position of the next changes nothing.
+ * Each word runs over the whole sequence in turn, so its masks and states stay
+ * in registers and cache. Motifs too long for a word are compared window by
+ * window.
+ *
+ * The matches of each motif never overlap, and matching is case sensitive.
+ * They are chosen by fewest mismatches first: the exact matches are those that
+ * MotifAutomaton reports, leftmost first, then the occurrences with one mismatch
+ * that overlap none of them are added leftmost first, and so on. So allowing
+ * more mismatches only ever adds matches, and with none allowed the matches are
+ * exactly those of MotifAutomaton, which is faster for that case.
+ *
+ * @author Manraj Gill
+ */
+public class MismatchScanner {
+
+    private static final int[] EMPTY = new int[0];
+
+    // Mask row of each character: A, C, G and T, then OTHER for anything else
+    private static final int OTHER = 4;
+    private static final byte[] CODES = new byte[128];
+    static {
+        Arrays.fill(CODES, (byte) OTHER);
+        CODES['A'] = 0;
+        CODES['C'] = 1;
+        CODES['G'] = 2;
+        CODES['T'] = 3;
+    }
+
+    private char[][] patterns;
+    private int wordCount;
+    // For each word, the bits where a motif accepts each character code: word * (OTHER + 1) + code
+    private long[] masks;
+    // The first and last position of every motif in each word
+    private long[] firsts;
+    private long[] lasts;
+    // Motif whose last position is each bit: word * 64 + bit
+    private int[] patternAtBit;
+    // Motifs longer than a word
+    private int[] unpacked;
+
+    /**
+     * The matches of one scan: for each motif, in the order the motifs were
+     * supplied to initiate, the ascending start indices of its matches and the
+     * number of mismatches of each
+     */
+    public static class Matches {
+        public final int[][] starts;
+        public final int[][] mismatches;
+
+        Matches(int[][] starts, int[][] mismatches) {
+            this.starts = starts;
+            this.mismatches = mismatches;
+        }
+    }
+
+    public void initiate(String[] consensusSequences) {
+        int count = consensusSequences.length;
+        patterns = new char[count][];
+        for (int p = 0; p < count; p++) {
+            char[] pattern = consensusSequences[p].toCharArray();
+            for (char achar : pattern) {
+                if (achar != '.' && (achar >= 128 || CODES[achar] == OTHER)) {
+                    throw new IllegalArgumentException("Unsupported character in consensus sequence: " + consensusSequences[p]);
+                }
+            }
+            patterns[p] = pattern;
+        }
+
+        // First fit in order of decreasing length packs the words tightly
+        Integer[] order = new Integer[count];
+        for (int p = 0; p < count; p++) {
+            order[p] = p;
+        }
+        Arrays.sort(order, (a, b) -> patterns[b].length - patterns[a].length);
+        ArrayList<Integer> longPatterns = new ArrayList<>();
+        int[] wordOf = new int[count];
+        int[] offsetOf = new int[count];
+        int[] used = new int[count];
+        wordCount = 0;
+        for (int p : order) {
+            int length = patterns[p].length;
+            if (length > Long.SIZE) {
+                longPatterns.add(p);
+                continue;
+            }
+            if (length == 0) {
+                // Like an empty regular expression in MotifAutomaton, it is never reported
+                wordOf[p] = -1;
+                continue;
+            }
+            int word = 0;
+            while (word < wordCount && used[word] + length > Long.SIZE) {
+                word++;
+            }
+            if (word == wordCount) {
+                wordCount++;
+            }
+            wordOf[p] = word;
+            offsetOf[p] = used[word];
+            used[word] += length;
+        }
+
+        masks = new long[(OTHER + 1) * wordCount];
+        firsts = new long[wordCount];
+        lasts = new long[wordCount];
+        patternAtBit = new int[wordCount * Long.SIZE];
+        for (int p = 0; p < count; p++) {
+            char[] pattern = patterns[p];
+            if (pattern.length > Long.SIZE || wordOf[p] < 0) {
+                continue;
+            }
+            int word = wordOf[p];
+            int offset = offsetOf[p];
+            for (int i = 0; i < pattern.length; i++) {
+                long bit = 1L << (offset + i);
+                for (int code = 0; code <= OTHER; code++) {
+                    if (pattern[i] == '.' || CODES[pattern[i]] == code) {
+                        masks[word * (OTHER + 1) + code] |= bit;
+                    }
+                }
+            }
+            firsts[word] |= 1L << offset;
+            lasts[word] |= 1L << (offset + pattern.length - 1);
+            patternAtBit[word * Long.SIZE + offset + pattern.length - 1] = p;
+        }
+
+        unpacked = new int[longPatterns.size()];
+        for (int i = 0; i < unpacked.length; i++) {
+            unpacked[i] = longPatterns.get(i);
+        }
+    }
+
+    /**
+     * Scans a sequence for all motifs of the library
+     *
+     * @param sequence the DNA sequence to scan
+     * @param maxMismatches the number of specific positions of a motif that may differ from the sequence
+     * @return the matches of every motif with at most maxMismatches mismatches
+     */
+    public Matches run(String sequence, int maxMismatches) {
+        if (maxMismatches < 0) {
+            throw new IllegalArgumentException("The number of mismatches cannot be negative.");
+        }
+        int length = sequence.length();
+        Collector collector = new Collector();
+        byte[] codes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char achar = sequence.charAt(i);
+            codes[i] = achar < 128 ? CODES[achar] : OTHER;
+        }
+        long[] wordMasks = new long[OTHER + 1];
+        for (int word = 0; word < wordCount; word++) {
+            System.arraycopy(masks, word * (OTHER + 1), wordMasks, 0, OTHER + 1);
+            // The usual numbers of mismatches keep their states in locals
+            if (maxMismatches == 1) {
+                scanOne(word, codes, wordMasks, collector);
+            } else if (maxMismatches == 2) {
+                scanTwo(word, codes, wordMasks, collector);
+            } else {
+                scan(word, codes, wordMasks, new long[maxMismatches + 1], collector);
+            }
+        }
+
+        for (int p : unpacked) {
+            char[] pattern = patterns[p];
+            for (int start = 0; start + pattern.length <= length; start++) {
+                int found = 0;
+                for (int j = 0; j < pattern.length && found <= maxMismatches; j++) {
+                    if (pattern[j] != '.' && sequence.charAt(start + j) != pattern[j]) {
+                        found++;
+                    }
+                }
+                if (found <= maxMismatches) {
+                    collector.add(p, start + pattern.length - 1, found);
+                }
+            }
+        }
+        return collector.toMatches();
+    }
+
+    // Runs one word over the sequence with states for 0 to states.length - 1 mismatches
+    private void scan(int word, byte[] codes, long[] wordMasks, long[] states, Collector collector) {
+        long first = firsts[word];
+        long last = lasts[word];
+        for (int i = 0; i < codes.length; i++) {
+            long mask = wordMasks[codes[i]];
+            // A prefix with j mismatches extends one with j by a matching base, or one with j - 1 by any base
+            long previous = states[0];
+            long state = ((previous << 1) | first) & mask;
+            states[0] = state;
+            for (int j = 1; j < states.length; j++) {
+                long current = states[j];
+                state = (((current << 1) | first) & mask) | (previous << 1) | first;
+                states[j] = state;
+                previous = current;
+            }
+            long ends = state & last;
+            while (ends != 0) {
+                int bit = Long.numberOfTrailingZeros(ends);
+                ends &= ends - 1;
+                // The fewest mismatches the match is found with is its number of mismatches
+                int found = 0;
+                while ((states[found] & (1L << bit)) == 0) {
+                    found++;
+                }
+                collector.add(patternAtBit[word * Long.SIZE + bit], i, found);
+            }
+        }
+    }
+
+    private void scanOne(int word, byte[] codes, long[] wordMasks, Collector collector) {
+        long first = firsts[word];
+        long last = lasts[word];
+        long state0 = 0;
+        long state1 = 0;
+        for (int i = 0; i < codes.length; i++) {
+            long mask = wordMasks[codes[i]];
+            state1 = (((state1 << 1) | first) & mask) | (state0 << 1) | first;
+            state0 = ((state0 << 1) | first) & mask;
+            long ends = state1 & last;
+            while (ends != 0) {
+                int bit = Long.numberOfTrailingZeros(ends);
+                ends &= ends - 1;
+                collector.add(patternAtBit[word * Long.SIZE + bit], i, (state0 & (1L << bit)) != 0 ? 0 : 1);
+            }
+        }
+    }
+
+    private void scanTwo(int word, byte[] codes, long[] wordMasks, Collector collector) {
+        long first = firsts[word];
+        long last = lasts[word];
+        long state0 = 0;
+        long state1 = 0;
+        long state2 = 0;
+        for (int i = 0; i < codes.length; i++) {
+            long mask = wordMasks[codes[i]];
+            state2 = (((state2 << 1) | first) & mask) | (state1 << 1) | first;
+            state1 = (((state1 << 1) | first) & mask) | (state0 << 1) | first;
+            state0 = ((state0 << 1) | first) & mask;
+            long ends = state2 & last;
+            while (ends != 0) {
+                int bit = Long.numberOfTrailingZeros(ends);
+                ends &= ends - 1;
+                long position = 1L << bit;
+                collector.add(patternAtBit[word * Long.SIZE + bit], i, (state0 & position) != 0 ? 0 : (state1 & position) != 0 ? 1 : 2);
+            }
+        }
+    }
+
+    // Gathers every occurrence of each motif in a scan, in ascending order of start,
+    // then chooses the matches among them
+    private class Collector {
+        final int[][] starts = new int[patterns.length][];
+        final int[][] mismatches = new int[patterns.length][];
+        final int[] counts = new int[patterns.length];
+
+        void add(int p, int end, int found) {
+            if (starts[p] == null) {
+                starts[p] = new int[4];
+                mismatches[p] = new int[4];
+            } else if (counts[p] == starts[p].length) {
+                starts[p] = Arrays.copyOf(starts[p], counts[p] * 2);
+                mismatches[p] = Arrays.copyOf(mismatches[p], counts[p] * 2);
+            }
+            starts[p][counts[p]] = end - patterns[p].length + 1;
+            mismatches[p][counts[p]] = found;
+            counts[p]++;
+        }
+
+        Matches toMatches() {
+            int[][] chosenStarts = new int[patterns.length][];
+            int[][] chosenMismatches = new int[patterns.length][];
+            for (int p = 0; p < patterns.length; p++) {
+                if (counts[p] == 0) {
+                    chosenStarts[p] = EMPTY;
+                    chosenMismatches[p] = EMPTY;
+                    continue;
+                }
+                choose(p, chosenStarts, chosenMismatches);
+            }
+            return new Matches(chosenStarts, chosenMismatches);
+        }
+
+        // Takes the occurrences with the fewest mismatches first, leftmost first and
+        // skipping those that overlap a match already taken
+        private void choose(int p, int[][] chosenStarts, int[][] chosenMismatches) {
+            int length = patterns[p].length;
+            int[] occurrenceStarts = starts[p];
+            int[] occurrenceMismatches = mismatches[p];
+            int maxFound = 0;
+            for (int i = 0; i < counts[p]; i++) {
+                maxFound = Math.max(maxFound, occurrenceMismatches[i]);
+            }
+            int[] keptStarts = new int[counts[p]];
+            int[] keptMismatches = new int[counts[p]];
+            int kept = 0;
+            int[] mergedStarts = new int[counts[p]];
+            int[] mergedMismatches = new int[counts[p]];
+            for (int found = 0; found <= maxFound; found++) {
+                // Walks the occurrences with this many mismatches alongside the matches
+                // taken so far, which are in ascending order, merging the new ones in
+                int merged = 0;
+                int next = 0;
+                int lastEnd = Integer.MIN_VALUE;
+                for (int i = 0; i < counts[p]; i++) {
+                    if (occurrenceMismatches[i] != found) {
+                        continue;
+                    }
+                    int start = occurrenceStarts[i];
+                    while (next < kept && keptStarts[next] + length <= start) {
+                        mergedStarts[merged] = keptStarts[next];
+                        mergedMismatches[merged++] = keptMismatches[next++];
+                        lastEnd = Math.max(lastEnd, mergedStarts[merged - 1] + length);
+                    }
+                    if (start < lastEnd || (next < kept && keptStarts[next] < start + length)) {
+                        continue;
+                    }
+                    mergedStarts[merged] = start;
+                    mergedMismatches[merged++] = found;
+                    lastEnd = start + length;
+                }
+                while (next < kept) {
+                    mergedStarts[merged] = keptStarts[next];
+                    mergedMismatches[merged++] = keptMismatches[next++];
+                }
+                int[] swap = keptStarts;
+                keptStarts = mergedStarts;
+                mergedStarts = swap;
+                swap = keptMismatches;
+                keptMismatches = mergedMismatches;
+                mergedMismatches = swap;
+                kept = merged;
+            }
+            chosenStarts[p] = Arrays.copyOf(keptStarts, kept);
+            chosenMismatches[p] = Arrays.copyOf(keptMismatches, kept);
+        }
+    }
+}
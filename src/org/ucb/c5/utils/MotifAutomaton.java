@@ -0,0 +1,263 @@
+package org.ucb.c5.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Finds every occurrence of a library of fixed-length consensus motifs in a
+ * DNA sequence in a single left-to-right pass.
+ *
+ * Motifs are written over A, C, G and T with '.' as a wildcard position, the
+ * same strings that were previously compiled one at a time as regular
+ * expressions. Each motif is anchored on its longest wildcard-free stretch and
+ * all anchors are compiled into one Aho-Corasick automaton. Whenever an anchor
+ * is recognized, the remaining specific positions of its motif are verified in
+ * place against the sequence.
+ *
+ * Matches are reported the way java.util.regex.Matcher.find() reports them:
+ * for each motif, leftmost first and non-overlapping, and matching is case
+ * sensitive.
+ *
+ * @author Manraj Gill
+ */
+public class MotifAutomaton {
+
+    private static final int[] EMPTY = new int[0];
+
+    // Base code of each character, -1 for anything outside of A, C, G and T
+    private static final byte[] CODES = new byte[128];
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        CODES['A'] = 0;
+        CODES['C'] = 1;
+        CODES['G'] = 2;
+        CODES['T'] = 3;
+    }
+
+    private char[][] patterns;
+    private int[] anchorEnds;
+    private int[] unanchored;
+
+    // Automaton with failure links folded in: next state = transitions[state * 4 + code]
+    private int[] transitions;
+    private int[][] outputs;
+
+    public void initiate(String[] consensusSequences) {
+        int count = consensusSequences.length;
+        patterns = new char[count][];
+        anchorEnds = new int[count];
+        ArrayList<Integer> withoutAnchor = new ArrayList<>();
+
+        // Build the trie of the anchors of all motifs
+        int[] trie = new int[64 * 4];
+        Arrays.fill(trie, -1);
+        ArrayList<ArrayList<Integer>> terminals = new ArrayList<>();
+        terminals.add(new ArrayList<>());
+        int states = 1;
+        for (int p = 0; p < count; p++) {
+            char[] pattern = consensusSequences[p].toCharArray();
+            patterns[p] = pattern;
+
+            // Find the longest run of specific (non-wildcard) positions
+            int bestStart = 0;
+            int bestLength = 0;
+            int runStart = 0;
+            for (int i = 0; i <= pattern.length; i++) {
+                if (i == pattern.length || pattern[i] == '.') {
+                    if (i - runStart > bestLength) {
+                        bestStart = runStart;
+                        bestLength = i - runStart;
+                    }
+                    runStart = i + 1;
+                } else if (pattern[i] >= 128 || CODES[pattern[i]] < 0) {
+                    throw new IllegalArgumentException("Unsupported character in consensus sequence: " + consensusSequences[p]);
+                }
+            }
+            if (bestLength == 0) {
+                withoutAnchor.add(p);
+                continue;
+            }
+            anchorEnds[p] = bestStart + bestLength - 1;
+
+            int state = 0;
+            for (int i = bestStart; i < bestStart + bestLength; i++) {
+                int slot = state * 4 + CODES[pattern[i]];
+                if (trie[slot] < 0) {
+                    if ((states + 1) * 4 > trie.length) {
+                        int oldLength = trie.length;
+                        trie = Arrays.copyOf(trie, oldLength * 2);
+                        Arrays.fill(trie, oldLength, trie.length, -1);
+                    }
+                    trie[slot] = states;
+                    terminals.add(new ArrayList<>());
+                    states++;
+                }
+                state = trie[slot];
+            }
+            terminals.get(state).add(p);
+        }
+
+        // Breadth-first construction of the failure links, merging the outputs
+        // of each state with those of its failure state
+        transitions = new int[states * 4];
+        outputs = new int[states][];
+        int[] failure = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        outputs[0] = toArray(terminals.get(0), EMPTY);
+        for (int c = 0; c < 4; c++) {
+            int child = trie[c];
+            if (child < 0) {
+                transitions[c] = 0;
+            } else {
+                transitions[c] = child;
+                failure[child] = 0;
+                queue[tail++] = child;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            outputs[state] = toArray(terminals.get(state), outputs[failure[state]]);
+            for (int c = 0; c < 4; c++) {
+                int child = trie[state * 4 + c];
+                if (child < 0) {
+                    transitions[state * 4 + c] = transitions[failure[state] * 4 + c];
+                } else {
+                    transitions[state * 4 + c] = child;
+                    failure[child] = transitions[failure[state] * 4 + c];
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        unanchored = new int[withoutAnchor.size()];
+        for (int i = 0; i < unanchored.length; i++) {
+            unanchored[i] = withoutAnchor.get(i);
+        }
+    }
+
+    /**
+     * Scans a sequence for all motifs of the library
+     *
+     * @param sequence the DNA sequence to scan
+     * @return for each motif, in the order the motifs were supplied to
+     * initiate, the ascending start indices of its matches
+     */
+    public int[][] run(String sequence) {
+        int length = sequence.length();
+        int[][] matches = new int[patterns.length][];
+        int[] counts = new int[patterns.length];
+        // Index before which a new match of each motif would overlap its previous match
+        int[] nextAllowed = new int[patterns.length];
+
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            char achar = sequence.charAt(i);
+            int code = achar < 128 ? CODES[achar] : -1;
+            if (code < 0) {
+                state = 0;
+                continue;
+            }
+            state = transitions[state * 4 + code];
+            for (int p : outputs[state]) {
+                int start = i - anchorEnds[p];
+                char[] pattern = patterns[p];
+                if (start < nextAllowed[p] || start + pattern.length > length) {
+                    continue;
+                }
+                if (!verify(pattern, sequence, start)) {
+                    continue;
+                }
+                add(matches, counts, p, start);
+                nextAllowed[p] = start + pattern.length;
+            }
+        }
+
+        // Motifs made only of wildcards match back-to-back from the beginning
+        for (int p : unanchored) {
+            int motifLength = patterns[p].length;
+            for (int start = 0; motifLength > 0 && start + motifLength <= length; start += motifLength) {
+                add(matches, counts, p, start);
+            }
+        }
+
+        for (int p = 0; p < patterns.length; p++) {
+            matches[p] = counts[p] == 0 ? EMPTY : Arrays.copyOf(matches[p], counts[p]);
+        }
+        return matches;
+    }
+
+    /**
+     * Scans a sequence for which motifs of the library occur in it, without
+     * collecting the matches
+     *
+     * @param sequence the DNA sequence to scan
+     * @return the indices, in the order the motifs were supplied to initiate,
+     * of the motifs that occur at least once
+     */
+    public BitSet find(String sequence) {
+        int length = sequence.length();
+        BitSet found = new BitSet(patterns.length);
+        for (int p : unanchored) {
+            if (patterns[p].length <= length) {
+                found.set(p);
+            }
+        }
+
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            char achar = sequence.charAt(i);
+            int code = achar < 128 ? CODES[achar] : -1;
+            if (code < 0) {
+                state = 0;
+                continue;
+            }
+            state = transitions[state * 4 + code];
+            for (int p : outputs[state]) {
+                int start = i - anchorEnds[p];
+                if (found.get(p) || start < 0 || start + patterns[p].length > length) {
+                    continue;
+                }
+                if (verify(patterns[p], sequence, start)) {
+                    found.set(p);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static boolean verify(char[] pattern, String sequence, int start) {
+        for (int j = 0; j < pattern.length; j++) {
+            char expected = pattern[j];
+            if (expected != '.' && sequence.charAt(start + j) != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void add(int[][] matches, int[] counts, int p, int start) {
+        int[] found = matches[p];
+        if (found == null) {
+            found = new int[4];
+            matches[p] = found;
+        } else if (counts[p] == found.length) {
+            found = Arrays.copyOf(found, found.length * 2);
+            matches[p] = found;
+        }
+        found[counts[p]++] = start;
+    }
+
+    private static int[] toArray(ArrayList<Integer> own, int[] inherited) {
+        if (own.isEmpty()) {
+            return inherited;
+        }
+        int[] out = Arrays.copyOf(inherited, inherited.length + own.size());
+        for (int i = 0; i < own.size(); i++) {
+            out[inherited.length + i] = own.get(i);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,269 @@
+package org.ucb.c5.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.ucb.c5.C5;
+
+/**
+ * A compact binary library of TF binding motifs: the position weight matrix of
+ * every motif together with its Motif_ID, consensus sequence, TF name and TF
+ * family.
+ *
+ * All matrices are held back to back in one float[] as position * 4 + base with
+ * bases ordered A, C, G, T, and the per-motif fields are parallel arrays. Text
+ * fields are indices into a string table in which every distinct string is
+ * stored once. The file is read in one go, mapped when it is a plain file and
+ * otherwise read whole from the classpath.
+ *
+ * Libraries are written with MotifLibrary.Writer.
+ *
+ * @author Manraj Gill
+ */
+public class MotifLibrary {
+
+    private static final int MAGIC = 0x4D4C4942;
+    private static final int VERSION = 1;
+    private static final int SPECIFIC = 1;
+
+    private String[] strings;
+    private int[] matrixOffsets;
+    private float[] frequencies;
+    private int[] motifIDs;
+    private int[] tfNames;
+    private int[] tfFamilyNames;
+    private int[] consensusSequences;
+    private byte[] flags;
+
+    /**
+     * Decodes a library written by MotifLibrary.Writer
+     *
+     * @param buffer the contents of the library file
+     */
+    public void initiate(ByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not a motif library.");
+        }
+        buffer.position(8);
+        int count = buffer.getInt();
+        int cells = buffer.getInt();
+        int stringCount = buffer.getInt();
+        int stringBytes = buffer.getInt();
+
+        matrixOffsets = readInts(buffer, count + 1);
+        motifIDs = readInts(buffer, count);
+        tfNames = readInts(buffer, count);
+        tfFamilyNames = readInts(buffer, count);
+        consensusSequences = readInts(buffer, count);
+        flags = new byte[count];
+        buffer.get(flags);
+        frequencies = new float[cells];
+        buffer.asFloatBuffer().get(frequencies);
+        buffer.position(buffer.position() + cells * 4);
+
+        int[] stringOffsets = readInts(buffer, stringCount + 1);
+        byte[] text = new byte[stringBytes];
+        buffer.get(text);
+        strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = new String(text, stringOffsets[i], stringOffsets[i + 1] - stringOffsets[i], StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Opens a library shipped as a resource
+     *
+     * @param relPath the path of the library relative to org.ucb.c5
+     * @return the library, or null if there is no such resource
+     */
+    public static MotifLibrary openResourceLibrary(String relPath) throws Exception {
+        ByteBuffer buffer;
+        File file = FileUtils.getResourceFile(relPath);
+        if (file != null) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        } else {
+            try (InputStream in = C5.class.getResourceAsStream(relPath)) {
+                if (in == null) {
+                    return null;
+                }
+                buffer = ByteBuffer.wrap(FileUtils.dumpInputStream(in));
+            }
+        }
+        MotifLibrary library = new MotifLibrary();
+        library.initiate(buffer);
+        return library;
+    }
+
+    public int getMotifCount() {
+        return motifIDs.length;
+    }
+
+    public String getMotifID(int motif) {
+        return string(motifIDs[motif]);
+    }
+
+    /**
+     * @return the TF name of the motif, or null if the motif has none
+     */
+    public String getTFName(int motif) {
+        return string(tfNames[motif]);
+    }
+
+    /**
+     * @return the TF family of the motif, or null if the motif has none
+     */
+    public String getTFFamilyName(int motif) {
+        return string(tfFamilyNames[motif]);
+    }
+
+    public String getConsensusSequence(int motif) {
+        return string(consensusSequences[motif]);
+    }
+
+    /**
+     * @return whether enough positions of the motif are dominated by one base
+     * for its consensus sequence to be matched
+     */
+    public boolean isSpecific(int motif) {
+        return (flags[motif] & SPECIFIC) != 0;
+    }
+
+    public int getLength(int motif) {
+        return (matrixOffsets[motif + 1] - matrixOffsets[motif]) / 4;
+    }
+
+    /**
+     * @return a copy of the matrix of the motif laid out as position * 4 + base
+     * with bases ordered A, C, G, T
+     */
+    public float[] getFrequencies(int motif) {
+        float[] matrix = new float[matrixOffsets[motif + 1] - matrixOffsets[motif]];
+        System.arraycopy(frequencies, matrixOffsets[motif], matrix, 0, matrix.length);
+        return matrix;
+    }
+
+    private String string(int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    /**
+     * Collects motifs and writes them out as a motif library
+     */
+    public static class Writer {
+
+        private final ArrayList<float[]> matrices = new ArrayList<>();
+        private final ArrayList<int[]> fields = new ArrayList<>();
+        private final ArrayList<String> strings = new ArrayList<>();
+        private final HashMap<String, Integer> stringIndices = new HashMap<>();
+
+        /**
+         * @param frequencies the matrix laid out as position * 4 + base with
+         * bases ordered A, C, G, T
+         * @param specific whether the consensus sequence is specific enough to be matched
+         */
+        public void add(String Motif_ID, String tfName, String tfFamilyName, String consensusSequence,
+                        boolean specific, float[] frequencies) {
+            if (frequencies.length % 4 != 0) {
+                throw new IllegalArgumentException("The matrix of " + Motif_ID + " does not have four bases per position.");
+            }
+            matrices.add(frequencies);
+            fields.add(new int[]{intern(Motif_ID), intern(tfName), intern(tfFamilyName), intern(consensusSequence),
+                                 specific ? SPECIFIC : 0});
+        }
+
+        public byte[] toByteArray() throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            write(new DataOutputStream(bytes));
+            return bytes.toByteArray();
+        }
+
+        /**
+         * @param path the path of the library file to create
+         */
+        public void write(String path) throws Exception {
+            try (FileOutputStream file = new FileOutputStream(path)) {
+                file.write(toByteArray());
+            }
+        }
+
+        private void write(DataOutputStream out) throws Exception {
+            int count = matrices.size();
+            int cells = 0;
+            for (float[] matrix : matrices) {
+                cells += matrix.length;
+            }
+            byte[][] text = new byte[strings.size()][];
+            int stringBytes = 0;
+            for (int i = 0; i < text.length; i++) {
+                text[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+                stringBytes += text[i].length;
+            }
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(cells);
+            out.writeInt(text.length);
+            out.writeInt(stringBytes);
+            int offset = 0;
+            for (float[] matrix : matrices) {
+                out.writeInt(offset);
+                offset += matrix.length;
+            }
+            out.writeInt(offset);
+            for (int field = 0; field < 4; field++) {
+                for (int[] motif : fields) {
+                    out.writeInt(motif[field]);
+                }
+            }
+            for (int[] motif : fields) {
+                out.writeByte(motif[4]);
+            }
+            for (float[] matrix : matrices) {
+                for (float frequency : matrix) {
+                    out.writeFloat(frequency);
+                }
+            }
+            offset = 0;
+            for (byte[] string : text) {
+                out.writeInt(offset);
+                offset += string.length;
+            }
+            out.writeInt(offset);
+            for (byte[] string : text) {
+                out.write(string);
+            }
+            out.flush();
+        }
+
+        private int intern(String string) {
+            if (string == null) {
+                return -1;
+            }
+            Integer index = stringIndices.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.add(string);
+                stringIndices.put(string, index);
+            }
+            return index;
+        }
+    }
+}
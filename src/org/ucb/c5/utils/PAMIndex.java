@@ -0,0 +1,159 @@
+package org.ucb.c5.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An index of the SpCas9 protospacer adjacent motifs (PAMs) of one DNA sequence
+ * on both strands, for choosing the guides that cut closest to a site.
+ *
+ * Initiation records every NGG on the plus strand and every CCN (an NGG on the
+ * minus strand) that leaves room for a 20 bp protospacer, as two ascending
+ * int[] of cut sites. Cas9 cuts 3 bp upstream of the PAM; a cut site is given as
+ * the index of the plus-strand base just after the cut. Running the index finds
+ * the guides nearest to a site by binary search, so the cost per site grows
+ * with the log of the number of PAMs rather than with the length of the
+ * sequence.
+ *
+ * Guides are ranked by the number of bases between their cut site and the site,
+ * counting cuts inside or at the edge of the site as 0. Ties go to guides on the
+ * strand of the site, then to the cut furthest upstream on that strand.
+ *
+ * @author Manraj Gill
+ */
+public class PAMIndex {
+
+    public static final int PROTOSPACER_LENGTH = 20;
+
+    // Distance from the cut to the G of NGG following it on the plus strand, and
+    // from the C of CCN preceding it to the cut
+    private static final int PLUS_CUT_TO_PAM = 4;
+    private static final int MINUS_PAM_TO_CUT = 6;
+
+    private int length;
+    private int[] plusCuts;
+    private int[] minusCuts;
+
+    /**
+     * A candidate guide for a site
+     */
+    public static class Guide {
+        public final boolean minusStrand;
+        public final int cutSite;
+        // Index on the plus strand of the first base of the protospacer, which is read
+        // as the reverse complement of the 20 bases from here for minus-strand guides
+        public final int protospacerStart;
+        public final int distance;
+
+        Guide(boolean minusStrand, int cutSite, int distance) {
+            this.minusStrand = minusStrand;
+            this.cutSite = cutSite;
+            this.protospacerStart = minusStrand ? cutSite - 3 : cutSite - (PROTOSPACER_LENGTH - 3);
+            this.distance = distance;
+        }
+    }
+
+    public void initiate(String sequence) {
+        length = sequence.length();
+        int[] plus = new int[16];
+        int[] minus = new int[16];
+        int plusCount = 0;
+        int minusCount = 0;
+        for (int i = 0; i + 1 < length; i++) {
+            char achar = sequence.charAt(i);
+            char next = sequence.charAt(i + 1);
+            // NGG, with i at the first G, needs the 20 bases before the N
+            if (achar == 'G' && next == 'G' && i >= PROTOSPACER_LENGTH + 1) {
+                if (plusCount == plus.length) {
+                    plus = Arrays.copyOf(plus, plusCount * 2);
+                }
+                plus[plusCount++] = i - PLUS_CUT_TO_PAM;
+            }
+            // CCN, with i at the first C, needs the 20 bases after the N
+            if (achar == 'C' && next == 'C' && i + 3 + PROTOSPACER_LENGTH <= length) {
+                if (minusCount == minus.length) {
+                    minus = Arrays.copyOf(minus, minusCount * 2);
+                }
+                minus[minusCount++] = i + MINUS_PAM_TO_CUT;
+            }
+        }
+        plusCuts = Arrays.copyOf(plus, plusCount);
+        minusCuts = Arrays.copyOf(minus, minusCount);
+    }
+
+    /**
+     * @param start index of the first base of the site
+     * @param end index of the last base of the site
+     * @param minusStrand whether the site was found on the minus strand
+     * @return the best ranked guide for the site, or null if the sequence has no PAM
+     */
+    public Guide run(int start, int end, boolean minusStrand) {
+        ArrayList<Guide> guides = run(start, end, minusStrand, 1);
+        return guides.isEmpty() ? null : guides.get(0);
+    }
+
+    /**
+     * @param count the largest number of guides to return
+     * @return the best ranked guides for the site, best first
+     */
+    public ArrayList<Guide> run(int start, int end, boolean minusStrand, int count) {
+        ArrayList<Guide> guides = new ArrayList<>();
+        // Widen the search until it holds enough guides, every guide outside of it
+        // being further away than every guide inside
+        for (int reach = 32; ; reach *= 2) {
+            guides.clear();
+            collect(plusCuts, false, start, end, reach, guides);
+            collect(minusCuts, true, start, end, reach, guides);
+            if (guides.size() >= count || (start - reach <= 0 && end + 1 + reach >= length)) {
+                break;
+            }
+        }
+        guides.sort((x, y) -> {
+            if (x.distance != y.distance) {
+                return Integer.compare(x.distance, y.distance);
+            }
+            if (x.minusStrand != y.minusStrand) {
+                return x.minusStrand == minusStrand ? -1 : 1;
+            }
+            return minusStrand ? Integer.compare(y.cutSite, x.cutSite) : Integer.compare(x.cutSite, y.cutSite);
+        });
+        if (guides.size() > count) {
+            guides.subList(count, guides.size()).clear();
+        }
+        return guides;
+    }
+
+    public int getPlusStrandCount() {
+        return plusCuts.length;
+    }
+
+    public int getMinusStrandCount() {
+        return minusCuts.length;
+    }
+
+    // Adds the guides of cuts at most reach bases from the site
+    private static void collect(int[] cuts, boolean minusStrand, int start, int end, int reach, ArrayList<Guide> guides) {
+        int from = lowerBound(cuts, start - reach);
+        int to = lowerBound(cuts, end + 1 + reach + 1);
+        for (int i = from; i < to; i++) {
+            int cut = cuts[i];
+            int distance = cut <= start ? start - cut : Math.max(0, cut - (end + 1));
+            guides.add(new Guide(minusStrand, cut, distance));
+        }
+    }
+
+    // Index of the first value not less than key
+    private static int lowerBound(int[] values, int key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
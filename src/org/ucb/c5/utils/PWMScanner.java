@@ -0,0 +1,341 @@
+package org.ucb.c5.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scores DNA sequences against a library of position weight matrices (PWMs).
+ *
+ * Every matrix is converted into a log2-odds table against a background base
+ * distribution and all tables are stored back to back in one flat float[],
+ * four entries (A, C, G, T) per motif position. A window is reported as a hit
+ * when its summed log-odds score reaches the threshold of its motif. Thresholds
+ * are relative: a threshold of 0.85 means 85% of the way from the lowest to the
+ * highest score the matrix can produce.
+ *
+ * Each window is first looked up by the four consecutive bases where its
+ * motif is most informative, in a table holding the combined score of those
+ * four positions for all 256 possible words. The remaining positions are then
+ * scored in decreasing order of the spread between their best and worst base.
+ * After every step, the best score still reachable from the positions left is
+ * added to the running score, so that a window is abandoned as soon as the
+ * threshold can no longer be met; most windows are rejected by the lookup
+ * alone. Windows containing bases other than A, C, G or T (in either case) are
+ * never reported.
+ *
+ * @author Manraj Gill
+ */
+public class PWMScanner {
+
+    public static final double[] UNIFORM_BACKGROUND = {0.25, 0.25, 0.25, 0.25};
+    public static final double DEFAULT_THRESHOLD = 0.85;
+
+    // Frequency added to every cell, spread by background, so that bases never
+    // observed in a matrix do not score negative infinity
+    private static final double PSEUDOCOUNT = 0.01;
+
+    private static final byte UNKNOWN = 4;
+    private static final byte[] CODES = new byte[128];
+    static {
+        Arrays.fill(CODES, UNKNOWN);
+        CODES['A'] = 0;
+        CODES['C'] = 1;
+        CODES['G'] = 2;
+        CODES['T'] = 3;
+        CODES['a'] = 0;
+        CODES['c'] = 1;
+        CODES['g'] = 2;
+        CODES['t'] = 3;
+    }
+
+    // Number of consecutive bases looked up at once, and the number of such words
+    private static final int WORD = 4;
+    private static final int WORDS = 256;
+
+    private int[] lengths;
+    // Position within each motif of its lookahead word, -1 for motifs shorter than a word
+    private int[] wordPositions;
+    // Combined score of the lookahead word of each motif for every word code, motif * WORDS + code
+    private float[] wordScores;
+    // Start of each motif in logOdds (step * 4 + base), and in columns and bestRemaining (step)
+    private int[] tableOffsets;
+    private int[] stepOffsets;
+    private int[] stepCounts;
+    // Scores of the motif position visited at each step, and the index of that position
+    private float[] logOdds;
+    private int[] columns;
+    // Highest score obtainable from a step to the last step, one extra zero entry per motif
+    private float[] bestRemaining;
+    private float[] maxScores;
+    private float[] thresholds;
+
+    /**
+     * The hits of one scan: for each motif, in the order the matrices were
+     * supplied to initiate, the ascending start indices of its hits and the
+     * corresponding log-odds scores
+     */
+    public static class Hits {
+        public final int[][] starts;
+        public final float[][] scores;
+
+        Hits(int[][] starts, float[][] scores) {
+            this.starts = starts;
+            this.scores = scores;
+        }
+    }
+
+    /**
+     * @param frequencies for each motif, its base frequencies laid out as
+     * position * 4 + base with bases ordered A, C, G, T
+     * @param background frequencies of A, C, G and T in the scanned sequences
+     * @param threshold relative score threshold between 0 and 1
+     */
+    public void initiate(List<float[]> frequencies, double[] background, double threshold) {
+        if (background.length != 4) {
+            throw new IllegalArgumentException("The background must give the frequencies of A, C, G and T.");
+        }
+        if (threshold < 0 || threshold > 1) {
+            throw new IllegalArgumentException("The relative score threshold must be between 0 and 1.");
+        }
+        int count = frequencies.size();
+        lengths = new int[count];
+        wordPositions = new int[count];
+        wordScores = new float[count * WORDS];
+        tableOffsets = new int[count];
+        stepOffsets = new int[count];
+        stepCounts = new int[count];
+        maxScores = new float[count];
+        thresholds = new float[count];
+
+        int cells = 0;
+        int steps = 0;
+        for (int m = 0; m < count; m++) {
+            lengths[m] = frequencies.get(m).length / 4;
+            stepCounts[m] = lengths[m] < WORD ? lengths[m] : lengths[m] - WORD;
+            tableOffsets[m] = cells;
+            stepOffsets[m] = steps;
+            cells += stepCounts[m] * 4;
+            steps += stepCounts[m] + 1;
+        }
+        logOdds = new float[cells];
+        columns = new int[steps];
+        bestRemaining = new float[steps];
+
+        for (int m = 0; m < count; m++) {
+            float[] matrix = frequencies.get(m);
+            int length = lengths[m];
+            float[] table = new float[length * 4];
+            float[] columnMin = new float[length];
+            float[] columnMax = new float[length];
+            float minScore = 0;
+            float maxScore = 0;
+            for (int j = 0; j < length; j++) {
+                columnMin[j] = Float.POSITIVE_INFINITY;
+                columnMax[j] = Float.NEGATIVE_INFINITY;
+                for (int b = 0; b < 4; b++) {
+                    double p = (matrix[j * 4 + b] + PSEUDOCOUNT * background[b]) / (1 + PSEUDOCOUNT);
+                    float score = (float) (Math.log(p / background[b]) / Math.log(2));
+                    table[j * 4 + b] = score;
+                    columnMin[j] = Math.min(columnMin[j], score);
+                    columnMax[j] = Math.max(columnMax[j], score);
+                }
+                minScore += columnMin[j];
+                maxScore += columnMax[j];
+            }
+            maxScores[m] = maxScore;
+            thresholds[m] = (float) (minScore + threshold * (maxScore - minScore));
+
+            // Pick the four consecutive positions with the largest combined spread
+            // and tabulate their score for every possible word
+            int wordPosition = -1;
+            if (length >= WORD) {
+                float bestSpread = Float.NEGATIVE_INFINITY;
+                for (int j = 0; j + WORD <= length; j++) {
+                    float spread = 0;
+                    for (int k = j; k < j + WORD; k++) {
+                        spread += columnMax[k] - columnMin[k];
+                    }
+                    if (spread > bestSpread) {
+                        bestSpread = spread;
+                        wordPosition = j;
+                    }
+                }
+                for (int code = 0; code < WORDS; code++) {
+                    float score = 0;
+                    for (int k = 0; k < WORD; k++) {
+                        int base = (code >> (2 * (WORD - 1 - k))) & 3;
+                        score += table[(wordPosition + k) * 4 + base];
+                    }
+                    wordScores[m * WORDS + code] = score;
+                }
+            }
+            wordPositions[m] = wordPosition;
+
+            // Order the other positions by decreasing spread
+            Integer[] order = new Integer[stepCounts[m]];
+            int n = 0;
+            for (int j = 0; j < length; j++) {
+                if (wordPosition < 0 || j < wordPosition || j >= wordPosition + WORD) {
+                    order[n++] = j;
+                }
+            }
+            Arrays.sort(order, (x, y) -> Float.compare(columnMax[y] - columnMin[y], columnMax[x] - columnMin[x]));
+
+            float remaining = 0;
+            bestRemaining[stepOffsets[m] + stepCounts[m]] = 0;
+            for (int step = stepCounts[m] - 1; step >= 0; step--) {
+                int j = order[step];
+                System.arraycopy(table, j * 4, logOdds, tableOffsets[m] + step * 4, 4);
+                columns[stepOffsets[m] + step] = j;
+                remaining += columnMax[j];
+                bestRemaining[stepOffsets[m] + step] = remaining;
+            }
+        }
+    }
+
+    /**
+     * Scans a sequence with every matrix of the library
+     *
+     * @param sequence the DNA sequence to scan
+     * @return the windows scoring at or above the threshold of their motif
+     */
+    public Hits run(String sequence) {
+        byte[] codes = encode(sequence);
+        int[] words = encodeWords(codes);
+        int count = lengths.length;
+        int[][] starts = new int[count][];
+        float[][] scores = new float[count][];
+        int[] foundStarts = new int[16];
+        float[] foundScores = new float[16];
+
+        for (int m = 0; m < count; m++) {
+            int wordPosition = wordPositions[m];
+            int wordTable = m * WORDS;
+            int table = tableOffsets[m];
+            int steps = stepOffsets[m];
+            int stepCount = stepCounts[m];
+            float threshold = thresholds[m];
+            float lookahead = bestRemaining[steps];
+            int found = 0;
+            int lastStart = codes.length - lengths[m];
+            for (int start = 0; start <= lastStart; start++) {
+                float score = 0;
+                if (wordPosition >= 0) {
+                    int word = words[start + wordPosition];
+                    if (word < 0) {
+                        continue;
+                    }
+                    score = wordScores[wordTable + word];
+                    if (score + lookahead < threshold) {
+                        continue;
+                    }
+                }
+                int step = 0;
+                for (; step < stepCount; step++) {
+                    byte code = codes[start + columns[steps + step]];
+                    if (code == UNKNOWN) {
+                        break;
+                    }
+                    score += logOdds[table + step * 4 + code];
+                    if (score + bestRemaining[steps + step + 1] < threshold) {
+                        break;
+                    }
+                }
+                if (step < stepCount || score < threshold) {
+                    continue;
+                }
+                if (found == foundStarts.length) {
+                    foundStarts = Arrays.copyOf(foundStarts, found * 2);
+                    foundScores = Arrays.copyOf(foundScores, found * 2);
+                }
+                foundStarts[found] = start;
+                foundScores[found] = score;
+                found++;
+            }
+            starts[m] = Arrays.copyOf(foundStarts, found);
+            scores[m] = Arrays.copyOf(foundScores, found);
+        }
+        return new Hits(starts, scores);
+    }
+
+    /**
+     * Calculates the log-odds score of a single window
+     *
+     * @param motif the index of the matrix in the library
+     * @param sequence the DNA sequence containing the window
+     * @param start the index of the first base of the window
+     * @return the score of the window, or negative infinity if the window
+     * contains a base other than A, C, G or T
+     */
+    public float score(int motif, String sequence, int start) {
+        // The window is read in place, as many windows of one sequence are scored one at a time
+        if (start < 0 || start + lengths[motif] > sequence.length()) {
+            throw new StringIndexOutOfBoundsException("Window of " + lengths[motif] + " bases at " + start + " in a sequence of " + sequence.length());
+        }
+        float score = 0;
+        int wordPosition = wordPositions[motif];
+        if (wordPosition >= 0) {
+            int word = 0;
+            for (int k = 0; k < WORD; k++) {
+                byte code = code(sequence.charAt(start + wordPosition + k));
+                if (code == UNKNOWN) {
+                    return Float.NEGATIVE_INFINITY;
+                }
+                word = (word << 2) | code;
+            }
+            score = wordScores[motif * WORDS + word];
+        }
+        int table = tableOffsets[motif];
+        int steps = stepOffsets[motif];
+        for (int step = 0; step < stepCounts[motif]; step++) {
+            byte code = code(sequence.charAt(start + columns[steps + step]));
+            if (code == UNKNOWN) {
+                return Float.NEGATIVE_INFINITY;
+            }
+            score += logOdds[table + step * 4 + code];
+        }
+        return score;
+    }
+
+    public int getMotifLength(int motif) {
+        return lengths[motif];
+    }
+
+    public float getMaxScore(int motif) {
+        return maxScores[motif];
+    }
+
+    private static byte[] encode(String sequence) {
+        byte[] codes = new byte[sequence.length()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = code(sequence.charAt(i));
+        }
+        return codes;
+    }
+
+    private static byte code(char achar) {
+        return achar < 128 ? CODES[achar] : UNKNOWN;
+    }
+
+    // The code of the word starting at each index, or -1 where the word runs
+    // past the end of the sequence or contains an unknown base
+    private static int[] encodeWords(byte[] codes) {
+        int[] words = new int[codes.length];
+        int word = 0;
+        int lastUnknown = -1;
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] == UNKNOWN) {
+                lastUnknown = i;
+            }
+            word = ((word << 2) | (codes[i] & 3)) & (WORDS - 1);
+            int wordStart = i - WORD + 1;
+            if (wordStart >= 0) {
+                words[wordStart] = lastUnknown >= wordStart ? -1 : word;
+            }
+        }
+        for (int i = Math.max(0, codes.length - WORD + 1); i < codes.length; i++) {
+            words[i] = -1;
+        }
+        return words;
+    }
+}
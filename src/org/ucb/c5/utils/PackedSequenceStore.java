@@ -0,0 +1,307 @@
+package org.ucb.c5.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * A read-only, memory-mapped store of named DNA sequences packed at 2 bits per
+ * base.
+ *
+ * Each record holds its bases as A=0, C=1, G=2, T=3 packed four to a byte,
+ * followed by two side tables: runs of characters other than A, C, G and T
+ * (such as N) with the character to restore, and runs of soft-masked
+ * (lowercase) bases. A directory of record names at the head of the file is
+ * read when the store is opened; the sequences themselves are decoded straight
+ * from the mapped file on request, so they are served from the page cache
+ * rather than held on the heap.
+ *
+ * Stores are written once with PackedSequenceStore.Writer and record the
+ * FileUtils.getFingerprint of the export they were built from, so that a store
+ * is found to be stale even after an edit that keeps the size of the export,
+ * while opening one only reads the export again if its size or modification
+ * time has changed.
+ *
+ * @author Manraj Gill
+ */
+public class PackedSequenceStore {
+
+    private static final int MAGIC = 0x50534551;
+    private static final int VERSION = 2;
+
+    private MappedByteBuffer buffer;
+    private byte[] sourceFingerprint;
+    private HashMap<String, Integer> directory;
+    private int[] blockOffsets;
+    private int[] lengths;
+    private int[] exceptionCounts;
+    private int[] maskCounts;
+
+    /**
+     * Opens and maps a store written by PackedSequenceStore.Writer
+     *
+     * @param path the path of the store file
+     */
+    public void initiate(String path) throws Exception {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Packed sequence stores are limited to 2 GB: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not a packed sequence store: " + path);
+        }
+        // The fingerprint of the export is empty if the export was not on the file system
+        sourceFingerprint = new byte[buffer.getShort(8) & 0xFFFF];
+        for (int i = 0; i < sourceFingerprint.length; i++) {
+            sourceFingerprint[i] = buffer.get(10 + i);
+        }
+        int position = 10 + sourceFingerprint.length;
+        int count = buffer.getInt(position);
+        position += 4;
+        directory = new HashMap<>(count * 2);
+        blockOffsets = new int[count];
+        lengths = new int[count];
+        exceptionCounts = new int[count];
+        maskCounts = new int[count];
+
+        byte[] name = new byte[256];
+        for (int i = 0; i < count; i++) {
+            int nameLength = buffer.getShort(position) & 0xFFFF;
+            position += 2;
+            if (nameLength > name.length) {
+                name = new byte[nameLength];
+            }
+            for (int j = 0; j < nameLength; j++) {
+                name[j] = buffer.get(position + j);
+            }
+            position += nameLength;
+            directory.put(new String(name, 0, nameLength, StandardCharsets.UTF_8), i);
+            blockOffsets[i] = buffer.getInt(position);
+            lengths[i] = buffer.getInt(position + 4);
+            exceptionCounts[i] = buffer.getInt(position + 8);
+            maskCounts[i] = buffer.getInt(position + 12);
+            position += 16;
+        }
+    }
+
+    /**
+     * Opens the store built for a resource export if it is present and was
+     * built from an export with the same content as the current one
+     *
+     * @param storeRelPath the path of the store relative to org.ucb.c5
+     * @param sourceRelPath the path of the export relative to org.ucb.c5
+     * @return the opened store, or null if there is no up-to-date store
+     */
+    public static PackedSequenceStore openResourceStore(String storeRelPath, String sourceRelPath) throws Exception {
+        File storeFile = FileUtils.getResourceFile(storeRelPath);
+        if (storeFile == null) {
+            return null;
+        }
+        PackedSequenceStore store = new PackedSequenceStore();
+        try {
+            store.initiate(storeFile.getPath());
+        } catch (IllegalArgumentException e) {
+            // Not a store of this format version
+            System.err.println("Ignoring out of date " + storeRelPath + ", rebuild it from " + sourceRelPath);
+            return null;
+        }
+        byte[] sourceFingerprint = FileUtils.getResourceFingerprint(sourceRelPath);
+        if (sourceFingerprint != null && !Arrays.equals(sourceFingerprint, store.getSourceFingerprint())) {
+            System.err.println("Ignoring out of date " + storeRelPath + ", rebuild it from " + sourceRelPath);
+            return null;
+        }
+        return store;
+    }
+
+    /**
+     * @return the complete sequence of the record, or null if there is no
+     * record of that name
+     */
+    public String run(String name) {
+        Integer record = directory.get(name);
+        if (record == null) {
+            return null;
+        }
+        return decode(record, 0, lengths[record]);
+    }
+
+    /**
+     * @return the bases from start (inclusive) to end (exclusive) of the
+     * record, or null if there is no record of that name
+     */
+    public String run(String name, int start, int end) {
+        Integer record = directory.get(name);
+        if (record == null) {
+            return null;
+        }
+        if (start < 0 || end > lengths[record] || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + "-" + end + " is outside of " + name);
+        }
+        return decode(record, start, end);
+    }
+
+    public boolean contains(String name) {
+        return directory.containsKey(name);
+    }
+
+    public int getLength(String name) {
+        Integer record = directory.get(name);
+        return record == null ? -1 : lengths[record];
+    }
+
+    /**
+     * @return the SHA-256 hash of the export the store was built from, or an
+     * empty array if it was not known
+     */
+    public byte[] getSourceFingerprint() {
+        return sourceFingerprint.clone();
+    }
+
+    public Iterable<String> getNames() {
+        return directory.keySet();
+    }
+
+    private String decode(int record, int start, int end) {
+        char[] sequence = new char[end - start];
+        int block = blockOffsets[record];
+        int exceptions = block;
+        int masks = exceptions + exceptionCounts[record] * 9;
+        int packed = masks + maskCounts[record] * 8;
+
+        for (int i = start; i < end; i++) {
+            int code = (buffer.get(packed + (i >> 2)) >> (6 - 2 * (i & 3))) & 3;
+            sequence[i - start] = "ACGT".charAt(code);
+        }
+        for (int e = 0; e < exceptionCounts[record]; e++) {
+            int runStart = buffer.getInt(exceptions + e * 9);
+            int runEnd = runStart + buffer.getInt(exceptions + e * 9 + 4);
+            char achar = (char) buffer.get(exceptions + e * 9 + 8);
+            for (int i = Math.max(runStart, start); i < Math.min(runEnd, end); i++) {
+                sequence[i - start] = achar;
+            }
+        }
+        for (int m = 0; m < maskCounts[record]; m++) {
+            int runStart = buffer.getInt(masks + m * 8);
+            int runEnd = runStart + buffer.getInt(masks + m * 8 + 4);
+            for (int i = Math.max(runStart, start); i < Math.min(runEnd, end); i++) {
+                sequence[i - start] = Character.toLowerCase(sequence[i - start]);
+            }
+        }
+        return new String(sequence);
+    }
+
+    /**
+     * Collects named sequences and writes them out as a packed sequence store
+     */
+    public static class Writer {
+
+        private final LinkedHashMap<String, byte[]> blocks = new LinkedHashMap<>();
+        private final HashMap<String, Integer> lengths = new HashMap<>();
+        private final HashMap<String, int[]> counts = new HashMap<>();
+
+        public void add(String name, CharSequence sequence) throws Exception {
+            int length = sequence.length();
+            ArrayList<int[]> exceptions = new ArrayList<>();
+            ArrayList<int[]> masks = new ArrayList<>();
+            byte[] packed = new byte[(length + 3) / 4];
+            for (int i = 0; i < length; i++) {
+                char achar = sequence.charAt(i);
+                char upper = Character.toUpperCase(achar);
+                int code = "ACGT".indexOf(upper);
+                if (code < 0) {
+                    if (upper > 127) {
+                        throw new IllegalArgumentException("Unsupported character in " + name + ": " + achar);
+                    }
+                    extendRun(exceptions, i, upper);
+                    code = 0;
+                }
+                if (achar != upper) {
+                    extendRun(masks, i, 0);
+                }
+                packed[i >> 2] |= code << (6 - 2 * (i & 3));
+            }
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream(packed.length + 9 * exceptions.size() + 8 * masks.size());
+            DataOutputStream out = new DataOutputStream(block);
+            for (int[] run : exceptions) {
+                out.writeInt(run[0]);
+                out.writeInt(run[1]);
+                out.writeByte(run[2]);
+            }
+            for (int[] run : masks) {
+                out.writeInt(run[0]);
+                out.writeInt(run[1]);
+            }
+            out.write(packed);
+            out.flush();
+            blocks.put(name, block.toByteArray());
+            lengths.put(name, length);
+            counts.put(name, new int[]{exceptions.size(), masks.size()});
+        }
+
+        /**
+         * @param path the path of the store file to create
+         * @param sourceFingerprint the fingerprint of the export the sequences were
+         * read from, as made by FileUtils.getResourceFingerprint, or null if it is not known
+         */
+        public void write(String path, byte[] sourceFingerprint) throws Exception {
+            if (sourceFingerprint == null) {
+                sourceFingerprint = new byte[0];
+            }
+            // The directory is laid out first, so its size sets where the blocks start
+            int headerSize = 14 + sourceFingerprint.length;
+            for (String name : blocks.keySet()) {
+                headerSize += 2 + name.getBytes(StandardCharsets.UTF_8).length + 16;
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeShort(sourceFingerprint.length);
+                out.write(sourceFingerprint);
+                out.writeInt(blocks.size());
+                long blockOffset = headerSize;
+                for (HashMap.Entry<String, byte[]> entry : blocks.entrySet()) {
+                    byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(name.length);
+                    out.write(name);
+                    out.writeInt((int) blockOffset);
+                    out.writeInt(lengths.get(entry.getKey()));
+                    out.writeInt(counts.get(entry.getKey())[0]);
+                    out.writeInt(counts.get(entry.getKey())[1]);
+                    blockOffset += entry.getValue().length;
+                    if (blockOffset > Integer.MAX_VALUE) {
+                        throw new IllegalArgumentException("Packed sequence stores are limited to 2 GB");
+                    }
+                }
+                for (byte[] block : blocks.values()) {
+                    out.write(block);
+                }
+            }
+        }
+
+        // Extends the last run when it ends right before index with the same value, or starts a new one
+        private static void extendRun(ArrayList<int[]> runs, int index, int value) {
+            if (!runs.isEmpty()) {
+                int[] last = runs.get(runs.size() - 1);
+                if (last[0] + last[1] == index && last[2] == value) {
+                    last[1]++;
+                    return;
+                }
+            }
+            runs.add(new int[]{index, 1, value});
+        }
+    }
+}
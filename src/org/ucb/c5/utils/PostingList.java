@@ -0,0 +1,288 @@
+package org.ucb.c5.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The occurrences of one term in a collection of records, as parallel primitive
+ * arrays: for every occurrence the ordinal of its record, its position in the
+ * record and whether it is on the minus strand. Occurrences are in ascending
+ * order of record, then position, with the plus strand first.
+ *
+ * An Encoder compresses a list as it is built into a byte array of
+ * variable-length deltas: for each occurrence the difference from the record of
+ * the one before, then its position shifted left by one with the strand in the
+ * lowest bit, as a difference from the position of the one before when the
+ * record is the same. Numbers are written seven bits to a byte, lowest first,
+ * with the top bit set on every byte but the last. Occurrences close together in
+ * the same record take one or two bytes.
+ *
+ * Lists are combined by union and by the records they share, and near finds
+ * the records where occurrences of two terms lie within a distance of each
+ * other.
+ *
+ * @author Manraj Gill
+ */
+public class PostingList {
+
+    private static final int[] EMPTY_INTS = new int[0];
+
+    private final int size;
+    private final int[] records;
+    private final int[] positions;
+    private final boolean[] minusStrands;
+
+    public PostingList(int[] records, int[] positions, boolean[] minusStrands, int size) {
+        this.size = size;
+        this.records = records;
+        this.positions = positions;
+        this.minusStrands = minusStrands;
+    }
+
+    /**
+     * Builds the encoded form of a list, one occurrence at a time in ascending order
+     */
+    public static class Encoder {
+        private byte[] bytes = new byte[16];
+        private int length;
+        private int size;
+        private int recordCount;
+        private int lastRecord = -1;
+        private int lastPosition;
+
+        public void add(int record, int position, boolean minusStrand) {
+            if (record < lastRecord || (record == lastRecord && position < lastPosition)) {
+                throw new IllegalArgumentException("Occurrences must be added in ascending order of record and position");
+            }
+            if (record != lastRecord) {
+                recordCount++;
+                writeNumber(lastRecord < 0 ? record : record - lastRecord);
+                writeNumber(((long) position << 1) | (minusStrand ? 1 : 0));
+            } else {
+                writeNumber(0);
+                writeNumber(((long) (position - lastPosition) << 1) | (minusStrand ? 1 : 0));
+            }
+            lastRecord = record;
+            lastPosition = position;
+            size++;
+        }
+
+        private void writeNumber(long number) {
+            if (length + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while ((number & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((number & 0x7F) | 0x80);
+                number >>>= 7;
+            }
+            bytes[length++] = (byte) number;
+        }
+
+        /**
+         * @return the number of occurrences added
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return the number of distinct records of the occurrences added
+         */
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        public int getByteLength() {
+            return length;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    /**
+     * Decodes a list written by an Encoder
+     *
+     * @param buffer holds the encoded list
+     * @param offset the index in buffer of the first byte of the list
+     * @param size the number of occurrences in the list
+     */
+    public static PostingList decode(ByteBuffer buffer, int offset, int size) {
+        int[] records = new int[size];
+        int[] positions = new int[size];
+        boolean[] minusStrands = new boolean[size];
+        int record = 0;
+        int position = 0;
+        int index = offset;
+        for (int i = 0; i < size; i++) {
+            // The inner loops read one number each, seven bits at a time
+            long delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get(index++);
+                delta |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            long packed = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get(index++);
+                packed |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            if (i == 0 || delta != 0) {
+                record += (int) delta;
+                position = (int) (packed >>> 1);
+            } else {
+                position += (int) (packed >>> 1);
+            }
+            records[i] = record;
+            positions[i] = position;
+            minusStrands[i] = (packed & 1) != 0;
+        }
+        return new PostingList(records, positions, minusStrands, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getRecord(int occurrence) {
+        return records[occurrence];
+    }
+
+    public int getPosition(int occurrence) {
+        return positions[occurrence];
+    }
+
+    public boolean isMinusStrand(int occurrence) {
+        return minusStrands[occurrence];
+    }
+
+    /**
+     * @return the distinct records of the occurrences, in ascending order
+     */
+    public int[] getRecords() {
+        int[] distinct = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (count == 0 || distinct[count - 1] != records[i]) {
+                distinct[count++] = records[i];
+            }
+        }
+        return Arrays.copyOf(distinct, count);
+    }
+
+    /**
+     * Merges lists into one holding each distinct occurrence of any of them once
+     */
+    public static PostingList union(List<PostingList> lists) {
+        if (lists.size() == 1) {
+            return lists.get(0);
+        }
+        int total = 0;
+        for (PostingList list : lists) {
+            total += list.size;
+        }
+        // Occurrences sort as one key: record, then position, then strand
+        long[] keys = new long[total];
+        int count = 0;
+        for (PostingList list : lists) {
+            for (int i = 0; i < list.size; i++) {
+                keys[count++] = ((long) list.records[i] << 32) | ((long) list.positions[i] << 1) | (list.minusStrands[i] ? 1 : 0);
+            }
+        }
+        Arrays.sort(keys);
+        int[] records = new int[total];
+        int[] positions = new int[total];
+        boolean[] minusStrands = new boolean[total];
+        int size = 0;
+        for (int i = 0; i < total; i++) {
+            if (i > 0 && keys[i] == keys[i - 1]) {
+                continue;
+            }
+            records[size] = (int) (keys[i] >>> 32);
+            positions[size] = (int) ((keys[i] & 0xFFFFFFFFL) >>> 1);
+            minusStrands[size] = (keys[i] & 1) != 0;
+            size++;
+        }
+        return new PostingList(records, positions, minusStrands, size);
+    }
+
+    /**
+     * @param a records in ascending order
+     * @param b records in ascending order
+     * @return the records in both, in ascending order
+     */
+    public static int[] intersect(int[] a, int[] b) {
+        int[] both = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                both[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return count == 0 ? EMPTY_INTS : Arrays.copyOf(both, count);
+    }
+
+    /**
+     * Finds the records where an occurrence of one list lies near an occurrence
+     * of another, walking both lists once
+     *
+     * @param maxDistance the largest difference between the positions of the two occurrences
+     * @return the records in ascending order
+     */
+    public static int[] near(PostingList a, PostingList b, int maxDistance) {
+        int[] found = new int[Math.min(a.size, b.size)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            int record = a.records[i];
+            if (record < b.records[j]) {
+                i++;
+                continue;
+            }
+            if (record > b.records[j]) {
+                j++;
+                continue;
+            }
+            // Both lists are in the same record: walk its positions in step
+            int aEnd = i;
+            while (aEnd < a.size && a.records[aEnd] == record) {
+                aEnd++;
+            }
+            int bEnd = j;
+            while (bEnd < b.size && b.records[bEnd] == record) {
+                bEnd++;
+            }
+            int x = i;
+            int y = j;
+            while (x < aEnd && y < bEnd) {
+                long difference = (long) a.positions[x] - b.positions[y];
+                if (Math.abs(difference) <= maxDistance) {
+                    found[count++] = record;
+                    break;
+                }
+                if (difference < 0) {
+                    x++;
+                } else {
+                    y++;
+                }
+            }
+            i = aEnd;
+            j = bEnd;
+        }
+        return count == 0 ? EMPTY_INTS : Arrays.copyOf(found, count);
+    }
+}
@@ -0,0 +1,323 @@
+package org.ucb.c5.utils;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Quality control of PCR primers: melting temperature, GC content, homopolymer
+ * runs, hairpins and 3' primer dimers, and the choice of annealing arm lengths
+ * that bring a primer to a target melting temperature.
+ *
+ * Melting temperatures use the unified nearest-neighbor parameters of
+ * SantaLucia (1998), held in tables indexed by the packed code of each
+ * dinucleotide (4 * first base + second base, bases ordered A, C, G, T), with
+ * the salt correction to the entropy for monovalent cations. Every measure reads
+ * the sequence in place, and an arm is grown one base at a time by adding the
+ * next nearest-neighbor term to running sums, so scoring allocates nothing and
+ * choosing an arm costs one pass over its longest allowed length. Once initiated,
+ * PrimerQC holds no state that changes and can be shared between threads.
+ *
+ * Reference:
+ * SantaLucia J Jr. A unified view of polymer, dumbbell, and oligonucleotide DNA
+ * nearest-neighbor thermodynamics. PNAS. 1998;95(4):1460-5.
+ *
+ * @author Manraj Gill
+ */
+public class PrimerQC {
+
+    public static final double DEFAULT_SODIUM = 0.05;
+    public static final double DEFAULT_PRIMER_CONCENTRATION = 50e-9;
+
+    // Limits beyond which a primer is flagged
+    public static final double MIN_GC_CONTENT = 0.3;
+    public static final double MAX_GC_CONTENT = 0.7;
+    public static final int MAX_HOMOPOLYMER = 4;
+    public static final int MAX_HAIRPIN_STEM = 6;
+    public static final int MAX_THREE_PRIME_DIMER = 4;
+    public static final double MAX_TM_DEVIATION = 5.0;
+
+    private static final int MIN_HAIRPIN_LOOP = 3;
+    private static final double GAS_CONSTANT = 1.9872;
+
+    private static final byte[] CODES = new byte[128];
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        CODES['A'] = 0;
+        CODES['C'] = 1;
+        CODES['G'] = 2;
+        CODES['T'] = 3;
+        CODES['a'] = 0;
+        CODES['c'] = 1;
+        CODES['g'] = 2;
+        CODES['t'] = 3;
+    }
+
+    // Enthalpy (kcal/mol) and entropy (cal/K/mol) of each nearest neighbor, by packed dinucleotide
+    private static final double[] ENTHALPIES = {
+        -7.9, -8.4, -7.8, -7.2,   // AA AC AG AT
+        -8.5, -8.0, -10.6, -7.8,  // CA CC CG CT
+        -8.2, -9.8, -8.0, -8.4,   // GA GC GG GT
+        -7.2, -8.2, -8.5, -7.9    // TA TC TG TT
+    };
+    private static final double[] ENTROPIES = {
+        -22.2, -22.4, -21.0, -20.4,
+        -22.7, -19.9, -27.2, -21.0,
+        -22.2, -24.4, -19.9, -22.4,
+        -21.3, -22.2, -22.7, -22.2
+    };
+    // Initiation with a terminal G.C or A.T pair, once for each end
+    private static final double GC_INIT_ENTHALPY = 0.1;
+    private static final double GC_INIT_ENTROPY = -2.8;
+    private static final double AT_INIT_ENTHALPY = 2.3;
+    private static final double AT_INIT_ENTROPY = 4.1;
+
+    private double saltEntropyPerPair;
+    private double concentrationEntropy;
+
+    /**
+     * The verdict on one primer
+     */
+    public static class Result {
+        public final double meltingTemperature;
+        public final double gcContent;
+        public final int homopolymer;
+        public final int hairpinStem;
+        public final int threePrimeDimer;
+        // Comma separated names of the failed checks, empty if the primer passes
+        public final String flags;
+
+        public Result(double meltingTemperature, double gcContent, int homopolymer, int hairpinStem, int threePrimeDimer, String flags) {
+            this.meltingTemperature = meltingTemperature;
+            this.gcContent = gcContent;
+            this.homopolymer = homopolymer;
+            this.hairpinStem = hairpinStem;
+            this.threePrimeDimer = threePrimeDimer;
+            this.flags = flags;
+        }
+
+        /**
+         * @return the melting temperature followed by PASS or the failed checks
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.1fC %s", meltingTemperature, flags.isEmpty() ? "PASS" : flags);
+        }
+    }
+
+    public void initiate() {
+        initiate(DEFAULT_SODIUM, DEFAULT_PRIMER_CONCENTRATION);
+    }
+
+    /**
+     * @param sodium the molar concentration of monovalent cations
+     * @param primerConcentration the molar concentration of each primer
+     */
+    public void initiate(double sodium, double primerConcentration) {
+        saltEntropyPerPair = 0.368 * Math.log(sodium);
+        concentrationEntropy = GAS_CONSTANT * Math.log(primerConcentration / 4);
+    }
+
+    /**
+     * @return the melting temperature in degrees Celsius of sequence[start, end)
+     * annealed to its complement, or NaN if it is shorter than 2 bp or holds a
+     * base other than A, C, G and T
+     */
+    public double meltingTemperature(CharSequence sequence, int start, int end) {
+        if (end - start < 2) {
+            return Double.NaN;
+        }
+        double enthalpy = 0;
+        double entropy = 0;
+        int previous = code(sequence.charAt(start));
+        for (int i = start + 1; i < end; i++) {
+            int current = code(sequence.charAt(i));
+            if (previous < 0 || current < 0) {
+                return Double.NaN;
+            }
+            enthalpy += ENTHALPIES[previous * 4 + current];
+            entropy += ENTROPIES[previous * 4 + current];
+            previous = current;
+        }
+        enthalpy += initiationEnthalpy(sequence.charAt(start)) + initiationEnthalpy(sequence.charAt(end - 1));
+        entropy += initiationEntropy(sequence.charAt(start)) + initiationEntropy(sequence.charAt(end - 1));
+        return meltingTemperature(enthalpy, entropy, end - start);
+    }
+
+    /**
+     * Chooses the length of an arm of template that lies against a fixed end, so
+     * that the arm melts as close as possible to a target temperature
+     *
+     * @param template the sequence the arm is taken from
+     * @param fixedEnd for arms extending rightwards, the index of their first base;
+     * for arms extending leftwards, the index after their last base
+     * @param extendsLeft whether the arm grows towards the start of template
+     * @param minLength the shortest allowed arm
+     * @param maxLength the longest allowed arm, further limited by the edge of template
+     * @param targetTm the target melting temperature in degrees Celsius
+     * @return the length of the arm, the shorter one on ties, or minLength if no
+     * allowed length can be scored
+     */
+    public int optimizeArm(CharSequence template, int fixedEnd, boolean extendsLeft, int minLength, int maxLength, double targetTm) {
+        int available = extendsLeft ? fixedEnd : template.length() - fixedEnd;
+        maxLength = Math.min(maxLength, available);
+        // The base at the fixed end, which stays one end of the arm
+        char fixedBase = template.charAt(extendsLeft ? fixedEnd - 1 : fixedEnd);
+        int previous = code(fixedBase);
+        double enthalpy = initiationEnthalpy(fixedBase);
+        double entropy = initiationEntropy(fixedBase);
+
+        int bestLength = minLength;
+        double bestDeviation = Double.MAX_VALUE;
+        for (int length = 2; length <= maxLength && previous >= 0; length++) {
+            int index = extendsLeft ? fixedEnd - length : fixedEnd + length - 1;
+            char achar = template.charAt(index);
+            int current = code(achar);
+            if (current < 0) {
+                break;
+            }
+            // Read 5' to 3' on template, whichever way the arm grows
+            int dinucleotide = extendsLeft ? current * 4 + previous : previous * 4 + current;
+            enthalpy += ENTHALPIES[dinucleotide];
+            entropy += ENTROPIES[dinucleotide];
+            previous = current;
+            if (length < minLength) {
+                continue;
+            }
+            double tm = meltingTemperature(enthalpy + initiationEnthalpy(achar), entropy + initiationEntropy(achar), length);
+            double deviation = Math.abs(tm - targetTm);
+            if (deviation < bestDeviation) {
+                bestDeviation = deviation;
+                bestLength = length;
+            }
+        }
+        return bestLength;
+    }
+
+    /**
+     * Checks one primer
+     *
+     * @param primer the whole primer, including any 5' tail
+     * @param armStart the index in primer of the first base of the arm that anneals
+     * to the template, which the melting temperature and GC content are taken over
+     * @param partner the other primer of the reaction, checked for 3' dimers with
+     * this one, or null
+     * @param targetTm the target melting temperature in degrees Celsius
+     */
+    public Result run(CharSequence primer, int armStart, CharSequence partner, double targetTm) {
+        double tm = meltingTemperature(primer, armStart, primer.length());
+        double gcContent = gcContent(primer, armStart, primer.length());
+        int homopolymer = longestHomopolymer(primer);
+        int hairpinStem = longestHairpinStem(primer);
+        int dimer = threePrimeDimer(primer, primer);
+        if (partner != null) {
+            dimer = Math.max(dimer, threePrimeDimer(primer, partner));
+        }
+
+        StringBuilder flags = new StringBuilder();
+        if (Double.isNaN(tm) || Math.abs(tm - targetTm) > MAX_TM_DEVIATION) {
+            flags.append("TM,");
+        }
+        if (gcContent < MIN_GC_CONTENT || gcContent > MAX_GC_CONTENT) {
+            flags.append("GC,");
+        }
+        if (homopolymer > MAX_HOMOPOLYMER) {
+            flags.append("HOMOPOLYMER,");
+        }
+        if (hairpinStem > MAX_HAIRPIN_STEM) {
+            flags.append("HAIRPIN,");
+        }
+        if (dimer > MAX_THREE_PRIME_DIMER) {
+            flags.append("DIMER,");
+        }
+        if (flags.length() > 0) {
+            flags.setLength(flags.length() - 1);
+        }
+        return new Result(tm, gcContent, homopolymer, hairpinStem, dimer, flags.toString());
+    }
+
+    public static double gcContent(CharSequence sequence, int start, int end) {
+        int gc = 0;
+        for (int i = start; i < end; i++) {
+            int code = code(sequence.charAt(i));
+            if (code == 1 || code == 2) {
+                gc++;
+            }
+        }
+        return end > start ? (double) gc / (end - start) : 0;
+    }
+
+    /**
+     * @return the length of the longest run of one base
+     */
+    public static int longestHomopolymer(CharSequence sequence) {
+        int longest = 0;
+        int run = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+            run = i > 0 && Character.toUpperCase(sequence.charAt(i)) == Character.toUpperCase(sequence.charAt(i - 1)) ? run + 1 : 1;
+            longest = Math.max(longest, run);
+        }
+        return longest;
+    }
+
+    /**
+     * @return the most consecutive base pairs the sequence can form with itself
+     * around a loop of at least 3 bases
+     */
+    public static int longestHairpinStem(CharSequence sequence) {
+        int length = sequence.length();
+        int longest = 0;
+        // Pair i with j and extend the stem inwards, i + k with j - k
+        for (int i = 0; i < length; i++) {
+            for (int j = length - 1; j - i > MIN_HAIRPIN_LOOP; j--) {
+                int stem = 0;
+                while (j - i - 2 * stem > MIN_HAIRPIN_LOOP && pairs(sequence.charAt(i + stem), sequence.charAt(j - stem))) {
+                    stem++;
+                }
+                longest = Math.max(longest, stem);
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * @return the most consecutive bases from the 3' end of primer that pair with
+     * partner, over every antiparallel alignment
+     */
+    public static int threePrimeDimer(CharSequence primer, CharSequence partner) {
+        int longest = 0;
+        int last = primer.length() - 1;
+        // The 3' base of primer pairs with partner[p], the next one in with partner[p + 1]
+        for (int p = 0; p < partner.length(); p++) {
+            int run = 0;
+            while (p + run < partner.length() && run <= last && pairs(primer.charAt(last - run), partner.charAt(p + run))) {
+                run++;
+            }
+            longest = Math.max(longest, run);
+        }
+        return longest;
+    }
+
+    private double meltingTemperature(double enthalpy, double entropy, int length) {
+        return 1000 * enthalpy / (entropy + saltEntropyPerPair * (length - 1) + concentrationEntropy) - 273.15;
+    }
+
+    private static boolean pairs(char x, char y) {
+        int a = code(x);
+        int b = code(y);
+        return a >= 0 && b >= 0 && a + b == 3;
+    }
+
+    private static double initiationEnthalpy(char terminal) {
+        int code = code(terminal);
+        return code == 1 || code == 2 ? GC_INIT_ENTHALPY : AT_INIT_ENTHALPY;
+    }
+
+    private static double initiationEntropy(char terminal) {
+        int code = code(terminal);
+        return code == 1 || code == 2 ? GC_INIT_ENTROPY : AT_INIT_ENTROPY;
+    }
+
+    private static int code(char achar) {
+        return achar < 128 ? CODES[achar] : -1;
+    }
+}
@@ -1,47 +1,34 @@
 package org.ucb.c5.utils;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Calculates the reverse complement of a DNA sequence
  *
+ * Complements are looked up in a 256-entry table covering A, C, G, T and the
+ * IUPAC ambiguity codes in either case, and the output is sized up front. Besides
+ * strings, char[] and byte[] ranges can be reverse complemented in place, and
+ * words of 2-bit packed bases (A=0, C=1, G=2, T=3, as in PackedSequenceStore)
+ * directly. Characters that are not nucleotides are rejected.
+ *
  * @author J. Christopher Anderson
  */
 public class RevComp {
-    Map<Character, String> baseToRC;
 
-    public void initiate() {
-        baseToRC = new HashMap<>();
+    // Complement of each character, 0 for characters that are not nucleotides
+    private static final char[] COMPLEMENTS = new char[256];
+    static {
+        String bases = "ATCGBDHKNRSVWYatcgbdhknrsvwy";
+        String complements = "TAGCVHDMNYSBWRtagcvhdmnysbwr";
+        for (int i = 0; i < bases.length(); i++) {
+            COMPLEMENTS[bases.charAt(i)] = complements.charAt(i);
+        }
+        // M complements to K as K does to M
+        COMPLEMENTS['M'] = 'K';
+        COMPLEMENTS['m'] = 'k';
+    }
+
+    private static final long LOW_BITS = 0x5555555555555555L;
 
-        baseToRC.put('A', "T");
-        baseToRC.put('T', "A");
-        baseToRC.put('C', "G");
-        baseToRC.put('G', "C");
-        baseToRC.put('a', "t");
-        baseToRC.put('t', "a");
-        baseToRC.put('c', "g");
-        baseToRC.put('g', "c");
-        baseToRC.put('B', "V");
-        baseToRC.put('D', "H");
-        baseToRC.put('H', "D");
-        baseToRC.put('K', "M");
-        baseToRC.put('N', "N");
-        baseToRC.put('R', "Y");
-        baseToRC.put('S', "S");
-        baseToRC.put('V', "B");
-        baseToRC.put('W', "W");
-        baseToRC.put('Y', "R");
-        baseToRC.put('b', "v");
-        baseToRC.put('d', "h");
-        baseToRC.put('h', "d");
-        baseToRC.put('k', "m");
-        baseToRC.put('n', "n");
-        baseToRC.put('r', "y");
-        baseToRC.put('s', "s");
-        baseToRC.put('v', "b");
-        baseToRC.put('w', "w");
-        baseToRC.put('y', "r");
+    public void initiate() {
     }
 
     /**
@@ -50,15 +37,73 @@ public class RevComp {
      *
      * @param dna the DNA sequence that should be reverse complemented
      * @return the reverse complement of dna
+     * @throws IllegalArgumentException if dna holds a character that is not a nucleotide
      */
     public String run(String dna) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = dna.length() - 1; i >= 0; i--) {
-            char achar = dna.charAt(i);
-            sb.append(baseToRC.get(achar));
+        int length = dna.length();
+        char[] out = new char[length];
+        for (int i = 0; i < length; i++) {
+            out[length - 1 - i] = complement(dna, i);
+        }
+        return new String(out);
+    }
+
+    /**
+     * Reverse complements sequence[from, to) in place
+     */
+    public static void run(char[] sequence, int from, int to) {
+        for (int i = from, j = to - 1; i <= j; i++, j--) {
+            char left = complement(sequence[i], i);
+            sequence[i] = complement(sequence[j], j);
+            sequence[j] = left;
+        }
+    }
+
+    /**
+     * Reverse complements the ASCII bases of sequence[from, to) in place
+     */
+    public static void run(byte[] sequence, int from, int to) {
+        for (int i = from, j = to - 1; i <= j; i++, j--) {
+            byte left = (byte) complement((char) (sequence[i] & 0xFF), i);
+            sequence[i] = (byte) complement((char) (sequence[j] & 0xFF), j);
+            sequence[j] = left;
+        }
+    }
+
+    /**
+     * Reverse complements a word of 2-bit packed bases
+     *
+     * @param packed bases coded A=0, C=1, G=2, T=3, base i in bits 2i and 2i + 1
+     * @param bases the number of bases in the word, at most 32
+     * @return the reverse complement packed the same way, with the unused high bits clear
+     * @throws IllegalArgumentException if bases is negative or more than 32
+     */
+    public static long run(long packed, int bases) {
+        if (bases < 0 || bases > 32) {
+            throw new IllegalArgumentException("Cannot reverse complement " + bases + " packed bases in one word");
         }
+        if (bases == 0) {
+            return 0;
+        }
+        // Complementing a 2-bit code flips both of its bits
+        long word = ~packed;
+        // Reversing the bits reverses the order of the bases but also swaps the
+        // two bits of each base, which are swapped back
+        word = Long.reverse(word);
+        word = ((word >>> 1) & LOW_BITS) | ((word & LOW_BITS) << 1);
+        return word >>> (64 - 2 * bases);
+    }
 
-        return sb.toString();
+    private static char complement(String dna, int index) {
+        return complement(dna.charAt(index), index);
+    }
+
+    private static char complement(char achar, int index) {
+        char complement = achar < 256 ? COMPLEMENTS[achar] : 0;
+        if (complement == 0) {
+            throw new IllegalArgumentException("Cannot reverse complement '" + achar + "' at index " + index);
+        }
+        return complement;
     }
 
     public static void main(String[] args) {
@@ -4,10 +4,8 @@ import org.junit.Test;
 import org.junit.BeforeClass;
 import static org.junit.Assert.*;
 import org.ucb.c5.composition.*;
+import org.ucb.c5.utils.RevComp;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import javafx.util.Pair;
 
 /**
  * Tests PromoterInvestigations functionality by comparing outputs
@@ -74,17 +72,26 @@ public class Tests {
     public void TFmotifsTest() throws Exception {
         ArrayList<String> upstreamGenomicLocus = ugl.run("TERT");
         String PromoterAndFivePrimeUTR = upstreamGenomicLocus.get(1);
-        ArrayList<ArrayList> TFmotifsInSequence = tfms.run(PromoterAndFivePrimeUTR);
-        ArrayList<HashMap> TFinformation = TFmotifsInSequence.get(1);
-        HashMap<String, String> tfNames = TFinformation.get(0);
+        MotifHits TFmotifsInSequence = tfms.run(PromoterAndFivePrimeUTR);
+        // Every MYC site covers the E-box CACGTG, which is its own reverse complement, and
+        // the one ~190 base pairs upstream of the TSS is found on the plus strand at 814
+        int mycSites = 0;
         boolean MycPresent = false;
-        for (Map.Entry<String, String> entry : tfNames.entrySet()) {
-            String tfName = entry.getValue();
-            if (tfName.equals("MYC")) {
+        for (int hit = 0; hit < TFmotifsInSequence.size(); hit++) {
+            int motif = TFmotifsInSequence.getMotif(hit);
+            if (!"MYC".equals(TFmotifsInSequence.getTFName(motif))) {
+                continue;
+            }
+            int start = TFmotifsInSequence.getStart(hit);
+            String site = PromoterAndFivePrimeUTR.substring(start, start + TFmotifsInSequence.getLength(hit));
+            assertTrue(site.contains("CACGTG"));
+            mycSites++;
+            if (TFmotifsInSequence.getMotifID(motif).equals("M4610_1.02") && start == 814
+                    && TFmotifsInSequence.getStrand(hit) == MotifHits.PLUS_STRAND) {
                 MycPresent = true;
-                break;
             }
         }
+        assertTrue(mycSites > 1);
         assertTrue(MycPresent);
     }
 
@@ -92,26 +99,50 @@ public class Tests {
     public void Cas9ConstructOligosTest() throws Exception {
         ArrayList<String> upstreamGenomicLocus = ugl.run("TERT");
         String PromoterAndFivePrimeUTR = upstreamGenomicLocus.get(1);
-        ArrayList<ArrayList> TFmotifsInSequence = tfms.run(PromoterAndFivePrimeUTR);
-        ArrayList<Pair<String, ArrayList<Integer>>> TranscriptionFactors = TFmotifsInSequence.get(0);
-        ArrayList<Pair<String, ArrayList<String>>> sgRNAs = c9co.run(TranscriptionFactors, PromoterAndFivePrimeUTR);
-        HashMap<String, ArrayList<String>> hashMapOfsgRNAs = new HashMap<>();
-        for (Pair<String, ArrayList<String>> sgRNA : sgRNAs) {
-            String appendedMotif_ID = sgRNA.getKey();
-            ArrayList<String> sgRNAoligos = sgRNA.getValue();
-            hashMapOfsgRNAs.put(appendedMotif_ID, sgRNAoligos);
-        }
+        MotifHits TranscriptionFactors = tfms.run(PromoterAndFivePrimeUTR);
+        ArrayList<Cas9ConstructOligos.Design> sgRNAs = c9co.run(TranscriptionFactors, PromoterAndFivePrimeUTR);
         // The Myc motif recognized at -186 base pairs from the TSS has a motif_id of M4610_1.02
         // -186bp from the TSS corresponds to 814 basepairs from the start of the promotoer (defined as a 1000bp segment)
-        ArrayList<String> TERTsgRNAoligos = hashMapOfsgRNAs.get("M4610_1.02_814");
-        String sgUP = TERTsgRNAoligos.get(0);
-        String sgDown = TERTsgRNAoligos.get(1);
+        Cas9ConstructOligos.Design TERTsgRNAoligos = null;
+        for (Cas9ConstructOligos.Design sgRNA : sgRNAs) {
+            String Motif_ID = TranscriptionFactors.getMotifID(TranscriptionFactors.getMotif(sgRNA.hit));
+            if (Motif_ID.equals("M4610_1.02") && sgRNA.start == 814 && !sgRNA.minusStrand) {
+                TERTsgRNAoligos = sgRNA;
+            }
+        }
+        assertNotNull(TERTsgRNAoligos);
+        String sgUP = TERTsgRNAoligos.oligoUp;
+        String sgDown = TERTsgRNAoligos.oligoDown;
         String expectedSgUP = "caccgCCAGGACCGCGCTTCCCACG";
         String expectedSgDown = "aaacCGTGGGAAGCGCGGTCCTGGc";
         assertEquals(sgUP, expectedSgUP.toUpperCase());
         assertEquals(sgDown, expectedSgDown.toUpperCase());
     }
 
+    @Test
+    public void MinusStrandCas9ConstructOligosTest() throws Exception {
+        // A minus-strand motif site must get the same sgRNA as the equivalent plus-strand
+        // site on the reverse complement of the promoter
+        String PromoterAndFivePrimeUTR = ugl.run("TERT").get(1);
+        RevComp rc = new RevComp();
+        rc.initiate();
+        String reverseComplement = rc.run(PromoterAndFivePrimeUTR);
+        int motifLength = 6;
+        int locationStartIndex = 500;
+        String[] motifs = {"M4610_1.02"};
+        MotifHits minusStrandMotifs = new MotifHits(motifs, motifs, motifs, motifs);
+        minusStrandMotifs.add(0, locationStartIndex, motifLength, MotifHits.MINUS_STRAND, 0);
+        MotifHits plusStrandMotifs = new MotifHits(motifs, motifs, motifs, motifs);
+        plusStrandMotifs.add(0, PromoterAndFivePrimeUTR.length() - locationStartIndex - motifLength, motifLength, MotifHits.PLUS_STRAND, 0);
+
+        ArrayList<Cas9ConstructOligos.Design> minusStrandsgRNAs = c9co.run(minusStrandMotifs, PromoterAndFivePrimeUTR);
+        ArrayList<Cas9ConstructOligos.Design> plusStrandsgRNAs = c9co.run(plusStrandMotifs, reverseComplement);
+        assertEquals(minusStrandsgRNAs.get(0).start, locationStartIndex);
+        assertTrue(minusStrandsgRNAs.get(0).minusStrand);
+        assertEquals(minusStrandsgRNAs.get(0).oligoUp, plusStrandsgRNAs.get(0).oligoUp);
+        assertEquals(minusStrandsgRNAs.get(0).oligoDown, plusStrandsgRNAs.get(0).oligoDown);
+    }
+
     @Test
     public void AlterationConstructOligosTest() throws Exception {
         ArrayList<String> upstream = ugl.run("TERT");
@@ -128,8 +159,9 @@ public class Tests {
         int expectedSizeOfAmplicon = Integer.parseInt(repairStrategy.get(4).substring(0, 4));
         assertEquals(expectedSizeOfAmplicon, RightHomologyArm.length() + LeftHomologyArm.length() + PromoterAndFivePrimeUTR.length());
 
-        String expectedForward = "atataagctttaaaattgtgttttctat";
-        String expectedReverse = "atatggatccccgcagtgcgtcggtcac";
+        // Each arm is sized to melt closest to 60 C: 35 bases of the LHA and 19 of the RHA
+        String expectedForward = "atataagctttaaaattgtgttttctatgttggcttctctgcaga";
+        String expectedReverse = "atatggatccccgcagtgcgtcggtcacc";
         assertEquals(repairStrategy.get(2), expectedForward.toUpperCase());
         assertEquals(repairStrategy.get(3), expectedReverse.toUpperCase());
     }
@@ -0,0 +1,107 @@
+package org.ucb.c5.composition;
+
+import org.junit.Test;
+import org.ucb.c5.utils.PrimerQC;
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that random gene results written by ColumnarResultSink and dumped by
+ * ColumnarResultReader give the same table as TsvResultSink, over more rows
+ * than one block, with motifs lacking a TF name, sites without a score and
+ * oligos that cannot be packed as bases.
+ *
+ * @author Manraj Gill
+ */
+public class ColumnarResultSinkTest {
+
+    @Test
+    public void ColumnarRoundTripMatchesTsvTest() throws Exception {
+        Random random = new Random(19);
+        String[] motifIDs = new String[30];
+        String[] tfNames = new String[motifIDs.length];
+        String[] tfFamilyNames = new String[motifIDs.length];
+        String[] consensusSequences = new String[motifIDs.length];
+        for (int m = 0; m < motifIDs.length; m++) {
+            motifIDs[m] = "M" + m;
+            tfNames[m] = m % 7 == 0 ? null : "TF" + m;
+            tfFamilyNames[m] = m % 5 == 0 ? null : "Family" + (m % 4);
+            consensusSequences[m] = oligo(random, 6 + random.nextInt(10));
+        }
+
+        File file = File.createTempFile("results", ".col");
+        file.deleteOnExit();
+        StringWriter tsv = new StringWriter();
+        TsvResultSink tsvSink = new TsvResultSink(tsv, 4096);
+        ColumnarResultSink columnarSink = new ColumnarResultSink(file.getPath());
+        int rows = 0;
+        for (int g = 0; rows <= ColumnarResultSink.BLOCK_ROWS + 1000; g++) {
+            GeneResult result = randomResult(random, "GENE" + g, motifIDs, tfNames, tfFamilyNames, consensusSequences);
+            tsvSink.write(result);
+            columnarSink.write(result);
+            rows += result.getRowCount();
+        }
+        tsvSink.close();
+        columnarSink.close();
+
+        ColumnarResultReader reader = new ColumnarResultReader();
+        reader.initiate(file.getPath());
+        assertEquals(rows, reader.getRowCount());
+
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(dump));
+            ColumnarResultReader.main(new String[]{file.getPath()});
+        } finally {
+            System.setOut(stdout);
+        }
+        String[] expected = tsv.toString().split(System.lineSeparator());
+        String[] actual = dump.toString().split(System.lineSeparator());
+        assertEquals(rows + 1, expected.length);
+        assertEquals(expected.length, actual.length);
+        for (int line = 0; line < expected.length; line++) {
+            assertEquals("Line " + line, expected[line], actual[line]);
+        }
+    }
+
+    private static GeneResult randomResult(Random random, String geneName, String[] motifIDs, String[] tfNames,
+                                           String[] tfFamilyNames, String[] consensusSequences) {
+        // Enzymes, primers, amplicon size and primer QC, as RepairConstructStrategy returns them
+        ArrayList<String> repairStrategy = new ArrayList<>(Arrays.asList("BsaI", "BsmBI",
+                oligo(random, 20), oligo(random, 20), Integer.toString(random.nextInt(3000)), "PASS", "PASS"));
+        MotifHits motifHits = new MotifHits(motifIDs, tfNames, tfFamilyNames, consensusSequences);
+        GeneResult result = new GeneResult(geneName, repairStrategy, motifHits);
+        for (int row = random.nextInt(400); row > 0; row--) {
+            int motif = random.nextInt(motifIDs.length);
+            int start = random.nextInt(2000);
+            boolean minusStrand = random.nextBoolean();
+            float score = random.nextInt(10) == 0 ? Float.NEGATIVE_INFINITY : (float) (random.nextGaussian() * 10);
+            int hit = motifHits.add(motif, start, consensusSequences[motif].length(), minusStrand ? -1 : 1, score, random.nextInt(4));
+            PrimerQC.Result forwardQC = new PrimerQC.Result(50 + 20 * random.nextDouble(), random.nextDouble(), 3, 0, 0, "");
+            PrimerQC.Result reverseQC = new PrimerQC.Result(50 + 20 * random.nextDouble(), random.nextDouble(), 5, 0, 0, "HOMOPOLYMER");
+            AlterationConstructOligos.Design alteration = new AlterationConstructOligos.Design(hit, start, minusStrand,
+                    oligo(random, 40 + random.nextInt(40)), oligo(random, 40 + random.nextInt(40)), forwardQC, reverseQC);
+            Cas9ConstructOligos.Design sgRNA = new Cas9ConstructOligos.Design(hit, start, minusStrand,
+                    oligo(random, 20 + random.nextInt(5)), oligo(random, 20 + random.nextInt(5)));
+            result.add(alteration, sgRNA, random.nextInt(3) == 0 ? "none" : random.nextInt(5) + " sites");
+        }
+        return result;
+    }
+
+    // Mostly plain bases, sometimes with a lowercase base or N that must be stored as ASCII
+    private static String oligo(Random random, int length) {
+        String alphabet = random.nextInt(20) == 0 ? "ACGTNa" : "ACGT";
+        StringBuilder oligo = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            oligo.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return oligo.toString();
+    }
+}
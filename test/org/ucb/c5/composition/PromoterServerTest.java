@@ -0,0 +1,201 @@
+package org.ucb.c5.composition;
+
+import org.junit.Test;
+import org.ucb.c5.utils.PrimerQC;
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests PromoterServer on an ephemeral port in front of a stub pipeline that
+ * answers from memory: the routes and their status codes while the data loads,
+ * once it is ready and after it failed, the JSON and TSV designs, the JSON
+ * error objects, and the counters of errors and timeouts.
+ *
+ * @author Manraj Gill
+ */
+public class PromoterServerTest {
+
+    private static final long TIMEOUT_MILLIS = 500;
+
+    // Answers GENE0, rejects UNKNOWN as the loci do, fails BAD and holds SLOW until released
+    private static class StubPipeline extends InvestigatePromoter {
+        final CompletableFuture<Void> ready = new CompletableFuture<>();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public CompletableFuture<Void> getReady() {
+            return ready;
+        }
+
+        @Override
+        public GeneResult investigate(String geneName) throws Exception {
+            switch (geneName) {
+                case "GENE0":
+                    return result(geneName);
+                case "BAD":
+                    throw new IllegalArgumentException("Not a valid locus");
+                case "SLOW":
+                    release.await(30, TimeUnit.SECONDS);
+                    return result(geneName);
+                default:
+                    throw new UnknownGeneException(geneName);
+            }
+        }
+    }
+
+    @Test
+    public void RoutesAndStatusCodesTest() throws Exception {
+        StubPipeline stub = new StubPipeline();
+        PromoterServer server = new PromoterServer();
+        server.initiate(stub, 0, 2, 4, TIMEOUT_MILLIS);
+        server.start();
+        try {
+            int port = server.getPort();
+            assertTrue(port > 0);
+
+            // Loading
+            Response health = get(port, "/health");
+            assertEquals(503, health.code);
+            assertTrue(health.body.startsWith("{\"status\":\"loading\""));
+            Response loading = get(port, "/design/GENE0");
+            assertEquals(503, loading.code);
+            assertEquals("{\"status\":503,\"error\":\"The data is still loading\"}", loading.body);
+
+            stub.ready.complete(null);
+            health = get(port, "/health");
+            assertEquals(200, health.code);
+            assertTrue(health.body.startsWith("{\"status\":\"ready\",\"workers\":2,"));
+            assertTrue(health.contentType.startsWith("application/json"));
+
+            Response json = get(port, "/design/GENE0");
+            assertEquals(200, json.code);
+            assertTrue(json.contentType.startsWith("application/json"));
+            assertTrue(json.body.startsWith("{\"gene\":\"GENE0\",\"repairStrategy\":{"));
+            assertTrue(json.body.contains("\"sites\":[{\"count\":0,"));
+            assertTrue(json.body.trim().endsWith("]}"));
+
+            Response tsv = get(port, "/design/GENE0?format=tsv");
+            assertEquals(200, tsv.code);
+            assertTrue(tsv.contentType.startsWith("text/tab-separated-values"));
+            String[] lines = tsv.body.split("\r?\n");
+            assertEquals(TsvResultSink.HEADER, lines[0]);
+            assertEquals(3, lines.length);
+            assertTrue(lines[1].startsWith("GENE0\t"));
+
+            assertError(get(port, "/design/GENE0?format=xml"), 400);
+            assertError(get(port, "/design/"), 404);
+            Response unknown = get(port, "/design/NOT%20A%20GENE");
+            assertError(unknown, 404);
+            assertEquals("{\"status\":404,\"error\":\"Unknown gene NOT A GENE\"}", unknown.body);
+            assertError(request(port, "/design/GENE0", "POST"), 405);
+            assertEquals(0, stub.getMetrics().counter("http.errors").sum());
+
+            // Any other failure of the pipeline is an error of the server
+            Response bad = get(port, "/design/BAD");
+            assertError(bad, 500);
+            assertTrue(bad.body.contains("Not a valid locus"));
+            assertEquals(1, stub.getMetrics().counter("http.errors").sum());
+
+            assertError(get(port, "/design/SLOW"), 504);
+            assertEquals(1, stub.getMetrics().counter("http.timeouts").sum());
+            stub.release.countDown();
+
+            Response metrics = get(port, "/metrics");
+            assertEquals(200, metrics.code);
+            assertTrue(metrics.body.startsWith("Metric\tValue\n"));
+            // Every design request is counted, whatever its answer
+            assertTrue(metrics.body.contains("\nhttp.requests.count\t9\n"));
+            assertTrue(metrics.body.contains("\nhttp.errors.count\t1\n"));
+        } finally {
+            stub.release.countDown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void FailedLoadTest() throws Exception {
+        StubPipeline stub = new StubPipeline();
+        stub.ready.completeExceptionally(new IllegalStateException("No exports"));
+        PromoterServer server = new PromoterServer();
+        server.initiate(stub, 0, 1, 1, TIMEOUT_MILLIS);
+        server.start();
+        try {
+            Response health = get(server.getPort(), "/health");
+            assertEquals(503, health.code);
+            assertTrue(health.body.startsWith("{\"status\":\"failed\""));
+            Response design = get(server.getPort(), "/design/GENE0");
+            assertEquals("{\"status\":503,\"error\":\"The data failed to load\"}", design.body);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static class Response {
+        int code;
+        String contentType;
+        String body;
+    }
+
+    private static void assertError(Response response, int code) {
+        assertEquals(code, response.code);
+        assertTrue(response.contentType.startsWith("application/json"));
+        assertTrue(response.body, response.body.startsWith("{\"status\":" + code + ",\"error\":\""));
+    }
+
+    private static Response get(int port, String path) throws Exception {
+        return request(port, path, "GET");
+    }
+
+    private static Response request(int port, String path, String method) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setRequestMethod(method);
+        if (method.equals("POST")) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write('x');
+            }
+        }
+        Response response = new Response();
+        response.code = connection.getResponseCode();
+        response.contentType = connection.getContentType();
+        try (InputStream in = response.code < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                body.write(buffer, 0, read);
+            }
+            response.body = new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+        connection.disconnect();
+        return response;
+    }
+
+    // Two sites of one motif, as the pipeline would return them
+    private static GeneResult result(String geneName) {
+        ArrayList<String> repairStrategy = new ArrayList<>(Arrays.asList("BsaI", "BsmBI",
+                "ACGTACGTACGTACGTACGT", "TTGCATTGCATTGCATTGCA", "1200bp", "61.5C PASS", "60.2C PASS"));
+        MotifHits motifHits = new MotifHits(new String[]{"M0"}, new String[]{"TF0"},
+                new String[]{"Family0"}, new String[]{"ACGTGA"});
+        GeneResult result = new GeneResult(geneName, repairStrategy, motifHits);
+        PrimerQC.Result qc = new PrimerQC.Result(61.5, 0.5, 3, 0, 0, "");
+        for (int row = 0; row < 2; row++) {
+            int hit = motifHits.add(0, 100 * row, 6, row == 0 ? MotifHits.PLUS_STRAND : MotifHits.MINUS_STRAND, 8.25f, 0);
+            AlterationConstructOligos.Design alteration = new AlterationConstructOligos.Design(hit, 100 * row, row == 1,
+                    "GGTCTCA" + row, "CGTCTCT" + row, qc, qc);
+            Cas9ConstructOligos.Design sgRNA = new Cas9ConstructOligos.Design(hit, 100 * row, row == 1,
+                    "CACCG" + row, "AAAC" + row);
+            result.add(alteration, sgRNA, "none");
+        }
+        return result;
+    }
+}
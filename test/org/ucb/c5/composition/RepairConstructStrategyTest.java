@@ -0,0 +1,127 @@
+package org.ucb.c5.composition;
+
+import org.junit.Test;
+import org.ucb.c5.utils.RevComp;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Tests RepairConstructStrategy on a small catalog: sites found on either
+ * strand and through N, enzymes passed over because they cut the locus or
+ * leave the same end as the first, the primers built from the chosen pair,
+ * and runVectors agreeing with running each vector on its own.
+ *
+ * @author Manraj Gill
+ */
+public class RepairConstructStrategyTest {
+
+    private static final String CATALOG = "Vector\tEnzyme\tSite\tCut\n"
+            + "V1\tHindIII\tAAGCTT\t1\n"
+            + "V1\tBamHI\tGGATCC\t1\n"
+            // Leaves the same 5' GATC end as BamHI
+            + "V1\tBglII\tAGATCT\t1\n"
+            // Not palindromic, so found through its reverse complement GAGACC as well
+            + "V1\tBsaI\tGGTCTC\t1\n"
+            + "V1\tSau96I\tGGNCC\t1\n"
+            + "V2\tBamHI\tGGATCC\t1\n"
+            + "V2\tBglII\tAGATCT\t1\n"
+            + "V3\tKpnI\tGGTACC\t5\n"
+            + "V3\tSacI\tGAGCTC\t5\n";
+
+    // Holds none of the sites of the catalog on either strand
+    private static final String LEFT = "ATGCAATTGCTAGCATTACGATCGTAACTAGTTCATTGACATGCAATCGTACGATTAGCAT";
+    private static final String MIDDLE = "TTACGCATTGCATAGCTAACGTTACAGTCATTGCAATCGATTACGTAGCATAGTCATTGAC";
+    private static final String RIGHT = "CATTGCAATGCATTACGTAGTCAATGCTAGCAATTGCATGACTAGCTTAGCATTGCAATCA";
+
+    @Test
+    public void ChoosesEnzymesTest() throws Exception {
+        RepairConstructStrategy rcs = new RepairConstructStrategy();
+        rcs.initiate(CATALOG);
+        assertEquals(Arrays.asList("V1", "V2", "V3"), new ArrayList<>(rcs.getVectors()));
+        assertTrue(rcs.findSites(LEFT + MIDDLE + RIGHT).isEmpty());
+
+        ArrayList<String> strategy = rcs.run(LEFT, MIDDLE, RIGHT, "V1");
+        assertEquals(Arrays.asList("HindIII", "BamHI"), strategy.subList(0, 2));
+
+        // HindIII cuts the locus and BglII would leave the same end as BamHI
+        strategy = rcs.run(LEFT, MIDDLE + "AAGCTT", RIGHT, "V1");
+        assertEquals(Arrays.asList("BamHI", "BsaI"), strategy.subList(0, 2));
+
+        // BsaI cuts the locus on the minus strand
+        strategy = rcs.run(LEFT, "GAGACC" + MIDDLE + "AAGCTT", RIGHT, "V1");
+        assertEquals(Arrays.asList("BamHI", "Sau96I"), strategy.subList(0, 2));
+
+        // Sau96I cuts the locus through its N, leaving no second enzyme
+        try {
+            rcs.run(LEFT, "GAGACC" + MIDDLE + "AAGCTTGGTCC", RIGHT, "V1");
+            fail("A strategy was devised with a single usable enzyme");
+        } catch (Exception expected) {
+            assertFalse(expected instanceof IllegalArgumentException);
+        }
+        try {
+            rcs.run(LEFT, MIDDLE, RIGHT, "V4");
+            fail("A vector missing from the catalog was used");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void PrimersTest() throws Exception {
+        RevComp revComp = new RevComp();
+        revComp.initiate();
+        RepairConstructStrategy rcs = new RepairConstructStrategy();
+        rcs.initiate(CATALOG);
+        String locus = LEFT + MIDDLE + RIGHT;
+        ArrayList<String> strategy = rcs.run(LEFT, MIDDLE, RIGHT, "V3");
+        assertEquals(Arrays.asList("KpnI", "SacI"), strategy.subList(0, 2));
+
+        // A 5' buffer, the site, then an annealing arm of allowed length from each end of the locus
+        String forwardArm = strategy.get(2).substring("ATATGGTACC".length());
+        assertTrue(strategy.get(2).startsWith("ATATGGTACC"));
+        assertTrue(locus.startsWith(forwardArm));
+        String reverseArm = strategy.get(3).substring("ATATGAGCTC".length());
+        assertTrue(strategy.get(3).startsWith("ATATGAGCTC"));
+        assertTrue(locus.endsWith(revComp.run(reverseArm)));
+        for (String arm : new String[]{forwardArm, reverseArm}) {
+            assertTrue(arm.length() >= RepairConstructStrategy.MIN_ARM);
+            assertTrue(arm.length() <= RepairConstructStrategy.MAX_ARM);
+        }
+        assertEquals(locus.length() + "bp", strategy.get(4));
+        assertEquals(7, strategy.size());
+    }
+
+    @Test
+    public void RunVectorsMatchesRunTest() throws Exception {
+        RepairConstructStrategy rcs = new RepairConstructStrategy();
+        rcs.initiate(CATALOG);
+        for (String middle : new String[]{MIDDLE, MIDDLE + "AAGCTT", "GAGACC" + MIDDLE + "AAGCTTGGTCC", MIDDLE + "GGTACC"}) {
+            LinkedHashMap<String, ArrayList<String>> strategies = rcs.runVectors(LEFT, middle, RIGHT);
+            // V2 never has a pair, as its only enzymes leave the same end
+            assertFalse(strategies.containsKey("V2"));
+            for (String vector : rcs.getVectors()) {
+                ArrayList<String> single = null;
+                try {
+                    single = rcs.run(LEFT, middle, RIGHT, vector);
+                } catch (Exception e) {
+                    // No strategy for this vector
+                }
+                assertEquals(vector + " " + middle, single, strategies.get(vector));
+            }
+        }
+
+        BitSet sites = rcs.findSites(LEFT + "GAGACC" + MIDDLE + "AAGCTTGGTCC" + RIGHT);
+        assertEquals(3, sites.cardinality());
+    }
+
+    @Test
+    public void RejectsUnsupportedSitesTest() throws Exception {
+        try {
+            new RepairConstructStrategy().initiate("Vector\tEnzyme\tSite\tCut\nV1\tBstNI\tCCWGG\t2\n");
+            fail("A site with an ambiguity code other than N was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.ucb.c5.composition;
+
+import org.junit.Test;
+import org.ucb.c5.utils.MetricsRegistry;
+import org.ucb.c5.utils.PrimerQC;
+import static org.junit.Assert.*;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests ResultCache in a temporary directory: results read back from memory and
+ * from disk by a new cache, least-recently-used eviction from memory, and the
+ * invalidation of the disk tier when an input or the parameters change. The
+ * input is a file in a temporary resource directory.
+ *
+ * @author Manraj Gill
+ */
+public class ResultCacheTest {
+
+    @Test
+    public void MemoryAndDiskRoundTripTest() throws Exception {
+        File directory = Files.createTempDirectory("cache").toFile();
+        File resources = Files.createTempDirectory("resources").toFile();
+        File input = resource(resources, "inputs");
+        try {
+            MetricsRegistry metrics = new MetricsRegistry();
+            ResultCache cache = new ResultCache();
+            cache.initiate(directory, 4, "mode=pwm", resources, new String[]{input.getName()}, 7, metrics);
+            assertEquals(7, cache.getInputVersion());
+            assertNull(cache.get("GENE0"));
+            GeneResult result = result("GENE0", 5);
+            cache.put(result);
+            assertSame(result, cache.get("GENE0"));
+            assertEquals(1, metrics.counter("cache.misses").sum());
+            assertEquals(1, metrics.counter("cache.hits").sum());
+            assertTrue(new File(directory, cache.getFingerprint()).isDirectory());
+
+            // A new cache over the same directory finds the result on disk, then keeps it in memory
+            MetricsRegistry reopened = new MetricsRegistry();
+            ResultCache second = new ResultCache();
+            second.initiate(directory, 4, "mode=pwm", resources, new String[]{input.getName()}, 8, reopened);
+            assertEquals(cache.getFingerprint(), second.getFingerprint());
+            assertEquals(8, second.getInputVersion());
+            GeneResult read = second.get("GENE0");
+            assertNotNull(read);
+            assertEquals(render(result), render(read));
+            assertSame(read, second.get("GENE0"));
+            assertEquals(1, reopened.counter("cache.disk_hits").sum());
+            assertEquals(1, reopened.counter("cache.hits").sum());
+            assertNull(second.get("GENE1"));
+        } finally {
+            delete(resources);
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void LeastRecentlyUsedEvictionTest() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        ResultCache cache = new ResultCache();
+        cache.initiate(null, 2, "mode=pwm", new String[0], 0, metrics);
+        cache.put(result("A", 1));
+        cache.put(result("B", 1));
+        cache.put(result("C", 1));
+        assertEquals(1, metrics.counter("cache.evictions").sum());
+        assertNull(cache.get("A"));
+
+        // Reading B makes C the least recently used
+        assertNotNull(cache.get("B"));
+        cache.put(result("D", 1));
+        assertEquals(2, metrics.counter("cache.evictions").sum());
+        assertNull(cache.get("C"));
+        assertNotNull(cache.get("B"));
+        assertNotNull(cache.get("D"));
+    }
+
+    @Test
+    public void InvalidationTest() throws Exception {
+        File directory = Files.createTempDirectory("cache").toFile();
+        File resources = Files.createTempDirectory("resources").toFile();
+        File input = resource(resources, "inputs");
+        try {
+            String[] inputs = {input.getName()};
+            ResultCache cache = new ResultCache();
+            cache.initiate(directory, 4, "mode=pwm", resources, inputs, 0, new MetricsRegistry());
+            cache.put(result("GENE0", 3));
+            String original = cache.getFingerprint();
+
+            // Other parameters get a fingerprint of their own and leave the first one alone
+            ResultCache other = new ResultCache();
+            other.initiate(directory, 4, "mode=consensus", resources, inputs, 0, new MetricsRegistry());
+            assertNotEquals(original, other.getFingerprint());
+            assertNull(other.get("GENE0"));
+            other.put(result("GENE0", 2));
+            assertTrue(new File(directory, original).isDirectory());
+
+            // An input edited without changing its size invalidates the results made with the same parameters only
+            Files.write(input.toPath(), "INPUTS".getBytes(StandardCharsets.UTF_8));
+            // A later modification time, as the edit may fall within the same clock tick
+            input.setLastModified(input.lastModified() + 2000);
+            ResultCache changed = new ResultCache();
+            changed.initiate(directory, 4, "mode=pwm", resources, inputs, 1, new MetricsRegistry());
+            assertNotEquals(original, changed.getFingerprint());
+            assertNull(changed.get("GENE0"));
+            assertFalse(new File(directory, original).exists());
+            assertTrue(new File(directory, other.getFingerprint()).isDirectory());
+        } finally {
+            delete(resources);
+            delete(directory);
+        }
+    }
+
+    private static File resource(File resources, String content) throws Exception {
+        File input = new File(resources, "inputs.txt");
+        Files.write(input.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return input;
+    }
+
+    private static GeneResult result(String geneName, int rows) {
+        ArrayList<String> repairStrategy = new ArrayList<>(Arrays.asList("BsaI", "BsmBI",
+                "ACGTACGTACGTACGTACGT", "TTGCATTGCATTGCATTGCA", "1200", "PASS", "PASS"));
+        MotifHits motifHits = new MotifHits(new String[]{"M0", "M1"}, new String[]{"TF0", null},
+                new String[]{"Family0", null}, new String[]{"ACGTGA", "TTGNNCAA"});
+        GeneResult result = new GeneResult(geneName, repairStrategy, motifHits);
+        PrimerQC.Result qc = new PrimerQC.Result(61.5, 0.5, 3, 0, 0, "");
+        for (int row = 0; row < rows; row++) {
+            int motif = row % 2;
+            float score = motif == 0 ? 8.25f + row : Float.NEGATIVE_INFINITY;
+            int hit = motifHits.add(motif, 100 * row, 6 + 2 * motif, row % 3 == 0 ? MotifHits.MINUS_STRAND : MotifHits.PLUS_STRAND, score, motif);
+            AlterationConstructOligos.Design alteration = new AlterationConstructOligos.Design(hit, 100 * row, row % 3 == 0,
+                    "GGTCTCA" + row, "CGTCTCT" + row, qc, new PrimerQC.Result(48.0, 0.25, 6, 2, 5, "HOMOPOLYMER"));
+            Cas9ConstructOligos.Design sgRNA = new Cas9ConstructOligos.Design(hit, 100 * row, row % 3 == 0,
+                    "CACCG" + row, "AAAC" + row);
+            result.add(alteration, sgRNA, row + " sites");
+        }
+        return result;
+    }
+
+    private static String render(GeneResult result) {
+        StringBuilder rendered = new StringBuilder(result.geneName).append(result.repairStrategy).append('\n');
+        for (int row = 0; row < result.getRowCount(); row++) {
+            result.appendRow(row, rendered);
+            rendered.append('\n');
+        }
+        return rendered.toString();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,103 @@
+package org.ucb.c5.composition;
+
+import org.junit.Test;
+import org.ucb.c5.utils.FileUtils;
+import static org.junit.Assert.*;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the hot reload of TFmotifs: a matrix file added to the position weight
+ * matrices is scanned for after the new snapshot is swapped in, results of
+ * scans made before the swap are left as they were, a file that cannot be
+ * parsed keeps the current snapshot, and removing the file brings back the
+ * original motifs. The test adds its own file with a Motif_ID that CIS-BP does
+ * not use and removes it when done.
+ *
+ * @author Manraj Gill
+ */
+public class TFmotifsReloadTest {
+
+    private static final String MOTIF_ID = "M9999_9.99";
+    private static final String CONSENSUS = "ACCTGAGTACAA";
+
+    @Test
+    public void ReloadSwapTest() throws Exception {
+        File pwms = FileUtils.getResourceLocation(TFmotifs.PWM_DIRECTORY);
+        File added = new File(pwms, MOTIF_ID + ".txt");
+        assertFalse(added.exists());
+        String promoter = "TTTTTTTTTT" + CONSENSUS + "TTTTTTTTTT";
+
+        TFmotifs tfMotifs = new TFmotifs();
+        tfMotifs.initiate();
+        byte[] original = tfMotifs.getFingerprint();
+        MotifHits before = tfMotifs.run(promoter, TFmotifs.ScanMode.PWM);
+        int hitsBefore = before.size();
+        assertFalse(hasHit(before, MOTIF_ID));
+
+        Semaphore reloads = new Semaphore(0);
+        tfMotifs.startWatching(reloads::release);
+        try {
+            try {
+                tfMotifs.startWatching(reloads::release);
+                fail("The sources were watched twice");
+            } catch (IllegalStateException expected) {
+            }
+
+            Files.write(added.toPath(), matrix(CONSENSUS).getBytes(StandardCharsets.UTF_8));
+            assertTrue("No reload", reloads.tryAcquire(30, TimeUnit.SECONDS));
+            assertEquals(1, tfMotifs.getVersion());
+            assertFalse(Arrays.equals(original, tfMotifs.getFingerprint()));
+            assertTrue(hasHit(tfMotifs.run(promoter, TFmotifs.ScanMode.PWM), MOTIF_ID));
+            // The hits of the earlier scan belong to the snapshot they were found with
+            assertEquals(hitsBefore, before.size());
+            assertFalse(hasHit(before, MOTIF_ID));
+            byte[] reloaded = tfMotifs.getFingerprint();
+
+            // A matrix that cannot be parsed leaves the current snapshot in place
+            Files.write(added.toPath(), "Pos\tA\tC\tG\tT\n1\tnot\ta\tnumber\n".getBytes(StandardCharsets.UTF_8));
+            assertFalse(reloads.tryAcquire(TFmotifs.RELOAD_DELAY_MILLIS * 8, TimeUnit.MILLISECONDS));
+            assertEquals(1, tfMotifs.getVersion());
+            assertArrayEquals(reloaded, tfMotifs.getFingerprint());
+
+            // Removing the file brings back the original motifs
+            assertTrue(added.delete());
+            assertTrue("No reload", reloads.tryAcquire(30, TimeUnit.SECONDS));
+            assertEquals(2, tfMotifs.getVersion());
+            assertArrayEquals(original, tfMotifs.getFingerprint());
+            assertFalse(hasHit(tfMotifs.run(promoter, TFmotifs.ScanMode.PWM), MOTIF_ID));
+        } finally {
+            tfMotifs.stopWatching();
+            added.delete();
+        }
+        // Stopping twice is harmless and the last snapshot stays in use
+        tfMotifs.stopWatching();
+        assertEquals(hitsBefore, tfMotifs.run(promoter, TFmotifs.ScanMode.PWM).size());
+    }
+
+    private static boolean hasHit(MotifHits motifHits, String motifID) {
+        for (int hit = 0; hit < motifHits.size(); hit++) {
+            if (motifID.equals(motifHits.getMotifID(motifHits.getMotif(hit)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A CIS-BP matrix file that strongly favours each base of the consensus sequence
+    private static String matrix(String consensus) {
+        StringBuilder matrix = new StringBuilder("Pos\tA\tC\tG\tT\n");
+        for (int i = 0; i < consensus.length(); i++) {
+            matrix.append(i + 1);
+            for (char base : "ACGT".toCharArray()) {
+                matrix.append('\t').append(base == consensus.charAt(i) ? "0.97" : "0.01");
+            }
+            matrix.append('\n');
+        }
+        return matrix.toString();
+    }
+}
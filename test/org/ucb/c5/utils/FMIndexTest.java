@@ -0,0 +1,135 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests FMIndex by comparing its searches with a scan of every window of the
+ * records. The records are random, with runs of N, soft-masked bases and records
+ * shorter than the patterns, and the patterns hold N, characters that match no
+ * base and positions that may not be mismatched.
+ *
+ * @author Manraj Gill
+ */
+public class FMIndexTest {
+
+    @Test
+    public void FMIndexMatchesNaiveScanTest() throws Exception {
+        Random random = new Random(12);
+        List<String> names = new ArrayList<>();
+        List<String> sequences = new ArrayList<>();
+        for (int r = 0; r < 40; r++) {
+            names.add("record" + r);
+            sequences.add(randomRecord(random, random.nextInt(300)));
+        }
+        sequences.set(3, "");
+        sequences.set(7, "ACG");
+        FMIndex index = FMIndex.build(names, sequences, null);
+        // The same searches through an index written out and read back
+        File file = File.createTempFile("fmindex", ".fmi");
+        file.deleteOnExit();
+        index.write(file.getPath());
+        FMIndex read = new FMIndex();
+        read.initiate(file.getPath());
+        assertEquals(40, read.getRecordCount());
+        assertEquals("record39", read.getRecordName(39));
+
+        for (int query = 0; query < 400; query++) {
+            int length = 4 + random.nextInt(11);
+            String pattern = randomPattern(random, sequences, length);
+            boolean[] mismatchable = new boolean[length];
+            for (int i = 0; i < length; i++) {
+                mismatchable[i] = random.nextInt(5) > 0;
+            }
+            int maxMismatches = random.nextInt(4);
+            List<String> expected = naiveScan(sequences, pattern, mismatchable, maxMismatches);
+            assertEquals(pattern, expected, hits(index.run(pattern, mismatchable, maxMismatches)));
+            assertEquals(pattern, expected, hits(read.run(pattern, mismatchable, maxMismatches)));
+        }
+
+        // A pattern joining the end of one record to the start of the next matches neither
+        String first = sequences.get(0);
+        String across = first.substring(first.length() - 4) + sequences.get(1).substring(0, 4);
+        boolean[] exact = new boolean[across.length()];
+        assertEquals(naiveScan(sequences, across, exact, 0), hits(index.run(across, exact, 0)));
+    }
+
+    private static String randomRecord(Random random, int length) {
+        StringBuilder record = new StringBuilder(length);
+        while (record.length() < length) {
+            int kind = random.nextInt(20);
+            if (kind == 0) {
+                for (int i = random.nextInt(4); i >= 0; i--) {
+                    record.append('N');
+                }
+            } else if (kind == 1) {
+                record.append(Character.toLowerCase("ACGT".charAt(random.nextInt(4))));
+            } else {
+                record.append("ACGT".charAt(random.nextInt(4)));
+            }
+        }
+        return record.substring(0, length);
+    }
+
+    // Mostly a window of a record with some changes, so that most patterns have matches
+    private static String randomPattern(Random random, List<String> sequences, int length) {
+        String source = sequences.get(random.nextInt(sequences.size()));
+        StringBuilder pattern = new StringBuilder(length);
+        if (source.length() >= length && random.nextInt(4) > 0) {
+            int start = random.nextInt(source.length() - length + 1);
+            pattern.append(source, start, start + length);
+        } else {
+            pattern.append(randomRecord(random, length));
+        }
+        for (int i = 0; i < length; i++) {
+            int change = random.nextInt(12);
+            if (change == 0) {
+                pattern.setCharAt(i, "ACGT".charAt(random.nextInt(4)));
+            } else if (change == 1) {
+                pattern.setCharAt(i, 'N');
+            } else if (change == 2) {
+                pattern.setCharAt(i, '-');
+            }
+        }
+        return pattern.toString();
+    }
+
+    private static List<String> naiveScan(List<String> sequences, String pattern, boolean[] mismatchable, int maxMismatches) {
+        List<String> hits = new ArrayList<>();
+        for (int r = 0; r < sequences.size(); r++) {
+            String sequence = sequences.get(r).toUpperCase();
+            for (int position = 0; position + pattern.length() <= sequence.length(); position++) {
+                int mismatches = 0;
+                for (int i = 0; i < pattern.length() && mismatches <= maxMismatches; i++) {
+                    char base = sequence.charAt(position + i);
+                    char wanted = Character.toUpperCase(pattern.charAt(i));
+                    if ("ACGT".indexOf(base) < 0) {
+                        // No match spans a base other than A, C, G or T
+                        mismatches = maxMismatches + 1;
+                    } else if (wanted != 'N' && wanted != base) {
+                        mismatches += mismatchable[i] ? 1 : maxMismatches + 1;
+                    }
+                }
+                if (mismatches <= maxMismatches) {
+                    hits.add(r + ":" + position + ":" + mismatches);
+                }
+            }
+        }
+        Collections.sort(hits);
+        return hits;
+    }
+
+    private static List<String> hits(List<FMIndex.Hit> found) {
+        List<String> hits = new ArrayList<>();
+        for (FMIndex.Hit hit : found) {
+            hits.add(hit.record + ":" + hit.position + ":" + hit.mismatches);
+        }
+        Collections.sort(hits);
+        return hits;
+    }
+}
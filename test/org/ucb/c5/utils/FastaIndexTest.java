@@ -0,0 +1,120 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Tests FastaIndex over an export in a temporary directory: the records read
+ * through the index, the first record kept for a repeated name, the saved
+ * index reused while the export is unchanged, and the index rebuilt after the
+ * export is edited without changing its size or the saved index is damaged.
+ *
+ * @author Manraj Gill
+ */
+public class FastaIndexTest {
+
+    private static final String EXPORT = ">GENE0|x\nACGT\nacgt\n"
+            + ">skipped\nGGGG\n"
+            + ">GENE1|y\r\nNNNN\r\nTTTT\r\n"
+            + ">GENE0|z\nCCCC\n"
+            + ">GENE2|w\nA";
+
+    // Indexes records under the text before '|', skipping those without one
+    private static final FastaIndex.RecordFilter FILTER = (header, sequence, lineCount) -> {
+        int bar = header.indexOf('|');
+        return bar < 0 ? null : header.substring(0, bar);
+    };
+
+    @Test
+    public void ReadsIndexedRecordsTest() throws Exception {
+        File directory = Files.createTempDirectory("index").toFile();
+        File export = write(directory, EXPORT);
+        File indexFile = new File(directory, "export.txt.idx");
+        try {
+            FastaIndex index = new FastaIndex();
+            index.initiate(export, indexFile, FILTER, 2);
+            assertTrue(indexFile.isFile());
+            HashSet<String> names = new HashSet<>();
+            for (String name : index.getNames()) {
+                names.add(name);
+            }
+            assertEquals(3, names.size());
+            assertFalse(index.contains("skipped"));
+            assertNull(index.run("skipped"));
+            // The first record of a repeated name is kept
+            assertEquals("ACGTacgt", index.run("GENE0"));
+            assertEquals("NNNNTTTT", index.run("GENE1"));
+            assertEquals("A", index.run("GENE2"));
+            // Read again, past the size of the cache
+            assertEquals("ACGTacgt", index.run("GENE0"));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void ReusesAndRebuildsIndexTest() throws Exception {
+        File directory = Files.createTempDirectory("index").toFile();
+        File export = write(directory, EXPORT);
+        File indexFile = new File(directory, "export.txt.idx");
+        int[] accepted = {0};
+        FastaIndex.RecordFilter counting = (header, sequence, lineCount) -> {
+            accepted[0]++;
+            return FILTER.accept(header, sequence, lineCount);
+        };
+        try {
+            new FastaIndex().initiate(export, indexFile, counting);
+            assertEquals(5, accepted[0]);
+
+            // The saved index is read rather than the export
+            FastaIndex reopened = new FastaIndex();
+            reopened.initiate(export, indexFile, counting);
+            assertEquals(5, accepted[0]);
+            assertEquals("NNNNTTTT", reopened.run("GENE1"));
+
+            // An edit that keeps the size moves no record but changes its bases
+            try (RandomAccessFile edit = new RandomAccessFile(export, "rw")) {
+                edit.seek(EXPORT.indexOf("NNNN"));
+                edit.write("ACGT".getBytes(StandardCharsets.US_ASCII));
+            }
+            export.setLastModified(export.lastModified() + 2000);
+            FastaIndex edited = new FastaIndex();
+            edited.initiate(export, indexFile, counting);
+            assertEquals(10, accepted[0]);
+            assertEquals("ACGTTTTT", edited.run("GENE1"));
+
+            // A saved index cut short is rebuilt rather than failing
+            byte[] saved = Files.readAllBytes(indexFile.toPath());
+            Files.write(indexFile.toPath(), Arrays.copyOf(saved, saved.length / 2));
+            FastaIndex repaired = new FastaIndex();
+            repaired.initiate(export, indexFile, counting);
+            assertEquals(15, accepted[0]);
+            assertEquals("A", repaired.run("GENE2"));
+            assertEquals(saved.length, indexFile.length());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static File write(File directory, String content) throws Exception {
+        File export = new File(directory, "export.txt");
+        Files.write(export.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return export;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
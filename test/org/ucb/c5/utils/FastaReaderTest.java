@@ -0,0 +1,87 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests FastaReader on small inputs with each kind of line ending, text before
+ * the first record, empty lines and records, a '>' in the middle of a line,
+ * and a record longer than the read buffer, checking the header, sequence,
+ * line count and byte range of every record.
+ *
+ * @author Manraj Gill
+ */
+public class FastaReaderTest {
+
+    @Test
+    public void LineEndingsTest() throws Exception {
+        for (String newline : new String[]{"\n", "\r\n", "\r"}) {
+            String input = "# exported\n>GENE0 a|b" + newline + "ACGT" + newline + "acg" + newline
+                    + ">GENE1" + newline + newline + "TT" + newline + newline + newline;
+            List<Object[]> records = read(input);
+            assertEquals(2, records.size());
+            assertRecord(records.get(0), "GENE0 a|b", "ACGTacg", 2);
+            // Empty lines within a record are counted, those at its end are not
+            assertRecord(records.get(1), "GENE1", "TT", 2);
+            assertEquals((long) input.indexOf('>'), records.get(0)[3]);
+            assertEquals((long) input.lastIndexOf('>'), records.get(0)[4]);
+            assertEquals((long) input.lastIndexOf('>'), records.get(1)[3]);
+            assertEquals((long) input.length(), records.get(1)[4]);
+        }
+    }
+
+    @Test
+    public void UnusualRecordsTest() throws Exception {
+        // A record with no sequence, one whose last line has no newline and is cut
+        // short by a '>', and a header that ends the input
+        List<Object[]> records = read(">A\n>B\nAC\nGT>C\nTT\n>D");
+        assertEquals(4, records.size());
+        assertRecord(records.get(0), "A", "", 0);
+        assertRecord(records.get(1), "B", "ACGT", 2);
+        assertRecord(records.get(2), "C", "TT", 1);
+        assertRecord(records.get(3), "D", "", 0);
+        assertEquals(17L, records.get(3)[3]);
+        assertEquals(19L, records.get(3)[4]);
+
+        assertTrue(read("").isEmpty());
+        assertTrue(read("ACGT\nACGT\n").isEmpty());
+    }
+
+    @Test
+    public void RecordLongerThanBufferTest() throws Exception {
+        StringBuilder sequence = new StringBuilder();
+        StringBuilder input = new StringBuilder(">LONG\r\n");
+        for (int line = 0; line < 3000; line++) {
+            String bases = "ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACG".substring(line % 4);
+            sequence.append(bases);
+            input.append(bases).append("\r\n");
+        }
+        input.append(">NEXT\r\nA\r\n");
+        List<Object[]> records = read(input.toString());
+        assertEquals(2, records.size());
+        assertRecord(records.get(0), "LONG", sequence.toString(), 3000);
+        assertRecord(records.get(1), "NEXT", "A", 1);
+        assertEquals((long) input.lastIndexOf(">"), records.get(1)[3]);
+    }
+
+    // Header, sequence, line count, record start and record end of every record
+    private static List<Object[]> read(String input) throws Exception {
+        List<Object[]> records = new ArrayList<>();
+        FastaReader reader = new FastaReader();
+        reader.run(Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII))),
+                (header, sequence, lineCount) -> records.add(new Object[]{header, sequence.toString(), lineCount,
+                    reader.getRecordStart(), reader.getRecordEnd()}));
+        return records;
+    }
+
+    private static void assertRecord(Object[] record, String header, String sequence, int lineCount) {
+        assertEquals(header, record[0]);
+        assertEquals(sequence, record[1]);
+        assertEquals(lineCount, record[2]);
+    }
+}
@@ -0,0 +1,92 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests LatencyHistogram: exact percentiles of the smallest durations, the
+ * bound on the error of a percentile of a uniform spread of durations across
+ * several powers of two, the largest and negative durations, and counts and
+ * totals recorded from several threads at once.
+ *
+ * @author Manraj Gill
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void EmptyAndSmallDurationsTest() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileNanos(0.99));
+
+        // Durations below 8 ns have a bucket each
+        for (long nanos = 0; nanos < 8; nanos++) {
+            histogram.record(nanos);
+        }
+        assertEquals(0, histogram.getPercentileNanos(0));
+        assertEquals(3, histogram.getPercentileNanos(0.5));
+        assertEquals(6, histogram.getPercentileNanos(0.8));
+        assertEquals(7, histogram.getPercentileNanos(1));
+
+        // A negative duration, as from a clock stepped back, counts as 0
+        histogram.record(-5);
+        assertEquals(9, histogram.getCount());
+        assertEquals(28, histogram.getTotalNanos());
+    }
+
+    @Test
+    public void PercentileErrorTest() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int n = 100000;
+        for (long nanos = 1; nanos <= n; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+        assertEquals(n, histogram.getCount());
+        assertEquals(1000L * n * (n + 1) / 2, histogram.getTotalNanos());
+        assertEquals(1000L * n, histogram.getMaxNanos());
+        for (double quantile : new double[]{0.001, 0.1, 0.5, 0.9, 0.99, 0.999}) {
+            long exact = (long) Math.ceil(quantile * n) * 1000;
+            long percentile = histogram.getPercentileNanos(quantile);
+            // The upper bound of the bucket of the exact value, within an eighth of it
+            assertTrue(quantile + ": " + percentile, percentile >= exact);
+            assertTrue(quantile + ": " + percentile, percentile <= exact + exact / 8);
+        }
+        // Never beyond the largest duration, however wide its bucket
+        assertEquals(1000L * n, histogram.getPercentileNanos(1));
+    }
+
+    @Test
+    public void SingleDurationsTest() throws Exception {
+        // A single duration of any magnitude is its own every percentile
+        for (long nanos : new long[]{1, 9, 1000, 123456789, 3600L * 1000000000L, Long.MAX_VALUE}) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(nanos);
+            assertEquals(nanos, histogram.getPercentileNanos(0.5));
+            assertEquals(nanos, histogram.getPercentileNanos(0.999));
+            assertEquals(nanos, histogram.getMaxNanos());
+        }
+    }
+
+    @Test
+    public void ConcurrentRecordingTest() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int threads = 4;
+        int perThread = 100000;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(i % 1000);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals((long) threads * perThread, histogram.getCount());
+        assertEquals((long) threads * (perThread / 1000) * (999 * 1000 / 2), histogram.getTotalNanos());
+        assertEquals(999, histogram.getMaxNanos());
+        assertEquals(999, histogram.getPercentileNanos(1));
+    }
+}
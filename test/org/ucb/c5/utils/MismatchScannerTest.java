@@ -0,0 +1,127 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests MismatchScanner against a direct count of the mismatches of every
+ * window, chosen by fewest mismatches first, leftmost first and without overlap,
+ * for motifs with wildcards and motifs longer than the 64 positions of a word
+ * planted in random sequences, and checks that with no mismatches allowed it
+ * reports exactly the matches of MotifAutomaton.
+ *
+ * @author Manraj Gill
+ */
+public class MismatchScannerTest {
+
+    @Test
+    public void MismatchScannerMatchesNaiveScanTest() throws Exception {
+        Random random = new Random(7);
+        for (int library = 0; library < 10; library++) {
+            String[] motifs = new String[50];
+            for (int m = 0; m < motifs.length; m++) {
+                // Some motifs are longer than a word of 64 positions
+                int length = m % 10 == 0 ? 60 + random.nextInt(30) : 1 + random.nextInt(20);
+                motifs[m] = MotifAutomatonTest.randomMotif(random, length);
+            }
+            motifs[0] = motifs[1];
+            motifs[2] = "....";
+            MismatchScanner scanner = new MismatchScanner();
+            scanner.initiate(motifs);
+            MotifAutomaton automaton = new MotifAutomaton();
+            automaton.initiate(motifs);
+
+            for (int scan = 0; scan < 5; scan++) {
+                String sequence = plant(random, motifs, MotifAutomatonTest.randomSequence(random, 200 + random.nextInt(1300)));
+                int[][] exact = automaton.run(sequence);
+                for (int maxMismatches = 0; maxMismatches <= 3; maxMismatches++) {
+                    MismatchScanner.Matches matches = scanner.run(sequence, maxMismatches);
+                    for (int m = 0; m < motifs.length; m++) {
+                        int[][] expected = naiveScan(motifs[m], sequence, maxMismatches);
+                        assertArrayEquals(motifs[m], expected[0], matches.starts[m]);
+                        assertArrayEquals(motifs[m], expected[1], matches.mismatches[m]);
+                        if (maxMismatches == 0) {
+                            assertArrayEquals(motifs[m], exact[m], matches.starts[m]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void FewestMismatchesFirstTest() throws Exception {
+        MismatchScanner scanner = new MismatchScanner();
+        scanner.initiate(new String[]{"ACGT"});
+        // The occurrence with one mismatch at 0 overlaps the exact match at 3, which is kept instead
+        MismatchScanner.Matches matches = scanner.run("ACGACGTTCGT", 1);
+        assertArrayEquals(new int[]{3, 7}, matches.starts[0]);
+        assertArrayEquals(new int[]{0, 1}, matches.mismatches[0]);
+        assertArrayEquals(new int[]{3}, scanner.run("ACGACGTTCGT", 0).starts[0]);
+    }
+
+    // Writes occurrences of random motifs with up to 3 mismatches over the sequence,
+    // so that long motifs have matches too
+    private static String plant(Random random, String[] motifs, String sequence) {
+        StringBuilder planted = new StringBuilder(sequence);
+        for (int i = 0; i < 20; i++) {
+            String motif = motifs[random.nextInt(motifs.length)];
+            if (motif.length() > planted.length()) {
+                continue;
+            }
+            int start = random.nextInt(planted.length() - motif.length() + 1);
+            for (int j = 0; j < motif.length(); j++) {
+                char base = motif.charAt(j);
+                planted.setCharAt(start + j, base == '.' ? "ACGTN".charAt(random.nextInt(5)) : base);
+            }
+            for (int mismatches = random.nextInt(4); mismatches > 0; mismatches--) {
+                planted.setCharAt(start + random.nextInt(motif.length()), "ACGTNa".charAt(random.nextInt(6)));
+            }
+        }
+        return planted.toString();
+    }
+
+    // Every window with at most maxMismatches differing specific positions, taken by
+    // fewest mismatches, then leftmost, skipping those overlapping one already taken
+    private static int[][] naiveScan(String motif, String sequence, int maxMismatches) {
+        int length = motif.length();
+        int windows = Math.max(0, sequence.length() - length + 1);
+        int[] mismatches = new int[windows];
+        for (int start = 0; start < windows; start++) {
+            for (int i = 0; i < length; i++) {
+                if (motif.charAt(i) != '.' && motif.charAt(i) != sequence.charAt(start + i)) {
+                    mismatches[start]++;
+                }
+            }
+        }
+        boolean[] taken = new boolean[sequence.length() + 1];
+        int[] takenMismatches = new int[sequence.length() + 1];
+        for (int found = 0; found <= maxMismatches; found++) {
+            for (int start = 0; start < windows; start++) {
+                if (mismatches[start] != found) {
+                    continue;
+                }
+                boolean overlaps = false;
+                for (int other = Math.max(0, start - length + 1); other < start + length && other < windows; other++) {
+                    overlaps |= taken[other];
+                }
+                if (!overlaps) {
+                    taken[start] = true;
+                    takenMismatches[start] = found;
+                }
+            }
+        }
+        int[] starts = new int[windows];
+        int[] counts = new int[windows];
+        int count = 0;
+        for (int start = 0; start < windows; start++) {
+            if (taken[start]) {
+                starts[count] = start;
+                counts[count++] = takenMismatches[start];
+            }
+        }
+        return new int[][]{Arrays.copyOf(starts, count), Arrays.copyOf(counts, count)};
+    }
+}
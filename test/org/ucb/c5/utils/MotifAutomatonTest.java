@@ -0,0 +1,82 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests MotifAutomaton by comparing its matches with those of the regular
+ * expressions it replaced, found one motif at a time with Matcher.find(), for
+ * random consensus sequences with wildcards over random sequences holding N and
+ * lowercase bases.
+ *
+ * @author Manraj Gill
+ */
+public class MotifAutomatonTest {
+
+    @Test
+    public void MotifAutomatonMatchesRegexTest() throws Exception {
+        Random random = new Random(1);
+        for (int library = 0; library < 20; library++) {
+            String[] motifs = new String[60];
+            for (int m = 0; m < motifs.length; m++) {
+                motifs[m] = randomMotif(random, 1 + random.nextInt(16));
+            }
+            // Repeated, palindromic and all-wildcard motifs
+            motifs[0] = motifs[1];
+            motifs[2] = "CACGTG";
+            motifs[3] = "....";
+            MotifAutomaton automaton = new MotifAutomaton();
+            automaton.initiate(motifs);
+
+            for (int scan = 0; scan < 10; scan++) {
+                String sequence = randomSequence(random, random.nextInt(2000));
+                int[][] matches = automaton.run(sequence);
+                BitSet found = automaton.find(sequence);
+                for (int m = 0; m < motifs.length; m++) {
+                    List<Integer> expected = new ArrayList<>();
+                    Matcher matcher = Pattern.compile(motifs[m]).matcher(sequence);
+                    while (matcher.find()) {
+                        expected.add(matcher.start());
+                    }
+                    List<Integer> actual = new ArrayList<>();
+                    for (int start : matches[m]) {
+                        actual.add(start);
+                    }
+                    assertEquals(motifs[m], expected, actual);
+                    assertEquals(motifs[m], !expected.isEmpty(), found.get(m));
+                }
+            }
+        }
+    }
+
+    // Bases are specific with a probability of about two in three, otherwise wildcards
+    static String randomMotif(Random random, int length) {
+        StringBuilder motif = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            motif.append(random.nextInt(3) == 0 ? '.' : "ACGT".charAt(random.nextInt(4)));
+        }
+        return motif.toString();
+    }
+
+    // Mostly uppercase bases, with the odd N and lowercase base
+    static String randomSequence(Random random, int length) {
+        StringBuilder sequence = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(50);
+            if (kind == 0) {
+                sequence.append('N');
+            } else if (kind == 1) {
+                sequence.append("acgt".charAt(random.nextInt(4)));
+            } else {
+                sequence.append("ACGT".charAt(random.nextInt(4)));
+            }
+        }
+        return sequence.toString();
+    }
+}
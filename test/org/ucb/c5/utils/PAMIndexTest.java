@@ -0,0 +1,130 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+
+/**
+ * Tests PAMIndex on sequences of A with PAMs placed at known positions: the cut
+ * site and protospacer of a guide on each strand, PAMs too close to the ends
+ * to leave room for a protospacer, overlapping PAMs, the ranking of guides by
+ * distance, strand and position, and a search that must widen to find a PAM.
+ *
+ * @author Manraj Gill
+ */
+public class PAMIndexTest {
+
+    @Test
+    public void CutSiteAndProtospacerTest() throws Exception {
+        RevComp revComp = new RevComp();
+        revComp.initiate();
+        // NGG with its first G at 100, CCN with its first C at 50
+        String sequence = place(place(background(200), 100, "GG"), 50, "CC");
+        PAMIndex index = new PAMIndex();
+        index.initiate(sequence);
+        assertEquals(1, index.getPlusStrandCount());
+        assertEquals(1, index.getMinusStrandCount());
+
+        // The plus-strand protospacer ends right before the N of NGG, the cut 3 bp before that
+        PAMIndex.Guide plus = index.run(96, 96, false);
+        assertFalse(plus.minusStrand);
+        assertEquals(96, plus.cutSite);
+        assertEquals(0, plus.distance);
+        assertEquals(79, plus.protospacerStart);
+        assertEquals("GG", sequence.substring(plus.protospacerStart + PAMIndex.PROTOSPACER_LENGTH + 1,
+                plus.protospacerStart + PAMIndex.PROTOSPACER_LENGTH + 3));
+
+        // The minus-strand protospacer starts right after the N of CCN and reads backwards,
+        // so its reverse complement is followed by NGG
+        PAMIndex.Guide minus = index.run(56, 56, true);
+        assertTrue(minus.minusStrand);
+        assertEquals(56, minus.cutSite);
+        assertEquals(53, minus.protospacerStart);
+        String target = revComp.run(sequence.substring(50, minus.protospacerStart + PAMIndex.PROTOSPACER_LENGTH));
+        assertTrue(target.endsWith("GG"));
+        assertEquals(PAMIndex.PROTOSPACER_LENGTH + 3, target.length());
+    }
+
+    @Test
+    public void PAMsNearTheEndsTest() throws Exception {
+        int length = 100;
+        PAMIndex index = new PAMIndex();
+        // The first G at 20 leaves 19 bases before the N, at 21 leaves 20
+        index.initiate(place(background(length), 20, "GG"));
+        assertEquals(0, index.getPlusStrandCount());
+        index.initiate(place(background(length), 21, "GG"));
+        assertEquals(1, index.getPlusStrandCount());
+        // The first C must leave 20 bases after the N
+        index.initiate(place(background(length), length - 22, "CC"));
+        assertEquals(0, index.getMinusStrandCount());
+        index.initiate(place(background(length), length - 23, "CC"));
+        assertEquals(1, index.getMinusStrandCount());
+
+        // GGG and CCC hold two overlapping PAMs each
+        index.initiate(place(place(background(length), 40, "GGG"), 60, "CCC"));
+        assertEquals(2, index.getPlusStrandCount());
+        assertEquals(2, index.getMinusStrandCount());
+
+        index.initiate(background(length));
+        assertNull(index.run(50, 60, false));
+        assertTrue(index.run(50, 60, false, 3).isEmpty());
+    }
+
+    @Test
+    public void RankingTest() throws Exception {
+        // Around the site 100-110: plus cuts at 95 and 116, minus cuts at 95, 116 and 105
+        String sequence = background(300);
+        sequence = place(sequence, 95 + 4, "GG");
+        sequence = place(sequence, 116 + 4, "GG");
+        sequence = place(sequence, 95 - 6, "CC");
+        sequence = place(sequence, 116 - 6, "CC");
+        PAMIndex index = new PAMIndex();
+        index.initiate(sequence);
+
+        // Both strands cut 5 bases from the site on either side; the strand of the site
+        // comes first, then the cut furthest upstream on the strand of the site
+        ArrayList<PAMIndex.Guide> plusSite = index.run(100, 110, false, 10);
+        assertEquals(4, plusSite.size());
+        assertGuide(plusSite.get(0), false, 95, 5);
+        assertGuide(plusSite.get(1), false, 116, 5);
+        assertGuide(plusSite.get(2), true, 95, 5);
+        assertGuide(plusSite.get(3), true, 116, 5);
+        ArrayList<PAMIndex.Guide> minusSite = index.run(100, 110, true, 2);
+        assertEquals(2, minusSite.size());
+        assertGuide(minusSite.get(0), true, 116, 5);
+        assertGuide(minusSite.get(1), true, 95, 5);
+
+        // A cut inside the site beats them all, whatever its strand
+        index.initiate(place(sequence, 105 - 6, "CC"));
+        assertGuide(index.run(100, 110, false), true, 105, 0);
+        // A cut right after the last base of the site is at its edge
+        assertGuide(index.run(100, 115, false), false, 116, 0);
+    }
+
+    @Test
+    public void WidensSearchTest() throws Exception {
+        // The only PAM is far beyond the first reach of the search
+        PAMIndex index = new PAMIndex();
+        index.initiate(place(background(5000), 4900, "GG"));
+        assertGuide(index.run(10, 12, true), false, 4896, 4896 - 13);
+        assertEquals(1, index.run(10, 12, true, 5).size());
+    }
+
+    private static void assertGuide(PAMIndex.Guide guide, boolean minusStrand, int cutSite, int distance) {
+        assertEquals(minusStrand, guide.minusStrand);
+        assertEquals(cutSite, guide.cutSite);
+        assertEquals(distance, guide.distance);
+    }
+
+    private static String background(int length) {
+        StringBuilder sequence = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sequence.append(i % 3 == 0 ? 'T' : 'A');
+        }
+        return sequence.toString();
+    }
+
+    private static String place(String sequence, int index, String bases) {
+        return sequence.substring(0, index) + bases + sequence.substring(index + bases.length());
+    }
+}
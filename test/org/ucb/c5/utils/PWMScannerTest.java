@@ -0,0 +1,153 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests PWMScanner against scoring every window over all of its positions, for
+ * random matrices, backgrounds and thresholds, and random sequences with
+ * lowercase bases and N. Scores are summed in a different order than the
+ * scanner sums them, so windows within a small tolerance of the threshold may
+ * go either way.
+ *
+ * @author Manraj Gill
+ */
+public class PWMScannerTest {
+
+    private static final double TOLERANCE = 1e-3;
+
+    @Test
+    public void PWMScannerMatchesFullScoringTest() throws Exception {
+        Random random = new Random(11);
+        int hits = 0;
+        for (int library = 0; library < 10; library++) {
+            List<float[]> frequencies = new ArrayList<>();
+            for (int m = 0; m < 40; m++) {
+                // Some motifs are shorter than the four bases looked up at once
+                frequencies.add(randomMatrix(random, m % 8 == 0 ? 1 + random.nextInt(3) : 4 + random.nextInt(20)));
+            }
+            double[] background = library % 2 == 0 ? PWMScanner.UNIFORM_BACKGROUND : randomColumn(random);
+            double threshold = 0.7 + 0.3 * random.nextDouble();
+            PWMScanner scanner = new PWMScanner();
+            scanner.initiate(frequencies, background, threshold);
+
+            for (int scan = 0; scan < 5; scan++) {
+                String sequence = plant(random, frequencies, randomSequence(random, 200 + random.nextInt(800)));
+                PWMScanner.Hits found = scanner.run(sequence);
+                for (int m = 0; m < frequencies.size(); m++) {
+                    double[][] table = logOdds(frequencies.get(m), background);
+                    double minScore = 0;
+                    double maxScore = 0;
+                    for (double[] column : table) {
+                        minScore += Math.min(Math.min(column[0], column[1]), Math.min(column[2], column[3]));
+                        maxScore += Math.max(Math.max(column[0], column[1]), Math.max(column[2], column[3]));
+                    }
+                    double cutoff = minScore + threshold * (maxScore - minScore);
+                    assertEquals(maxScore, scanner.getMaxScore(m), TOLERANCE);
+
+                    int next = 0;
+                    for (int start = 0; start + table.length <= sequence.length(); start++) {
+                        double expected = score(table, sequence, start);
+                        assertEquals(expected, scanner.score(m, sequence, start), TOLERANCE);
+                        boolean reported = next < found.starts[m].length && found.starts[m][next] == start;
+                        if (reported) {
+                            assertEquals(expected, found.scores[m][next], TOLERANCE);
+                            assertTrue("Window " + start + " of motif " + m + " below the threshold", expected >= cutoff - TOLERANCE);
+                            next++;
+                            hits++;
+                        } else {
+                            assertFalse("Window " + start + " of motif " + m + " missed", expected >= cutoff + TOLERANCE);
+                        }
+                    }
+                    assertEquals(found.starts[m].length, next);
+                }
+            }
+        }
+        assertTrue(hits > 1000);
+    }
+
+    // Log2-odds of every base at every position, with the pseudocount of the scanner
+    private static double[][] logOdds(float[] frequencies, double[] background) {
+        double[][] table = new double[frequencies.length / 4][4];
+        for (int j = 0; j < table.length; j++) {
+            for (int b = 0; b < 4; b++) {
+                double p = (frequencies[j * 4 + b] + 0.01 * background[b]) / 1.01;
+                table[j][b] = Math.log(p / background[b]) / Math.log(2);
+            }
+        }
+        return table;
+    }
+
+    private static double score(double[][] table, String sequence, int start) {
+        double score = 0;
+        for (int j = 0; j < table.length; j++) {
+            int base = "ACGT".indexOf(Character.toUpperCase(sequence.charAt(start + j)));
+            if (base < 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            score += table[j][base];
+        }
+        return score;
+    }
+
+    // Columns favour one base, with some columns left near uniform and some bases never observed
+    private static float[] randomMatrix(Random random, int length) {
+        float[] matrix = new float[length * 4];
+        for (int j = 0; j < length; j++) {
+            double[] column = randomColumn(random);
+            int favoured = random.nextInt(4);
+            double weight = random.nextInt(3) == 0 ? 0 : random.nextDouble();
+            for (int b = 0; b < 4; b++) {
+                double frequency = (1 - weight) * column[b] + (b == favoured ? weight : 0);
+                matrix[j * 4 + b] = random.nextInt(10) == 0 && b != favoured ? 0 : (float) frequency;
+            }
+        }
+        return matrix;
+    }
+
+    private static double[] randomColumn(Random random) {
+        double[] column = new double[4];
+        double total = 0;
+        for (int b = 0; b < 4; b++) {
+            column[b] = 0.05 + random.nextDouble();
+            total += column[b];
+        }
+        for (int b = 0; b < 4; b++) {
+            column[b] /= total;
+        }
+        return column;
+    }
+
+    private static String randomSequence(Random random, int length) {
+        StringBuilder sequence = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sequence.append(random.nextInt(50) == 0 ? 'N' : "ACGTacgt".charAt(random.nextInt(8)));
+        }
+        return sequence.toString();
+    }
+
+    // Writes the most frequent bases of random matrices over the sequence, in either case,
+    // so that most motifs have hits
+    private static String plant(Random random, List<float[]> frequencies, String sequence) {
+        StringBuilder planted = new StringBuilder(sequence);
+        for (int i = 0; i < 60; i++) {
+            float[] matrix = frequencies.get(random.nextInt(frequencies.size()));
+            int length = matrix.length / 4;
+            int start = random.nextInt(planted.length() - length + 1);
+            for (int j = 0; j < length; j++) {
+                int best = 0;
+                for (int b = 1; b < 4; b++) {
+                    if (matrix[j * 4 + b] > matrix[j * 4 + best]) {
+                        best = b;
+                    }
+                }
+                char base = "ACGT".charAt(best);
+                planted.setCharAt(start + j, random.nextBoolean() ? base : Character.toLowerCase(base));
+            }
+        }
+        return planted.toString();
+    }
+}
@@ -0,0 +1,170 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Tests PackedSequenceStore: records of every length around a byte of packed
+ * bases, soft-masked runs and runs of N and other characters read back whole
+ * and by range, and a store found to be stale, with the fingerprint sidecar of
+ * a large export rebuilt, after the export is edited without changing its size.
+ *
+ * @author Manraj Gill
+ */
+public class PackedSequenceStoreTest {
+
+    private static final String[][] RECORDS = {
+        {"empty", ""},
+        {"one", "G"},
+        {"three", "ACG"},
+        {"four", "TGCA"},
+        {"five", "CATGA"},
+        {"masked", "ACGTacgtacgTACGTa"},
+        {"unknown", "NNNNACGTNNRYACGTNN"},
+        // Lowercase n is both an exception and a soft-masked base, and runs of different characters meet
+        {"mixed", "nnnnACgtNRRNNyykAcGTttn"},
+        {"long", repeat("ACGTTGCAGGCCATTA", 40) + repeat("N", 100) + repeat("acgtacgtac", 13)}
+    };
+
+    @Test
+    public void RoundTripTest() throws Exception {
+        File file = File.createTempFile("store", ".psq");
+        try {
+            PackedSequenceStore.Writer writer = new PackedSequenceStore.Writer();
+            for (String[] record : RECORDS) {
+                writer.add(record[0], record[1]);
+            }
+            byte[] fingerprint = {1, 2, 3, 4};
+            writer.write(file.getPath(), fingerprint);
+
+            PackedSequenceStore store = new PackedSequenceStore();
+            store.initiate(file.getPath());
+            assertArrayEquals(fingerprint, store.getSourceFingerprint());
+            HashSet<String> names = new HashSet<>();
+            for (String name : store.getNames()) {
+                names.add(name);
+            }
+            assertEquals(RECORDS.length, names.size());
+            for (String[] record : RECORDS) {
+                String sequence = record[1];
+                assertTrue(store.contains(record[0]));
+                assertEquals(sequence.length(), store.getLength(record[0]));
+                assertEquals(sequence, store.run(record[0]));
+                // Every range, starting and ending inside and outside the runs
+                for (int start = 0; start <= sequence.length(); start += 3) {
+                    for (int end = start; end <= sequence.length(); end += 5) {
+                        assertEquals(record[0] + " " + start + "-" + end, sequence.substring(start, end), store.run(record[0], start, end));
+                    }
+                }
+            }
+
+            assertFalse(store.contains("absent"));
+            assertEquals(-1, store.getLength("absent"));
+            assertNull(store.run("absent"));
+            assertNull(store.run("absent", 0, 1));
+            try {
+                store.run("five", 2, 6);
+                fail("A range past the end of the record was read");
+            } catch (IndexOutOfBoundsException expected) {
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void RejectsOtherFilesTest() throws Exception {
+        File file = File.createTempFile("store", ".psq");
+        try {
+            Files.write(file.toPath(), ">GENE0\nACGT\n".getBytes(StandardCharsets.US_ASCII));
+            try {
+                new PackedSequenceStore().initiate(file.getPath());
+                fail("A FASTA file was opened as a store");
+            } catch (IllegalArgumentException expected) {
+            }
+
+            // A store written without a known export has an empty fingerprint
+            new PackedSequenceStore.Writer().write(file.getPath(), null);
+            PackedSequenceStore store = new PackedSequenceStore();
+            store.initiate(file.getPath());
+            assertEquals(0, store.getSourceFingerprint().length);
+            assertFalse(store.getNames().iterator().hasNext());
+
+            try {
+                new PackedSequenceStore.Writer().add("GENE0", "ACGT\u00e9");
+                fail("A character outside ASCII was accepted");
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void StaleAfterSameSizeEditTest() throws Exception {
+        File directory = Files.createTempDirectory("export").toFile();
+        File export = new File(directory, "export.txt");
+        File sidecar = new File(export.getPath() + FileUtils.FINGERPRINT_SUFFIX);
+        File storeFile = new File(directory, "export.psq");
+        try {
+            // Large enough for its fingerprint to be saved in a sidecar
+            byte[] content = new byte[(int) FileUtils.FINGERPRINT_SIDECAR_MIN_SIZE + 10];
+            Arrays.fill(content, (byte) 'A');
+            Files.write(export.toPath(), content);
+            byte[] original = FileUtils.getFingerprint(export);
+            assertArrayEquals(sha256(content), original);
+            assertTrue(sidecar.isFile());
+
+            PackedSequenceStore.Writer writer = new PackedSequenceStore.Writer();
+            writer.add("GENE0", "ACGT");
+            writer.write(storeFile.getPath(), original);
+            PackedSequenceStore store = new PackedSequenceStore();
+            store.initiate(storeFile.getPath());
+            assertArrayEquals(FileUtils.getFingerprint(export), store.getSourceFingerprint());
+
+            // One base changed in the middle, with a later modification time as the
+            // edit may fall within the same clock tick
+            try (RandomAccessFile edit = new RandomAccessFile(export, "rw")) {
+                edit.seek(content.length / 2);
+                edit.write('C');
+            }
+            export.setLastModified(export.lastModified() + 2000);
+            content[content.length / 2] = 'C';
+            byte[] edited = FileUtils.getFingerprint(export);
+            assertArrayEquals(sha256(content), edited);
+            assertFalse(Arrays.equals(edited, store.getSourceFingerprint()));
+            // The sidecar now holds the new fingerprint
+            byte[] saved = Files.readAllBytes(sidecar.toPath());
+            assertArrayEquals(edited, Arrays.copyOfRange(saved, saved.length - edited.length, saved.length));
+
+            // A rebuilt store is current again
+            writer.write(storeFile.getPath(), edited);
+            store.initiate(storeFile.getPath());
+            assertArrayEquals(FileUtils.getFingerprint(export), store.getSourceFingerprint());
+        } finally {
+            storeFile.delete();
+            sidecar.delete();
+            export.delete();
+            directory.delete();
+        }
+    }
+
+    private static byte[] sha256(byte[] content) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(content);
+    }
+
+    private static String repeat(String unit, int times) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            repeated.append(unit);
+        }
+        return repeated.toString();
+    }
+}
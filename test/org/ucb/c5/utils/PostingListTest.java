@@ -0,0 +1,161 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Tests PostingList on random lists: decoding what an Encoder wrote, and union,
+ * intersect and near against direct comparisons of every pair.
+ *
+ * @author Manraj Gill
+ */
+public class PostingListTest {
+
+    @Test
+    public void EncoderRoundTripTest() throws Exception {
+        Random random = new Random(25);
+        for (int trial = 0; trial < 200; trial++) {
+            PostingList list = randomList(random);
+            PostingList.Encoder encoder = new PostingList.Encoder();
+            for (int i = 0; i < list.size(); i++) {
+                encoder.add(list.getRecord(i), list.getPosition(i), list.isMinusStrand(i));
+            }
+            assertEquals(list.size(), encoder.size());
+            assertEquals(list.getRecords().length, encoder.getRecordCount());
+            byte[] bytes = encoder.toByteArray();
+            assertEquals(encoder.getByteLength(), bytes.length);
+
+            // The list is decoded from the middle of a larger buffer
+            int offset = random.nextInt(16);
+            ByteBuffer buffer = ByteBuffer.allocate(offset + bytes.length + 16);
+            buffer.position(offset);
+            buffer.put(bytes);
+            assertSameOccurrences(list, PostingList.decode(buffer, offset, encoder.size()));
+        }
+    }
+
+    @Test
+    public void EncoderRejectsDescendingOrderTest() throws Exception {
+        PostingList.Encoder encoder = new PostingList.Encoder();
+        encoder.add(3, 10, false);
+        try {
+            encoder.add(3, 9, false);
+            fail("An occurrence before the last one was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            encoder.add(2, 20, false);
+            fail("An occurrence in an earlier record was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void UnionMatchesSortedSetTest() throws Exception {
+        Random random = new Random(26);
+        for (int trial = 0; trial < 200; trial++) {
+            List<PostingList> lists = new ArrayList<>();
+            TreeSet<Long> keys = new TreeSet<>();
+            for (int l = 1 + random.nextInt(4); l > 0; l--) {
+                PostingList list = randomList(random);
+                lists.add(list);
+                for (int i = 0; i < list.size(); i++) {
+                    keys.add(key(list, i));
+                }
+            }
+            PostingList union = PostingList.union(lists);
+            assertEquals(keys.size(), union.size());
+            int i = 0;
+            for (long key : keys) {
+                assertEquals(key, key(union, i++));
+            }
+        }
+    }
+
+    @Test
+    public void IntersectAndNearMatchNaiveTest() throws Exception {
+        Random random = new Random(27);
+        for (int trial = 0; trial < 500; trial++) {
+            PostingList a = randomList(random);
+            PostingList b = randomList(random);
+            int[] aRecords = a.getRecords();
+            int[] bRecords = b.getRecords();
+            TreeSet<Integer> both = new TreeSet<>();
+            for (int record : aRecords) {
+                for (int other : bRecords) {
+                    if (record == other) {
+                        both.add(record);
+                    }
+                }
+            }
+            assertArrayEquals(toArray(both), PostingList.intersect(aRecords, bRecords));
+
+            int maxDistance = random.nextInt(50);
+            TreeSet<Integer> near = new TreeSet<>();
+            for (int i = 0; i < a.size(); i++) {
+                for (int j = 0; j < b.size(); j++) {
+                    if (a.getRecord(i) == b.getRecord(j) && Math.abs(a.getPosition(i) - b.getPosition(j)) <= maxDistance) {
+                        near.add(a.getRecord(i));
+                    }
+                }
+            }
+            assertArrayEquals(toArray(near), PostingList.near(a, b, maxDistance));
+        }
+    }
+
+    // Occurrences in ascending order over a few records, mostly close together,
+    // with the occasional large record or position so that numbers take several bytes
+    private static PostingList randomList(Random random) {
+        int size = random.nextInt(60);
+        int[] records = new int[size];
+        int[] positions = new int[size];
+        boolean[] minusStrands = new boolean[size];
+        int record = random.nextInt(5);
+        int position = random.nextInt(100);
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && random.nextInt(4) == 0) {
+                record += 1 + (random.nextInt(20) == 0 ? random.nextInt(1 << 24) : random.nextInt(3));
+                position = random.nextInt(100);
+            } else if (i > 0) {
+                position += random.nextInt(20) == 0 ? random.nextInt(1 << 24) : random.nextInt(40);
+            }
+            if (i > 0 && record == records[i - 1] && position == positions[i - 1] && minusStrands[i - 1]) {
+                position++;
+            }
+            records[i] = record;
+            positions[i] = position;
+            minusStrands[i] = random.nextBoolean();
+            if (i > 0 && record == records[i - 1] && position == positions[i - 1]) {
+                minusStrands[i] = true;
+            }
+        }
+        return new PostingList(records, positions, minusStrands, size);
+    }
+
+    private static long key(PostingList list, int occurrence) {
+        return ((long) list.getRecord(occurrence) << 32) | ((long) list.getPosition(occurrence) << 1) | (list.isMinusStrand(occurrence) ? 1 : 0);
+    }
+
+    private static void assertSameOccurrences(PostingList expected, PostingList actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getRecord(i), actual.getRecord(i));
+            assertEquals(expected.getPosition(i), actual.getPosition(i));
+            assertEquals(expected.isMinusStrand(i), actual.isMinusStrand(i));
+        }
+    }
+
+    private static int[] toArray(TreeSet<Integer> set) {
+        int[] array = new int[set.size()];
+        int i = 0;
+        for (int value : set) {
+            array[i++] = value;
+        }
+        return array;
+    }
+}
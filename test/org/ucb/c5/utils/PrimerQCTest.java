@@ -0,0 +1,121 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.Locale;
+
+/**
+ * Tests PrimerQC: melting temperatures against the nearest-neighbor sums of
+ * SantaLucia (1998) worked by hand, the hairpin and 3' dimer checks on primers
+ * built to fail them, and the arm chosen by optimizeArm against trying every
+ * allowed length.
+ *
+ * @author Manraj Gill
+ */
+public class PrimerQCTest {
+
+    private static final double GAS_CONSTANT = 1.9872;
+
+    @Test
+    public void NearestNeighborMeltingTemperatureTest() throws Exception {
+        PrimerQC qc = new PrimerQC();
+        // At 1 M sodium the salt correction vanishes and only the table sums remain
+        qc.initiate(1.0, PrimerQC.DEFAULT_PRIMER_CONCENTRATION);
+        // CGTTGA, the example of the paper: CG GT TT TG GA with a G.C and an A.T terminal pair
+        // dH = -10.6 - 8.4 - 7.9 - 8.5 - 8.2 + 0.1 + 2.3 = -41.2 kcal/mol
+        // dS = -27.2 - 22.4 - 22.2 - 22.7 - 22.2 - 2.8 + 4.1 = -115.4 cal/K/mol
+        assertEquals(tm(-41.2, -115.4, 0, 6), qc.meltingTemperature("CGTTGA", 0, 6), 1e-9);
+        assertEquals(-1.31, qc.meltingTemperature("CGTTGA", 0, 6), 0.01);
+        assertEquals(68.69, qc.meltingTemperature("ACGTCATCGAGCTTGACCAT", 0, 20), 0.01);
+
+        // The default 50 mM sodium lowers both by the entropy correction per pair
+        qc.initiate();
+        double salt = 0.368 * Math.log(PrimerQC.DEFAULT_SODIUM);
+        assertEquals(tm(-41.2, -115.4, salt, 6), qc.meltingTemperature("CGTTGA", 0, 6), 1e-9);
+        assertEquals(53.67, qc.meltingTemperature("ACGTCATCGAGCTTGACCAT", 0, 20), 0.01);
+        assertEquals(58.59, qc.meltingTemperature("GCGCATATGCGCAAGCTTGC", 0, 20), 0.01);
+
+        // A range within a longer sequence, in either case, melts as the range alone
+        assertEquals(qc.meltingTemperature("CGTTGA", 0, 6), qc.meltingTemperature("aacgttgaaa", 2, 8), 1e-9);
+        assertTrue(Double.isNaN(qc.meltingTemperature("ACGNACGT", 0, 8)));
+        assertTrue(Double.isNaN(qc.meltingTemperature("A", 0, 1)));
+    }
+
+    @Test
+    public void HairpinAndDimerTest() throws Exception {
+        PrimerQC qc = new PrimerQC();
+        qc.initiate();
+        // A stem of seven G.C pairs around a loop of four
+        String hairpin = "GGGGGGGAAAACCCCCCC";
+        assertEquals(7, PrimerQC.longestHairpinStem(hairpin));
+        assertTrue(qc.run(hairpin, 0, null, 60).flags.contains("HAIRPIN"));
+        // A loop of two bases is too short to fold, one of three is not
+        assertEquals(0, PrimerQC.longestHairpinStem("GTTC"));
+        assertEquals(1, PrimerQC.longestHairpinStem("GTTTC"));
+
+        // An EcoRI site at the 3' end pairs with itself over all six bases
+        String palindromic = "ATTCAGTCTCTGAGAATTC";
+        assertEquals(6, PrimerQC.threePrimeDimer(palindromic, palindromic));
+        assertTrue(qc.run(palindromic, 0, null, 60).flags.contains("DIMER"));
+
+        // A partner that pairs with the last five bases of the primer only
+        String primer = "ACGTCATCGAGCTTGACCAT";
+        String partner = "CCCCATGGTACCC";
+        assertEquals(5, PrimerQC.threePrimeDimer(primer, partner));
+        assertFalse(qc.run(primer, 0, null, 60).flags.contains("DIMER"));
+        assertTrue(qc.run(primer, 0, partner, 60).flags.contains("DIMER"));
+    }
+
+    @Test
+    public void OptimizeArmTest() throws Exception {
+        PrimerQC qc = new PrimerQC();
+        qc.initiate();
+        String template = "TTGACCATGCGTCATCGAGCTTGACCATGGCAGTCGATCGATCGGCTAGCATGCAAGCTTGCGCATATGCGC";
+        int fixedEnd = 20;
+        double targetTm = 60;
+        int right = qc.optimizeArm(template, fixedEnd, false, 16, 40, targetTm);
+        int left = qc.optimizeArm(template, template.length() - fixedEnd, true, 16, 40, targetTm);
+        // A GC-rich 40 bp arm melts far above the target, so both arms are shortened
+        assertTrue(qc.meltingTemperature(template, fixedEnd, fixedEnd + 40) > targetTm + PrimerQC.MAX_TM_DEVIATION);
+        assertTrue(right < 40);
+        assertTrue(left < 40);
+        assertEquals(bestLength(qc, template, fixedEnd, false, 16, 40, targetTm), right);
+        assertEquals(bestLength(qc, template, template.length() - fixedEnd, true, 16, 40, targetTm), left);
+        assertEquals(targetTm, qc.meltingTemperature(template, fixedEnd, fixedEnd + right), PrimerQC.MAX_TM_DEVIATION);
+
+        // The edge of the template limits the arm
+        assertTrue(qc.optimizeArm(template, template.length() - 10, false, 5, 40, 90) <= 10);
+    }
+
+    @Test
+    public void ResultToStringIgnoresLocaleTest() throws Exception {
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.GERMANY);
+            assertEquals("61.5C PASS", new PrimerQC.Result(61.5, 0.5, 3, 0, 0, "").toString());
+            assertEquals("48.0C GC,HOMOPOLYMER", new PrimerQC.Result(48.0, 0.2, 6, 0, 0, "GC,HOMOPOLYMER").toString());
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    private static double tm(double enthalpy, double entropy, double saltEntropyPerPair, int length) {
+        double concentrationEntropy = GAS_CONSTANT * Math.log(PrimerQC.DEFAULT_PRIMER_CONCENTRATION / 4);
+        return 1000 * enthalpy / (entropy + saltEntropyPerPair * (length - 1) + concentrationEntropy) - 273.15;
+    }
+
+    // The shortest allowed arm closest to the target, scoring each length from scratch
+    private static int bestLength(PrimerQC qc, String template, int fixedEnd, boolean extendsLeft, int minLength, int maxLength, double targetTm) {
+        int best = minLength;
+        double bestDeviation = Double.MAX_VALUE;
+        for (int length = minLength; length <= maxLength; length++) {
+            int start = extendsLeft ? fixedEnd - length : fixedEnd;
+            double deviation = Math.abs(qc.meltingTemperature(template, start, start + length) - targetTm);
+            if (deviation < bestDeviation) {
+                bestDeviation = deviation;
+                best = length;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,91 @@
+package org.ucb.c5.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests that the char[], byte[] and packed overloads of RevComp agree with
+ * reverse complementing a String, over ranges of odd and even length, the
+ * IUPAC codes in either case, and words of every length from 0 to 32 bases.
+ *
+ * @author Manraj Gill
+ */
+public class RevCompTest {
+
+    private static final String BASES = "ACGT";
+
+    @Test
+    public void StringTest() throws Exception {
+        RevComp revComp = new RevComp();
+        revComp.initiate();
+        assertEquals("", revComp.run(""));
+        assertEquals("WYNTTATTTGGGATGCAT", revComp.run("ATGCATCCCAAATAANRW"));
+        assertEquals("acgTn", revComp.run("nAcgt"));
+        assertEquals("MKRYSWBVDHN", revComp.run("NDHBVWSRYMK"));
+        try {
+            revComp.run("ACGU");
+            fail("U was complemented");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void ArrayRangesMatchStringTest() throws Exception {
+        RevComp revComp = new RevComp();
+        revComp.initiate();
+        String sequence = "xxACGTacgtNRYKMSWBDHVnryxx";
+        // Empty, single base, odd and even ranges, away from and up to the ends of the array
+        int[][] ranges = {{2, 2}, {2, 3}, {2, 5}, {2, 6}, {3, 24}, {2, 24}};
+        for (int[] range : ranges) {
+            String expected = sequence.substring(0, range[0]) + revComp.run(sequence.substring(range[0], range[1]))
+                    + sequence.substring(range[1]);
+
+            char[] chars = sequence.toCharArray();
+            RevComp.run(chars, range[0], range[1]);
+            assertEquals(expected, new String(chars));
+
+            byte[] bytes = sequence.getBytes(StandardCharsets.US_ASCII);
+            RevComp.run(bytes, range[0], range[1]);
+            assertEquals(expected, new String(bytes, StandardCharsets.US_ASCII));
+        }
+
+        // The whole array, which holds characters outside the range that are not nucleotides
+        char[] chars = sequence.toCharArray();
+        try {
+            RevComp.run(chars, 0, chars.length);
+            fail("x was complemented");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void PackedMatchesStringTest() throws Exception {
+        RevComp revComp = new RevComp();
+        revComp.initiate();
+        String sequence = "ACGTTGCAAACCCGGGTTTAGCTAGCATCGGA";
+        for (int bases = 0; bases <= 32; bases++) {
+            String word = sequence.substring(0, bases);
+            // Bits above the word are ignored
+            long packed = pack(word) | (bases < 32 ? -1L << (2 * bases) : 0);
+            assertEquals(word, pack(revComp.run(word)), RevComp.run(packed, bases));
+        }
+        assertEquals(pack("TTTT"), RevComp.run(pack("AAAA"), 4));
+        for (int bases : new int[]{-1, 33}) {
+            try {
+                RevComp.run(0L, bases);
+                fail(bases + " bases were accepted");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    // Base i in bits 2i and 2i + 1
+    private static long pack(String word) {
+        long packed = 0;
+        for (int i = 0; i < word.length(); i++) {
+            packed |= (long) BASES.indexOf(word.charAt(i)) << (2 * i);
+        }
+        return packed;
+    }
+}